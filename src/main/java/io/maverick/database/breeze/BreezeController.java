@@ -1,15 +1,42 @@
 package io.maverick.database.breeze;
 
+import io.maverick.database.breeze.domain.AtomicTransactionDTO;
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ScanPageDTO;
 import io.maverick.database.breeze.domain.TransactionalValueDTO;
 import io.maverick.database.breeze.domain.ValueDTO;
 import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.persistence.TransferFormat;
 import io.maverick.database.breeze.service.BreezeService;
+import io.maverick.database.breeze.service.ChangeSubscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -21,42 +48,106 @@ import org.springframework.web.bind.annotation.*;
 @RestController
 public class BreezeController {
 
+    // How long a change stream stays silent at most, a comment is sent after that to find out if the subscriber is still there
+    private static final long KEEP_ALIVE_SECONDS = 15;
+
+    // How long a change stream stays open, an event source reconnects after that and resumes after the last event it got
+    private static final long STREAM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
     // The actual implementation of our key value service
     BreezeService<String,String> service;
 
+    // Streams the changes to their subscribers, a thread each so a slow subscriber only ever holds up itself
+    private final ExecutorService changeStreams = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "breeze-change-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The change streams still open, ended when the application stops
+    private final Set<SseEmitter> openStreams = ConcurrentHashMap.newKeySet();
+
     BreezeController(@Autowired BreezeService<String,String> service){
      this.service = service;
     }
 
     @GetMapping("/entry/{key}")
-    public ResponseEntity<ValueDTO<String,String>> get(@PathVariable("key") String key){
-        return createResponse(new ValueDTO<>(key, service.get(key)));
+    public ResponseEntity<ValueDTO<String,String>> get(@PathVariable("key") String key, WebRequest request){
+        ValueDTO<String,String> current = service.getVersioned(key);
+        if(current.getVersion() != null && request.checkNotModified(eTagOf(current.getVersion()))){
+            //the client holds the current value already (see If-None-Match), a 304 goes back without a body
+            return null;
+        }
+        return createResponse(new ValueDTO<>(key, current.getValue()), current.getVersion());
     }
 
     @GetMapping("/entry/{key}/transaction/{transactionId}")
-    public ResponseEntity<TransactionalValueDTO> get(@PathVariable("key") String key,
+    public ResponseEntity<TransactionalValueDTO<String,String>> get(@PathVariable("key") String key,
                                                      @PathVariable("transactionId") String transactionId){
-        return createResponse(new TransactionalValueDTO(transactionId,key,service.get(key,transactionId)));
+        return createResponse(new TransactionalValueDTO<>(transactionId,key,service.get(key,transactionId)));
     }
 
     @PostMapping("/entry/{key}")
     public ResponseEntity<String> put(@RequestBody ValueDTO<String,String> request,
-                    @PathVariable("key") String key){
-        service.put(key, request.getValue());
+                    @PathVariable("key") String key,
+                    @RequestParam(value = "ttlMillis", required = false) Long ttlMillis,
+                    @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch){
+        //optimistic concurrency over http: If-Match names the version read before (* any version of an existing key),
+        //If-None-Match: * creates the key only
+        if(ifMatch != null || ifNoneMatch != null){
+            if(ttlMillis != null){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "A conditional write cannot have a time to live.");
+            }
+            checkSingleCondition(ifMatch, ifNoneMatch);
+            if(ifMatch == null && !isAnyVersion(ifNoneMatch)){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "A write only accepts * in the If-None-Match header.");
+            }
+            long version;
+            if(ifMatch == null){
+                version = service.putIfAbsent(key, request.getValue());
+            }else if(isAnyVersion(ifMatch)){
+                version = service.putIfPresent(key, request.getValue());
+            }else{
+                version = service.putIfVersion(key, request.getValue(), versionsOf(ifMatch));
+            }
+            return createResponse("UPSERTED", version);
+        }
+        if(ttlMillis == null){
+            service.put(key, request.getValue());
+        }else{
+            service.put(key, request.getValue(), ttlMillis);
+        }
         return createResponse("UPSERTED");
     }
 
     @PostMapping("/entry/{key}/transaction/{transactionId}")
     public ResponseEntity<String> put(@RequestBody ValueDTO<String,String> request,
                     @PathVariable("key") String key,
-                    @PathVariable("transactionId") String transactionId){
+                    @PathVariable("transactionId") String transactionId,
+                    @RequestParam(value = "ttlMillis", required = false) Long ttlMillis){
+        if(ttlMillis == null){
             service.put(key, request.getValue(),transactionId);
+        }else{
+            service.put(key, request.getValue(), ttlMillis, transactionId);
+        }
         return createResponse("DELETED");
     }
 
     @DeleteMapping("/entry/{key}")
-    public ResponseEntity<String> delete(@PathVariable("key") String key) {
-        service.delete(key);
+    public ResponseEntity<String> delete(@PathVariable("key") String key, WebRequest request) {
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        if(request.getHeader(HttpHeaders.IF_NONE_MATCH) != null){
+            //deleting only a key that is not there, or not at a version, is never what a client means
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "A delete does not take an If-None-Match header.");
+        }
+        if(ifMatch != null && isAnyVersion(ifMatch)){
+            service.deleteIfPresent(key);
+        }else if(ifMatch != null){
+            service.deleteIfVersion(key, versionsOf(ifMatch));
+        }else{
+            service.delete(key);
+        }
         return createResponse("DELETED");
     }
 
@@ -67,6 +158,112 @@ public class BreezeController {
         return createResponse("DELETED");
     }
 
+    @GetMapping("/entry/{key}/versioned")
+    public ResponseEntity<ValueDTO<String,String>> getVersioned(@PathVariable("key") String key){
+        return createResponse(service.getVersioned(key));
+    }
+
+    @PostMapping("/entry/{key}/if-absent")
+    public ResponseEntity<ValueDTO<String,String>> putIfAbsent(@RequestBody ValueDTO<String,String> request,
+                    @PathVariable("key") String key){
+        long version = service.putIfAbsent(key, request.getValue());
+        return createResponse(new ValueDTO<>(key, request.getValue(), version));
+    }
+
+    @PostMapping("/entry/{key}/if-version/{version}")
+    public ResponseEntity<ValueDTO<String,String>> putIfVersion(@RequestBody ValueDTO<String,String> request,
+                    @PathVariable("key") String key,
+                    @PathVariable("version") long version){
+        long written = service.putIfVersion(key, request.getValue(), version);
+        return createResponse(new ValueDTO<>(key, request.getValue(), written));
+    }
+
+    @DeleteMapping("/entry/{key}/if-version/{version}")
+    public ResponseEntity<String> deleteIfVersion(@PathVariable("key") String key,
+                    @PathVariable("version") long version){
+        service.deleteIfVersion(key, version);
+        return createResponse("DELETED");
+    }
+
+    @PostMapping("/entry/{key}/increment")
+    public ResponseEntity<Long> increment(@PathVariable("key") String key,
+                    @RequestParam(value = "delta", defaultValue = "1") long delta){
+        return createResponse(service.increment(key, delta));
+    }
+
+    @PostMapping("/entry/{key}/decrement")
+    public ResponseEntity<Long> decrement(@PathVariable("key") String key,
+                    @RequestParam(value = "delta", defaultValue = "1") long delta){
+        if(delta == Long.MIN_VALUE){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The delta [" + delta + "] cannot be negated.");
+        }
+        return createResponse(service.increment(key, -delta));
+    }
+
+    @PostMapping("/entries/get")
+    public ResponseEntity<List<ValueDTO<String,String>>> getAll(@RequestBody List<String> keys){
+        List<ValueDTO<String,String>> response = new ArrayList<>(keys.size());
+        for(Map.Entry<String,String> entry : service.getAll(keys).entrySet()){
+            response.add(new ValueDTO<>(entry.getKey(), entry.getValue()));
+        }
+        return createResponse(response);
+    }
+
+    @PostMapping("/entries/get/transaction/{transactionId}")
+    public ResponseEntity<List<TransactionalValueDTO<String,String>>> getAll(@RequestBody List<String> keys,
+                                                                         @PathVariable("transactionId") String transactionId){
+        List<TransactionalValueDTO<String,String>> response = new ArrayList<>(keys.size());
+        for(Map.Entry<String,String> entry : service.getAll(keys, transactionId).entrySet()){
+            response.add(new TransactionalValueDTO<>(transactionId, entry.getKey(), entry.getValue()));
+        }
+        return createResponse(response);
+    }
+
+    @PostMapping("/entries")
+    public ResponseEntity<String> putAll(@RequestBody List<ValueDTO<String,String>> request){
+        service.putAll(toMap(request));
+        return createResponse("UPSERTED");
+    }
+
+    @PostMapping("/entries/transaction/{transactionId}")
+    public ResponseEntity<String> putAll(@RequestBody List<ValueDTO<String,String>> request,
+                    @PathVariable("transactionId") String transactionId){
+        service.putAll(toMap(request), transactionId);
+        return createResponse("UPSERTED");
+    }
+
+    @PostMapping("/entries/delete")
+    public ResponseEntity<String> deleteAll(@RequestBody List<String> keys){
+        service.deleteAll(keys);
+        return createResponse("DELETED");
+    }
+
+    @PostMapping("/entries/delete/transaction/{transactionId}")
+    public ResponseEntity<String> deleteAll(@RequestBody List<String> keys,
+                    @PathVariable("transactionId") String transactionId){
+        service.deleteAll(keys, transactionId);
+        return createResponse("DELETED");
+    }
+
+    @GetMapping("/entries")
+    public ResponseEntity<ScanPageDTO<String,String>> scan(@RequestParam(value = "from", required = false) String from,
+                                                          @RequestParam(value = "to", required = false) String to,
+                                                          @RequestParam(value = "prefix", required = false) String prefix,
+                                                          @RequestParam(value = "cursor", required = false) String cursor,
+                                                          @RequestParam(value = "limit", defaultValue = "100") int limit){
+        return createResponse(service.scan(from, to, prefix, cursor, limit));
+    }
+
+    @GetMapping("/entries/transaction/{transactionId}")
+    public ResponseEntity<ScanPageDTO<String,String>> scan(@RequestParam(value = "from", required = false) String from,
+                                                          @RequestParam(value = "to", required = false) String to,
+                                                          @RequestParam(value = "prefix", required = false) String prefix,
+                                                          @RequestParam(value = "cursor", required = false) String cursor,
+                                                          @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                                          @PathVariable("transactionId") String transactionId){
+        return createResponse(service.scan(from, to, prefix, cursor, limit, transactionId));
+    }
+
     @PostMapping("/transaction/{transactionId}")
     public ResponseEntity<String> createTransaction(@PathVariable("transactionId") String transactionId){
             service.createTransaction(transactionId);
@@ -85,16 +282,240 @@ public class BreezeController {
         return createResponse("COMMITTED");
     }
 
+    @PostMapping("/atomic")
+    public ResponseEntity<String> executeAtomically(@RequestBody AtomicTransactionDTO<String,String> request){
+        service.executeAtomically(
+                request.getConditions() == null ? Collections.<String,String>emptyMap() : request.getConditions(),
+                request.getOperations() == null ? Collections.<OperationDTO<String,String>>emptyList() : request.getOperations());
+        return createResponse("COMMITTED");
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam(value = "format", defaultValue = "ndjson") String format){
+        TransferFormat transferFormat = transferFormatOf(format);
+        //written straight into the response as the keys are walked, so it goes out chunked and never sits in memory
+        StreamingResponseBody body = out -> {
+            try(TransferFormat.Writer writer = transferFormat.writer(out)){
+                service.export(value -> {
+                    try{
+                        writer.write(value);
+                    }catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(transferFormat.getContentType()));
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    @PostMapping("/import")
+    public ResponseEntity<Long> importAll(InputStream request,
+                    @RequestParam(value = "format", defaultValue = "ndjson") String format){
+        TransferFormat transferFormat = transferFormatOf(format);
+        try{
+            return createResponse(service.importAll(transferFormat.reader(request)));
+        }catch (IOException | UncheckedIOException e){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The import stream could not be read, the batches before the problem are imported and persisted: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/changes")
+    public SseEmitter changes(@RequestParam(value = "prefix", required = false) String prefix,
+                    @RequestParam(value = "after", required = false) Long after,
+                    @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId){
+        //a reconnecting event source tells the last event it got in the header
+        ChangeSubscription<String,String> subscription = service.subscribe(prefix, after != null ? after : lastEventId);
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MILLIS);
+        openStreams.add(emitter);
+        emitter.onCompletion(() -> {
+            openStreams.remove(emitter);
+            subscription.close();
+        });
+        emitter.onError(e -> {
+            openStreams.remove(emitter);
+            subscription.close();
+        });
+        //ended normally instead of with an error, so the event source simply reconnects
+        emitter.onTimeout(emitter::complete);
+        changeStreams.execute(() -> stream(subscription, emitter));
+        return emitter;
+    }
+
+    /**
+     * Ends the change streams still open and stops their threads, the subscribers reconnect to wherever the application comes back
+     */
+    @PreDestroy
+    public void shutdown(){
+        changeStreams.shutdownNow();
+        for(SseEmitter emitter : openStreams){
+            emitter.complete();
+        }
+        openStreams.clear();
+    }
+
+    @GetMapping("/statistics")
+    public ResponseEntity<Map<String,Object>> statistics(){
+        return createResponse(service.getStatistics());
+    }
+
     @ExceptionHandler({ BreezeActionException.class })
-    public ResponseEntity<Object> handleAll(BreezeActionException ex) {
+    public ResponseEntity<Object> handleAll(BreezeActionException ex, WebRequest request) {
+        //set explicitly, so the error is rendered even for a request accepting only an event stream
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        //the conditions of the http headers fail the way http clients expect them to
+        boolean conditionalRequest = request.getHeader(HttpHeaders.IF_MATCH) != null || request.getHeader(HttpHeaders.IF_NONE_MATCH) != null;
+        HttpStatus status = ex.getErrorCode() == ErrorCode.PRECONDITION_FAILED && conditionalRequest
+                ? HttpStatus.PRECONDITION_FAILED : HttpStatus.BAD_REQUEST;
+        //a replica too far behind its leader is not wrong, only unavailable until it catches up, load balancers try another one
+        if(ex.getErrorCode() == ErrorCode.REPLICA_TOO_STALE){
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        }
         return new ResponseEntity<>(
-                ex.getContext(), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+                ex.getContext(), headers, status);
+    }
+
+    /**
+     * Sends the events of a subscription as server sent events, until the subscriber goes away or gets cut off
+     */
+    private static void stream(ChangeSubscription<String,String> subscription, SseEmitter emitter){
+        try{
+            while(true){
+                ChangeEventDTO<String,String> event = subscription.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                if(event == null){
+                    emitter.send(SseEmitter.event().comment("keep-alive"));
+                }else{
+                    emitter.send(SseEmitter.event()
+                            .id(Long.toString(event.getSequence()))
+                            .name("change")
+                            .data(event, MediaType.APPLICATION_JSON));
+                }
+            }
+        }catch (BreezeActionException e){
+            //fell behind, the id of the last event sent is where the subscriber resumes after reconnecting
+            try{
+                emitter.send(SseEmitter.event().name("overflow").data(e.getContext(), MediaType.APPLICATION_JSON));
+                emitter.complete();
+            }catch (IOException | IllegalStateException gone){
+                emitter.completeWithError(gone);
+            }
+        }catch (IOException | IllegalStateException e){
+            //the subscriber went away
+            emitter.completeWithError(e);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            emitter.complete();
+        }finally {
+            subscription.close();
+        }
+    }
+
+    /**
+     * The values of a batch request by their keys, a key listed more than once gets its last value
+     */
+    private static Map<String,String> toMap(List<ValueDTO<String,String>> request){
+        Map<String,String> values = new LinkedHashMap<>();
+        for(ValueDTO<String,String> value : request){
+            values.put(value.getKey(), value.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * The entity tag of a version of a key
+     */
+    private static String eTagOf(long version){
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Whether a precondition header holds the * matching any version of an existing key
+     */
+    private static boolean isAnyVersion(String header){
+        return "*".equals(header.trim());
+    }
+
+    /**
+     * Refuses a write conditioned on both If-Match and If-None-Match. The two could hold at once, the combination
+     * is refused only to keep the handling of the conditions simple.
+     */
+    private static void checkSingleCondition(String ifMatch, String ifNoneMatch){
+        if(ifMatch != null && ifNoneMatch != null){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "A write takes either an If-Match or an If-None-Match header, not both.");
+        }
+    }
+
+    /**
+     * The versions named by an If-Match header, a comma separated list of entity tags. If-Match compares the tags strongly:
+     * a weak tag never matches, and neither does a strong one that is not the tag of a version, both are left out.
+     *
+     * @throws BreezeActionException when the header is not a list of entity tags, or none of its tags can match
+     */
+    private static Set<Long> versionsOf(String header){
+        Set<Long> versions = new LinkedHashSet<>();
+        int tags = 0;
+        boolean separated = true;
+        for(int i = 0; i < header.length(); ){
+            char next = header.charAt(i);
+            if(next == ' ' || next == '\t' || next == ','){
+                separated |= next == ',';
+                i++;
+                continue;
+            }
+            boolean weak = header.startsWith("W/", i);
+            int open = weak ? i + 2 : i;
+            int close = open < header.length() && header.charAt(open) == '"' ? header.indexOf('"', open + 1) : -1;
+            if(!separated || close < 0){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The If-Match header [" + header + "] is not a list of entity tags.");
+            }
+            if(!weak){
+                try{
+                    versions.add(Long.parseLong(header.substring(open + 1, close)));
+                }catch (NumberFormatException e){
+                    //not one of ours, it matches no version
+                }
+            }
+            tags++;
+            separated = false;
+            i = close + 1;
+        }
+        if(tags == 0){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The If-Match header [" + header + "] is not a list of entity tags.");
+        }
+        if(versions.isEmpty()){
+            throw new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "None of the entity tags in the If-Match header [" + header
+                    + "] is the strong tag of a version, so none of them matches. It has not been written.");
+        }
+        return versions;
+    }
+
+    /**
+     * The transfer format named by a request parameter, in any case
+     */
+    private static TransferFormat transferFormatOf(String format){
+        try{
+            return TransferFormat.valueOf(format.toUpperCase(Locale.ROOT));
+        }catch (IllegalArgumentException e){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "Unknown format [" + format + "], it is either ndjson or binary.");
+        }
     }
 
     private <T> ResponseEntity<T> createResponse(T response){
+        return createResponse(response, null);
+    }
+
+    /**
+     * A response carrying the version of the entry it is about as its entity tag
+     */
+    private <T> ResponseEntity<T> createResponse(T response, Long version){
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.add("Content-Type", "application/json");
+        if(version != null){
+            headers.setETag(eTagOf(version));
+        }
         return new ResponseEntity<T>(response, headers, HttpStatus.OK);
     }
 }
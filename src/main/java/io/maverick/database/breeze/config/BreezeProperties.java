@@ -0,0 +1,570 @@
+package io.maverick.database.breeze.config;
+
+import io.maverick.database.breeze.persistence.FsyncPolicy;
+import io.maverick.database.breeze.replication.ReplicationRole;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * The tunables of a breeze instance, bound from the <code>breeze.*</code> keys of the application properties.
+ *
+ * Every value has a sane default, so an empty configuration gives the same behaviour as a plain in-memory store.
+ */
+@Component
+@ConfigurationProperties(prefix = "breeze")
+public class BreezeProperties {
+
+    // How the store protects itself against concurrent writers
+    private final Locking locking = new Locking();
+
+    // How commits are funneled into the store
+    private final Commit commit = new Commit();
+
+    // Where and how the writes are persisted
+    private final Wal wal = new Wal();
+
+    // How long and how big the transactions can get
+    private final Transactions transactions = new Transactions();
+
+    // How the keys written with a time to live are reclaimed
+    private final Expiry expiry = new Expiry();
+
+    // How the changes of the store are shipped to its subscribers
+    private final Changes changes = new Changes();
+
+    // What the store keeps its keys and values in
+    private final Storage storage = new Storage();
+
+    // Whether the store ships its writes to followers or follows a leader
+    private final Replication replication = new Replication();
+
+    public Locking getLocking() {
+        return locking;
+    }
+
+    public Commit getCommit() {
+        return commit;
+    }
+
+    public Wal getWal() {
+        return wal;
+    }
+
+    public Transactions getTransactions() {
+        return transactions;
+    }
+
+    public Expiry getExpiry() {
+        return expiry;
+    }
+
+    public Changes getChanges() {
+        return changes;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public Replication getReplication() {
+        return replication;
+    }
+
+    /**
+     * Settings of the lock striping that guards the single key operations and the commits
+     */
+    public static class Locking {
+
+        //The number of independent locks the keyspace is spread across, 1 means a single global lock
+        private int stripes = 64;
+
+        public int getStripes() {
+            return stripes;
+        }
+
+        public void setStripes(int stripes) {
+            this.stripes = stripes;
+        }
+    }
+
+    /**
+     * Settings of the group commit, which validates and applies concurrent commits together under one critical section
+     */
+    public static class Commit {
+
+        //Whether concurrent commits are batched at all, without it every commit takes the locks on its own
+        private boolean groupCommit = false;
+
+        //How long the first commit of a batch waits for others to join
+        private long windowMicros = 100;
+
+        //The number of commits that closes a batch even before its window is over
+        private int maxBatchSize = 64;
+
+        //Whether open transactions get notified of the commits on the keys they write, instead of re-checking every key at their own commit
+        private boolean earlyConflictDetection = true;
+
+        public boolean isGroupCommit() {
+            return groupCommit;
+        }
+
+        public void setGroupCommit(boolean groupCommit) {
+            this.groupCommit = groupCommit;
+        }
+
+        public long getWindowMicros() {
+            return windowMicros;
+        }
+
+        public void setWindowMicros(long windowMicros) {
+            this.windowMicros = windowMicros;
+        }
+
+        public int getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public void setMaxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        public boolean isEarlyConflictDetection() {
+            return earlyConflictDetection;
+        }
+
+        public void setEarlyConflictDetection(boolean earlyConflictDetection) {
+            this.earlyConflictDetection = earlyConflictDetection;
+        }
+    }
+
+    /**
+     * Settings of the write ahead log every write is recorded in before it gets acknowledged
+     */
+    public static class Wal {
+
+        //Whether the writes are persisted at all, without it the store lives purely in memory
+        private boolean enabled = false;
+
+        //The directory the log segments are kept in
+        private String directory = "breeze-data";
+
+        //When the log is forced to the disk
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.EVERY_WRITE;
+
+        //How often the log is written (and for the periodic policy forced) in the background
+        private long syncIntervalMillis = 10;
+
+        //The size the log segments are pre-allocated to
+        private int segmentSizeMb = 64;
+
+        //How often a snapshot of the store is taken (and the log truncated behind it), 0 switches the periodic snapshots off
+        private long snapshotIntervalSeconds = 300;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public FsyncPolicy getFsyncPolicy() {
+            return fsyncPolicy;
+        }
+
+        public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+        }
+
+        public long getSyncIntervalMillis() {
+            return syncIntervalMillis;
+        }
+
+        public void setSyncIntervalMillis(long syncIntervalMillis) {
+            this.syncIntervalMillis = syncIntervalMillis;
+        }
+
+        public int getSegmentSizeMb() {
+            return segmentSizeMb;
+        }
+
+        public void setSegmentSizeMb(int segmentSizeMb) {
+            this.segmentSizeMb = segmentSizeMb;
+        }
+
+        public long getSnapshotIntervalSeconds() {
+            return snapshotIntervalSeconds;
+        }
+
+        public void setSnapshotIntervalSeconds(long snapshotIntervalSeconds) {
+            this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        }
+    }
+
+    /**
+     * Limits protecting the store from transactions that are abandoned or grow without bounds
+     */
+    public static class Transactions {
+
+        //How long a transaction may go without any operation before it gets rolled back, 0 means forever
+        private long idleTimeoutMillis = 300_000;
+
+        //How long a transaction may stay open at all before it gets rolled back, 0 means forever
+        private long absoluteTimeoutMillis = 3_600_000;
+
+        //How often the reaper looks for expired transactions, the timeouts are enforced with this precision
+        private long reaperTickMillis = 100;
+
+        //The number of transactions that can be open at the same time
+        private int maxOpen = 100_000;
+
+        //The number of keys a single transaction (or an atomic request) can write
+        private int maxWriteSetSize = 100_000;
+
+        public long getIdleTimeoutMillis() {
+            return idleTimeoutMillis;
+        }
+
+        public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        public long getAbsoluteTimeoutMillis() {
+            return absoluteTimeoutMillis;
+        }
+
+        public void setAbsoluteTimeoutMillis(long absoluteTimeoutMillis) {
+            this.absoluteTimeoutMillis = absoluteTimeoutMillis;
+        }
+
+        public long getReaperTickMillis() {
+            return reaperTickMillis;
+        }
+
+        public void setReaperTickMillis(long reaperTickMillis) {
+            this.reaperTickMillis = reaperTickMillis;
+        }
+
+        public int getMaxOpen() {
+            return maxOpen;
+        }
+
+        public void setMaxOpen(int maxOpen) {
+            this.maxOpen = maxOpen;
+        }
+
+        public int getMaxWriteSetSize() {
+            return maxWriteSetSize;
+        }
+
+        public void setMaxWriteSetSize(int maxWriteSetSize) {
+            this.maxWriteSetSize = maxWriteSetSize;
+        }
+    }
+
+    /**
+     * Settings of the background sweep reclaiming the expired keys nobody reads anymore
+     */
+    public static class Expiry {
+
+        //How often the expired keys are looked for, 0 switches the sweep off and expired keys are only reclaimed when read
+        private long sweepIntervalMillis = 100;
+
+        //How long a single sweep may run, the keys it did not get to wait for the next one
+        private long sweepBudgetMillis = 5;
+
+        public long getSweepIntervalMillis() {
+            return sweepIntervalMillis;
+        }
+
+        public void setSweepIntervalMillis(long sweepIntervalMillis) {
+            this.sweepIntervalMillis = sweepIntervalMillis;
+        }
+
+        public long getSweepBudgetMillis() {
+            return sweepBudgetMillis;
+        }
+
+        public void setSweepBudgetMillis(long sweepBudgetMillis) {
+            this.sweepBudgetMillis = sweepBudgetMillis;
+        }
+    }
+
+    /**
+     * Settings of the feed streaming the committed writes to the subscribers
+     */
+    public static class Changes {
+
+        //The number of events a subscriber can fall behind before it gets cut off
+        private int bufferSize = 10_000;
+
+        //The number of changes kept, so a subscriber can resume after an event it has already seen, none by default
+        private int historySize = 0;
+
+        //The number of subscribers the changes can be streamed to at once
+        private int maxSubscriptions = 100;
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public int getHistorySize() {
+            return historySize;
+        }
+
+        public void setHistorySize(int historySize) {
+            this.historySize = historySize;
+        }
+
+        public int getMaxSubscriptions() {
+            return maxSubscriptions;
+        }
+
+        public void setMaxSubscriptions(int maxSubscriptions) {
+            this.maxSubscriptions = maxSubscriptions;
+        }
+    }
+
+    /**
+     * Settings of the engine the store keeps its keys and values in
+     */
+    public static class Storage {
+
+        //The engine holding the newest version of every key
+        private StorageEngineType engine = StorageEngineType.MEMORY;
+
+        //The size of a single direct buffer the off heap engine carves the values from, a value bigger than a sixteenth of it stays on the heap
+        private int slabSizeMb = 16;
+
+        //The direct memory the off heap engine may take at most, the values not fitting anymore stay on the heap
+        private long maxOffHeapMb = 1024;
+
+        //The directory the engines keeping their data in files write to
+        private String directory = "breeze-data/storage";
+
+        //The size of the versions the lsm engine gathers on the heap before writing them into a table
+        private int memtableSizeKb = 8192;
+
+        //The size of a block of the lsm tables, the unit a lookup reads
+        private int blockSizeKb = 4;
+
+        //The size of the Bloom filter of every lsm table, 10 bits per key skip 99% of the tables not having a key
+        private int bloomBitsPerKey = 10;
+
+        //The number of lsm tables of a tier merged into one table of the next tier
+        private int compactionThreshold = 4;
+
+        //The bytes of a slot of the mapped engine's hash table, a record bigger than that goes on in the next free slots
+        private int slotSizeBytes = 128;
+
+        //The slots of the first segment of the mapped engine, it grows by segments twice as big
+        private int initialSlots = 65536;
+
+        //The heap the versions looked up most may take in a cache in front of the engine, 0 for no cache
+        private long cacheSizeKb = 0;
+
+        //The engines of the configured type the keys are split over by their hash, each of them with a share of the cache
+        private int partitions = 1;
+
+        public StorageEngineType getEngine() {
+            return engine;
+        }
+
+        public void setEngine(StorageEngineType engine) {
+            this.engine = engine;
+        }
+
+        public int getSlabSizeMb() {
+            return slabSizeMb;
+        }
+
+        public void setSlabSizeMb(int slabSizeMb) {
+            this.slabSizeMb = slabSizeMb;
+        }
+
+        public long getMaxOffHeapMb() {
+            return maxOffHeapMb;
+        }
+
+        public void setMaxOffHeapMb(long maxOffHeapMb) {
+            this.maxOffHeapMb = maxOffHeapMb;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public int getMemtableSizeKb() {
+            return memtableSizeKb;
+        }
+
+        public void setMemtableSizeKb(int memtableSizeKb) {
+            this.memtableSizeKb = memtableSizeKb;
+        }
+
+        public int getBlockSizeKb() {
+            return blockSizeKb;
+        }
+
+        public void setBlockSizeKb(int blockSizeKb) {
+            this.blockSizeKb = blockSizeKb;
+        }
+
+        public int getBloomBitsPerKey() {
+            return bloomBitsPerKey;
+        }
+
+        public void setBloomBitsPerKey(int bloomBitsPerKey) {
+            this.bloomBitsPerKey = bloomBitsPerKey;
+        }
+
+        public int getCompactionThreshold() {
+            return compactionThreshold;
+        }
+
+        public void setCompactionThreshold(int compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+        }
+
+        public int getSlotSizeBytes() {
+            return slotSizeBytes;
+        }
+
+        public void setSlotSizeBytes(int slotSizeBytes) {
+            this.slotSizeBytes = slotSizeBytes;
+        }
+
+        public int getInitialSlots() {
+            return initialSlots;
+        }
+
+        public void setInitialSlots(int initialSlots) {
+            this.initialSlots = initialSlots;
+        }
+
+        public long getCacheSizeKb() {
+            return cacheSizeKb;
+        }
+
+        public void setCacheSizeKb(long cacheSizeKb) {
+            this.cacheSizeKb = cacheSizeKb;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public void setPartitions(int partitions) {
+            this.partitions = partitions;
+        }
+    }
+
+    /**
+     * Settings of the log shipping between a leader and its followers
+     */
+    public static class Replication {
+
+        //Whether the node ships its writes (leader), applies the ones of a leader (follower) or neither
+        private ReplicationRole role = ReplicationRole.NONE;
+
+        //The port a leader takes the connections of its followers on, 0 for any free one
+        private int port = 7400;
+
+        //Where a follower finds its leader
+        private String leaderHost = "localhost";
+        private int leaderPort = 7400;
+
+        //How often a leader tells its followers how far it got when there is nothing else to ship
+        private long heartbeatMillis = 200;
+
+        //How far behind its leader a follower may be and still serve reads
+        private long maxStalenessMillis = 5000;
+
+        //How long a follower waits before connecting again after losing its leader
+        private long retryMillis = 1000;
+
+        //The number of changes a leader keeps at the least, so a follower back after a short break does not need a whole snapshot
+        private int historySize = 100_000;
+
+        public ReplicationRole getRole() {
+            return role;
+        }
+
+        public void setRole(ReplicationRole role) {
+            this.role = role;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getLeaderHost() {
+            return leaderHost;
+        }
+
+        public void setLeaderHost(String leaderHost) {
+            this.leaderHost = leaderHost;
+        }
+
+        public int getLeaderPort() {
+            return leaderPort;
+        }
+
+        public void setLeaderPort(int leaderPort) {
+            this.leaderPort = leaderPort;
+        }
+
+        public long getHeartbeatMillis() {
+            return heartbeatMillis;
+        }
+
+        public void setHeartbeatMillis(long heartbeatMillis) {
+            this.heartbeatMillis = heartbeatMillis;
+        }
+
+        public long getMaxStalenessMillis() {
+            return maxStalenessMillis;
+        }
+
+        public void setMaxStalenessMillis(long maxStalenessMillis) {
+            this.maxStalenessMillis = maxStalenessMillis;
+        }
+
+        public long getRetryMillis() {
+            return retryMillis;
+        }
+
+        public void setRetryMillis(long retryMillis) {
+            this.retryMillis = retryMillis;
+        }
+
+        public int getHistorySize() {
+            return historySize;
+        }
+
+        public void setHistorySize(int historySize) {
+            this.historySize = historySize;
+        }
+    }
+}
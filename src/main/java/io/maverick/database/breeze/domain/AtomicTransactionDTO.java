@@ -0,0 +1,44 @@
+package io.maverick.database.breeze.domain;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A simple DTO that ships a whole transaction in one request: the values some keys must have for it to go through,
+ * and the writes to apply if they do
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class AtomicTransactionDTO<K,V> {
+
+    // The expected current value of each key, null meaning the key must not exist
+    private Map<K,V> conditions = new LinkedHashMap<>();
+    private List<OperationDTO<K,V>> operations = new ArrayList<>();
+
+    public AtomicTransactionDTO(){
+    }
+
+    public AtomicTransactionDTO(Map<K,V> conditions, List<OperationDTO<K,V>> operations){
+        this.conditions = conditions;
+        this.operations = operations;
+    }
+
+    public Map<K,V> getConditions() {
+        return conditions;
+    }
+
+    public void setConditions(Map<K,V> conditions) {
+        this.conditions = conditions;
+    }
+
+    public List<OperationDTO<K,V>> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<OperationDTO<K,V>> operations) {
+        this.operations = operations;
+    }
+}
@@ -0,0 +1,60 @@
+package io.maverick.database.breeze.domain;
+
+/**
+ * A simple DTO that ships the change of a single key within a change event: its new value,
+ * or the fact that it got deleted
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ChangeDTO<K,V> {
+
+    private K key;
+    private V value;
+    private boolean deleted;
+
+    // The wall clock time the new value expires at, 0 for never
+    private long expiresAt;
+
+    public ChangeDTO(){
+    }
+
+    public ChangeDTO(K key, V value, boolean deleted, long expiresAt){
+        this.key = key;
+        this.value = value;
+        this.deleted = deleted;
+        this.expiresAt = expiresAt;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public void setKey(K key) {
+        this.key = key;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    public void setValue(V value) {
+        this.value = value;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
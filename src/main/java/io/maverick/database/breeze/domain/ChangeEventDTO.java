@@ -0,0 +1,43 @@
+package io.maverick.database.breeze.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple DTO that ships one atomic write of the store to the subscribers of its changes: a plain put or delete,
+ * a batch or a whole committed transaction, with the sequence number it got committed under
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ChangeEventDTO<K,V> {
+
+    // The version the write got, every event has a greater one than the events before it
+    private long sequence;
+
+    private List<ChangeDTO<K,V>> changes = new ArrayList<>();
+
+    public ChangeEventDTO(){
+    }
+
+    public ChangeEventDTO(long sequence, List<ChangeDTO<K,V>> changes){
+        this.sequence = sequence;
+        this.changes = changes;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public List<ChangeDTO<K,V>> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<ChangeDTO<K,V>> changes) {
+        this.changes = changes;
+    }
+}
@@ -0,0 +1,62 @@
+package io.maverick.database.breeze.domain;
+
+/**
+ * A simple DTO that ships a single write of an atomic transaction
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class OperationDTO<K,V> {
+
+    /**
+     * The kinds of writes an atomic transaction can be made of
+     */
+    public enum OperationType {
+        PUT, DELETE
+    }
+
+    private OperationType type;
+    private K key;
+    private V value;
+
+    public OperationDTO(){
+    }
+
+    public OperationDTO(OperationType type, K key, V value){
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    public static <K,V> OperationDTO<K,V> put(K key, V value){
+        return new OperationDTO<>(OperationType.PUT, key, value);
+    }
+
+    public static <K,V> OperationDTO<K,V> delete(K key){
+        return new OperationDTO<>(OperationType.DELETE, key, null);
+    }
+
+    public OperationType getType() {
+        return type;
+    }
+
+    public void setType(OperationType type) {
+        this.type = type;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public void setKey(K key) {
+        this.key = key;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    public void setValue(V value) {
+        this.value = value;
+    }
+}
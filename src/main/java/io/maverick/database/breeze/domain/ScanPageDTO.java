@@ -0,0 +1,43 @@
+package io.maverick.database.breeze.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple DTO that ships one page of a scan: the entries found in the order of their keys,
+ * and the cursor to ask for the next page with
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ScanPageDTO<K,V> {
+
+    private List<ValueDTO<K,V>> entries = new ArrayList<>();
+
+    // The last key of the page when there might be more after it, null once the scan reached the end of its range
+    private K cursor;
+
+    public ScanPageDTO(){
+    }
+
+    public ScanPageDTO(List<ValueDTO<K,V>> entries, K cursor){
+        this.entries = entries;
+        this.cursor = cursor;
+    }
+
+    public List<ValueDTO<K,V>> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<ValueDTO<K,V>> entries) {
+        this.entries = entries;
+    }
+
+    public K getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(K cursor) {
+        this.cursor = cursor;
+    }
+}
@@ -1,5 +1,6 @@
 package io.maverick.database.breeze.domain;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -16,7 +17,7 @@ public class TransactionContext<K,V> {
     //The user supplied unique id of a transaction
     private final String id;
 
-    //The time when the transaction got created,
+    //The version of the store when the transaction got created (see the commit clock),
     // any chances after that committed will be a conflict should this batch be committed later
     private final long transactionStartTime;
 
@@ -27,35 +28,102 @@ public class TransactionContext<K,V> {
     // we need to protect the values inside by some mechanism
     private final Lock lock = new ReentrantLock();
 
+    //Flips once the transaction got committed or rolled back, so its resources are released exactly once
+    private boolean open = true;
+
+    //When the transaction got created and when it was last worked with, in System.nanoTime() terms, to tell if it got abandoned
+    private final long createdAt = System.nanoTime();
+    private volatile long lastActiveAt = createdAt;
+
+    //The first key a commit of someone else changed after this transaction started writing it, null while it can still commit.
+    // Set by the committing threads, hence volatile rather than guarded by the lock
+    private volatile K conflictingKey;
+
     /**
      * Default constructor that bootraps a transaction context
+     *
+     * @param id
+     * @param transactionStartTime the version of the store the transaction sees it as of
      */
-    public TransactionContext(final String id){
+    public TransactionContext(final String id, final long transactionStartTime){
         this.id = id;
-        this.transactionStartTime = System.nanoTime();
+        this.transactionStartTime = transactionStartTime;
     }
 
     /**
-     * Notes that a deletion for a given key was requested
+     * Tells if the transaction itself has changed (updated or deleted) a given key
+     * @param key
+     */
+    public boolean touches(final K key){
+        try {
+            lock.lock();
+            return valueChanges.containsKey(key);
+        }finally {
+            lock.unlock();;
+        }
+    }
+
+    /**
+     * The value the transaction itself has written for a given key, null if it deleted or never touched it (or it expired since)
      * @param key
      */
     public V getValue(final K key){
         try {
             lock.lock();
-            return valueChanges.containsKey(key) ? valueChanges.get(key).getValue() : null;
+            //a registered deletion is stored as null, so it reads the same as an untouched key
+            return valueOf(valueChanges.get(key), System.currentTimeMillis());
         }finally {
             lock.unlock();;
         }
     }
 
+    /**
+     * The values the transaction itself has written for some of the given keys, in one go
+     * @param keys
+     * @return the keys the transaction touched mapped to their value, null for the ones it deleted or that expired
+     */
+    public Map<K,V> getValues(final Collection<K> keys){
+        try {
+            lock.lock();
+            Map<K,V> values = new HashMap<>();
+            long now = System.currentTimeMillis();
+            for(K key : keys){
+                if(valueChanges.containsKey(key)){
+                    values.put(key, valueOf(valueChanges.get(key), now));
+                }
+            }
+            return values;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A copy of every change registered so far, safe to be used while the transaction is still being written
+     * @return the changes by their keys, null for the deletions
+     */
+    public Map<K,VersionedValue<K,V>> copyChanges(){
+        try {
+            lock.lock();
+            return new HashMap<>(valueChanges);
+        }finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Notes that a deletion for a given key was requested
      * @param key
+     * @return false if the transaction is closed already and the deletion got ignored
      */
-    public void registerDelete(final K key){
+    public boolean registerDelete(final K key){
         try {
             lock.lock();
+            if(!open){
+                return false;
+            }
             valueChanges.put(key,null);
+            return true;
         }finally {
             lock.unlock();;
         }
@@ -65,16 +133,148 @@ public class TransactionContext<K,V> {
      * Notes that there is an item to be inserted or updated
      *
      * @param versionedValue
+     * @return false if the transaction is closed already and the change got ignored
      */
-    public void registerUpsert(final VersionedValue<K,V> versionedValue){
+    public boolean registerUpsert(final VersionedValue<K,V> versionedValue){
         try {
             lock.lock();
+            if(!open){
+                return false;
+            }
             valueChanges.put(versionedValue.getKey(), versionedValue);
+            return true;
         }finally {
             lock.unlock();;
         }
     }
 
+    /**
+     * Notes a whole batch of deletions and upserts, either all of them or none
+     *
+     * @param deletedKeys
+     * @param versionedValues
+     * @return false if the transaction is closed already and the changes got ignored
+     */
+    public boolean registerAll(final Collection<K> deletedKeys, final Collection<VersionedValue<K,V>> versionedValues){
+        try {
+            lock.lock();
+            if(!open){
+                return false;
+            }
+            for(K key : deletedKeys){
+                valueChanges.put(key,null);
+            }
+            for(VersionedValue<K,V> versionedValue : versionedValues){
+                valueChanges.put(versionedValue.getKey(), versionedValue);
+            }
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells if the transaction still accepts changes
+     * @return
+     */
+    public boolean isOpen(){
+        try {
+            lock.lock();
+            return open;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Concludes the transaction, freezing the changes registered so far
+     *
+     * @return true if this call closed it, false if it was closed already
+     */
+    public boolean close(){
+        try {
+            lock.lock();
+            boolean wasOpen = open;
+            open = false;
+            return wasOpen;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the transaction as doomed because a key it writes got committed by someone else since it started
+     *
+     * @param key
+     * @return true if this call doomed it, false if it was already
+     */
+    public boolean markConflicting(final K key){
+        if(conflictingKey != null){
+            return false;
+        }
+        try {
+            lock.lock();
+            if(conflictingKey != null){
+                return false;
+            }
+            conflictingKey = key;
+            return true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The key that dooms the transaction, see {@link #markConflicting(Object)}
+     * @return the key, or null if the transaction can still be committed
+     */
+    public K getConflictingKey(){
+        return conflictingKey;
+    }
+
+    /**
+     * Notes that the transaction is still being worked with
+     */
+    public void touch(){
+        lastActiveAt = System.nanoTime();
+    }
+
+    /**
+     * When the transaction got created, see {@link System#nanoTime()}
+     * @return
+     */
+    public long getCreatedAt(){
+        return createdAt;
+    }
+
+    /**
+     * When the transaction was last worked with, see {@link System#nanoTime()}
+     * @return
+     */
+    public long getLastActiveAt(){
+        return lastActiveAt;
+    }
+
+    /**
+     * The number of keys the transaction has changed so far
+     * @return
+     */
+    public int size(){
+        try {
+            lock.lock();
+            return valueChanges.size();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The value a registered change reads as, deletions and expired values read as null
+     */
+    private static <V> V valueOf(final VersionedValue<?,V> change, final long now){
+        return change == null || change.isExpired(now) ? null : change.getValue();
+    }
+
     /**
      * The id of this particular transaction
      * @return
@@ -84,7 +284,8 @@ public class TransactionContext<K,V> {
     }
 
     /**
-     * To be able to work with the delta the transaction want to handle as an atomic unit
+     * To be able to work with the delta the transaction want to handle as an atomic unit.
+     * Only safe to iterate once the transaction got closed, after that the changes never move again.
      * @return
      */
     public Map<K,VersionedValue<K,V>> getChanges(){
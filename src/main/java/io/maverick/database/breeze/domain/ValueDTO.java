@@ -1,5 +1,7 @@
 package io.maverick.database.breeze.domain;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 /**
  * Created by istvanvajnorak on 2020. 05. 26..
  *
@@ -13,6 +15,10 @@ public class ValueDTO<K,V> {
     private K key;
     private V value;
 
+    // The version the value got written with, only shipped by the calls working with versions
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long version;
+
     public ValueDTO(){
     }
 
@@ -21,6 +27,11 @@ public class ValueDTO<K,V> {
         this.key = key;
     }
 
+    public ValueDTO(K key, V value, Long version){
+        this(key, value);
+        this.version = version;
+    }
+
     public V getValue() {
         return value;
     }
@@ -36,4 +47,12 @@ public class ValueDTO<K,V> {
     public void setKey(K key) {
         this.key = key;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
 }
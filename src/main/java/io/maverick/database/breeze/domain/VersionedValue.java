@@ -4,6 +4,13 @@ package io.maverick.database.breeze.domain;
  * Created by istvanvajnorak on 2020. 05. 26..
  *
  * A simple representation of a key value pair that is timestamped.
+ * The timestamp is a logical one: the number the commit clock handed out for the write that created the version.
+ *
+ * Every value links to the version it replaced, so the values of a key form a chain from the newest to the oldest one.
+ * Transactions can walk that chain to read a key as it was when they started. A deletion is a version as well
+ * (a tombstone), so a snapshot taken before the deletion still sees the value it removed.
+ *
+ * A value can have an expiry time too (wall clock millis, as it has to survive restarts), from then on it reads as missing.
  */
 public class VersionedValue<K,V> {
 
@@ -11,14 +18,26 @@ public class VersionedValue<K,V> {
     private final V value;
     private final long timestamp;
 
+    // Marks a version that removed the key rather than setting a value
+    private final boolean deleted;
+
+    // When the value expires in System.currentTimeMillis() terms, 0 for never
+    private final long expiresAt;
+
+    // The version this one replaced, only ever cut (never re-pointed) once no reader can see the older versions anymore
+    private volatile VersionedValue<K,V> previous;
+
     /**
      * Only be created through the builder, so we can validate
      * @param builder
      */
     private VersionedValue(VersionedValueBuilder<K,V> builder){
         this.key = builder.key;
-        this.value = builder.value;
+        this.value = builder.deleted ? null : builder.value;
         this.timestamp = builder.timestamp;
+        this.deleted = builder.deleted;
+        this.expiresAt = builder.deleted ? 0 : builder.expiresAt;
+        this.previous = builder.previous;
     }
 
     /**
@@ -27,12 +46,33 @@ public class VersionedValue<K,V> {
      * @param key
      * @param value
      * @param timestamp
+     * @param expiresAt
      */
-    private VersionedValue(K key,V value, long timestamp){
+    private VersionedValue(K key,V value, long timestamp, long expiresAt){
         this.key = key;
         this.value = value;
         this.timestamp = timestamp;
+        this.deleted = false;
+        this.expiresAt = expiresAt;
+        this.previous = null;
+    }
+
+    /**
+     * A private constructor to be able to stack a copy of an object on top of an older version
+     *
+     * @param source
+     * @param previous
+     * @param timestamp
+     */
+    private VersionedValue(VersionedValue<K,V> source, VersionedValue<K,V> previous, long timestamp){
+        this.key = source.key;
+        this.value = source.value;
+        this.timestamp = timestamp;
+        this.deleted = source.deleted;
+        this.expiresAt = source.expiresAt;
+        this.previous = previous;
     }
+
     public K getKey(){
         return key;
     }
@@ -45,9 +85,54 @@ public class VersionedValue<K,V> {
         return timestamp;
     }
 
+    /**
+     * Tells if this version is a tombstone, meaning the key did not exist from this version on
+     * @return
+     */
+    public boolean isDeleted(){
+        return deleted;
+    }
+
+    /**
+     * When the value expires, see {@link System#currentTimeMillis()}
+     * @return the expiry time, 0 if the value never expires
+     */
+    public long getExpiresAt(){
+        return expiresAt;
+    }
+
+    /**
+     * Tells if the value has expired by a given wall clock time
+     * @param now see {@link System#currentTimeMillis()}
+     * @return
+     */
+    public boolean isExpired(long now){
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    /**
+     * The version this one replaced, if it is still kept around
+     * @return
+     */
+    public VersionedValue<K,V> getPrevious(){
+        return previous;
+    }
+
     public  VersionedValue<K,V> cloneWithTime(long time){
-        return new VersionedValue<K,V>(getKey(),getValue(),time);
+        return new VersionedValue<K,V>(getKey(),getValue(),time,getExpiresAt());
+    }
+
+    /**
+     * Creates a copy of this value with a new time that replaces the given version in the chain
+     *
+     * @param previous the current newest version of the key, might be null
+     * @param time
+     * @return
+     */
+    public VersionedValue<K,V> cloneOnTopOf(VersionedValue<K,V> previous, long time){
+        return new VersionedValue<K,V>(this, previous, time);
     }
+
     /**
      * Tells if the value has been changed more recently than a given time
      *
@@ -58,6 +143,33 @@ public class VersionedValue<K,V> {
         return time < getTimestamp();
     }
 
+    /**
+     * Finds the version of the key that was the newest one at a given time
+     *
+     * @param time
+     * @return the version visible at that time (might be a tombstone), or null if the key did not exist back then
+     */
+    public VersionedValue<K,V> asOf(long time){
+        VersionedValue<K,V> candidate = this;
+        while(candidate != null && candidate.hasChangedSince(time)){
+            candidate = candidate.previous;
+        }
+        return candidate;
+    }
+
+    /**
+     * Drops every version from the chain that nobody can see anymore. The newest version that is not newer than
+     * the given time is still visible for a reader at that time, so that one is kept, only the ones before it go.
+     *
+     * @param oldestVisibleTime the time of the oldest reader still around
+     */
+    public void trimBefore(long oldestVisibleTime){
+        VersionedValue<K,V> oldestNeeded = asOf(oldestVisibleTime);
+        if(oldestNeeded != null){
+            oldestNeeded.previous = null;
+        }
+    }
+
     /**
      * A builder to provide a fluent API for building
      * <code>CreditCardDetails</code> objects and enforcing the mandatory input
@@ -71,6 +183,9 @@ public class VersionedValue<K,V> {
         private K key;
         private V value;
         private long timestamp;
+        private boolean deleted;
+        private long expiresAt;
+        private VersionedValue<K,V> previous;
 
         private VersionedValueBuilder(K key) {
             this.key = key;
@@ -86,6 +201,21 @@ public class VersionedValue<K,V> {
             return this;
         }
 
+        public VersionedValueBuilder<K,V> replacing(VersionedValue<K,V> previous) {
+            this.previous = previous;
+            return this;
+        }
+
+        public VersionedValueBuilder<K,V> expiringAt(long expiresAt) {
+            this.expiresAt = expiresAt;
+            return this;
+        }
+
+        public VersionedValueBuilder<K,V> asDeletion() {
+            this.deleted = true;
+            return this;
+        }
+
         public VersionedValue<K,V> build() {
             return new VersionedValue<>(this);
         }
@@ -7,6 +7,8 @@ package io.maverick.database.breeze.exception;
  */
 public class BreezeActionException extends RuntimeException{
 
+    private static final long serialVersionUID = 1L;
+
     final ErrorContext context;
 
     public BreezeActionException(ErrorCode errorCode, String message){
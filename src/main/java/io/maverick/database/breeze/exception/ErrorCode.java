@@ -4,7 +4,17 @@ public enum ErrorCode {
 
     TRANSACTION_ALREADY_EXISTS("BREEZE-001"),
     UNKNOWN_TRANSACTION("BREEZE-002"),
-    UNCOMMITABLE_TRANSACTION("BREEZE-003");
+    UNCOMMITABLE_TRANSACTION("BREEZE-003"),
+    PERSISTENCE_FAILURE("BREEZE-004"),
+    PRECONDITION_FAILED("BREEZE-005"),
+    INVALID_REQUEST("BREEZE-006"),
+    TOO_MANY_TRANSACTIONS("BREEZE-007"),
+    WRITE_SET_TOO_LARGE("BREEZE-008"),
+    CHANGES_UNAVAILABLE("BREEZE-009"),
+    SUBSCRIPTION_OVERFLOW("BREEZE-010"),
+    TOO_MANY_SUBSCRIPTIONS("BREEZE-011"),
+    READ_ONLY_REPLICA("BREEZE-012"),
+    REPLICA_TOO_STALE("BREEZE-013");
 
     private final String code;
 
@@ -0,0 +1,25 @@
+package io.maverick.database.breeze.persistence;
+
+/**
+ * Tells when the write ahead log forces its appended records to the disk, trading latency for durability.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * A write is only acknowledged once its record got forced to the disk.
+     * Concurrent writers waiting at the same time share one fsync.
+     */
+    EVERY_WRITE,
+
+    /**
+     * Records are written and forced in the background at a fixed interval,
+     * a crash loses at most the writes of the last interval.
+     */
+    PERIODIC,
+
+    /**
+     * Records are handed to the operating system before the write is acknowledged but never forced,
+     * they survive the process dying but not the machine.
+     */
+    OS
+}
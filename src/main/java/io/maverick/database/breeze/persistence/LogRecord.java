@@ -0,0 +1,209 @@
+package io.maverick.database.breeze.persistence;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One atomic entry of the write ahead log: every change a single write, a batch or a whole committed transaction made,
+ * stamped with the version the write got from the commit clock.
+ *
+ * On disk a record is a length and a CRC32 checksum followed by the body, so a torn write at the end of the log
+ * is recognized and dropped instead of being replayed half way.
+ */
+public final class LogRecord {
+
+    // The bytes in front of every body: its length and its checksum
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * What kind of write produced the record, stored by its position so new kinds only ever go to the end
+     */
+    public enum Type {
+        PUT, DELETE, TRANSACTION, BATCH
+    }
+
+    // The kind of each change, a value with an expiry carries the time it expires at after the value
+    private static final byte VALUE = 0;
+    private static final byte TOMBSTONE = 1;
+    private static final byte EXPIRING_VALUE = 2;
+
+    private final Type type;
+    private final long version;
+    private final List<VersionedValue<String,String>> changes;
+
+    private LogRecord(Type type, long version, List<VersionedValue<String,String>> changes) {
+        this.type = type;
+        this.version = version;
+        this.changes = changes;
+    }
+
+    /**
+     * A record of a plain write of a single key
+     *
+     * @param value the new version of the key
+     * @return
+     */
+    public static LogRecord put(VersionedValue<String,String> value) {
+        return new LogRecord(Type.PUT, value.getTimestamp(), Collections.singletonList(value));
+    }
+
+    /**
+     * A record of a plain removal of a single key
+     *
+     * @param tombstone the version marking the removal
+     * @return
+     */
+    public static LogRecord delete(VersionedValue<String,String> tombstone) {
+        return new LogRecord(Type.DELETE, tombstone.getTimestamp(), Collections.singletonList(tombstone));
+    }
+
+    /**
+     * A record of a committed transaction, to be replayed all or nothing
+     *
+     * @param version the version the commit got
+     * @param changes the new versions of the keys, deletions as tombstones
+     * @return
+     */
+    public static LogRecord transaction(long version, List<VersionedValue<String,String>> changes) {
+        return new LogRecord(Type.TRANSACTION, version, Collections.unmodifiableList(changes));
+    }
+
+    /**
+     * A record of a plain multi key write, to be replayed all or nothing just like a transaction
+     *
+     * @param version the version the whole batch got
+     * @param changes the new versions of the keys, deletions as tombstones
+     * @return
+     */
+    public static LogRecord batch(long version, List<VersionedValue<String,String>> changes) {
+        return new LogRecord(Type.BATCH, version, Collections.unmodifiableList(changes));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<VersionedValue<String,String>> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Serializes the record together with its header
+     *
+     * @return a buffer ready to be read
+     */
+    ByteBuffer encode() {
+        List<byte[]> encoded = new ArrayList<>(changes.size() * 2);
+        int bodySize = 1 + 8 + 4;
+        for (VersionedValue<String,String> change : changes) {
+            byte[] key = change.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = change.isDeleted() || change.getValue() == null ? null : change.getValue().getBytes(StandardCharsets.UTF_8);
+            encoded.add(key);
+            encoded.add(value);
+            bodySize += 1 + 4 + key.length + (change.isDeleted() ? 0 : 4 + (value == null ? 0 : value.length));
+            if (!change.isDeleted() && change.getExpiresAt() != 0) {
+                bodySize += 8;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.position(HEADER_SIZE);
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(version);
+        buffer.putInt(changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            byte[] key = encoded.get(i * 2);
+            byte[] value = encoded.get(i * 2 + 1);
+            boolean deleted = changes.get(i).isDeleted();
+            long expiresAt = changes.get(i).getExpiresAt();
+            buffer.put(deleted ? TOMBSTONE : expiresAt != 0 ? EXPIRING_VALUE : VALUE);
+            buffer.putInt(key.length);
+            buffer.put(key);
+            if (!deleted) {
+                //a null value is kept apart from an empty one
+                buffer.putInt(value == null ? -1 : value.length);
+                if (value != null) {
+                    buffer.put(value);
+                }
+                if (expiresAt != 0) {
+                    buffer.putLong(expiresAt);
+                }
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, bodySize);
+        buffer.putInt(0, bodySize);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the next record from a buffer positioned at a record header
+     *
+     * @param buffer
+     * @return the record, or null if there is no complete and intact record at the position (the end of the log)
+     */
+    static LogRecord decode(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int bodySize = buffer.getInt(start);
+        int checksum = buffer.getInt(start + 4);
+        if (bodySize <= 0 || bodySize > buffer.remaining() - HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] body = new byte[bodySize];
+        buffer.position(start + HEADER_SIZE);
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, bodySize);
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        Type type = Type.values()[in.get()];
+        long version = in.getLong();
+        int count = in.getInt();
+        List<VersionedValue<String,String>> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = in.get();
+            String key = readString(in, in.getInt());
+            VersionedValue.VersionedValueBuilder<String,String> change = VersionedValue.builderFor(key).atTime(version);
+            if (kind == TOMBSTONE) {
+                change.asDeletion();
+            } else {
+                change.withValue(readString(in, in.getInt()));
+                if (kind == EXPIRING_VALUE) {
+                    change.expiringAt(in.getLong());
+                }
+            }
+            changes.add(change.build());
+        }
+        return new LogRecord(type, version, Collections.unmodifiableList(changes));
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
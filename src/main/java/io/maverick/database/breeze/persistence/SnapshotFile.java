@@ -0,0 +1,304 @@
+package io.maverick.database.breeze.persistence;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A point in time image of the whole store in a compact binary file, so a restart only has to replay the log written after it.
+ *
+ * The layout is a header (magic, format, the version the image was taken at), the entries one after the other
+ * (the lengths and UTF-8 bytes of the key and the value, the version of the value and its expiry time), then a trailer with the number
+ * of entries and the CRC32 of all the entry bytes. Files are written under a temporary name and renamed once complete,
+ * so a half written snapshot is never picked up.
+ */
+public final class SnapshotFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotFile.class);
+
+    private static final int MAGIC = 0x42525a53;
+    private static final int FORMAT = 2;
+
+    // The first format, written before values could expire, its entries end with the version
+    private static final int FORMAT_WITHOUT_EXPIRY = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int TRAILER_SIZE = 8 + 8;
+
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    // Mapping a huge file happens in windows of this size, an entry never has to span two of them
+    private static final long MAPPING_WINDOW = 1L << 30;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Starts writing a new snapshot into a directory
+     *
+     * @param directory
+     * @param version the version of the store the snapshot shows
+     * @return a writer to add the entries to
+     * @throws IOException
+     */
+    public static Writer create(Path directory, long version) throws IOException {
+        return new Writer(directory, version);
+    }
+
+    /**
+     * Finds the newest complete snapshot in a directory
+     *
+     * @param directory
+     * @return the snapshot file, or null if there is none
+     * @throws IOException
+     */
+    public static Path findLatest(Path directory) throws IOException {
+        List<Path> snapshots = list(directory);
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Deletes every complete snapshot older than the given one, and any leftover of an unfinished one
+     *
+     * @param directory
+     * @param keep
+     * @throws IOException
+     */
+    public static void deleteOlderThan(Path directory, Path keep) throws IOException {
+        for (Path snapshot : list(directory)) {
+            if (snapshot.compareTo(keep) < 0) {
+                Files.deleteIfExists(snapshot);
+            }
+        }
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX + ".tmp")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot back through a memory mapping of the file. The checksum is verified before any entry is handed out.
+     *
+     * @param file
+     * @param consumer gets every entry of the snapshot
+     * @return the version of the store the snapshot shows
+     * @throws IOException when the file cannot be read or is corrupt
+     */
+    public static long load(Path file, Consumer<VersionedValue<String,String>> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("The snapshot [" + file + "] is truncated");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int format = header.getInt(4);
+            if (header.getInt(0) != MAGIC || (format != FORMAT && format != FORMAT_WITHOUT_EXPIRY)) {
+                throw new IOException("The file [" + file + "] is not a snapshot this version understands");
+            }
+            long version = header.getLong(8);
+            int trailing = format == FORMAT ? 8 + 8 : 8;
+
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            long count = trailer.getLong();
+            long checksum = trailer.getLong();
+
+            long entriesEnd = size - TRAILER_SIZE;
+            CRC32 crc = new CRC32();
+            for (long position = HEADER_SIZE; position < entriesEnd; position += MAPPING_WINDOW) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_WINDOW, entriesEnd - position)));
+            }
+            if (crc.getValue() != checksum) {
+                throw new IOException("The snapshot [" + file + "] is corrupt, its checksum does not match");
+            }
+
+            long position = HEADER_SIZE;
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+            for (long read = 0; read < count; read++) {
+                if (window == null || window.remaining() < 4 + 4 + trailing || !fitsNextEntry(window, trailing)) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAPPING_WINDOW, entriesEnd - windowStart));
+                }
+                int entryStart = window.position();
+                String key = readString(window);
+                String value = readString(window);
+                long valueVersion = window.getLong();
+                long expiresAt = format == FORMAT ? window.getLong() : 0;
+                consumer.accept(VersionedValue.builderFor(key).withValue(value).atTime(valueVersion).expiringAt(expiresAt).build());
+                position += window.position() - entryStart;
+            }
+            return version;
+        }
+    }
+
+    /**
+     * The version of the store a snapshot file shows, read from its name
+     *
+     * @param file
+     * @return
+     */
+    public static long versionOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static boolean fitsNextEntry(ByteBuffer window, int trailing) {
+        int start = window.position();
+        int keyLength = window.getInt(start);
+        if (window.remaining() < 4 + Math.max(0, keyLength) + 4) {
+            return false;
+        }
+        int valueLength = window.getInt(start + 4 + Math.max(0, keyLength));
+        return window.remaining() >= 4 + Math.max(0, keyLength) + 4 + Math.max(0, valueLength) + trailing;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            files.forEach(snapshots::add);
+        }
+        //the version in the name is zero padded, so the names sort in the order of the versions
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    /**
+     * Streams the entries of a new snapshot to a temporary file through a reused buffer,
+     * the snapshot only becomes visible once {@link #complete()} renamed it into place
+     */
+    public static final class Writer implements Closeable {
+
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private final Path target;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long count;
+        private boolean completed;
+
+        private Writer(Path directory, long version) throws IOException {
+            Files.createDirectories(directory);
+            this.target = directory.resolve(String.format("%s%020d%s", PREFIX, version, SUFFIX));
+            this.temporary = directory.resolve(target.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT).putLong(version).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+
+        /**
+         * Adds an entry to the snapshot
+         *
+         * @param value
+         * @throws IOException
+         */
+        public void write(VersionedValue<String,String> value) throws IOException {
+            byte[] key = value.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = value.getValue() == null ? null : value.getValue().getBytes(StandardCharsets.UTF_8);
+            int size = 4 + key.length + 4 + (bytes == null ? 0 : bytes.length) + 8 + 8;
+            if (buffer.remaining() < size) {
+                flush();
+            }
+
+            ByteBuffer target = buffer.capacity() < size ? ByteBuffer.allocate(size) : buffer;
+            target.putInt(key.length).put(key);
+            target.putInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                target.put(bytes);
+            }
+            target.putLong(value.getTimestamp());
+            target.putLong(value.getExpiresAt());
+            if (target != buffer) {
+                target.flip();
+                writeOut(target);
+            }
+            count++;
+        }
+
+        /**
+         * Writes the trailer, forces the file and renames it into place
+         *
+         * @return the complete snapshot file
+         * @throws IOException
+         */
+        public Path complete() throws IOException {
+            flush();
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(count).putLong(crc.getValue()).flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+            completed = true;
+            LOG.info("Wrote [" + count + "] entries into the snapshot [" + target + "]");
+            return target;
+        }
+
+        /**
+         * The number of entries written so far
+         * @return
+         */
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!completed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeOut(buffer);
+            buffer.clear();
+        }
+
+        private void writeOut(ByteBuffer bytes) throws IOException {
+            crc.update(bytes.duplicate());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package io.maverick.database.breeze.persistence;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The formats the whole store can be exported in and imported from, as a stream of entries that never has to fit into memory.
+ *
+ * Every entry is a key, its value and, for the values that expire, the wall clock time they expire at. Versions are not part of it,
+ * an imported entry is a new version in the store it is imported into.
+ */
+public enum TransferFormat {
+
+    /**
+     * One json object per line: <code>{"key":"apple","value":"1"}</code>, with an <code>expiresAt</code> field for the expiring values
+     */
+    NDJSON("application/x-ndjson") {
+        @Override
+        public Writer writer(OutputStream out) throws IOException {
+            final JsonGenerator generator = JSON.createGenerator(new BufferedOutputStream(out, BUFFER_SIZE), JsonEncoding.UTF8);
+            //the lines stand on their own, the generator must not put anything between them
+            generator.setRootValueSeparator(null);
+            return new Writer() {
+                @Override
+                public void write(VersionedValue<String,String> value) throws IOException {
+                    generator.writeStartObject();
+                    generator.writeStringField("key", value.getKey());
+                    generator.writeStringField("value", value.getValue());
+                    if (value.getExpiresAt() != 0) {
+                        generator.writeNumberField("expiresAt", value.getExpiresAt());
+                    }
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+                }
+
+                @Override
+                public void close() throws IOException {
+                    generator.flush();
+                }
+            };
+        }
+
+        @Override
+        public Reader reader(InputStream in) throws IOException {
+            final JsonParser parser = JSON.createParser(in);
+            return new Reader() {
+                @Override
+                VersionedValue<String,String> read() throws IOException {
+                    JsonToken token = parser.nextToken();
+                    if (token == null) {
+                        return null;
+                    }
+                    if (token != JsonToken.START_OBJECT) {
+                        throw new IOException("Expected an entry object but found [" + token + "] at " + parser.getCurrentLocation());
+                    }
+                    String key = null;
+                    String value = null;
+                    long expiresAt = 0;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken fieldValue = parser.nextToken();
+                        if ("key".equals(field)) {
+                            key = parser.getValueAsString();
+                        } else if ("value".equals(field)) {
+                            value = fieldValue == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                        } else if ("expiresAt".equals(field)) {
+                            expiresAt = parser.getValueAsLong();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    if (key == null) {
+                        throw new IOException("An entry without a key at " + parser.getCurrentLocation());
+                    }
+                    return VersionedValue.builderFor(key).withValue(value).expiringAt(expiresAt).build();
+                }
+            };
+        }
+    },
+
+    /**
+     * A magic number and a format, then every entry as its kind, the lengths and UTF-8 bytes of the key and the value,
+     * and the time it expires at (0 for never), closed by an end marker
+     */
+    BINARY("application/octet-stream") {
+        @Override
+        public Writer writer(final OutputStream out) throws IOException {
+            //entries are laid out in a reused buffer that goes out in big chunks, instead of field by field
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(FORMAT);
+            return new Writer() {
+                @Override
+                public void write(VersionedValue<String,String> value) throws IOException {
+                    byte[] key = value.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] bytes = value.getValue() == null ? null : value.getValue().getBytes(StandardCharsets.UTF_8);
+                    int size = 1 + 4 + key.length + 4 + (bytes == null ? 0 : bytes.length) + 8;
+                    if (buffer.remaining() < size) {
+                        flush();
+                    }
+
+                    ByteBuffer target = buffer.capacity() < size ? ByteBuffer.allocate(size) : buffer;
+                    target.put(ENTRY);
+                    target.putInt(key.length).put(key);
+                    target.putInt(bytes == null ? -1 : bytes.length);
+                    if (bytes != null) {
+                        target.put(bytes);
+                    }
+                    target.putLong(value.getExpiresAt());
+                    if (target != buffer) {
+                        out.write(target.array(), 0, target.position());
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    buffer.put(END);
+                    flush();
+                    out.flush();
+                }
+
+                private void flush() throws IOException {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            };
+        }
+
+        @Override
+        public Reader reader(final InputStream in) throws IOException {
+            final Input input = new Input(in);
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT) {
+                throw new IOException("The stream is not a binary export this version understands");
+            }
+            return new Reader() {
+                @Override
+                VersionedValue<String,String> read() throws IOException {
+                    byte kind = input.readByte();
+                    if (kind == END) {
+                        return null;
+                    }
+                    if (kind != ENTRY) {
+                        throw new IOException("Unknown entry kind [" + kind + "] in the binary stream");
+                    }
+                    String key = input.readString();
+                    if (key == null) {
+                        throw new IOException("An entry without a key in the binary stream");
+                    }
+                    String value = input.readString();
+                    return VersionedValue.builderFor(key).withValue(value).expiringAt(input.readLong()).build();
+                }
+            };
+        }
+    };
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int MAGIC = 0x42525a58;
+    private static final int FORMAT = 1;
+    private static final byte ENTRY = 1;
+    private static final byte END = 0;
+
+    private final String contentType;
+
+    TransferFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * The media type a stream of this format is shipped with
+     * @return
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Starts writing entries into a stream
+     *
+     * @param out left open once the writer is closed
+     * @return
+     * @throws IOException
+     */
+    public abstract Writer writer(OutputStream out) throws IOException;
+
+    /**
+     * Starts reading the entries of a stream
+     *
+     * @param in
+     * @return
+     * @throws IOException when the stream does not even start the way the format does
+     */
+    public abstract Reader reader(InputStream in) throws IOException;
+
+    /**
+     * Reads the fields of the binary format from a stream through a buffer of its own, refilled in big chunks
+     */
+    private static final class Input {
+
+        private final InputStream in;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private Input(InputStream in) {
+            this.in = in;
+            buffer.flip();
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        String readString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > buffer.capacity()) {
+                //too big for the buffer, what is buffered already goes first and the rest comes straight from the stream
+                byte[] bytes = new byte[length];
+                int buffered = buffer.remaining();
+                buffer.get(bytes, 0, buffered);
+                for (int read = buffered; read < length; ) {
+                    int count = in.read(bytes, read, length - read);
+                    if (count < 0) {
+                        throw new EOFException();
+                    }
+                    read += count;
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            require(length);
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        /**
+         * Makes sure the given number of bytes (at most the size of the buffer) can be read from the buffer
+         */
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                buffer.position(buffer.position() + count);
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Writes the entries one by one, closing it completes the stream
+     */
+    public interface Writer extends Closeable {
+
+        void write(VersionedValue<String,String> value) throws IOException;
+    }
+
+    /**
+     * Reads the entries one by one, an entry that cannot be read surfaces as an {@link UncheckedIOException}
+     */
+    public abstract static class Reader implements Iterator<VersionedValue<String,String>> {
+
+        private VersionedValue<String,String> next;
+        private boolean finished;
+
+        /**
+         * Reads the next entry of the stream
+         *
+         * @return the entry, null at the end of the stream
+         * @throws IOException
+         */
+        abstract VersionedValue<String,String> read() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                try {
+                    next = read();
+                } catch (EOFException e) {
+                    throw new UncheckedIOException("The stream ended in the middle of an entry", e);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finished = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public VersionedValue<String,String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            VersionedValue<String,String> current = next;
+            next = null;
+            return current;
+        }
+    }
+}
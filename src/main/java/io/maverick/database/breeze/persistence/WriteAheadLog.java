@@ -0,0 +1,397 @@
+package io.maverick.database.breeze.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * An append only log of every write that reached the store, kept in pre-allocated segment files under one directory.
+ *
+ * Appending only copies the record into an in-memory buffer and hands back a ticket. The buffer is written out through
+ * the segment's {@link FileChannel} in one go once somebody waits for a ticket (or in the background), so many writes
+ * share one write call and, depending on the {@link FsyncPolicy}, one fsync.
+ *
+ * Segments are named after their sequence number and are pre-allocated to their full size, the unused tail being zeros.
+ * A record never spans two segments, so every segment can be read on its own.
+ */
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // The size of the in-memory buffer records are collected in before being written out
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FsyncPolicy policy;
+
+    // Guards the buffer, the current segment and the counters of appended / written bytes
+    private final Lock lock = new ReentrantLock();
+
+    // Only one thread forces the segment at a time, the others usually find their ticket covered by then
+    private final Lock syncLock = new ReentrantLock();
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // The segments with the highest version recorded in each of them
+    private final TreeMap<Long,Long> segments = new TreeMap<>();
+
+    private long segmentNumber;
+    private FileChannel segment;
+    private long segmentUsed;
+
+    // The bytes appended (the tickets), written to the channel and forced to the disk so far
+    private long appendedBytes;
+    private volatile long writtenBytes;
+    private volatile long syncedBytes;
+
+    private final ScheduledExecutorService background;
+
+    /**
+     * Opens the log in a directory, creating the directory if needed. Existing segments are left as they are,
+     * new records go to a fresh segment after them.
+     *
+     * @param directory
+     * @param segmentSize the size segments are pre-allocated to
+     * @param policy when the records are forced to the disk
+     * @param syncIntervalMillis how often the background thread writes (and for {@link FsyncPolicy#PERIODIC} forces) the log
+     * @throws IOException
+     */
+    public WriteAheadLog(Path directory, long segmentSize, FsyncPolicy policy, long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+
+        Files.createDirectories(directory);
+        for (Long existing : listSegments()) {
+            segments.put(existing, Long.MIN_VALUE);
+        }
+
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breeze-wal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(this::syncInBackground, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads back every intact record of the existing segments in the order they were appended.
+     * Must be called before anything is appended.
+     *
+     * @param consumer gets every record
+     * @return the number of records replayed
+     * @throws IOException
+     */
+    public long replay(Consumer<LogRecord> consumer) throws IOException {
+        long replayed = 0;
+        for (Map.Entry<Long,Long> existing : segments.entrySet()) {
+            Path file = segmentFile(existing.getKey());
+            long highestVersion = Long.MIN_VALUE;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                LogRecord record;
+                while ((record = LogRecord.decode(mapped)) != null) {
+                    consumer.accept(record);
+                    highestVersion = Math.max(highestVersion, record.getVersion());
+                    replayed++;
+                }
+            }
+            existing.setValue(highestVersion);
+        }
+        LOG.info("Replayed [" + replayed + "] records from [" + segments.size() + "] segments of the write ahead log in [" + directory + "]");
+        return replayed;
+    }
+
+    /**
+     * Queues a record to the log. Cheap enough to be called while holding the locks of the keys the record writes,
+     * which keeps the records of a key in the order they were applied.
+     *
+     * @param record
+     * @return the ticket to hand to {@link #awaitDurable(long)}
+     * @throws UncheckedIOException when the buffer had to be written out and that failed
+     */
+    public long append(LogRecord record) {
+        ByteBuffer encoded = record.encode();
+        int size = encoded.remaining();
+        try {
+            lock.lock();
+            if (segment == null || (segmentUsed > 0 && segmentUsed + size > segmentSize)) {
+                writeBuffer();
+                rollSegment(size);
+            }
+            if (buffer.remaining() < size) {
+                writeBuffer();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocateDirect(size);
+                }
+            }
+
+            buffer.put(encoded);
+            segmentUsed += size;
+            appendedBytes += size;
+            segments.put(segmentNumber, Math.max(segments.get(segmentNumber), record.getVersion()));
+            return appendedBytes;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to the write ahead log in [" + directory + "]", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a record is as durable as the policy promises: forced for {@link FsyncPolicy#EVERY_WRITE},
+     * handed to the operating system for {@link FsyncPolicy#OS}, and not at all for {@link FsyncPolicy#PERIODIC}.
+     * Should be called without holding any lock of the store.
+     *
+     * @param ticket what {@link #append(LogRecord)} returned
+     * @throws UncheckedIOException when writing or forcing the log failed
+     */
+    public void awaitDurable(long ticket) {
+        try {
+            switch (policy) {
+                case EVERY_WRITE:
+                    sync(ticket);
+                    break;
+                case OS:
+                    write(ticket);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not persist the write ahead log in [" + directory + "]", e);
+        }
+    }
+
+    /**
+     * Writes out and forces everything appended so far
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        long ticket;
+        try {
+            lock.lock();
+            ticket = appendedBytes;
+        } finally {
+            lock.unlock();
+        }
+        sync(ticket);
+    }
+
+    /**
+     * Deletes the oldest segments as long as every record in them is at or below a version,
+     * the current segment is always kept
+     *
+     * @param version a version every record up to is safely stored somewhere else (like a snapshot)
+     * @return the number of segments deleted
+     * @throws IOException
+     */
+    public int truncateUpTo(long version) throws IOException {
+        List<Long> deletable = new ArrayList<>();
+        try {
+            lock.lock();
+            for (Map.Entry<Long,Long> existing : segments.entrySet()) {
+                if (existing.getKey() == segmentNumber || existing.getValue() > version) {
+                    break;
+                }
+                deletable.add(existing.getKey());
+            }
+            for (Long number : deletable) {
+                segments.remove(number);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (Long number : deletable) {
+            Files.deleteIfExists(segmentFile(number));
+        }
+        if (!deletable.isEmpty()) {
+            LOG.info("Truncated [" + deletable.size() + "] segments of the write ahead log up to version [" + version + "]");
+        }
+        return deletable.size();
+    }
+
+    /**
+     * The number of segment files the log consists of
+     * @return
+     */
+    public int segmentCount() {
+        try {
+            lock.lock();
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        try {
+            lock.lock();
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(long ticket) throws IOException {
+        if (writtenBytes >= ticket) {
+            return;
+        }
+        try {
+            lock.lock();
+            writeBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync(long ticket) throws IOException {
+        if (syncedBytes >= ticket) {
+            return;
+        }
+        write(ticket);
+        try {
+            syncLock.lock();
+            if (syncedBytes >= ticket) {
+                //somebody else forced our record while we were waiting
+                return;
+            }
+            FileChannel channel;
+            long target;
+            try {
+                lock.lock();
+                channel = segment;
+                target = writtenBytes;
+            } finally {
+                lock.unlock();
+            }
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+            }
+            syncedBytes = Math.max(syncedBytes, target);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void syncInBackground() {
+        try {
+            if (policy == FsyncPolicy.PERIODIC) {
+                sync();
+            } else {
+                write(Long.MAX_VALUE);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not persist the write ahead log in [" + directory + "] in the background", e);
+        }
+    }
+
+    /**
+     * Writes the buffer to the current segment, to be called holding the lock.
+     * When a write fails halfway, what made it is counted and the rest stays in the buffer for the next attempt.
+     */
+    private void writeBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+        } finally {
+            writtenBytes += buffer.position();
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Closes the current segment (forcing it) and opens a new pre-allocated one, to be called holding the lock
+     *
+     * @param minimumSize the size of the record that needs to fit into the new segment
+     */
+    private void rollSegment(int minimumSize) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+
+        segmentNumber = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Path file = segmentFile(segmentNumber);
+        segment = openSegment(file);
+
+        //pre-allocating the whole segment up front, the zeros at the end read as the end of the log
+        ByteBuffer last = ByteBuffer.allocate(1);
+        segment.write(last, Math.max(segmentSize, minimumSize) - 1);
+        segment.position(0);
+        segment.force(true);
+
+        segments.put(segmentNumber, Long.MIN_VALUE);
+        segmentUsed = 0;
+        LOG.info("Started a new write ahead log segment [" + file + "]");
+    }
+
+    /**
+     * Creates and opens a new segment file
+     *
+     * @param file
+     * @return the channel the records of the segment are written through
+     * @throws IOException
+     */
+    protected FileChannel openSegment(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
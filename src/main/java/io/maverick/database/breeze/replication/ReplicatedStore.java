@@ -0,0 +1,60 @@
+package io.maverick.database.breeze.replication;
+
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.service.ChangeSubscription;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * What the replication needs of the store it runs next to: a leader reads its changes and snapshots, a follower applies them.
+ */
+public interface ReplicatedStore {
+
+    /**
+     * The last version of the store published to the subscribers of its changes, every one up to it is applied
+     *
+     * @return
+     */
+    long publishedVersion();
+
+    /**
+     * Subscribes to every change published after a version
+     *
+     * @param after
+     * @return
+     * @throws BreezeActionException when the changes after the version are not kept anymore
+     */
+    ChangeSubscription<String,String> subscribe(long after) throws BreezeActionException;
+
+    /**
+     * Walks the store as of the current version without blocking the writers
+     *
+     * @param started gets the version of the snapshot before any entry
+     * @param consumer gets every existing key with its value
+     * @return the version of the snapshot
+     */
+    long snapshot(LongConsumer started, Consumer<VersionedValue<String,String>> consumer);
+
+    /**
+     * Applies the changes the leader published under a version, with that same version
+     *
+     * @param version
+     * @param changes
+     */
+    void apply(long version, List<ChangeDTO<String,String>> changes);
+
+    /**
+     * Replaces the content of the store with a snapshot of the leader in one step
+     *
+     * @param snapshot a complete snapshot file
+     * @return the version the store is at now
+     * @throws IOException when the snapshot cannot be read
+     */
+    long load(Path snapshot) throws IOException;
+}
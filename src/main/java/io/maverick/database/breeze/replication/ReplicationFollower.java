@@ -0,0 +1,283 @@
+package io.maverick.database.breeze.replication;
+
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.persistence.SnapshotFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the store a read only copy of its leader, applying every write the leader ships with the version it got there.
+ *
+ * The follower connects to the leader and tells it the version it is at, the leader goes on from there, with a snapshot
+ * of its whole store if it does not keep the changes reaching back that far. The snapshot is written to a temporary file
+ * first and replaces the store in one step once it arrived complete. A lost connection is retried until the leader is back.
+ *
+ * The follower keeps track of how stale it is: a heartbeat tells it how far the leader got at the time it was sent, and once
+ * every version up to there is applied the follower is known to be as fresh as the leader was then. Its staleness is the
+ * time since the latest such moment, so it keeps growing while the leader is away or the follower is behind.
+ */
+public final class ReplicationFollower implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationFollower.class);
+
+    // The heartbeats not caught up with yet, a follower further behind only gets more stale than it is told
+    private static final int MAX_TARGETS = 1024;
+
+    private final ReplicatedStore store;
+
+    private final String host;
+    private final int port;
+    private final long retryMillis;
+
+    // A leader silent for this long is taken for gone, even if the connection does not tell
+    private final int readTimeoutMillis;
+
+    private final Thread receiver;
+
+    private volatile Socket socket;
+    private volatile boolean running = true;
+    private volatile boolean connected;
+
+    private volatile long appliedVersion;
+
+    // When the follower was last known to have everything its leader had, -1 while it never was
+    private long freshAt = -1;
+
+    // The positions of the heartbeats not reached yet, with the time they arrived at
+    private final Deque<long[]> targets = new ArrayDeque<>();
+
+    private final AtomicLong eventsApplied = new AtomicLong();
+    private final AtomicLong snapshotsLoaded = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    /**
+     * Starts following a leader
+     *
+     * @param store
+     * @param host where the leader listens
+     * @param port
+     * @param heartbeatMillis how often the leader sends its heartbeats
+     * @param retryMillis how long to wait before connecting again
+     */
+    public ReplicationFollower(ReplicatedStore store, String host, int port, long heartbeatMillis, long retryMillis) {
+        this.store = store;
+        this.host = host;
+        this.port = port;
+        this.retryMillis = Math.max(1, retryMillis);
+        this.readTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(1000, heartbeatMillis * 10));
+        this.appliedVersion = store.publishedVersion();
+        this.receiver = new Thread(this::follow, "breeze-replication-follower");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * How long ago the follower was last known to have every write of its leader
+     *
+     * @return the millis, {@link Long#MAX_VALUE} if it never caught up yet
+     */
+    public synchronized long stalenessMillis() {
+        return freshAt < 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - freshAt);
+    }
+
+    /**
+     * Whether the follower is connected to its leader
+     * @return
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        long staleness = stalenessMillis();
+        statistics.put("replication.connected", connected);
+        statistics.put("replication.appliedVersion", appliedVersion);
+        statistics.put("replication.stalenessMillis", staleness == Long.MAX_VALUE ? -1L : staleness);
+        statistics.put("replication.eventsApplied", eventsApplied.get());
+        statistics.put("replication.snapshotsLoaded", snapshotsLoaded.get());
+        statistics.put("replication.reconnects", reconnects.get());
+        return statistics;
+    }
+
+    /**
+     * Stops following, the store stays as it is
+     */
+    @Override
+    public void close() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                //going away anyway
+            }
+        }
+        receiver.interrupt();
+        try {
+            receiver.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Connects to the leader again and again until closed, run by the receiver thread
+    private void follow() {
+        while (running) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(new InetSocketAddress(host, port), readTimeoutMillis);
+                connection.setSoTimeout(readTimeoutMillis);
+                connection.setTcpNoDelay(true);
+                receive(connection);
+            } catch (IOException | RuntimeException e) {
+                if (running && connected) {
+                    LOG.info("Lost the leader at [" + host + ":" + port + "], connecting again every [" + retryMillis + "] ms: " + e);
+                } else if (running) {
+                    //the leader is still away, said once already
+                    LOG.debug("Could not reach the leader at [{}:{}]: {}", host, port, e);
+                }
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            if (!running) {
+                return;
+            }
+            reconnects.incrementAndGet();
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies what the leader ships over one connection
+     *
+     * @param connection
+     * @throws IOException
+     */
+    private void receive(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        long after = store.publishedVersion();
+        ReplicationProtocol.writeHello(out, after);
+        out.flush();
+        connected = true;
+        LOG.info("Following the leader at [" + host + ":" + port + "] after version [" + after + "]");
+
+        while (running) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationProtocol.EVENT:
+                    ChangeEventDTO<String,String> event = ReplicationProtocol.readEvent(in);
+                    store.apply(event.getSequence(), event.getChanges());
+                    eventsApplied.incrementAndGet();
+                    applied(event.getSequence());
+                    break;
+                case ReplicationProtocol.HEARTBEAT:
+                    long position = in.readLong();
+                    heartbeat(position, in.readBoolean(), System.currentTimeMillis());
+                    break;
+                case ReplicationProtocol.SNAPSHOT_START:
+                    applied(receiveSnapshot(in, in.readLong()));
+                    break;
+                default:
+                    throw new IOException("The leader sent a frame of unknown type [" + type + "]");
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot the leader sends into a temporary file, then replaces the store with it
+     *
+     * @param in
+     * @param version the version of the snapshot
+     * @return the version the store is at after loading it
+     * @throws IOException
+     */
+    private long receiveSnapshot(DataInputStream in, long version) throws IOException {
+        long started = System.nanoTime();
+        Path directory = Files.createTempDirectory("breeze-replica");
+        try {
+            Path snapshot;
+            try (SnapshotFile.Writer writer = SnapshotFile.create(directory, version)) {
+                for (byte type; (type = in.readByte()) != ReplicationProtocol.SNAPSHOT_END; ) {
+                    if (type != ReplicationProtocol.SNAPSHOT_ENTRY) {
+                        throw new IOException("The leader sent a frame of type [" + type + "] in the middle of a snapshot");
+                    }
+                    writer.write(ReplicationProtocol.readSnapshotEntry(in));
+                }
+                long count = in.readLong();
+                if (count != writer.count()) {
+                    throw new IOException("The snapshot of the leader ended after [" + writer.count() + "] of its [" + count + "] entries");
+                }
+                snapshot = writer.complete();
+            }
+            long loaded = store.load(snapshot);
+            snapshotsLoaded.incrementAndGet();
+            LOG.info("Loaded the snapshot of the leader as of version [" + version + "] in ["
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "] ms");
+            return loaded;
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Notes how far the leader got, the follower is as fresh as the leader was once it applied every version up to there
+     *
+     * @param position
+     * @param caughtUp whether every event up to the position came before the heartbeat
+     * @param receivedAt
+     */
+    private synchronized void heartbeat(long position, boolean caughtUp, long receivedAt) {
+        if (caughtUp || appliedVersion >= position) {
+            freshAt = receivedAt;
+            targets.clear();
+            return;
+        }
+        if (targets.size() == MAX_TARGETS) {
+            targets.removeFirst();
+        }
+        targets.addLast(new long[]{position, receivedAt});
+    }
+
+    /**
+     * Notes that every version up to the given one is applied
+     *
+     * @param version
+     */
+    private synchronized void applied(long version) {
+        appliedVersion = Math.max(appliedVersion, version);
+        while (!targets.isEmpty() && targets.peekFirst()[0] <= appliedVersion) {
+            freshAt = targets.removeFirst()[1];
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package io.maverick.database.breeze.replication;
+
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.service.ChangeSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships every write of the store to the followers connecting to it.
+ *
+ * The stream of a follower is a subscription to the changes of the store, resumed after the version the follower says
+ * it is at. A follower further behind than the history of the changes reaches gets a snapshot of the whole store first,
+ * then the changes after the version of the snapshot. Whenever there is nothing to ship for a heartbeat interval the
+ * follower is told how far the store got, so it knows it is up to date even when nobody writes.
+ *
+ * Every follower has a thread of its own, a slow one only ever holds up itself. One falling so far behind that its
+ * subscription gets cut off resumes after the last event it got, from a snapshot again if need be.
+ */
+public final class ReplicationLeader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationLeader.class);
+
+    private final ReplicatedStore store;
+
+    private final long heartbeatMillis;
+
+    private final ServerSocket server;
+
+    private final Thread acceptor;
+
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong snapshotsSent = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * Starts taking the connections of the followers
+     *
+     * @param store
+     * @param port the port to listen on, 0 for any free one
+     * @param heartbeatMillis how long a follower may go without hearing from the leader
+     */
+    public ReplicationLeader(ReplicatedStore store, int port, long heartbeatMillis) {
+        this.store = store;
+        this.heartbeatMillis = Math.max(1, heartbeatMillis);
+        try {
+            this.server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not listen for the followers on port [" + port + "]", e);
+        }
+        this.acceptor = new Thread(this::accept, "breeze-replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Shipping the writes to the followers connecting on port [" + port() + "]");
+    }
+
+    /**
+     * The port the followers connect to
+     * @return
+     */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * The number of followers connected
+     * @return
+     */
+    public int followers() {
+        return followers.size();
+    }
+
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("replication.port", port());
+        statistics.put("replication.followers", followers.size());
+        statistics.put("replication.eventsSent", eventsSent.get());
+        statistics.put("replication.snapshotsSent", snapshotsSent.get());
+        return statistics;
+    }
+
+    /**
+     * Stops listening and drops every follower, they keep trying to connect again until the leader is back
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOG.warn("Could not stop listening for the followers", e);
+        }
+        for (Socket follower : followers) {
+            closeQuietly(follower);
+        }
+        acceptor.interrupt();
+    }
+
+    // Takes the connections of the followers until the leader is closed, run by the acceptor thread
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                followers.add(socket);
+                Thread sender = new Thread(() -> serve(socket), "breeze-replication-sender-" + connections.incrementAndGet());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("Could not take the connection of a follower", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ships the writes to one follower until either side goes away, run by the thread of the follower
+     *
+     * @param socket
+     */
+    private void serve(Socket socket) {
+        String follower = String.valueOf(socket.getRemoteSocketAddress());
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            long after = ReplicationProtocol.readHello(in);
+            long published = store.publishedVersion();
+            if (after > published) {
+                //it has writes this leader never made, it must have followed another one or been written to on its own
+                LOG.error("The follower [" + follower + "] is at version [" + after + "], ahead of this leader at [" + published
+                        + "], it has to be started over empty");
+                return;
+            }
+            LOG.info("The follower [" + follower + "] connected at version [" + after + "], the leader is at [" + published + "]");
+            ship(after, out);
+        } catch (IOException e) {
+            if (running) {
+                LOG.info("Lost the follower [" + follower + "]: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("Could not ship the writes to the follower [" + follower + "]", e);
+        } finally {
+            followers.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Ships the changes after a version, and a snapshot whenever they are not kept anymore
+     *
+     * @param after the version the follower is at
+     * @param out
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void ship(long after, DataOutputStream out) throws IOException, InterruptedException {
+        long position = after;
+        while (running) {
+            ChangeSubscription<String,String> subscription;
+            try {
+                subscription = store.subscribe(position);
+            } catch (BreezeActionException e) {
+                if (e.getErrorCode() != ErrorCode.CHANGES_UNAVAILABLE) {
+                    throw e;
+                }
+                position = sendSnapshot(out);
+                continue;
+            }
+            try {
+                position = stream(subscription, position, out);
+            } finally {
+                subscription.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the events of a subscription with the heartbeats in between, until it gets cut off
+     *
+     * @param subscription
+     * @param position the last version the follower got
+     * @param out
+     * @return the last version the follower got, to resume after
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private long stream(ChangeSubscription<String,String> subscription, long position, DataOutputStream out) throws IOException, InterruptedException {
+        long lastHeartbeat = System.nanoTime();
+        long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        while (running) {
+            ChangeEventDTO<String,String> event;
+            try {
+                event = subscription.poll(0, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    //everything taken is sent before waiting, then whatever got published before the wait is sent too once it times out
+                    out.flush();
+                    long published = store.publishedVersion();
+                    event = subscription.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        ReplicationProtocol.writeHeartbeat(out, published, true);
+                        out.flush();
+                        lastHeartbeat = System.nanoTime();
+                        continue;
+                    }
+                }
+            } catch (BreezeActionException e) {
+                LOG.info("A follower fell behind, resuming it after version [" + position + "]");
+                return position;
+            }
+
+            ReplicationProtocol.writeEvent(out, event);
+            eventsSent.incrementAndGet();
+            position = event.getSequence();
+            if (System.nanoTime() - lastHeartbeat >= heartbeatNanos) {
+                //a follower never idle still learns how far behind it is
+                ReplicationProtocol.writeHeartbeat(out, store.publishedVersion(), false);
+                lastHeartbeat = System.nanoTime();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Sends a snapshot of the whole store
+     *
+     * @param out
+     * @return the version of the snapshot
+     * @throws IOException
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long started = System.nanoTime();
+        AtomicLong count = new AtomicLong();
+        long version;
+        try {
+            version = store.snapshot(snapshot -> {
+                try {
+                    ReplicationProtocol.writeSnapshotStart(out, snapshot);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, entry -> {
+                try {
+                    ReplicationProtocol.writeSnapshotEntry(out, entry);
+                    count.incrementAndGet();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        ReplicationProtocol.writeSnapshotEnd(out, count.get());
+        out.flush();
+        snapshotsSent.incrementAndGet();
+        LOG.info("Sent a snapshot of [" + count.get() + "] keys as of version [" + version + "] to a follower in ["
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "] ms");
+        return version;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //going away anyway
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.maverick.database.breeze.replication;
+
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The frames a leader and its followers exchange over a plain TCP connection.
+ *
+ * The follower opens with a hello (magic, format, the version it is at), from then on only the leader talks: a frame is
+ * a type byte followed by its fields. Events carry the version and the changes of a write, heartbeats how far the leader
+ * got, and a snapshot comes as a start frame with its version, one frame per entry and an end frame with their count.
+ * Strings are written as the length of their UTF-8 bytes and the bytes, -1 standing for null.
+ */
+final class ReplicationProtocol {
+
+    static final int MAGIC = 0x42525a52;
+    static final int FORMAT = 1;
+
+    static final byte EVENT = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte SNAPSHOT_START = 3;
+    static final byte SNAPSHOT_ENTRY = 4;
+    static final byte SNAPSHOT_END = 5;
+
+    private ReplicationProtocol() {
+    }
+
+    static void writeHello(DataOutputStream out, long after) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(after);
+    }
+
+    /**
+     * Reads the hello of a follower
+     *
+     * @param in
+     * @return the version the follower is at
+     * @throws IOException when the other side is not a follower speaking this format
+     */
+    static long readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+            throw new IOException("The other side is not a follower speaking this format");
+        }
+        return in.readLong();
+    }
+
+    static void writeEvent(DataOutputStream out, ChangeEventDTO<String,String> event) throws IOException {
+        out.writeByte(EVENT);
+        out.writeLong(event.getSequence());
+        out.writeInt(event.getChanges().size());
+        for (ChangeDTO<String,String> change : event.getChanges()) {
+            writeString(out, change.getKey());
+            out.writeBoolean(change.isDeleted());
+            writeString(out, change.getValue());
+            out.writeLong(change.getExpiresAt());
+        }
+    }
+
+    /**
+     * Reads the fields of an event, after its type
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static ChangeEventDTO<String,String> readEvent(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        int size = in.readInt();
+        List<ChangeDTO<String,String>> changes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            boolean deleted = in.readBoolean();
+            String value = readString(in);
+            changes.add(new ChangeDTO<>(key, value, deleted, in.readLong()));
+        }
+        return new ChangeEventDTO<>(sequence, changes);
+    }
+
+    /**
+     * Tells a follower how far the leader got
+     *
+     * @param out
+     * @param position every version of the leader up to it is published
+     * @param caughtUp whether every event up to the position has been sent before this frame
+     * @throws IOException
+     */
+    static void writeHeartbeat(DataOutputStream out, long position, boolean caughtUp) throws IOException {
+        out.writeByte(HEARTBEAT);
+        out.writeLong(position);
+        out.writeBoolean(caughtUp);
+    }
+
+    static void writeSnapshotStart(DataOutputStream out, long version) throws IOException {
+        out.writeByte(SNAPSHOT_START);
+        out.writeLong(version);
+    }
+
+    static void writeSnapshotEntry(DataOutputStream out, VersionedValue<String,String> entry) throws IOException {
+        out.writeByte(SNAPSHOT_ENTRY);
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+        out.writeLong(entry.getTimestamp());
+        out.writeLong(entry.getExpiresAt());
+    }
+
+    /**
+     * Reads the fields of a snapshot entry, after its type
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static VersionedValue<String,String> readSnapshotEntry(DataInputStream in) throws IOException {
+        String key = readString(in);
+        String value = readString(in);
+        long version = in.readLong();
+        return VersionedValue.builderFor(key).withValue(value).atTime(version).expiringAt(in.readLong()).build();
+    }
+
+    static void writeSnapshotEnd(DataOutputStream out, long count) throws IOException {
+        out.writeByte(SNAPSHOT_END);
+        out.writeLong(count);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,22 @@
+package io.maverick.database.breeze.replication;
+
+/**
+ * The part a node plays in the replication of the store, picked by the <code>breeze.replication.role</code> property.
+ */
+public enum ReplicationRole {
+
+    /**
+     * A node on its own, nothing is shipped or received
+     */
+    NONE,
+
+    /**
+     * Takes the writes and ships every committed one to the followers connecting to it
+     */
+    LEADER,
+
+    /**
+     * Applies the writes its leader ships and serves reads from them, refusing writes of its own
+     */
+    FOLLOWER
+}
@@ -1,7 +1,17 @@
 package io.maverick.database.breeze.service;
 
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ScanPageDTO;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
 import io.maverick.database.breeze.exception.BreezeActionException;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 /**
  * Created by istvanvajnorak on 2020. 05. 26..
  *
@@ -26,6 +36,27 @@ public interface BreezeService<K,V> {
      */
     void put(K key, V value, String transactionId) throws BreezeActionException;
 
+    /**
+     * Creates / updates a value that expires after a given time. From then on it reads as missing,
+     * until it gets written again.
+     *
+     * @param key
+     * @param value
+     * @param ttlMillis how long the value lives, has to be positive
+     */
+    void put(K key, V value, long ttlMillis) throws BreezeActionException;
+
+    /**
+     * Registers the creation of a key / value for an open transaction, the value expiring after a given time
+     * counted from this call
+     *
+     * @param key
+     * @param value
+     * @param ttlMillis how long the value lives, has to be positive
+     * @param transactionId
+     */
+    void put(K key, V value, long ttlMillis, String transactionId) throws BreezeActionException;
+
 
     /**
      * A simple action that retrieves a value for a given key.
@@ -37,7 +68,8 @@ public interface BreezeService<K,V> {
 
 
     /**
-     * A simple action that retrieves a value for a given key as it is seen in a given transaction
+     * A simple action that retrieves a value for a given key as it is seen in a given transaction.
+     * Keys the transaction changed read as changed, every other key reads as it was when the transaction started.
      *
      * @param key
      * @param transactionId
@@ -64,6 +96,203 @@ public interface BreezeService<K,V> {
      */
     void delete(K key,String transactionId) throws BreezeActionException;
 
+    /**
+     * Retrieves the values of many keys in one go. All of them are read as of the same moment,
+     * so the result never shows half of a concurrent transaction or batch.
+     *
+     * @param keys
+     * @return the values by their keys, in the order of the keys asked for, null for the ones that do not exist
+     */
+    Map<K,V> getAll(Collection<K> keys) throws BreezeActionException;
+
+    /**
+     * Retrieves the values of many keys as they are seen in a given transaction
+     *
+     * @param keys
+     * @param transactionId
+     * @return the values by their keys, in the order of the keys asked for, null for the ones that do not exist
+     * @throws BreezeActionException when the transaction does not exist
+     */
+    Map<K,V> getAll(Collection<K> keys, String transactionId) throws BreezeActionException;
+
+    /**
+     * Creates / updates many values as one atomic write, readers either see all of them or none
+     *
+     * @param values
+     */
+    void putAll(Map<K,V> values) throws BreezeActionException;
+
+    /**
+     * Registers the creation / update of many values for an open transaction
+     *
+     * @param values
+     * @param transactionId
+     * @throws BreezeActionException when the transaction does not exist
+     */
+    void putAll(Map<K,V> values, String transactionId) throws BreezeActionException;
+
+    /**
+     * Removes many keys as one atomic write, keys that do not exist are skipped
+     *
+     * @param keys
+     */
+    void deleteAll(Collection<K> keys) throws BreezeActionException;
+
+    /**
+     * Registers the removal of many keys for an open transaction
+     *
+     * @param keys
+     * @param transactionId
+     * @throws BreezeActionException when the transaction does not exist
+     */
+    void deleteAll(Collection<K> keys, String transactionId) throws BreezeActionException;
+
+    /**
+     * Lists the existing keys of a range in their order, together with their values, one page at a time.
+     * A page is read as of a single moment, so it never shows half of a concurrent write.
+     * The pages of a scan within a transaction all see the same snapshot, the pages of a plain scan each see their own.
+     *
+     * @param from the first key of the range, null to start at the first key
+     * @param to the key the range ends before, null to go until the last key
+     * @param prefix only the keys starting with it are listed, null for every key
+     * @param cursor the cursor of the previous page, null for the first page
+     * @param limit the number of entries on the page at most
+     * @return the page, with a cursor to go on with unless the range is over
+     * @throws BreezeActionException when the limit is out of bounds
+     */
+    ScanPageDTO<K,V> scan(K from, K to, K prefix, K cursor, int limit) throws BreezeActionException;
+
+    /**
+     * Lists the keys of a range one page at a time as they are seen in a given transaction, see {@link #scan(Object, Object, Object, Object, int)}
+     *
+     * @param from
+     * @param to
+     * @param prefix
+     * @param cursor
+     * @param limit
+     * @param transactionId
+     * @return the page, with a cursor to go on with unless the range is over
+     * @throws BreezeActionException when the transaction does not exist or the limit is out of bounds
+     */
+    ScanPageDTO<K,V> scan(K from, K to, K prefix, K cursor, int limit, String transactionId) throws BreezeActionException;
+
+    /**
+     * Reads the value of a key together with the version it got written with, the version to pass to the conditional writes
+     *
+     * @param key
+     * @return the value and its version, both null when the key does not exist
+     */
+    ValueDTO<K,V> getVersioned(K key) throws BreezeActionException;
+
+    /**
+     * Creates a value only if the key does not exist yet, in one atomic step
+     *
+     * @param key
+     * @param value
+     * @return the version the value got written with
+     * @throws BreezeActionException when the key exists already
+     */
+    long putIfAbsent(K key, V value) throws BreezeActionException;
+
+    /**
+     * Updates a value only if nobody changed it since it got read, in one atomic step
+     *
+     * @param key
+     * @param value
+     * @param version the version the value had when it got read (see {@link #getVersioned(Object)})
+     * @return the version the new value got written with
+     * @throws BreezeActionException when the key is not at the given version anymore, or does not exist
+     */
+    long putIfVersion(K key, V value, long version) throws BreezeActionException;
+
+    /**
+     * Updates a value only if it is still at one of the given versions, in one atomic step
+     *
+     * @param key
+     * @param value
+     * @param versions the versions the value may be at, an empty collection never holds
+     * @return the version the new value got written with
+     * @throws BreezeActionException when the key is at none of the versions, or does not exist
+     */
+    long putIfVersion(K key, V value, Collection<Long> versions) throws BreezeActionException;
+
+    /**
+     * Updates a value only if the key exists, whatever version it is at, in one atomic step
+     *
+     * @param key
+     * @param value
+     * @return the version the new value got written with
+     * @throws BreezeActionException when the key does not exist
+     */
+    long putIfPresent(K key, V value) throws BreezeActionException;
+
+    /**
+     * Removes a value only if nobody changed it since it got read, in one atomic step
+     *
+     * @param key
+     * @param version the version the value had when it got read (see {@link #getVersioned(Object)})
+     * @throws BreezeActionException when the key is not at the given version anymore, or does not exist
+     */
+    void deleteIfVersion(K key, long version) throws BreezeActionException;
+
+    /**
+     * Removes a value only if it is still at one of the given versions, in one atomic step
+     *
+     * @param key
+     * @param versions the versions the value may be at
+     * @throws BreezeActionException when the key is at none of the versions, or does not exist
+     */
+    void deleteIfVersion(K key, Collection<Long> versions) throws BreezeActionException;
+
+    /**
+     * Removes a value only if the key exists, in one atomic step
+     *
+     * @param key
+     * @throws BreezeActionException when the key does not exist
+     */
+    void deleteIfPresent(K key) throws BreezeActionException;
+
+    /**
+     * Adds to a numeric value in one atomic step, a missing key counting as 0. The value keeps its expiry.
+     *
+     * @param key
+     * @param delta negative to decrement
+     * @return the new value
+     * @throws BreezeActionException when the value is not a whole number, or the result would not fit into a long
+     */
+    long increment(K key, long delta) throws BreezeActionException;
+
+    /**
+     * Hands every existing key over to a consumer in the order of the keys, as of a single moment.
+     * Writers are never blocked by it, however long the consumer takes.
+     *
+     * @param consumer gets the newest version of every key as of the moment the export started, expired and deleted ones left out
+     * @return the number of keys exported
+     */
+    long export(Consumer<VersionedValue<K,V>> consumer) throws BreezeActionException;
+
+    /**
+     * Loads a stream of entries into the store in large batches, each batch becoming visible at once.
+     * The import as a whole is not atomic, the batches loaded before a failure stay and are persisted like a finished import.
+     * Entries that expired already are skipped.
+     *
+     * @param entries the keys with their values and expiry times, versions are ignored
+     * @return the number of keys imported
+     * @throws BreezeActionException when an entry has no key or the imported store could not be persisted
+     */
+    long importAll(Iterator<VersionedValue<K,V>> entries) throws BreezeActionException;
+
+    /**
+     * Subscribes to the writes committed to the store. Every plain write, batch and committed transaction arrives
+     * as one event, the events in the order of their sequence numbers.
+     *
+     * @param prefix only the changes of the keys starting with it are shipped, null for every key
+     * @param after the sequence of the last event already seen to resume after, null to get the writes from now on
+     * @return the subscription, to be closed once the subscriber is gone
+     * @throws BreezeActionException when the changes after the sequence are not kept anymore, or there are too many subscriptions
+     */
+    ChangeSubscription<K,V> subscribe(K prefix, Long after) throws BreezeActionException;
+
     /**
      *
      * Starts a transaction with the specified ID. The ID must not be an active transaction ID.
@@ -90,4 +319,21 @@ public interface BreezeService<K,V> {
      */
     void commitTransaction(String transactionId) throws BreezeActionException;
 
+    /**
+     * Executes a whole transaction in one step: checks the conditions and applies the operations as one atomic write,
+     * without the transaction ever being registered. Nothing is applied when any of the conditions does not hold.
+     *
+     * @param conditions the value each key must have right now, null meaning the key must not exist
+     * @param operations the writes to apply, a later write of a key overrides an earlier one
+     * @throws BreezeActionException when a condition does not hold or an operation is incomplete
+     */
+    void executeAtomically(Map<K,V> conditions, List<OperationDTO<K,V>> operations) throws BreezeActionException;
+
+    /**
+     * A few figures about the inner workings of the store (sizes, counters, achieved batch sizes and the like), keyed by their names
+     *
+     * @return
+     */
+    Map<String,Object> getStatistics();
+
 }
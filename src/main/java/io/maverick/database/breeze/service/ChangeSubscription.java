@@ -0,0 +1,35 @@
+package io.maverick.database.breeze.service;
+
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A subscription to the writes committed to the store, holding the events its subscriber did not take yet.
+ *
+ * The buffer of a subscription is bounded. A subscriber falling so far behind that it fills up is cut off instead of
+ * holding up the writers: it gets the events buffered until then, and is expected to subscribe again after the last one.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface ChangeSubscription<K,V> extends AutoCloseable {
+
+    /**
+     * Takes the next event, waiting for one if there is none yet
+     *
+     * @param timeout how long to wait at most
+     * @param unit
+     * @return the event, null if none came in time
+     * @throws BreezeActionException once the subscription got cut off and every event buffered before has been taken
+     * @throws InterruptedException
+     */
+    ChangeEventDTO<K,V> poll(long timeout, TimeUnit unit) throws BreezeActionException, InterruptedException;
+
+    /**
+     * Stops the events coming, to be called once the subscriber is gone
+     */
+    @Override
+    void close();
+}
@@ -1,27 +1,85 @@
 package io.maverick.database.breeze.service.impl;
 
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ScanPageDTO;
 import io.maverick.database.breeze.domain.TransactionContext;
+import io.maverick.database.breeze.domain.ValueDTO;
 import io.maverick.database.breeze.domain.VersionedValue;
 import io.maverick.database.breeze.exception.BreezeActionException;
 import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.persistence.LogRecord;
+import io.maverick.database.breeze.persistence.SnapshotFile;
+import io.maverick.database.breeze.persistence.WriteAheadLog;
+import io.maverick.database.breeze.replication.ReplicatedStore;
+import io.maverick.database.breeze.replication.ReplicationFollower;
+import io.maverick.database.breeze.replication.ReplicationLeader;
+import io.maverick.database.breeze.replication.ReplicationRole;
 import io.maverick.database.breeze.service.BreezeService;
+import io.maverick.database.breeze.service.ChangeSubscription;
+import io.maverick.database.breeze.storage.CachingStorageEngine;
+import io.maverick.database.breeze.storage.MergedKeys;
+import io.maverick.database.breeze.storage.PartitionedStorageEngine;
+import io.maverick.database.breeze.storage.StorageEngine;
+import io.maverick.database.breeze.storage.StorageEngineType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 
 /**
  * Created by istvanvajnorak on 2020. 05. 26..
  *
- * A simple implementation of the breeze service that holds every bit of the work in memory.
+ * A simple implementation of the breeze service that holds the newest version of every key in a pluggable storage engine
+ * (in memory by default) and does the transactions on top of it. Optionally every write is recorded in a write ahead log too. Snapshots of the store are taken in the background
+ * so a starting service only loads the latest snapshot and replays the log written after it.
+ *
+ * Keys are multi versioned: the engine holds the newest version of each key, and for the keys open transactions might
+ * still read an older version (or a deletion) of, the newest version linking to the older ones is kept next to it.
+ * Transactions read the store as of their start time, so they see a consistent snapshot without ever blocking the writers.
+ *
+ * The engine walks its keys in their order, so ranges of keys can be scanned.
+ *
+ * Values can be written with a time to live. Once it passed they read as missing right away, the key itself is reclaimed
+ * the next time somebody reads it or by a background sweep going through the keys in the order they expire.
+ *
+ * Every write is published as one event to the subscribers of the changes, in the order of the versions.
+ *
+ * A store can lead others, shipping them every write through the same feed, or follow a leader: a follower applies the
+ * writes of its leader with the versions they got there, refuses writes of its own and only serves reads while it is
+ * not too far behind.
  *
  */
 @Component
@@ -30,241 +88,2129 @@ public class BreezeServiceImpl implements BreezeService<String,String> {
     // Our one and only logger class to have some idea what we do in the code
     private static final Logger LOG = LoggerFactory.getLogger(BreezeServiceImpl.class);
 
-    //The main store that contains the values in their versioned format so we can use to compare timings
-    private final Map<String,VersionedValue<String,String>> store = new ConcurrentHashMap<>();
+    //The number of entries a single page of a scan can have at most
+    private static final int MAX_SCAN_LIMIT = 10_000;
+
+    //The number of entries an import applies under one acquisition of the stripes
+    private static final int IMPORT_BATCH_SIZE = 10_000;
+
+    //The engine holding the newest version of every key, every write reaches it holding the stripes of its keys
+    private final StorageEngineType engineType;
+    private final StorageEngine engine;
+
+    //The newest versions of the keys that had to keep older versions or a tombstone for an open transaction, linking to the older ones.
+    // A tombstone leaves the value it removed in the engine until the key goes for good, so the engine walk keeps finding the key
+    private final Map<String,VersionedValue<String,String>> history = new ConcurrentHashMap<>();
 
-    // The ongoing transactions started
+    //The keys the engine does not hold yet, about to be written. A key gets in before its first version draws its number from the clock,
+    // and leaves once the engine has it, so a scan as of any snapshot finds every key it can see
+    private final NavigableSet<String> pendingKeys = new ConcurrentSkipListSet<>();
+
+    //The logical clock stamping every version, a plain write or a whole commit draws exactly one number from it
+    private final CommitClock clock = new CommitClock();
+
+    //The points in time the open transactions read the store as of, telling which old versions are safe to drop
+    private final SnapshotRegistry snapshots = new SnapshotRegistry(clock::current);
+
+    //The keys that had to keep older versions or a tombstone for an open transaction, to be cleaned once it concludes
+    private final Set<String> keysToVacuum = ConcurrentHashMap.newKeySet();
+
+    // The ongoing transactions started, operations on different transactions never wait for each other,
+    // the work within one transaction is serialized by the lock of its own context
     // (TODO: later provide some user context for a transaction so people can't eavesdrop on each other's transactions)
-    private final  Map<String, TransactionContext<String,String>> activeTransactions = new HashMap<>();
+    private final  Map<String, TransactionContext<String,String>> activeTransactions = new ConcurrentHashMap<>();
+
+    //The striped locking context making sure that only one write and multiple reads can be active at a time for any key,
+    // while keys on different stripes can be worked on in parallel
+    private final LockStripes locks;
+
+    //The keys the open transactions are about to write, so commits can doom them early. Null when every commit re-checks its keys itself
+    private final WriteIntents intents;
+
+    //Rolls back the transactions that went idle or stayed open for too long, null when they never expire
+    private final TransactionReaper reaper;
+
+    //Reclaims the expired keys nobody reads anymore, null when they are only reclaimed when read
+    private final ExpirySweeper expirySweeper;
+
+    //The number of expired keys reclaimed so far
+    private final AtomicLong expiredKeys = new AtomicLong();
+
+    //The number of transactions that can be open at once, and the number of keys each of them can write
+    private final int maxOpenTransactions;
+    private final int maxWriteSetSize;
+
+    //Batches concurrent commits into one critical section, null when every commit goes on its own
+    private final GroupCommitter<TransactionContext<String,String>> groupCommitter;
+
+    //The log every write is recorded in before it is acknowledged, null when the store lives purely in memory
+    private final WriteAheadLog wal;
+
+    //Where the log and the snapshots live
+    private final Path dataDirectory;
+
+    //Only one snapshot is taken at a time
+    private final Lock checkpointLock = new ReentrantLock();
+
+    //Takes the periodic snapshots, null when there are none
+    private final ScheduledExecutorService checkpointer;
+
+    //Ships every write to the subscribers of the changes, in the order of their versions
+    private final ChangeFeed changeFeed;
+
+    //What the startup recovery achieved, reported in the statistics
+    private final Map<String,Object> recoveryStatistics = new ConcurrentHashMap<>();
+
+    //Whether the store leads or follows another one
+    private final ReplicationRole role;
+
+    //Ships the writes to the followers, null unless the store leads
+    private final ReplicationLeader leader;
+
+    //Applies the writes of the leader, null unless the store follows one
+    private final ReplicationFollower follower;
+
+    //How far behind its leader a follower may be and still serve reads
+    private final long maxStalenessMillis;
+
+    /**
+     * Bootstraps an empty store with the locking setup defined in the properties
+     *
+     * @param properties
+     */
+    public BreezeServiceImpl(BreezeProperties properties){
+        this.locks = new LockStripes(properties.getLocking().getStripes());
+        LOG.info("Breeze store is using ["+locks.size()+"] lock stripes");
+
+        //before the log is opened, the recovery fills it
+        BreezeProperties.Storage storage = properties.getStorage();
+        this.engineType = storage.getEngine();
+        this.engine = openEngine(storage);
+        LOG.info("Breeze store is using the [" + engineType + "] storage engine"
+                + (storage.getPartitions() > 1 ? " in [" + storage.getPartitions() + "] partitions" : "")
+                + (storage.getCacheSizeKb() > 0 ? " behind a cache of [" + storage.getCacheSizeKb() + "] KB" : ""));
+
+        BreezeProperties.Commit commit = properties.getCommit();
+        this.intents = commit.isEarlyConflictDetection() ? new WriteIntents() : null;
+        this.groupCommitter = commit.isGroupCommit()
+                ? new GroupCommitter<>(this::commitAll, commit.getWindowMicros(), commit.getMaxBatchSize())
+                : null;
+        if(groupCommitter != null) {
+            LOG.info("Group commit is on with a window of [" + commit.getWindowMicros() + "] micros and at most [" + commit.getMaxBatchSize() + "] commits per batch");
+        }
+
+        BreezeProperties.Transactions limits = properties.getTransactions();
+        this.maxOpenTransactions = limits.getMaxOpen();
+        this.maxWriteSetSize = limits.getMaxWriteSetSize();
+        this.reaper = limits.getIdleTimeoutMillis() > 0 || limits.getAbsoluteTimeoutMillis() > 0
+                ? new TransactionReaper(limits.getIdleTimeoutMillis(), limits.getAbsoluteTimeoutMillis(), limits.getReaperTickMillis(), this::expire)
+                : null;
+
+        //before the log is opened, so the recovered values get scheduled too
+        BreezeProperties.Expiry expiry = properties.getExpiry();
+        this.expirySweeper = expiry.getSweepIntervalMillis() > 0
+                ? new ExpirySweeper(expiry.getSweepIntervalMillis(), expiry.getSweepBudgetMillis(), this::reclaim)
+                : null;
+
+        BreezeProperties.Wal persistence = properties.getWal();
+        this.dataDirectory = Paths.get(persistence.getDirectory());
+        this.wal = persistence.isEnabled() ? openLog(persistence) : null;
+        if(wal == null){
+            //whatever the engine kept from its previous run is all there is
+            clock.advanceTo(engine.recoveredVersion());
+        }
+
+        //after the recovery, the first event published is the first write after it, a leader resumes its followers from the history
+        BreezeProperties.Changes feed = properties.getChanges();
+        BreezeProperties.Replication replication = properties.getReplication();
+        int historySize = replication.getRole() == ReplicationRole.LEADER
+                ? Math.max(feed.getHistorySize(), replication.getHistorySize())
+                : feed.getHistorySize();
+        this.changeFeed = new ChangeFeed(clock.current(), feed.getBufferSize(), historySize, feed.getMaxSubscriptions());
+
+        if(wal != null && persistence.getSnapshotIntervalSeconds() > 0){
+            this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "breeze-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = persistence.getSnapshotIntervalSeconds();
+            checkpointer.scheduleWithFixedDelay(this::checkpointInBackground, interval, interval, TimeUnit.SECONDS);
+        }else{
+            this.checkpointer = null;
+        }
+
+        //last, the replication threads work with the store right away
+        this.role = replication.getRole();
+        this.maxStalenessMillis = replication.getMaxStalenessMillis();
+        this.leader = role == ReplicationRole.LEADER
+                ? new ReplicationLeader(new Replica(), replication.getPort(), replication.getHeartbeatMillis())
+                : null;
+        this.follower = role == ReplicationRole.FOLLOWER
+                ? new ReplicationFollower(new Replica(), replication.getLeaderHost(), replication.getLeaderPort(),
+                        replication.getHeartbeatMillis(), replication.getRetryMillis())
+                : null;
+        if(follower != null){
+            LOG.info("Breeze store is a read only replica of [" + replication.getLeaderHost() + ":" + replication.getLeaderPort()
+                    + "], serving reads up to [" + maxStalenessMillis + "] ms behind it");
+        }
+    }
+
+    /**
+     * Starts the engines of the configured type, one for each partition, behind their share of the cache
+     *
+     * @param settings
+     * @return
+     */
+    private static StorageEngine openEngine(BreezeProperties.Storage settings){
+        int partitions = Math.max(1, settings.getPartitions());
+        long cacheBytes = settings.getCacheSizeKb() * 1024 / partitions;
+        List<StorageEngine> engines = new ArrayList<>(partitions);
+        for(int i = 0; i < partitions; i++){
+            //a directory of its own for every partition of every layout, so a changed count never routes a key to the wrong files
+            Path directory = partitions == 1
+                    ? Paths.get(settings.getDirectory())
+                    : Paths.get(settings.getDirectory()).resolve("partition-" + i + "-of-" + partitions);
+            StorageEngine created = settings.getEngine().create(settings, directory);
+            engines.add(cacheBytes > 0 ? new CachingStorageEngine(created, cacheBytes) : created);
+        }
+        return partitions == 1 ? engines.get(0) : new PartitionedStorageEngine(engines);
+    }
+
+    /**
+     * Opens the write ahead log and brings the store back to the state it recorded
+     *
+     * @param settings
+     * @return
+     */
+    private WriteAheadLog openLog(BreezeProperties.Wal settings){
+        try{
+            long started = System.nanoTime();
+
+            //the latest snapshot brings back everything up to its version, the log only has to add what came after
+            Path snapshot = SnapshotFile.findLatest(dataDirectory);
+            long snapshotVersion = 0;
+            long engineVersion = engine.recoveredVersion();
+            if(engineVersion > 0 && (snapshot == null || SnapshotFile.versionOf(snapshot) <= engineVersion)){
+                //the engine kept its data from the previous run, and the log still has everything after it
+                clock.advanceTo(engineVersion);
+            }else{
+                if(engineVersion > 0){
+                    //the log was cut after the version the engine holds, it has to be filled from the snapshot instead
+                    LOG.warn("The storage engine holds version [" + engineVersion + "], older than the snapshot [" + snapshot + "], recovering from the snapshot");
+                    engine.clear();
+                    engineVersion = 0;
+                }
+                if(snapshot != null){
+                    snapshotVersion = SnapshotFile.load(snapshot, this::recover);
+                    clock.advanceTo(snapshotVersion);
+                }
+            }
+            long snapshotKeys = snapshotVersion > 0 ? engine.size() : 0;
+            long loaded = System.nanoTime();
+
+            final long replayAfter = Math.max(snapshotVersion, engineVersion);
+            WriteAheadLog log = new WriteAheadLog(dataDirectory, settings.getSegmentSizeMb() * 1024L * 1024L,
+                    settings.getFsyncPolicy(), settings.getSyncIntervalMillis());
+            long replayed = log.replay(record -> {
+                if(record.getVersion() > replayAfter){
+                    recover(record);
+                }
+            });
+            long finished = System.nanoTime();
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(finished - started);
+            recoveryStatistics.put("recovery.millis", millis);
+            recoveryStatistics.put("recovery.snapshotMillis", TimeUnit.NANOSECONDS.toMillis(loaded - started));
+            recoveryStatistics.put("recovery.snapshotKeys", snapshotKeys);
+            recoveryStatistics.put("recovery.engineVersion", engineVersion);
+            recoveryStatistics.put("recovery.logRecordsRead", replayed);
+            recoveryStatistics.put("recovery.keysPerSecond", engine.size() * 1_000_000_000L / Math.max(1, finished - started));
+            LOG.info("Recovered [" + engine.size() + "] keys up to version [" + clock.current() + "] in [" + millis + "] ms: ["
+                    + snapshotKeys + "] from the snapshot of version [" + snapshotVersion + "] or the engine at version [" + engineVersion + "],"
+                    + " [" + replayed + "] records from the log,"
+                    + " logging with the [" + settings.getFsyncPolicy() + "] fsync policy");
+            return log;
+        }catch (IOException e){
+            throw new UncheckedIOException("Could not open the write ahead log in [" + settings.getDirectory() + "]", e);
+        }
+    }
+
+    /**
+     * Re-applies a record of the log, only to be used while the service is starting up and nobody else touches the store
+     *
+     * @param record
+     */
+    private void recover(LogRecord record){
+        long now = System.currentTimeMillis();
+        for(VersionedValue<String,String> change : record.getChanges()){
+            if(change.isDeleted() || change.isExpired(now)){
+                engine.delete(change.getKey());
+            }else{
+                recover(change);
+            }
+        }
+        clock.advanceTo(record.getVersion());
+    }
+
+    /**
+     * Puts a value of a snapshot back, only to be used while the service is starting up and nobody else touches the store
+     *
+     * @param value
+     */
+    private void recover(VersionedValue<String,String> value){
+        if(value.isExpired(System.currentTimeMillis())){
+            return;
+        }
+        engine.put(value);
+        scheduleExpiry(value);
+    }
+
+    /**
+     * Writes a snapshot of the store as of now and drops the part of the log it makes unnecessary.
+     * Writers are only stopped for the moment it takes to pin the version of the snapshot, the writing itself runs next to them.
+     *
+     * @return the snapshot file written
+     * @throws IOException
+     */
+    public Path checkpoint() throws IOException {
+        if(wal == null){
+            throw new IllegalStateException("Snapshots are only taken of a persisted store");
+        }
+
+        try{
+            checkpointLock.lock();
+
+            //with every stripe held no write is half way through, so everything up to the current version is in place
+            long version;
+            List<Lock> all = locks.lockAllStripesForWrite();
+            try{
+                version = snapshots.open();
+            }finally {
+                locks.unlockAll(all);
+            }
+
+            long started = System.nanoTime();
+            try(SnapshotFile.Writer writer = SnapshotFile.create(dataDirectory, version)){
+                //values expiring while the snapshot is written are reclaimed again when it gets loaded
+                long now = System.currentTimeMillis();
+                for(Iterator<String> keys = keys(null, true); keys.hasNext(); ){
+                    VersionedValue<String,String> visible = read(keys.next(), version);
+                    if(visible != null && !visible.isDeleted() && !visible.isExpired(now)){
+                        writer.write(visible);
+                    }
+                }
+                Path snapshot = writer.complete();
+
+                //every record up to the version is in the snapshot now, the log does not need them anymore
+                wal.truncateUpTo(version);
+                SnapshotFile.deleteOlderThan(dataDirectory, snapshot);
+
+                recoveryStatistics.put("snapshot.version", version);
+                recoveryStatistics.put("snapshot.keys", writer.count());
+                recoveryStatistics.put("snapshot.millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                return snapshot;
+            }finally {
+                snapshots.close(version);
+            }
+        }finally {
+            checkpointLock.unlock();
+            vacuum();
+        }
+    }
+
+    private void checkpointInBackground(){
+        try{
+            checkpoint();
+        }catch (IOException | RuntimeException e){
+            LOG.error("Could not take the periodic snapshot of the store", e);
+        }
+    }
 
-    //The locking context making sure that only one write and multiple reads can be active at a time
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Flushes and closes the write ahead log when the service goes down
+     */
+    @PreDestroy
+    public void shutdown(){
+        //the follower first, nothing gets applied while the rest goes down
+        if(follower != null){
+            follower.close();
+        }
+        if(leader != null){
+            leader.close();
+        }
+        if(reaper != null){
+            reaper.shutdown();
+        }
+        if(expirySweeper != null){
+            expirySweeper.shutdown();
+        }
+        if(checkpointer != null){
+            checkpointer.shutdownNow();
+        }
+        if(wal != null){
+            try{
+                wal.close();
+            }catch (IOException e){
+                LOG.error("Could not close the write ahead log cleanly", e);
+            }
+        }
+        syncEngine();
+        engine.close();
+    }
 
-    //A separate lock for manipulating transactions
-    private final Lock transactionsLock = new ReentrantLock();
+    /**
+     * Brings the engine's own files up to the current version, for an engine able to start from them again.
+     * Every stripe is held meanwhile, so no write is half way through.
+     */
+    private void syncEngine(){
+        List<Lock> all = locks.lockAllStripesForWrite();
+        try{
+            //a tombstone some reader still needed left the value it removed in the engine, it must not come back on a restart
+            for(VersionedValue<String,String> head : history.values()){
+                if(head.isDeleted()){
+                    engine.delete(head.getKey());
+                }
+            }
+            engine.sync(clock.current());
+        }catch (RuntimeException e){
+            LOG.error("Could not sync the storage engine", e);
+        }finally {
+            locks.unlockAll(all);
+        }
+    }
 
     @Override
     public void put(String key, String value) throws BreezeActionException {
-        Lock writeLock = lock.writeLock();
+        write(key, value, 0);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlMillis) throws BreezeActionException {
+        write(key, value, expiryOf(ttlMillis));
+    }
+
+    /**
+     * Writes the value of a single key in one atomic step
+     *
+     * @param key
+     * @param value
+     * @param expiresAt when the value expires, 0 for never
+     */
+    private void write(String key, String value, long expiresAt){
+        checkWritable();
+        StampedLock stripe = locks.forKey(key);
+        long ticket;
+        boolean reserved = false;
+        long stamp = stripe.writeLock();
         try{
-            writeLock.lock();
+            VersionedValue<String,String> current = head(key);
+            reserved = reserve(key, current);
             VersionedValue<String,String> entry = VersionedValue.builderFor(key)
                     .withValue(value)
-                    .atTime(System.nanoTime())
+                    .atTime(clock.next())
+                    .expiringAt(expiresAt)
+                    .replacing(current)
                     .build();
-            LOG.info("Saving the value ["+entry.getValue()+"] for key ["+entry.getKey()+"] with the update time of ["+entry.getTimestamp()+"]");
-            store.put(entry.getKey(),entry);
+            LOG.debug("Saving the value [{}] for key [{}] with the update time of [{}]", entry.getValue(), entry.getKey(), entry.getTimestamp());
+            ticket = log(LogRecord.put(entry));
+            install(entry, snapshots.oldest());
+            notifyIntents(entry, null);
         }finally {
-            writeLock.unlock();
+            if(reserved){
+                pendingKeys.remove(key);
+            }
+            stripe.unlockWrite(stamp);
         }
+        awaitDurable(ticket);
     }
 
     @Override
     public void put(String key, String value, String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+        putInTransaction(key, value, 0, transactionId);
+    }
 
-            if(!activeTransactions.containsKey(transactionId)) {
-                LOG.info("No transaction with id ["+transactionId+"] found for transactional put request.");
-                throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
-                        "There is no transaction with the id of [" + transactionId + "], hence no way to delete from it.");
-            }
+    @Override
+    public void put(String key, String value, long ttlMillis, String transactionId) throws BreezeActionException {
+        putInTransaction(key, value, expiryOf(ttlMillis), transactionId);
+    }
+
+    /**
+     * Registers the new value of a key in an open transaction
+     *
+     * @param key
+     * @param value
+     * @param expiresAt when the value expires, 0 for never
+     * @param transactionId
+     */
+    private void putInTransaction(String key, String value, long expiresAt, String transactionId){
+        checkWritable();
+        TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
 
-            //so the name is still not taken, let's create a context
-            TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
+        if(transaction == null) {
+            LOG.info("No transaction with id ["+transactionId+"] found for transactional put request.");
+            throw unknownTransaction(transactionId);
+        }
 
-            VersionedValue<String,String> entry = VersionedValue.builderFor(key)
-                    .withValue(value)
-                    .atTime(System.nanoTime())
-                    .build();
-            LOG.info("Saving the value ["+entry.getValue()+"] for key ["+entry.getKey()+"] in transaction  ["+transactionId+"]");
-            transaction.registerUpsert(entry);
+        VersionedValue<String,String> entry = VersionedValue.builderFor(key)
+                .withValue(value)
+                .atTime(transaction.getTimestamp())
+                .expiringAt(expiresAt)
+                .build();
+        LOG.debug("Saving the value [{}] for key [{}] in transaction [{}]", entry.getValue(), entry.getKey(), transactionId);
 
-        }finally {
-            transactionsLock.unlock();
+        transaction.touch();
+        checkNotConflicting(transaction);
+        List<String> keys = Collections.singletonList(key);
+        checkWriteSetSize(transaction, keys);
+        announceIntents(transaction, keys);
+
+        //the transaction might have been concluded by someone else since we looked it up
+        if(!transaction.registerUpsert(entry)){
+            withdrawIntents(transaction, keys);
+            throw unknownTransaction(transactionId);
         }
+        checkNotConflicting(transaction);
     }
 
     @Override
     public String get(String key) throws BreezeActionException {
-        Lock readLock = lock.readLock();
-        try{
-            readLock.lock();
-            String result = store.containsKey(key) ? store.get(key).getValue() : null;
-            LOG.info("Returning ["+result+"] as the value for key ["+key+"]");
-            return result;
-        }finally {
-            readLock.unlock();
-        }
+        checkFresh();
+        VersionedValue<String,String> current = read(key, Long.MAX_VALUE);
+        reclaimIfExpired(current);
+        String result = valueOf(current);
+        LOG.debug("Returning [{}] as the value for key [{}]", result, key);
+        return result;
     }
 
     @Override
     public String get(String key, String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+        //our own changes win, everything else is read as it was when the transaction started
+        String result = readInTransaction(transactionId, "get", transaction ->
+                transaction.touches(key) ? transaction.getValue(key) : valueOf(read(key, transaction.getTimestamp())));
+        LOG.debug("Returning [{}] as the value for key [{}] from active transaction [{}]", result, key, transactionId);
+        return result;
+    }
 
-            if(!activeTransactions.containsKey(transactionId)) {
-                LOG.info("No transaction with id ["+transactionId+"] found for transactional get request.");
-                throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
-                        "There is no transaction with the id of [" + transactionId + "], hence no way to delete from it.");
-            }
+    /**
+     * Reads in the snapshot of an active transaction, and refuses what got read if the transaction concluded meanwhile
+     *
+     * @param transactionId
+     * @param request what kind of read it is, for the log
+     * @param reader reads as the transaction sees the store
+     * @return what the reader read
+     * @throws BreezeActionException when the transaction is not active, or conflicts already
+     */
+    private <T> T readInTransaction(String transactionId, String request, Function<TransactionContext<String,String>,T> reader) throws BreezeActionException {
+        TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
 
-            //so the name is still not taken, let's create a context
-            TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
-            String result = transaction.getValue(key);
-            LOG.info("Returning ["+result+"] as the value for key ["+key+"] from active transaction ["+transactionId+"]");
-            return result;
+        if(transaction == null) {
+            LOG.info("No transaction with id ["+transactionId+"] found for transactional " + request + " request.");
+            throw unknownTransaction(transactionId);
+        }
 
-        }finally {
-            transactionsLock.unlock();
+        transaction.touch();
+        checkNotConflicting(transaction);
+
+        T result = reader.apply(transaction);
+
+        //once concluded its snapshot is not protected anymore, so whatever we read might be off
+        if(!transaction.isOpen()){
+            throw unknownTransaction(transactionId);
         }
+        return result;
     }
 
     @Override
     public void delete(String key) throws BreezeActionException {
-        Lock writeLock = lock.writeLock();
+        checkWritable();
+        StampedLock stripe = locks.forKey(key);
+        long ticket = 0;
+        long stamp = stripe.writeLock();
         try{
-            writeLock.lock();
-            LOG.info("Removing ["+key+"] in one atomic step from the store.");
-            store.remove(key);
+            LOG.debug("Removing [{}] in one atomic step from the store.", key);
+            VersionedValue<String,String> current = head(key);
+            if(current != null && !current.isDeleted()){
+                VersionedValue<String,String> tombstone = VersionedValue.builderFor(key)
+                        .atTime(clock.next())
+                        .replacing(current)
+                        .asDeletion()
+                        .build();
+                ticket = log(LogRecord.delete(tombstone));
+                install(tombstone, snapshots.oldest());
+                notifyIntents(tombstone, null);
+            }
         }finally {
-            writeLock.unlock();
+            stripe.unlockWrite(stamp);
         }
+        awaitDurable(ticket);
     }
 
     @Override
     public void delete(String key, String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+        checkWritable();
+        TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
 
-            if(!activeTransactions.containsKey(transactionId))
-                throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
-                        "There is no transaction with the id of ["+transactionId+"], hence no way to delete from it.");
+        if(transaction == null)
+            throw unknownTransaction(transactionId);
 
-            //so the name is still not taken, let's create a context
-            TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
-            transaction.registerDelete(key);
-
-        }finally {
-            transactionsLock.unlock();
+        transaction.touch();
+        checkNotConflicting(transaction);
+        List<String> keys = Collections.singletonList(key);
+        checkWriteSetSize(transaction, keys);
+        announceIntents(transaction, keys);
+        if(!transaction.registerDelete(key)){
+            withdrawIntents(transaction, keys);
+            throw unknownTransaction(transactionId);
         }
+        checkNotConflicting(transaction);
     }
 
     @Override
-    public void createTransaction(String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+    public ValueDTO<String,String> getVersioned(String key) throws BreezeActionException {
+        checkFresh();
+        VersionedValue<String,String> current = read(key, Long.MAX_VALUE);
+        reclaimIfExpired(current);
+        return isVisible(current) ? new ValueDTO<>(key, current.getValue(), current.getTimestamp()) : new ValueDTO<>(key, null);
+    }
 
-            if(activeTransactions.containsKey(transactionId))
-                throw new BreezeActionException(ErrorCode.TRANSACTION_ALREADY_EXISTS,
-                        "There is already an active transaction with the id of ["+transactionId+"]");
+    @Override
+    public long putIfAbsent(String key, String value) throws BreezeActionException {
+        return writeIf(key, current -> {
+            if(current != null){
+                throw new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "The key [" + key + "] exists already, it has not been written.");
+            }
+            return VersionedValue.builderFor(key).withValue(value).build();
+        }).getTimestamp();
+    }
 
-            //so the name is still not taken, let's create a context
-            TransactionContext<String,String> transaction = new TransactionContext<>(transactionId);
-            activeTransactions.put(transaction.getId(),transaction);
+    @Override
+    public long putIfVersion(String key, String value, long version) throws BreezeActionException {
+        return putIfVersion(key, value, Collections.singleton(version));
+    }
 
-        }finally {
-            transactionsLock.unlock();
-        }
+    @Override
+    public long putIfVersion(String key, String value, Collection<Long> versions) throws BreezeActionException {
+        return writeIf(key, current -> {
+            checkVersion(key, current, versions);
+            return VersionedValue.builderFor(key).withValue(value).build();
+        }).getTimestamp();
     }
 
     @Override
-    public void rollbackTransaction(String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+    public long putIfPresent(String key, String value) throws BreezeActionException {
+        return writeIf(key, current -> {
+            checkPresent(key, current);
+            return VersionedValue.builderFor(key).withValue(value).build();
+        }).getTimestamp();
+    }
 
-            if(!activeTransactions.containsKey(transactionId)) {
-                LOG.info(" Trying to rollback non existing transaction with id [" + transactionId + "].");
-                throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
-                        "There is no ongoing transaction with the id of [" + transactionId + "], cannot roll back.");
-            }
-        }finally {
-            //it is safe to try to remove this entry even if there are no entries
-            activeTransactions.remove(transactionId);
-            transactionsLock.unlock();
-        }
+    @Override
+    public void deleteIfVersion(String key, long version) throws BreezeActionException {
+        deleteIfVersion(key, Collections.singleton(version));
     }
 
     @Override
-    public void commitTransaction(String transactionId) throws BreezeActionException {
-        try{
-            transactionsLock.lock();
+    public void deleteIfVersion(String key, Collection<Long> versions) throws BreezeActionException {
+        writeIf(key, current -> {
+            checkVersion(key, current, versions);
+            return null;
+        });
+    }
 
-            if(!activeTransactions.containsKey(transactionId)) {
-                LOG.info(" Trying to commit non existing transaction with id ["+transactionId+"].");
-                throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
-                        "There is no ongoing transaction with the id of [" + transactionId + "], cannot roll back.");
-            }
+    @Override
+    public void deleteIfPresent(String key) throws BreezeActionException {
+        writeIf(key, current -> {
+            checkPresent(key, current);
+            return null;
+        });
+    }
 
-            //now we need to ensure that the write is performed atomically
-            Lock writeLock = lock.writeLock();
+    @Override
+    public long increment(String key, long delta) throws BreezeActionException {
+        VersionedValue<String,String> written = writeIf(key, current -> {
+            long counter;
             try{
-                writeLock.lock();
-                performTransaction(activeTransactions.get(transactionId));
-            }finally{
-                //m,ake sure whatever happens we are unlocking the store for further reads / writes
-                writeLock.unlock();
+                counter = Math.addExact(current == null ? 0 : Long.parseLong(current.getValue()), delta);
+            }catch (NumberFormatException e){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The value of [" + key + "] is not a whole number, it cannot be incremented.");
+            }catch (ArithmeticException e){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "Adding [" + delta + "] to the value of [" + key + "] would overflow it.");
             }
+            return VersionedValue.builderFor(key)
+                    .withValue(Long.toString(counter))
+                    .expiringAt(current == null ? 0 : current.getExpiresAt())
+                    .build();
+        });
+        return Long.parseLong(written.getValue());
+    }
 
+    /**
+     * Reads, checks and writes a single key in one atomic step, holding its stripe all along instead of going through a transaction
+     *
+     * @param key
+     * @param change gets the visible version of the key (null if it does not exist) and tells the new value to write,
+     *               null to remove the key. Throws when the write must not happen.
+     * @return the version written, the tombstone for a removal
+     */
+    private VersionedValue<String,String> writeIf(String key, Function<VersionedValue<String,String>,VersionedValue<String,String>> change){
+        checkWritable();
+        StampedLock stripe = locks.forKey(key);
+        long ticket;
+        VersionedValue<String,String> entry;
+        boolean reserved = false;
+        long stamp = stripe.writeLock();
+        try{
+            VersionedValue<String,String> current = head(key);
+            VersionedValue<String,String> value = change.apply(isVisible(current) ? current : null);
+            if(value == null){
+                entry = VersionedValue.builderFor(key)
+                        .atTime(clock.next())
+                        .replacing(current)
+                        .asDeletion()
+                        .build();
+                ticket = log(LogRecord.delete(entry));
+            }else{
+                reserved = reserve(key, current);
+                entry = value.cloneOnTopOf(current, clock.next());
+                ticket = log(LogRecord.put(entry));
+            }
+            LOG.debug("Conditionally wrote key [{}] with the update time of [{}]", key, entry.getTimestamp());
+            install(entry, snapshots.oldest());
+            notifyIntents(entry, null);
         }finally {
-            //whether the transaction succeeds or fails it actually concludes and we remove it from the active ones
-            activeTransactions.remove(transactionId);
-            transactionsLock.unlock();
+            if(reserved){
+                pendingKeys.remove(key);
+            }
+            stripe.unlockWrite(stamp);
         }
+        awaitDurable(ticket);
+        return entry;
     }
 
     /**
-     * The bulk of the transaction handling
+     * Refuses a conditional write when the key is not at the version the caller read it at
      *
-     * @param transaction
+     * @param key
+     * @param current the visible version of the key, null if it does not exist
+     * @param version
      * @throws BreezeActionException
      */
-    private void performTransaction(TransactionContext<String,String> transaction) throws BreezeActionException {
+    private static void checkPresent(String key, VersionedValue<String,String> current) throws BreezeActionException {
+        if(current == null){
+            throw new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "The key [" + key + "] does not exist, it has not been written.");
+        }
+    }
 
-        LOG.info("Committing transaction ["+transaction.getId()+"] with ["+transaction.getChanges().size()+"] items in it");
+    private static void checkVersion(String key, VersionedValue<String,String> current, Collection<Long> versions) throws BreezeActionException {
+        if(current == null || !versions.contains(current.getTimestamp())){
+            String expected = versions.size() == 1 ? "version [" + versions.iterator().next() + "]" : "any of the versions " + versions;
+            throw new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "The key [" + key + "] is not at " + expected
+                    + " anymore" + (current == null ? ", it does not exist" : ", it is at [" + current.getTimestamp() + "]") + ". It has not been written.");
+        }
+    }
+
+    @Override
+    public Map<String,String> getAll(Collection<String> keys) throws BreezeActionException {
+        checkFresh();
+        Map<String,String> result = new LinkedHashMap<>();
+        for(Entry<String,VersionedValue<String,String>> visible : readAll(keys, Long.MAX_VALUE).entrySet()){
+            reclaimIfExpired(visible.getValue());
+            result.put(visible.getKey(), valueOf(visible.getValue()));
+        }
+        LOG.debug("Returning the values of [{}] keys in one batch", result.size());
+        return result;
+    }
 
-        //for each entry check if any of them got updated
-        //TODO check if some sort of notification would work better so we could keep the transactions up to date without a final run on values
-        for( Entry<String,VersionedValue<String,String>> entry : transaction.getChanges().entrySet()){
+    @Override
+    public Map<String,String> getAll(Collection<String> keys, String transactionId) throws BreezeActionException {
+        Map<String,String> result = readInTransaction(transactionId, "batch get", transaction -> {
+            //our own changes win, only the rest has to be read from the snapshot of the transaction
+            Map<String,String> ownChanges = transaction.getValues(keys);
+            List<String> untouched = new ArrayList<>(keys.size());
+            for(String key : keys){
+                if(!ownChanges.containsKey(key)){
+                    untouched.add(key);
+                }
+            }
+            Map<String,VersionedValue<String,String>> visible = readAll(untouched, transaction.getTimestamp());
 
-            //whatever we want to do with the record, we need to ensure the record did not change since the time our transaction started
-            //every other scenario like updating an existing record that did not have any changes yet, deleting a non existent record, inserting a new one are fine
-            //TODO if another transaction deleted the record, we won't see it, that might be a problem?
-            if(hasChangedSince(entry.getKey(),transaction.getTimestamp())){
-                throw new BreezeActionException(ErrorCode.UNCOMMITABLE_TRANSACTION,"The value for key ["+entry.getKey()+"] has been modified after the transaction started." +
-                        " Transaction with id ["+transaction.getId()+"] will be discarded. " +
-                        "Please open a new transaction and try to change the values again.");
+            Map<String,String> values = new LinkedHashMap<>();
+            for(String key : keys){
+                values.put(key, ownChanges.containsKey(key) ? ownChanges.get(key) : valueOf(visible.get(key)));
             }
+            return values;
+        });
+        LOG.debug("Returning the values of [{}] keys in one batch from active transaction [{}]", result.size(), transactionId);
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String,String> values) throws BreezeActionException {
+        checkWritable();
+        if(values.isEmpty()){
+            return;
         }
 
-        //grabbing the exact time for this update
-        long transactionCommitTime = System.currentTimeMillis();
+        long ticket;
+        List<String> reserved = new ArrayList<>();
+        List<Lock> writeLocks = locks.lockAllForWrite(values.keySet());
+        try{
+            Map<String,VersionedValue<String,String>> current = new LinkedHashMap<>();
+            for(String key : values.keySet()){
+                current.put(key, head(key));
+            }
+            //the whole batch is one version, just like a commit, so nobody ever sees half of it
+            reserveAll(current, reserved);
+            long version = clock.next();
+            List<VersionedValue<String,String>> versions = new ArrayList<>(values.size());
+            for(Entry<String,String> value : values.entrySet()){
+                versions.add(VersionedValue.builderFor(value.getKey())
+                        .withValue(value.getValue())
+                        .atTime(version)
+                        .replacing(current.get(value.getKey()))
+                        .build());
+            }
+            LOG.debug("Saving [{}] values in one batch with the update time of [{}]", versions.size(), version);
+            ticket = log(LogRecord.batch(version, versions));
+
+            installAll(versions, snapshots.oldest());
+            for(VersionedValue<String,String> entry : versions){
+                notifyIntents(entry, null);
+            }
+        }finally {
+            pendingKeys.removeAll(reserved);
+            locks.unlockAll(writeLocks);
+        }
+        awaitDurable(ticket);
+    }
 
-        //kinda ugly double loop, if we would track changes with events it would not be needed
-        for( Entry<String,VersionedValue<String,String>> entry : transaction.getChanges().entrySet()){
+    @Override
+    public void putAll(Map<String,String> values, String transactionId) throws BreezeActionException {
+        checkWritable();
+        TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
 
-            if(entry.getValue() == null){
-                store.remove(entry.getKey());
-            }else{
-                //creating a new value that captures the commit time for this object, and storing that
-                store.put(entry.getKey(),entry.getValue().cloneWithTime(transactionCommitTime));
+        if(transaction == null) {
+            LOG.info("No transaction with id ["+transactionId+"] found for transactional batch put request.");
+            throw unknownTransaction(transactionId);
+        }
+
+        List<VersionedValue<String,String>> entries = new ArrayList<>(values.size());
+        for(Entry<String,String> value : values.entrySet()){
+            entries.add(VersionedValue.builderFor(value.getKey())
+                    .withValue(value.getValue())
+                    .atTime(transaction.getTimestamp())
+                    .build());
+        }
+        LOG.debug("Saving [{}] values in one batch in transaction [{}]", entries.size(), transactionId);
+
+        transaction.touch();
+        checkNotConflicting(transaction);
+        checkWriteSetSize(transaction, values.keySet());
+        announceIntents(transaction, values.keySet());
+
+        //the transaction might have been concluded by someone else since we looked it up
+        if(!transaction.registerAll(Collections.<String>emptyList(), entries)){
+            withdrawIntents(transaction, values.keySet());
+            throw unknownTransaction(transactionId);
+        }
+        checkNotConflicting(transaction);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) throws BreezeActionException {
+        checkWritable();
+        Set<String> distinctKeys = new LinkedHashSet<>(keys);
+        if(distinctKeys.isEmpty()){
+            return;
+        }
+
+        long ticket = 0;
+        List<Lock> writeLocks = locks.lockAllForWrite(distinctKeys);
+        try{
+            List<VersionedValue<String,String>> current = new ArrayList<>(distinctKeys.size());
+            for(String key : distinctKeys){
+                VersionedValue<String,String> head = head(key);
+                if(head != null && !head.isDeleted()){
+                    current.add(head);
+                }
             }
 
+            //like a single delete, a batch removing nothing does not need a version of its own
+            if(!current.isEmpty()){
+                long version = clock.next();
+                List<VersionedValue<String,String>> tombstones = new ArrayList<>(current.size());
+                for(VersionedValue<String,String> head : current){
+                    tombstones.add(VersionedValue.builderFor(head.getKey())
+                            .atTime(version)
+                            .replacing(head)
+                            .asDeletion()
+                            .build());
+                }
+                LOG.debug("Removing [{}] keys in one batch with the update time of [{}]", tombstones.size(), version);
+                ticket = log(LogRecord.batch(version, tombstones));
+
+                installAll(tombstones, snapshots.oldest());
+                for(VersionedValue<String,String> tombstone : tombstones){
+                    notifyIntents(tombstone, null);
+                }
+            }
+        }finally {
+            locks.unlockAll(writeLocks);
         }
+        awaitDurable(ticket);
     }
 
-    /**
-     * Convenience method to better read the commit logic's decision making
-     *
-     * @param key
-     * @param timeMillies
-     * @return
-     */
-    private boolean hasChangedSince(String key,long timeMillies){
-        LOG.info("Checking if [" + key + "] is contained by the store");
-        if(store.containsKey(key)) {
-            LOG.info("Checking if commit time [" + timeMillies + "] is lesser than last modified time [" + store.get(key).getTimestamp() + "] , which yields  [" + store.get(key).hasChangedSince(timeMillies) + "]");
+    @Override
+    public void deleteAll(Collection<String> keys, String transactionId) throws BreezeActionException {
+        checkWritable();
+        TransactionContext<String,String> transaction = activeTransactions.get(transactionId);
+
+        if(transaction == null)
+            throw unknownTransaction(transactionId);
+
+        transaction.touch();
+        checkNotConflicting(transaction);
+        checkWriteSetSize(transaction, keys);
+        announceIntents(transaction, keys);
+        if(!transaction.registerAll(keys, Collections.<VersionedValue<String,String>>emptyList())){
+            withdrawIntents(transaction, keys);
+            throw unknownTransaction(transactionId);
+        }
+        checkNotConflicting(transaction);
+    }
+
+    @Override
+    public ScanPageDTO<String,String> scan(String from, String to, String prefix, String cursor, int limit) throws BreezeActionException {
+        checkScanLimit(limit);
+        checkFresh();
+
+        //the snapshot keeps every version the scan might need around, no lock is held while it walks the keys
+        long version = snapshots.open();
+        try{
+            return scan(from, to, prefix, cursor, limit, version, Collections.<String,VersionedValue<String,String>>emptyMap());
+        }finally {
+            snapshots.close(version);
+            vacuum();
+        }
+    }
+
+    @Override
+    public ScanPageDTO<String,String> scan(String from, String to, String prefix, String cursor, int limit, String transactionId) throws BreezeActionException {
+        checkScanLimit(limit);
+        return readInTransaction(transactionId, "scan", transaction ->
+                scan(from, to, prefix, cursor, limit, transaction.getTimestamp(), transaction.copyChanges()));
+    }
+
+    @Override
+    public long export(Consumer<VersionedValue<String,String>> consumer) throws BreezeActionException {
+        //the snapshot keeps every version the export might need around, no lock is held while it walks the keys
+        long version = snapshots.open();
+        long exported = 0;
+        try{
+            long now = System.currentTimeMillis();
+            for(Iterator<String> keys = keys(null, true); keys.hasNext(); ){
+                VersionedValue<String,String> visible = read(keys.next(), version);
+                if(visible != null && !visible.isDeleted() && !visible.isExpired(now)){
+                    consumer.accept(visible);
+                    exported++;
+                }
+            }
+        }finally {
+            snapshots.close(version);
+            vacuum();
+        }
+        LOG.info("Exported [" + exported + "] keys as of version [" + version + "]");
+        return exported;
+    }
+
+    @Override
+    public long importAll(Iterator<VersionedValue<String,String>> entries) throws BreezeActionException {
+        checkWritable();
+        long started = System.nanoTime();
+        long imported = 0;
+        boolean complete = false;
+        try{
+            Map<String,VersionedValue<String,String>> batch = new LinkedHashMap<>();
+            long now = System.currentTimeMillis();
+            while(entries.hasNext()){
+                VersionedValue<String,String> entry = entries.next();
+                if(entry.getKey() == null){
+                    throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "Every imported entry needs a key.");
+                }
+                if(entry.isExpired(now)){
+                    continue;
+                }
+                batch.put(entry.getKey(), entry);
+                if(batch.size() == IMPORT_BATCH_SIZE){
+                    imported += importBatch(batch.values());
+                    batch.clear();
+                    now = System.currentTimeMillis();
+                }
+            }
+            if(!batch.isEmpty()){
+                imported += importBatch(batch.values());
+            }
+            complete = true;
+        }finally{
+            //the batches skipped the log, a snapshot is what makes them durable, the ones applied before a failure too
+            if(wal != null && imported > 0){
+                try{
+                    checkpoint();
+                }catch (IOException e){
+                    LOG.error("Could not take the snapshot covering the import", e);
+                    if(complete){
+                        throw new BreezeActionException(ErrorCode.PERSISTENCE_FAILURE, "The import has been applied but it could not be persisted.");
+                    }
+                }
+            }
+        }
+        LOG.info("Imported [" + imported + "] keys in [" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "] ms");
+        return imported;
+    }
+
+    /**
+     * Applies a batch of an import as one version, under a single acquisition of every stripe and without logging it
+     *
+     * @param entries distinct keys with their values
+     * @return the number of keys applied
+     */
+    private int importBatch(Collection<VersionedValue<String,String>> entries){
+        List<String> reserved = new ArrayList<>();
+        List<Lock> all = locks.lockAllStripesForWrite();
+        try{
+            Map<String,VersionedValue<String,String>> current = new LinkedHashMap<>();
+            for(VersionedValue<String,String> entry : entries){
+                current.put(entry.getKey(), head(entry.getKey()));
+            }
+            reserveAll(current, reserved);
+            long version = clock.next();
+            List<VersionedValue<String,String>> versions = new ArrayList<>(entries.size());
+            for(VersionedValue<String,String> entry : entries){
+                versions.add(entry.cloneOnTopOf(current.get(entry.getKey()), version));
+            }
+            installAll(versions, snapshots.oldest());
+            for(VersionedValue<String,String> imported : versions){
+                notifyIntents(imported, null);
+            }
+            //not logged, but the subscribers still get the batch as one event
+            changeFeed.publish(version, versions);
+        }finally {
+            pendingKeys.removeAll(reserved);
+            locks.unlockAll(all);
+        }
+        return entries.size();
+    }
+
+    /**
+     * Applies a write of the leader with the version it got there, in one atomic step like a batch.
+     * Only ever called by the follower, one write after the other in the order of their versions.
+     *
+     * @param version
+     * @param changes the new values of the keys, and the keys removed
+     */
+    private void applyReplicated(long version, List<ChangeDTO<String,String>> changes){
+        if(version <= clock.current()){
+            //already applied, the leader resent it after a reconnect
+            return;
+        }
+
+        Set<String> keys = new LinkedHashSet<>();
+        for(ChangeDTO<String,String> change : changes){
+            keys.add(change.getKey());
+        }
+        long ticket = 0;
+        List<String> reserved = new ArrayList<>();
+        List<Lock> writeLocks = locks.lockAllForWrite(keys);
+        try{
+            Map<String,VersionedValue<String,String>> current = new LinkedHashMap<>();
+            Map<String,VersionedValue<String,String>> written = new LinkedHashMap<>();
+            for(ChangeDTO<String,String> change : changes){
+                VersionedValue<String,String> head = head(change.getKey());
+                current.put(change.getKey(), head);
+                if(!change.isDeleted()){
+                    written.put(change.getKey(), head);
+                }
+            }
+            reserveAll(written, reserved);
+
+            List<VersionedValue<String,String>> versions = new ArrayList<>(changes.size());
+            for(ChangeDTO<String,String> change : changes){
+                VersionedValue<String,String> head = current.get(change.getKey());
+                if(change.isDeleted()){
+                    //removing a key the replica does not have changes nothing
+                    if(head != null && !head.isDeleted()){
+                        versions.add(VersionedValue.builderFor(change.getKey())
+                                .atTime(version)
+                                .replacing(head)
+                                .asDeletion()
+                                .build());
+                    }
+                }else{
+                    versions.add(VersionedValue.builderFor(change.getKey())
+                            .withValue(change.getValue())
+                            .atTime(version)
+                            .expiringAt(change.getExpiresAt())
+                            .replacing(head)
+                            .build());
+                }
+            }
+
+            //the versions the leader skipped never come, the feed goes on without them
+            clock.advanceTo(version);
+            changeFeed.advanceTo(version - 1);
+            if(versions.isEmpty()){
+                changeFeed.advanceTo(version);
+                return;
+            }
+            ticket = log(LogRecord.batch(version, versions));
+            installAll(versions, snapshots.oldest());
+            for(VersionedValue<String,String> entry : versions){
+                notifyIntents(entry, null);
+            }
+        }finally {
+            pendingKeys.removeAll(reserved);
+            locks.unlockAll(writeLocks);
+        }
+        awaitDurable(ticket);
+    }
+
+    /**
+     * Replaces the content of the store with a snapshot of the leader, for a follower too far behind to get the changes.
+     * Every stripe is held while the snapshot gets applied, so nobody sees it half way through. The values keep the versions
+     * they have on the leader, the keys missing from the snapshot are removed with its version.
+     *
+     * @param snapshot
+     * @return the version of the snapshot, the store is at now
+     * @throws IOException
+     */
+    private long loadReplica(Path snapshot) throws IOException {
+        long version = SnapshotFile.versionOf(snapshot);
+        Set<String> present = new HashSet<>();
+        long started = System.nanoTime();
+        List<Lock> all = locks.lockAllStripesForWrite();
+        try{
+            if(version < clock.current()){
+                throw new IllegalStateException("The snapshot of version [" + version + "] is older than the replica at [" + clock.current() + "]");
+            }
+            long oldestSnapshot = snapshots.oldest();
+            List<VersionedValue<String,String>> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            SnapshotFile.load(snapshot, entry -> {
+                present.add(entry.getKey());
+                VersionedValue<String,String> head = head(entry.getKey());
+                if(head == null || head.getTimestamp() != entry.getTimestamp()){
+                    batch.add(entry.cloneOnTopOf(head, entry.getTimestamp()));
+                }
+                if(batch.size() == IMPORT_BATCH_SIZE){
+                    installAll(batch, oldestSnapshot);
+                    batch.clear();
+                }
+            });
+            for(Iterator<String> keys = keys(null, true); keys.hasNext(); ){
+                String key = keys.next();
+                VersionedValue<String,String> head = head(key);
+                if(!present.contains(key) && head != null && !head.isDeleted()){
+                    batch.add(VersionedValue.builderFor(key)
+                            .atTime(version)
+                            .replacing(head)
+                            .asDeletion()
+                            .build());
+                }
+            }
+            installAll(batch, oldestSnapshot);
+            clock.advanceTo(version);
+            changeFeed.resetTo(version);
+        }finally {
+            locks.unlockAll(all);
+        }
+        LOG.info("Replaced the replica with [" + present.size() + "] keys of the leader as of version [" + version + "] in ["
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "] ms");
+
+        //the snapshot skipped the log, a snapshot of our own is what makes it durable
+        if(wal != null){
+            checkpoint();
+        }
+        vacuum();
+        return version;
+    }
+
+    /**
+     * Walks the store as of the current version for a follower, like an export
+     *
+     * @param started gets the version before any entry
+     * @param consumer
+     * @return the version walked
+     */
+    private long snapshotForReplica(LongConsumer started, Consumer<VersionedValue<String,String>> consumer){
+        long version = snapshots.open();
+        try{
+            started.accept(version);
+            long now = System.currentTimeMillis();
+            for(Iterator<String> keys = keys(null, true); keys.hasNext(); ){
+                VersionedValue<String,String> visible = read(keys.next(), version);
+                if(visible != null && !visible.isDeleted() && !visible.isExpired(now)){
+                    consumer.accept(visible);
+                }
+            }
+        }finally {
+            snapshots.close(version);
+            vacuum();
+        }
+        return version;
+    }
+
+    /**
+     * Refuses the writes of the clients on a follower, only its leader writes it
+     *
+     * @throws BreezeActionException
+     */
+    private void checkWritable() throws BreezeActionException {
+        if(follower != null){
+            throw new BreezeActionException(ErrorCode.READ_ONLY_REPLICA, "This store is a read only replica, write to its leader instead.");
+        }
+    }
+
+    /**
+     * Refuses the reads on a follower too far behind its leader
+     *
+     * @throws BreezeActionException
+     */
+    private void checkFresh() throws BreezeActionException {
+        if(follower == null){
+            return;
+        }
+        long staleness = follower.stalenessMillis();
+        if(staleness > maxStalenessMillis){
+            throw new BreezeActionException(ErrorCode.REPLICA_TOO_STALE, staleness == Long.MAX_VALUE
+                    ? "This replica has not caught up with its leader yet, read from the leader instead."
+                    : "This replica is [" + staleness + "] ms behind its leader, more than the [" + maxStalenessMillis + "] ms allowed. Read from the leader instead.");
+        }
+    }
+
+    @Override
+    public ChangeSubscription<String,String> subscribe(String prefix, Long after) throws BreezeActionException {
+        ChangeSubscription<String,String> subscription = changeFeed.subscribe(prefix, after);
+        LOG.info("Subscribed to the changes" + (prefix == null ? "" : " of the keys starting with [" + prefix + "]")
+                + (after == null ? " from now on" : " after sequence [" + after + "]"));
+        return subscription;
+    }
+
+    @Override
+    public void createTransaction(String transactionId) throws BreezeActionException {
+        //a transaction reads as of its start, it must not start on a stale replica
+        checkFresh();
+        //a rough limit, concurrent creations might overshoot it by a few
+        if(activeTransactions.size() >= maxOpenTransactions){
+            throw new BreezeActionException(ErrorCode.TOO_MANY_TRANSACTIONS,
+                    "There are already [" + maxOpenTransactions + "] open transactions, conclude some of them before opening a new one.");
+        }
+
+        TransactionContext<String,String> transaction = new TransactionContext<>(transactionId, snapshots.open());
+
+        //the name is only ours if nobody registered it before us
+        if(activeTransactions.putIfAbsent(transaction.getId(),transaction) != null) {
+            release(transaction);
+            throw new BreezeActionException(ErrorCode.TRANSACTION_ALREADY_EXISTS,
+                    "There is already an active transaction with the id of [" + transactionId + "]");
+        }
+        if(reaper != null){
+            reaper.track(transaction);
+        }
+    }
+
+    @Override
+    public void rollbackTransaction(String transactionId) throws BreezeActionException {
+        //removing it is what claims the transaction, a concurrent commit or rollback will not find it anymore
+        TransactionContext<String,String> transaction = activeTransactions.remove(transactionId);
+
+        if(transaction == null) {
+            LOG.info(" Trying to rollback non existing transaction with id [" + transactionId + "].");
+            throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
+                    "There is no ongoing transaction with the id of [" + transactionId + "], cannot roll back.");
+        }
+
+        release(transaction);
+        withdrawIntents(transaction, transaction.getChanges().keySet());
+        vacuum();
+    }
+
+    @Override
+    public void commitTransaction(String transactionId) throws BreezeActionException {
+        //whether the transaction succeeds or fails it actually concludes, so we take it out of the active ones right away
+        TransactionContext<String,String> transaction = activeTransactions.remove(transactionId);
+
+        if(transaction == null) {
+            LOG.info(" Trying to commit non existing transaction with id ["+transactionId+"].");
+            throw new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
+                    "There is no ongoing transaction with the id of [" + transactionId + "], cannot roll back.");
+        }
+
+        //closing the context freezes its write set, operations still racing with us get rejected from now on
+        release(transaction);
+
+        try{
+            if(groupCommitter != null){
+                groupCommitter.commit(transaction);
+            }else{
+                BreezeActionException failure = commitAll(Collections.singletonList(transaction)).get(0);
+                if(failure != null){
+                    throw failure;
+                }
+            }
+        }finally {
+            withdrawIntents(transaction, transaction.getChanges().keySet());
+            vacuum();
+        }
+    }
+
+    @Override
+    public void executeAtomically(Map<String,String> conditions, List<OperationDTO<String,String>> operations) throws BreezeActionException {
+        checkWritable();
+        //collecting the write set the same way a transaction does, a deletion being null
+        Map<String,VersionedValue<String,String>> changes = new LinkedHashMap<>();
+        for(OperationDTO<String,String> operation : operations){
+            if(operation == null || operation.getType() == null || operation.getKey() == null){
+                throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "Every operation needs a type and a key.");
+            }
+            if(operation.getType() == OperationDTO.OperationType.DELETE){
+                changes.put(operation.getKey(), null);
+            }else{
+                changes.put(operation.getKey(), VersionedValue.builderFor(operation.getKey())
+                        .withValue(operation.getValue())
+                        .build());
+            }
+        }
+
+        if(changes.size() > maxWriteSetSize){
+            throw writeSetTooLarge();
+        }
+
+        Set<String> keys = new LinkedHashSet<>(conditions.keySet());
+        keys.addAll(changes.keySet());
+        if(keys.contains(null)){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "Every condition needs a key.");
+        }
+        if(changes.isEmpty()){
+            //nothing to write, the conditions are simply checked as of the same moment
+            checkConditions(conditions, readAll(conditions.keySet(), Long.MAX_VALUE));
+            return;
+        }
+
+        long ticket;
+        //the keys of the conditions are held too, so nobody changes them between the check and the write
+        List<Lock> writeLocks = locks.lockAllForWrite(keys);
+        try{
+            Map<String,VersionedValue<String,String>> current = new LinkedHashMap<>();
+            for(String key : conditions.keySet()){
+                current.put(key, head(key));
+            }
+            checkConditions(conditions, current);
+
+            LOG.debug("Executing an atomic transaction with [{}] conditions and [{}] changes", conditions.size(), changes.size());
+            ticket = apply(changes, null);
+        }finally {
+            locks.unlockAll(writeLocks);
+        }
+        awaitDurable(ticket);
+    }
+
+    @Override
+    public Map<String, Object> getStatistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("store.keys", engine.size());
+        statistics.put("storage.engine", engineType.name().toLowerCase().replace('_', '-'));
+        statistics.put("transactions.active", activeTransactions.size());
+        if(reaper != null){
+            statistics.put("transactions.expired", reaper.expired());
+        }
+        statistics.put("expiry.reclaimed", expiredKeys.get());
+        if(expirySweeper != null){
+            statistics.put("expiry.pending", expirySweeper.pending());
+            statistics.put("expiry.sweepsCutShort", expirySweeper.sweepsCutShort());
+        }
+        statistics.put("version.current", clock.current());
+        statistics.put("changes.published", changeFeed.published());
+        statistics.put("changes.subscriptions", changeFeed.subscriptions());
+        statistics.put("changes.overflows", changeFeed.overflows());
+        if(intents != null){
+            statistics.put("transactions.writeIntents", intents.size());
+            statistics.put("transactions.conflictsDetectedEarly", intents.conflictsDetected());
+        }
+        if(groupCommitter != null){
+            statistics.putAll(groupCommitter.statistics());
+        }
+        statistics.putAll(engine.statistics());
+        statistics.put("replication.role", role.name().toLowerCase());
+        if(leader != null){
+            statistics.putAll(leader.statistics());
+        }
+        if(follower != null){
+            statistics.putAll(follower.statistics());
+        }
+        if(wal != null){
+            statistics.put("wal.segments", wal.segmentCount());
+            statistics.putAll(recoveryStatistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Validates and applies a batch of closed transactions in order, under one acquisition of every stripe they write.
+     * A transaction sees the ones before it in the batch as already committed.
+     *
+     * @param transactions
+     * @return the outcome of each transaction, null where it got committed
+     */
+    private List<BreezeActionException> commitAll(List<TransactionContext<String,String>> transactions){
+        List<String> keys = new ArrayList<>();
+        for(TransactionContext<String,String> transaction : transactions){
+            keys.addAll(transaction.getChanges().keySet());
+        }
+
+        List<BreezeActionException> outcomes = new ArrayList<>(transactions.size());
+        long ticket = 0;
+
+        //now we need to ensure that the write is performed atomically, so every stripe the write set touches is held
+        List<Lock> writeLocks = locks.lockAllForWrite(keys);
+        try{
+            for(TransactionContext<String,String> transaction : transactions){
+                try{
+                    ticket = Math.max(ticket, performTransaction(transaction));
+                    outcomes.add(null);
+                }catch (BreezeActionException e){
+                    outcomes.add(e);
+                }
+            }
+        }finally{
+            //m,ake sure whatever happens we are unlocking the store for further reads / writes
+            locks.unlockAll(writeLocks);
+        }
+
+        //one wait covers the records of the whole batch
+        try{
+            awaitDurable(ticket);
+        }catch (BreezeActionException e){
+            for(int i = 0; i < outcomes.size(); i++){
+                if(outcomes.get(i) == null){
+                    outcomes.set(i, e);
+                }
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * The bulk of the transaction handling
+     *
+     * @param transaction
+     * @return the ticket of the commit's record in the write ahead log
+     * @throws BreezeActionException
+     */
+    private long performTransaction(TransactionContext<String,String> transaction) throws BreezeActionException {
+
+        LOG.info("Committing transaction ["+transaction.getId()+"] with ["+transaction.getChanges().size()+"] items in it");
+
+        if(intents != null){
+            //every commit on our keys since we started has marked us already, with the stripes held no new one can come
+            if(transaction.getConflictingKey() != null){
+                throw conflict(transaction, transaction.getConflictingKey());
+            }
+        }else{
+            //for each entry check if any of them got updated
+            for( Entry<String,VersionedValue<String,String>> entry : transaction.getChanges().entrySet()){
+
+                //whatever we want to do with the record, we need to ensure the record did not change since the time our transaction started
+                //every other scenario like updating an existing record that did not have any changes yet, deleting a non existent record, inserting a new one are fine
+                //deletions are versions too, so a record another transaction removed in the meantime is a conflict as well
+                if(hasChangedSince(entry.getKey(),transaction.getTimestamp())){
+                    throw conflict(transaction, entry.getKey());
+                }
+            }
+        }
+
+        return apply(transaction.getChanges(), transaction);
+    }
+
+    /**
+     * Announces the keys an open transaction is about to write, and dooms it right away if one of them got committed since it started.
+     * Must be called before the changes are registered in the transaction.
+     *
+     * @param transaction
+     * @param keys
+     */
+    private void announceIntents(TransactionContext<String,String> transaction, Collection<String> keys){
+        if(intents == null){
+            return;
+        }
+        for(String key : keys){
+            intents.announce(key, transaction);
+            //whatever got committed before the announcement did not see us, so we look for it ourselves
+            if(hasChangedSince(key, transaction.getTimestamp())){
+                transaction.markConflicting(key);
+            }
+        }
+    }
+
+    /**
+     * Withdraws the intents of a transaction that concluded or could not register its changes
+     *
+     * @param transaction
+     * @param keys
+     */
+    private void withdrawIntents(TransactionContext<String,String> transaction, Collection<String> keys){
+        if(intents != null){
+            intents.withdraw(keys, transaction);
+        }
+    }
+
+    /**
+     * Lets the open transactions writing the key of a freshly installed version know they lost, to be called holding its stripe
+     *
+     * @param version
+     * @param committer the transaction the version belongs to, null if it does not belong to a registered one
+     */
+    private void notifyIntents(VersionedValue<String,String> version, TransactionContext<String,String> committer){
+        if(intents != null){
+            intents.committed(version.getKey(), version.getTimestamp(), committer);
+        }
+    }
+
+    /**
+     * Rolls back a transaction the reaper found past its deadline
+     *
+     * @param transaction
+     * @return false if it got concluded by its client in the meantime
+     */
+    private boolean expire(TransactionContext<String,String> transaction){
+        //only the very context the reaper looked at, the id might already belong to a new transaction
+        if(!activeTransactions.remove(transaction.getId(), transaction)){
+            return false;
+        }
+        LOG.info("Rolling back transaction [" + transaction.getId() + "] with [" + transaction.size() + "] items in it, it has not been worked with in time");
+
+        release(transaction);
+        withdrawIntents(transaction, transaction.getChanges().keySet());
+        vacuum();
+        return true;
+    }
+
+    /**
+     * Refuses changes that would grow the write set of a transaction over the limit
+     *
+     * @param transaction
+     * @param keys the keys about to be written
+     * @throws BreezeActionException
+     */
+    private void checkWriteSetSize(TransactionContext<String,String> transaction, Collection<String> keys) throws BreezeActionException {
+        int size = transaction.size();
+        if(size + keys.size() <= maxWriteSetSize){
+            return;
+        }
+        //only the keys not written yet make it grow
+        Set<String> added = new HashSet<>(keys);
+        added.removeAll(transaction.getValues(keys).keySet());
+        if(size + added.size() > maxWriteSetSize){
+            throw writeSetTooLarge();
+        }
+    }
+
+    /**
+     * The error raised for changes that would not fit into a write set anymore
+     *
+     * @return
+     */
+    private BreezeActionException writeSetTooLarge(){
+        return new BreezeActionException(ErrorCode.WRITE_SET_TOO_LARGE,
+                "A transaction can write at most [" + maxWriteSetSize + "] keys, commit this one and continue in a new one.");
+    }
+
+    /**
+     * Fails fast when a commit of someone else already doomed the transaction
+     *
+     * @param transaction
+     * @throws BreezeActionException
+     */
+    private static void checkNotConflicting(TransactionContext<String,String> transaction) throws BreezeActionException {
+        String conflictingKey = transaction.getConflictingKey();
+        if(conflictingKey != null){
+            throw conflict(transaction, conflictingKey);
+        }
+    }
+
+    /**
+     * The error raised for a transaction that cannot be committed because a key it writes changed after it started
+     *
+     * @param transaction
+     * @param key
+     * @return
+     */
+    private static BreezeActionException conflict(TransactionContext<String,String> transaction, String key){
+        return new BreezeActionException(ErrorCode.UNCOMMITABLE_TRANSACTION,"The value for key ["+key+"] has been modified after the transaction started." +
+                " Transaction with id ["+transaction.getId()+"] will be discarded. " +
+                "Please open a new transaction and try to change the values again.");
+    }
+
+    /**
+     * Checks the conditions of an atomic transaction against the values seen
+     *
+     * @param conditions the value each key must have, null meaning the key must not exist
+     * @param current the newest version of each key of the conditions
+     * @throws BreezeActionException when a condition does not hold
+     */
+    private static void checkConditions(Map<String,String> conditions, Map<String,VersionedValue<String,String>> current) throws BreezeActionException {
+        for(Entry<String,String> condition : conditions.entrySet()){
+            VersionedValue<String,String> version = current.get(condition.getKey());
+            boolean exists = isVisible(version);
+            boolean holds = condition.getValue() == null ? !exists : exists && condition.getValue().equals(version.getValue());
+            if(!holds){
+                throw new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "The value for key [" + condition.getKey() + "] is not ["
+                        + condition.getValue() + "] anymore, the transaction has not been applied.");
+            }
+        }
+    }
+
+    /**
+     * Applies a validated write set as one version. Must only be called holding the write lock of every stripe it touches.
+     *
+     * @param changes the new values by their keys, null for a deletion
+     * @param committer the transaction the changes belong to, null if they do not belong to a registered one
+     * @return the ticket of the write set's record in the write ahead log
+     */
+    private long apply(Map<String,VersionedValue<String,String>> changes, TransactionContext<String,String> committer){
+        Map<String,VersionedValue<String,String>> heads = new LinkedHashMap<>();
+        Map<String,VersionedValue<String,String>> written = new LinkedHashMap<>();
+        for( Entry<String,VersionedValue<String,String>> entry : changes.entrySet()){
+            heads.put(entry.getKey(), head(entry.getKey()));
+            if(entry.getValue() != null){
+                written.put(entry.getKey(), heads.get(entry.getKey()));
+            }
+        }
+
+        List<String> reserved = new ArrayList<>();
+        try{
+            reserveAll(written, reserved);
+
+            //drawing the version of this commit while every stripe it writes is still held
+            long transactionCommitTime = clock.next();
+
+            //every new version is built first, so the whole write set is logged before any of it becomes visible
+            List<VersionedValue<String,String>> versions = new ArrayList<>(changes.size());
+            for( Entry<String,VersionedValue<String,String>> entry : changes.entrySet()){
+
+                VersionedValue<String,String> current = heads.get(entry.getKey());
+                if(entry.getValue() == null){
+                    if(current != null && !current.isDeleted()) {
+                        versions.add(VersionedValue.builderFor(entry.getKey())
+                                .atTime(transactionCommitTime)
+                                .replacing(current)
+                                .asDeletion()
+                                .build());
+                    }
+                }else{
+                    //creating a new value that captures the commit time for this object, and storing that
+                    versions.add(entry.getValue().cloneOnTopOf(current, transactionCommitTime));
+                }
+            }
+
+            long ticket = log(LogRecord.transaction(transactionCommitTime, versions));
+
+            installAll(versions, snapshots.oldest());
+            for(VersionedValue<String,String> version : versions){
+                notifyIntents(version, committer);
+            }
+            return ticket;
+        }finally {
+            pendingKeys.removeAll(reserved);
+        }
+    }
+
+    /**
+     * Queues a record to the write ahead log and publishes it to the subscribers of the changes,
+     * to be called holding the locks of the keys it writes
+     *
+     * @param record
+     * @return the ticket to wait for, 0 when there is no log
+     */
+    private long log(LogRecord record){
+        long ticket = 0;
+        if(wal != null){
+            try{
+                ticket = wal.append(record);
+            }catch (UncheckedIOException e){
+                LOG.error("Could not append version [" + record.getVersion() + "] to the write ahead log", e);
+                //the version is never going to be applied, the events after it must not wait for it
+                changeFeed.skip(record.getVersion());
+                throw new BreezeActionException(ErrorCode.PERSISTENCE_FAILURE, "The write could not be recorded, it has not been applied.");
+            }
+        }
+        changeFeed.publish(record.getVersion(), record.getChanges());
+        return ticket;
+    }
+
+    /**
+     * Waits until the records up to a ticket are durable as the fsync policy promises, to be called without holding any lock
+     *
+     * @param ticket
+     */
+    private void awaitDurable(long ticket){
+        if(wal == null || ticket == 0){
+            return;
+        }
+        try{
+            wal.awaitDurable(ticket);
+        }catch (UncheckedIOException e){
+            LOG.error("Could not persist the write ahead log", e);
+            throw new BreezeActionException(ErrorCode.PERSISTENCE_FAILURE, "The write has been applied but it could not be persisted.");
+        }
+    }
+
+    /**
+     * Reads the version of a key that was the newest at a given time, without locking unless a writer gets in the way
+     *
+     * @param key
+     * @param asOf the time to read as of, {@link Long#MAX_VALUE} for the latest version
+     * @return the visible version, might be a tombstone or null
+     */
+    private VersionedValue<String,String> read(String key, long asOf){
+        StampedLock stripe = locks.forKey(key);
+
+        //versions are immutable, so a single lookup is enough as long as no writer held the stripe while we looked
+        //the engine might hand out anything while a writer is busy with the key, that is thrown away when the stamp does not hold
+        long stamp = stripe.tryOptimisticRead();
+        VersionedValue<String,String> head = head(key);
+        VersionedValue<String,String> visible = head == null ? null : head.asOf(asOf);
+
+        if(!stripe.validate(stamp)){
+            //a write or a commit was running on this stripe, we wait for it so we never see half of a transaction
+            stamp = stripe.readLock();
+            try{
+                head = head(key);
+                visible = head == null ? null : head.asOf(asOf);
+            }finally {
+                stripe.unlockRead(stamp);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Reads the versions of many keys that were the newest at a given time, all of them as of the same moment.
+     * Goes optimistic on every stripe involved first and only takes their read locks when a writer got in the way.
+     *
+     * @param keys
+     * @param asOf the time to read as of, {@link Long#MAX_VALUE} for the latest versions
+     * @return the visible versions by their keys in the order of the keys, might be tombstones or null
+     */
+    private Map<String,VersionedValue<String,String>> readAll(Collection<String> keys, long asOf){
+        Map<String,VersionedValue<String,String>> visible = new LinkedHashMap<>();
+        List<StampedLock> stripes = locks.stripesFor(keys);
+
+        long[] stamps = new long[stripes.size()];
+        for(int i = 0; i < stamps.length; i++){
+            stamps[i] = stripes.get(i).tryOptimisticRead();
+        }
+        for(String key : keys){
+            VersionedValue<String,String> head = head(key);
+            visible.put(key, head == null ? null : head.asOf(asOf));
+        }
+
+        boolean valid = true;
+        for(int i = 0; i < stamps.length && valid; i++){
+            valid = stripes.get(i).validate(stamps[i]);
+        }
+        if(!valid){
+            //some writer was busy with one of the keys, holding every stripe at once keeps the batch consistent
+            List<Lock> readLocks = locks.lockAllForRead(keys);
+            try{
+                visible.clear();
+                for(String key : keys){
+                    VersionedValue<String,String> head = head(key);
+                    visible.put(key, head == null ? null : head.asOf(asOf));
+                }
+            }finally {
+                locks.unlockAll(readLocks);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Walks the key index from the start of a page and reads each key as of a given time, until the page is full or the range is over
+     *
+     * @param from the first key of the range, null for no lower bound
+     * @param to the key the range ends before, null for no upper bound
+     * @param prefix the start every key has to have, null for any
+     * @param cursor the last key of the previous page, null for the first page
+     * @param limit
+     * @param asOf the time to read the keys as of, protected by an open snapshot
+     * @param ownChanges the changes of the transaction scanning, they win over the store and may add keys it does not have
+     * @return
+     */
+    private ScanPageDTO<String,String> scan(String from, String to, String prefix, String cursor, int limit, long asOf,
+                                            Map<String,VersionedValue<String,String>> ownChanges){
+        //the page starts at the tightest of the lower bounds, right after the cursor if that is the one
+        String lower = from;
+        boolean inclusive = true;
+        if(prefix != null && (lower == null || prefix.compareTo(lower) > 0)){
+            lower = prefix;
+        }
+        if(cursor != null && (lower == null || cursor.compareTo(lower) >= 0)){
+            lower = cursor;
+            inclusive = false;
+        }
+
+        NavigableSet<String> ownKeys = new TreeSet<>(ownChanges.keySet());
+        Iterator<String> stored = keys(lower, inclusive);
+        Iterator<String> own = (lower == null ? ownKeys : ownKeys.tailSet(lower, inclusive)).iterator();
+        String nextStored = stored.hasNext() ? stored.next() : null;
+        String nextOwn = own.hasNext() ? own.next() : null;
+
+        long now = System.currentTimeMillis();
+        List<ValueDTO<String,String>> entries = new ArrayList<>(Math.min(limit, 256));
+        String last = null;
+        while(entries.size() < limit && (nextStored != null || nextOwn != null)){
+            //merging the keys of the store with the ones of the transaction, both come in order
+            String key;
+            int order = nextStored == null ? 1 : nextOwn == null ? -1 : nextStored.compareTo(nextOwn);
+            if(order <= 0){
+                key = nextStored;
+                nextStored = stored.hasNext() ? stored.next() : null;
+                if(order == 0){
+                    nextOwn = own.hasNext() ? own.next() : null;
+                }
+            }else{
+                key = nextOwn;
+                nextOwn = own.hasNext() ? own.next() : null;
+            }
+            if((to != null && key.compareTo(to) >= 0) || (prefix != null && !key.startsWith(prefix))){
+                break;
+            }
+
+            //keys deleted, expired or written after the snapshot are in the index too, they are simply not listed
+            VersionedValue<String,String> visible = ownChanges.containsKey(key) ? ownChanges.get(key) : read(key, asOf);
+            if(visible != null && !visible.isDeleted() && !visible.isExpired(now)){
+                entries.add(new ValueDTO<>(key, visible.getValue()));
+                last = key;
+            }
+        }
+        LOG.debug("Returning [{}] entries of a scan as of [{}]", entries.size(), asOf);
+        return new ScanPageDTO<>(entries, entries.size() == limit ? last : null);
+    }
+
+    /**
+     * Refuses pages that are empty or too big to be built in one go
+     *
+     * @param limit
+     * @throws BreezeActionException
+     */
+    private static void checkScanLimit(int limit) throws BreezeActionException {
+        if(limit <= 0 || limit > MAX_SCAN_LIMIT){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "A page of a scan has to have between 1 and [" + MAX_SCAN_LIMIT + "] entries, got [" + limit + "].");
+        }
+    }
+
+    /**
+     * The value a reader sees for a version, tombstones, expired values and missing keys all read as null
+     *
+     * @param version
+     * @return
+     */
+    private static String valueOf(VersionedValue<String,String> version){
+        return isVisible(version) ? version.getValue() : null;
+    }
+
+    /**
+     * Tells if a reader sees a version as an existing value, rather than a tombstone, an expired value or a missing key
+     *
+     * @param version
+     * @return
+     */
+    private static boolean isVisible(VersionedValue<String,String> version){
+        return version != null && !version.isDeleted() && !version.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Turns a time to live into the time the value expires at
+     *
+     * @param ttlMillis
+     * @return see {@link System#currentTimeMillis()}
+     * @throws BreezeActionException when the time to live is not positive
+     */
+    private static long expiryOf(long ttlMillis) throws BreezeActionException {
+        if(ttlMillis <= 0){
+            throw new BreezeActionException(ErrorCode.INVALID_REQUEST, "The time to live has to be positive, got [" + ttlMillis + "] millis.");
+        }
+        long now = System.currentTimeMillis();
+        //a time to live this long is as good as forever, but it must not overflow into the past
+        return ttlMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+    }
+
+    /**
+     * Lazily reclaims the key of a newest version a reader found expired, unless an open transaction might still need it
+     *
+     * @param current the newest version of the key
+     */
+    private void reclaimIfExpired(VersionedValue<String,String> current){
+        if(current != null && current.isExpired(System.currentTimeMillis()) && !current.hasChangedSince(snapshots.oldest())){
+            reclaim(current.getKey());
+        }
+    }
+
+    /**
+     * Drops a key from the store if its newest version expired, called by the readers and the sweep.
+     * Must be called without holding any stripe lock.
+     *
+     * @param key
+     */
+    private void reclaim(String key){
+        StampedLock stripe = locks.forKey(key);
+        long stamp = stripe.writeLock();
+        try{
+            VersionedValue<String,String> current = head(key);
+            if(current != null && current.isExpired(System.currentTimeMillis()) && settle(current, snapshots.oldest())){
+                expiredKeys.incrementAndGet();
+            }
+        }finally {
+            stripe.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Lets the sweep know when a version is going to expire
+     *
+     * @param version
+     */
+    private void scheduleExpiry(VersionedValue<String,String> version){
+        if(expirySweeper != null && version.getExpiresAt() != 0){
+            expirySweeper.schedule(version.getKey(), version.getExpiresAt());
+        }
+    }
+
+    /**
+     * Makes a version the newest one of its key, dropping the older versions no open transaction can see anymore.
+     * Must only be called holding the write lock of the key's stripe.
+     *
+     * @param version
+     * @param oldestSnapshot the time of the oldest open transaction, see {@link SnapshotRegistry#oldest()}
+     */
+    private void install(VersionedValue<String,String> version, long oldestSnapshot){
+        installAll(Collections.singletonList(version), oldestSnapshot);
+    }
+
+    /**
+     * Makes the versions of one write the newest ones of their keys, handing them to the engine in one go.
+     * Must only be called holding the write lock of every stripe they touch.
+     *
+     * @param versions of distinct keys
+     * @param oldestSnapshot the time of the oldest open transaction, see {@link SnapshotRegistry#oldest()}
+     */
+    private void installAll(Collection<VersionedValue<String,String>> versions, long oldestSnapshot){
+        Map<String,VersionedValue<String,String>> changes = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for(VersionedValue<String,String> version : versions){
+            String key = version.getKey();
+            version.trimBefore(oldestSnapshot);
+
+            //an expired value reads as missing for everyone, just like a tombstone
+            boolean gone = version.isDeleted() || version.isExpired(now);
+            if(gone && !version.hasChangedSince(oldestSnapshot)){
+                //every reader sees the deletion already, the key can go away for good
+                changes.put(key, null);
+                history.remove(key);
+                continue;
+            }
+
+            //a tombstone some reader does not see yet leaves the value it removed in the engine until the key goes for good
+            if(!version.isDeleted()){
+                changes.put(key, version);
+            }
+            if(version.getPrevious() != null || gone){
+                history.put(key, version);
+                keysToVacuum.add(key);
+            }else{
+                history.remove(key);
+            }
+            if(!gone){
+                scheduleExpiry(version);
+            }
+        }
+        if(!changes.isEmpty()){
+            engine.apply(changes);
+        }
+    }
+
+    /**
+     * Drops the versions of a key no open transaction can see anymore, and the key itself once its newest version
+     * is a deletion or an expired value every reader sees. Must only be called holding the write lock of the key's stripe.
+     *
+     * @param head the newest version of the key
+     * @param oldestSnapshot the time of the oldest open transaction, see {@link SnapshotRegistry#oldest()}
+     * @return true if the key went away for good
+     */
+    private boolean settle(VersionedValue<String,String> head, long oldestSnapshot){
+        String key = head.getKey();
+        head.trimBefore(oldestSnapshot);
+        boolean gone = head.isDeleted() || head.isExpired(System.currentTimeMillis());
+        if(gone && !head.hasChangedSince(oldestSnapshot)){
+            engine.delete(key);
+            history.remove(key);
+            return true;
+        }
+        if(head.getPrevious() == null && !gone){
+            //nothing but the value the engine holds anyway
+            history.remove(key);
+        }else{
+            keysToVacuum.add(key);
+        }
+        return false;
+    }
+
+    /**
+     * The newest version of a key, the one linking to its older versions if there are any kept.
+     * To be called holding the stripe of the key, or validating the read against it.
+     *
+     * @param key
+     * @return the version, might be a tombstone or null
+     */
+    private VersionedValue<String,String> head(String key){
+        VersionedValue<String,String> head = history.get(key);
+        return head != null ? head : engine.get(key);
+    }
+
+    /**
+     * Registers a key about to be written as pending if the engine does not hold it yet, before its version draws its number.
+     * To be called holding the stripe of the key.
+     *
+     * @param key
+     * @param current the newest version of the key, null if it has none
+     * @return true if it got registered, it has to be taken out again once the engine holds the key (or the write failed)
+     */
+    private boolean reserve(String key, VersionedValue<String,String> current){
+        return current == null && pendingKeys.add(key);
+    }
+
+    /**
+     * Registers every key of a batch the engine does not hold yet as pending, see {@link #reserve(String, VersionedValue)}
+     *
+     * @param current the newest version of every key written, null for the ones it has none of
+     * @param reserved collects the keys registered
+     */
+    private void reserveAll(Map<String,VersionedValue<String,String>> current, List<String> reserved){
+        for(Entry<String,VersionedValue<String,String>> head : current.entrySet()){
+            if(reserve(head.getKey(), head.getValue())){
+                reserved.add(head.getKey());
+            }
+        }
+    }
+
+    /**
+     * Walks the keys of the store in their order, the pending ones included
+     *
+     * @param from the key to start at, null to start at the first one
+     * @param inclusive whether the walk starts with <code>from</code> itself or right after it
+     * @return
+     */
+    private Iterator<String> keys(String from, boolean inclusive){
+        //the pending keys are copied before the engine walk starts, a key leaving them after the copy is in the engine by then
+        List<String> pending = new ArrayList<>(from == null ? pendingKeys : pendingKeys.tailSet(from, inclusive));
+        Iterator<String> stored = engine.keys(from, inclusive);
+        return pending.isEmpty() ? stored : new MergedKeys(Arrays.asList(pending.iterator(), stored));
+    }
+
+    /**
+     * The error raised for operations on a transaction that is not (or no longer) open
+     *
+     * @param transactionId
+     * @return
+     */
+    private static BreezeActionException unknownTransaction(String transactionId){
+        return new BreezeActionException(ErrorCode.UNKNOWN_TRANSACTION,
+                "There is no transaction with the id of [" + transactionId + "], hence no way to work with it.");
+    }
+
+    /**
+     * Lets go of the snapshot of a concluded transaction, safe to be called more than once
+     *
+     * @param transaction
+     */
+    private void release(TransactionContext<String,String> transaction){
+        if(transaction.close()){
+            snapshots.close(transaction.getTimestamp());
+        }
+    }
+
+    /**
+     * Drops the old versions and tombstones that were kept for transactions that are gone by now.
+     * Must be called without holding any stripe lock.
+     */
+    private void vacuum(){
+        if(keysToVacuum.isEmpty()){
+            return;
+        }
+
+        //taking the keys out first, the ones still needed by an open transaction get registered again while we go
+        List<String> keys = new ArrayList<>();
+        for(Iterator<String> pending = keysToVacuum.iterator(); pending.hasNext(); ){
+            keys.add(pending.next());
+            pending.remove();
+        }
+
+        long oldestSnapshot = snapshots.oldest();
+        for(String key : keys){
+            StampedLock stripe = locks.forKey(key);
+            long stamp = stripe.writeLock();
+            try{
+                VersionedValue<String,String> current = head(key);
+                if(current != null){
+                    settle(current, oldestSnapshot);
+                }
+            }finally {
+                stripe.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Convenience method to better read the commit logic's decision making
+     *
+     * @param key
+     * @param version
+     * @return
+     */
+    private boolean hasChangedSince(String key,long version){
+        VersionedValue<String,String> current = head(key);
+        LOG.debug("Checking if the start version [{}] is lesser than the last modified version of [{}], which is [{}]", version, key, current == null ? null : current.getTimestamp());
+        return current != null && current.hasChangedSince(version);
+    }
+
+    /**
+     * The store as the replication sees it
+     */
+    private final class Replica implements ReplicatedStore {
+
+        @Override
+        public long publishedVersion(){
+            return changeFeed.published();
+        }
+
+        @Override
+        public ChangeSubscription<String,String> subscribe(long after) throws BreezeActionException {
+            return changeFeed.subscribe(null, after);
+        }
+
+        @Override
+        public long snapshot(LongConsumer started, Consumer<VersionedValue<String,String>> consumer){
+            return snapshotForReplica(started, consumer);
+        }
+
+        @Override
+        public void apply(long version, List<ChangeDTO<String,String>> changes){
+            applyReplicated(version, changes);
+        }
+
+        @Override
+        public long load(Path snapshot) throws IOException {
+            return loadReplica(snapshot);
         }
-        return store.containsKey(key) && store.get(key).hasChangedSince(timeMillies);
     }
 }
@@ -0,0 +1,342 @@
+package io.maverick.database.breeze.service.impl;
+
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.service.ChangeSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes every write of the store, as one event per version, to the subscribers of its changes.
+ *
+ * Writes on different stripes draw their versions and publish them concurrently, so they might arrive out of order:
+ * an event is held back until every version before it got published (or skipped, for a write that failed), and the
+ * subscribers always see the sequence numbers grow. The latest events are kept in a history bounded by the number of
+ * changes in them, a subscriber can resume after any sequence still in it. Without a history and without subscribers
+ * the events are not even built, a write only takes its place in the order of the versions.
+ *
+ * Publishing never waits for a subscriber. Every subscription buffers its events in a bounded ring buffer of its own,
+ * and one that fills up is cut off instead of making the writers wait for it.
+ */
+final class ChangeFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+
+    private final int bufferSize;
+    private final int historySize;
+    private final int maxSubscriptions;
+
+    // The last sequence handed to the subscribers, every one up to it is either published or skipped
+    private long published;
+
+    // Events that arrived before one of the versions in front of them, by their sequence
+    private final Map<Long,ChangeEventDTO<String,String>> pending = new HashMap<>();
+
+    // The latest events, the oldest first, and the number of changes they hold together
+    private final Deque<ChangeEventDTO<String,String>> history = new ArrayDeque<>();
+    private int historyChanges;
+
+    // The events up to this sequence are not in the history anymore, a subscription can only resume after it
+    private long horizon;
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+
+    // Whether anybody can see the events, read by the writers before taking the lock
+    private volatile boolean listened;
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param published the version the store is at, the first event published has to be the one after it
+     * @param bufferSize the number of events a subscription can hold for its subscriber
+     * @param historySize the number of changes kept for resuming subscriptions
+     * @param maxSubscriptions the number of subscriptions that can be open at once
+     */
+    ChangeFeed(long published, int bufferSize, int historySize, int maxSubscriptions) {
+        this.published = published;
+        this.horizon = published;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.historySize = Math.max(0, historySize);
+        this.maxSubscriptions = maxSubscriptions;
+        this.listened = this.historySize > 0;
+    }
+
+    /**
+     * Publishes the changes of a write, to be called holding the locks of the keys it writes
+     *
+     * @param version the version the write got
+     * @param changes the new versions of the keys, deletions as tombstones
+     */
+    void publish(long version, List<VersionedValue<String,String>> changes) {
+        //built before taking the lock, and only when somebody can see it
+        ChangeEventDTO<String,String> event = listened ? eventOf(version, changes) : null;
+
+        synchronized (this) {
+            if (event == null) {
+                if (subscriptions.isEmpty()) {
+                    //nothing to resume after it, a subscription opened from now on starts behind it
+                    horizon = Math.max(horizon, version);
+                    event = new ChangeEventDTO<>(version, Collections.<ChangeDTO<String,String>>emptyList());
+                } else {
+                    //subscribed in the meantime
+                    event = eventOf(version, changes);
+                }
+            }
+            if (version != published + 1) {
+                pending.put(version, event);
+                return;
+            }
+            release(event);
+            for (ChangeEventDTO<String,String> next; (next = pending.remove(published + 1)) != null; ) {
+                release(next);
+            }
+        }
+    }
+
+    /**
+     * The event of a write, the versions themselves are not kept so the older ones they link to can go
+     *
+     * @param version
+     * @param changes
+     * @return
+     */
+    private static ChangeEventDTO<String,String> eventOf(long version, List<VersionedValue<String,String>> changes) {
+        List<ChangeDTO<String,String>> shipped = new ArrayList<>(changes.size());
+        for (VersionedValue<String,String> change : changes) {
+            shipped.add(new ChangeDTO<>(change.getKey(), change.getValue(), change.isDeleted(), change.getExpiresAt()));
+        }
+        return new ChangeEventDTO<>(version, shipped);
+    }
+
+    /**
+     * Lets the events after a version go on without it, for a write that drew its version but did not get applied
+     *
+     * @param version
+     */
+    void skip(long version) {
+        publish(version, Collections.<VersionedValue<String,String>>emptyList());
+    }
+
+    /**
+     * Lets the events go on after a version without waiting for the ones before it, for a replica applying the versions of
+     * its leader: the leader's versions that never got applied are not shipped, there is nothing to wait for
+     *
+     * @param version
+     */
+    synchronized void advanceTo(long version) {
+        if (version <= published) {
+            return;
+        }
+        published = version;
+        pending.keySet().removeIf(sequence -> sequence <= version);
+        for (ChangeEventDTO<String,String> next; (next = pending.remove(published + 1)) != null; ) {
+            release(next);
+        }
+    }
+
+    /**
+     * Starts the feed over at a version the store jumped to in one go, like a replica loading the snapshot of its leader.
+     * Nothing before the version can be resumed after anymore, the open subscriptions get cut off.
+     *
+     * @param version
+     */
+    synchronized void resetTo(long version) {
+        pending.clear();
+        history.clear();
+        historyChanges = 0;
+        published = Math.max(published, version);
+        horizon = published;
+        for (Subscription subscription : subscriptions) {
+            subscription.cutOff();
+        }
+    }
+
+    /**
+     * Subscribes to the changes published after a given sequence
+     *
+     * @param prefix only the changes of the keys starting with it are shipped, null for every key
+     * @param after the sequence to resume after, null to only get the changes published from now on
+     * @return
+     * @throws BreezeActionException when the history does not reach back far enough or there are too many subscriptions
+     */
+    synchronized ChangeSubscription<String,String> subscribe(String prefix, Long after) throws BreezeActionException {
+        if (subscriptions.size() >= maxSubscriptions) {
+            throw new BreezeActionException(ErrorCode.TOO_MANY_SUBSCRIPTIONS,
+                    "There are already [" + maxSubscriptions + "] subscriptions to the changes, close some of them before opening a new one.");
+        }
+        //the writes not built for lack of subscribers might still be on their way, a new subscription starts after them
+        long start = after == null ? Math.max(published, horizon) : after;
+        if (start < horizon) {
+            throw new BreezeActionException(ErrorCode.CHANGES_UNAVAILABLE, "The changes after sequence [" + start
+                    + "] are not kept anymore, the oldest one a subscription can resume after is [" + horizon + "].");
+        }
+
+        Subscription subscription = new Subscription(prefix, start);
+        for (ChangeEventDTO<String,String> event : history) {
+            subscription.offer(event);
+        }
+        subscriptions.add(subscription);
+        listened = true;
+        return subscription;
+    }
+
+    /**
+     * The last sequence handed to the subscribers
+     * @return
+     */
+    synchronized long published() {
+        return published;
+    }
+
+    /**
+     * The number of open subscriptions
+     * @return
+     */
+    synchronized int subscriptions() {
+        return subscriptions.size();
+    }
+
+    /**
+     * The number of subscriptions cut off for falling behind
+     * @return
+     */
+    long overflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Hands the next event in line to the subscribers, to be called holding the lock of the feed
+     *
+     * @param event
+     */
+    private void release(ChangeEventDTO<String,String> event) {
+        published = event.getSequence();
+        if (event.getChanges().isEmpty()) {
+            return;
+        }
+
+        if (historySize > 0) {
+            history.addLast(event);
+            historyChanges += event.getChanges().size();
+            while (historyChanges > historySize) {
+                ChangeEventDTO<String,String> oldest = history.removeFirst();
+                historyChanges -= oldest.getChanges().size();
+                horizon = oldest.getSequence();
+            }
+        } else {
+            horizon = event.getSequence();
+        }
+
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * The buffer of a single subscriber
+     */
+    private final class Subscription implements ChangeSubscription<String,String> {
+
+        private final String prefix;
+        private final long start;
+        private final BlockingQueue<ChangeEventDTO<String,String>> buffer = new ArrayBlockingQueue<>(bufferSize);
+
+        // The sequence of the last event that made it into the buffer, the one to resume after once cut off
+        private volatile long buffered;
+        private volatile boolean overflowed;
+
+        private Subscription(String prefix, long start) {
+            this.prefix = prefix;
+            this.start = start;
+            this.buffered = start;
+        }
+
+        /**
+         * Buffers the part of an event the subscriber is interested in, to be called holding the lock of the feed
+         *
+         * @param event
+         */
+        private void offer(ChangeEventDTO<String,String> event) {
+            if (overflowed || event.getSequence() <= start) {
+                return;
+            }
+            ChangeEventDTO<String,String> filtered = filter(event);
+            if (filtered == null) {
+                return;
+            }
+            if (buffer.offer(filtered)) {
+                buffered = filtered.getSequence();
+            } else {
+                overflowed = true;
+                overflows.incrementAndGet();
+                LOG.info("A subscriber of the changes fell more than [" + bufferSize + "] events behind, cutting it off after sequence [" + buffered + "]");
+            }
+        }
+
+        /**
+         * Ends the subscription once the events buffered are taken, to be called holding the lock of the feed
+         */
+        private void cutOff() {
+            if (!overflowed) {
+                overflowed = true;
+                overflows.incrementAndGet();
+            }
+        }
+
+        /**
+         * The event with only the changes of the keys the subscriber is interested in, null if there is none
+         *
+         * @param event
+         * @return
+         */
+        private ChangeEventDTO<String,String> filter(ChangeEventDTO<String,String> event) {
+            if (prefix == null) {
+                return event;
+            }
+            List<ChangeDTO<String,String>> matching = new ArrayList<>();
+            for (ChangeDTO<String,String> change : event.getChanges()) {
+                if (change.getKey().startsWith(prefix)) {
+                    matching.add(change);
+                }
+            }
+            if (matching.isEmpty()) {
+                return null;
+            }
+            return matching.size() == event.getChanges().size() ? event : new ChangeEventDTO<>(event.getSequence(), matching);
+        }
+
+        @Override
+        public ChangeEventDTO<String,String> poll(long timeout, TimeUnit unit) throws BreezeActionException, InterruptedException {
+            //a full buffer is never waited on, once it is empty the subscriber learns where to resume
+            ChangeEventDTO<String,String> event = overflowed ? buffer.poll() : buffer.poll(timeout, unit);
+            if (event == null && overflowed) {
+                throw new BreezeActionException(ErrorCode.SUBSCRIPTION_OVERFLOW, "The subscriber fell more than [" + bufferSize
+                        + "] events behind and got cut off, subscribe again after sequence [" + buffered + "].");
+            }
+            return event;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ChangeFeed.this) {
+                subscriptions.remove(this);
+                listened = historySize > 0 || !subscriptions.isEmpty();
+            }
+        }
+    }
+}
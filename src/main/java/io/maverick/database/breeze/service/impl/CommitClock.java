@@ -0,0 +1,43 @@
+package io.maverick.database.breeze.service.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logical clock every version of the store is stamped with.
+ *
+ * Each write (plain or a whole committed transaction) draws the next number while it holds the locks of the keys it
+ * writes, so the numbers order the writes exactly the way they got applied. A transaction starting at {@link #current()}
+ * therefore sees every write with a number up to that one, and none of the later ones.
+ */
+final class CommitClock {
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Draws the version for a new write, to be called holding the locks of every key the write touches
+     *
+     * @return
+     */
+    long next() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * The version of the latest write handed out so far
+     *
+     * @return
+     */
+    long current() {
+        return sequence.get();
+    }
+
+    /**
+     * Moves the clock forward to at least the given version, so versions restored from somewhere else
+     * (after a restart for example) are never handed out again. Never moves the clock backwards.
+     *
+     * @param version
+     */
+    void advanceTo(long version) {
+        sequence.accumulateAndGet(version, Math::max);
+    }
+}
@@ -0,0 +1,150 @@
+package io.maverick.database.breeze.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reclaims the keys whose values expired, without ever scanning the store.
+ *
+ * Every value with an expiry gets an entry in an index ordered by the time it expires at. A background thread wakes up
+ * periodically and walks the index from its start only as far as the entries already due, stopping early once its time
+ * budget is used up, so a lot of keys expiring together are reclaimed over a few rounds instead of in one long pause.
+ * Entries are never removed when a key gets overwritten, the reclaimer simply finds the key not expired anymore.
+ */
+final class ExpirySweeper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    private final long budgetNanos;
+
+    // Called with every key that is due, checks the key itself and drops it if it did expire
+    private final Consumer<String> reclaimer;
+
+    // The keys by the time they are due at, the earliest first
+    private final ConcurrentSkipListSet<Expiry> index = new ConcurrentSkipListSet<>();
+
+    // The size of the index, kept apart as the set can only count itself by walking it
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong sweepsCutShort = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param intervalMillis how often the due keys are looked for
+     * @param budgetMillis how long one round may take at most, the rest of the due keys wait for the next round
+     * @param reclaimer drops a key if it really expired
+     */
+    ExpirySweeper(long intervalMillis, long budgetMillis, Consumer<String> reclaimer) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, budgetMillis));
+        this.reclaimer = reclaimer;
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breeze-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, intervalMillis);
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notes that a key has to be looked at once a given time has passed
+     *
+     * @param key
+     * @param expiresAt see {@link System#currentTimeMillis()}
+     */
+    void schedule(String key, long expiresAt) {
+        if (index.add(new Expiry(expiresAt, key))) {
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * The number of keys waiting to be looked at
+     * @return
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * The number of rounds that ran out of their budget before getting through every due key
+     * @return
+     */
+    long sweepsCutShort() {
+        return sweepsCutShort.get();
+    }
+
+    /**
+     * Stops the background thread
+     */
+    void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * Reclaims the keys due by now, for as long as the budget allows, run by the background thread
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            long deadline = System.nanoTime() + budgetNanos;
+            for (Iterator<Expiry> due = index.iterator(); due.hasNext(); ) {
+                Expiry expiry = due.next();
+                if (expiry.expiresAt > now) {
+                    return;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    sweepsCutShort.incrementAndGet();
+                    return;
+                }
+                if (index.remove(expiry)) {
+                    pending.decrementAndGet();
+                    reclaimer.accept(expiry.key);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Could not sweep the expired keys", e);
+        }
+    }
+
+    /**
+     * A key waiting in the index, ordered by the time it is due at and then by the key itself
+     */
+    private static final class Expiry implements Comparable<Expiry> {
+
+        private final long expiresAt;
+        private final String key;
+
+        private Expiry(long expiresAt, String key) {
+            this.expiresAt = expiresAt;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            int byTime = Long.compare(expiresAt, other.expiresAt);
+            return byTime != 0 ? byTime : key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Expiry && compareTo((Expiry) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(expiresAt) * 31 + key.hashCode();
+        }
+    }
+}
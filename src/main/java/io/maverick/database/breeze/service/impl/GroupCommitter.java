@@ -0,0 +1,194 @@
+package io.maverick.database.breeze.service.impl;
+
+import io.maverick.database.breeze.exception.BreezeActionException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Collects commits arriving at about the same time and hands them over to the store as one batch,
+ * so they are validated and applied in a single critical section instead of one lock handoff each.
+ *
+ * There is no dedicated thread: whichever committing thread finds no batch in progress becomes the leader,
+ * waits for the configured window (or until the batch is full), applies everything queued so far and wakes up
+ * the other callers, each with its own outcome.
+ *
+ * @param <T> the type of the commits handed to the batch applier
+ */
+final class GroupCommitter<T> {
+
+    // Applies a batch in order, answering with one outcome per commit (null for success)
+    private final Function<List<T>, List<BreezeActionException>> applier;
+
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    private final ConcurrentLinkedQueue<PendingCommit<T>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Held by the thread currently leading a batch
+    private final Lock leader = new ReentrantLock();
+
+    // Figures about the batches achieved so far
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong lastBatch = new AtomicLong();
+
+    /**
+     * @param applier validates and applies a batch of commits in one go
+     * @param windowMicros how long a leader waits for more commits to join its batch
+     * @param maxBatchSize the number of commits that closes a batch before its window is over
+     */
+    GroupCommitter(Function<List<T>, List<BreezeActionException>> applier, long windowMicros, int maxBatchSize) {
+        this.applier = applier;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Commits through the next batch, returning once that batch is applied
+     *
+     * @param commit
+     * @throws BreezeActionException when this particular commit failed
+     */
+    void commit(T commit) throws BreezeActionException {
+        PendingCommit<T> pending = new PendingCommit<>(commit);
+        queue.add(pending);
+        queued.incrementAndGet();
+
+        while (!pending.isDone()) {
+            if (leader.tryLock()) {
+                try {
+                    if (!pending.isDone()) {
+                        lead();
+                    }
+                } finally {
+                    leader.unlock();
+                }
+            } else {
+                //somebody else is leading, our commit is most likely in that batch, if not we try to lead the next one
+                pending.await(Math.max(windowNanos, TimeUnit.MICROSECONDS.toNanos(50)));
+            }
+        }
+
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+    }
+
+    /**
+     * Waits for the window to fill up, then applies one batch
+     */
+    private void lead() {
+        long deadline = System.nanoTime() + windowNanos;
+        while (queued.get() < maxBatchSize && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(Math.min(10_000L, windowNanos));
+        }
+
+        List<PendingCommit<T>> batch = new ArrayList<>(Math.min(queued.get(), maxBatchSize));
+        PendingCommit<T> next;
+        while (batch.size() < maxBatchSize && (next = queue.poll()) != null) {
+            queued.decrementAndGet();
+            batch.add(next);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<T> commitsInBatch = new ArrayList<>(batch.size());
+        for (PendingCommit<T> pending : batch) {
+            commitsInBatch.add(pending.commit);
+        }
+
+        List<BreezeActionException> outcomes;
+        try {
+            outcomes = applier.apply(commitsInBatch);
+        } catch (RuntimeException e) {
+            //nothing of the batch can be trusted to be applied, every caller hears about it
+            for (PendingCommit<T> pending : batch) {
+                pending.complete(e instanceof BreezeActionException ? (BreezeActionException) e : null, e);
+            }
+            throw e;
+        }
+
+        record(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).complete(outcomes.get(i), null);
+        }
+    }
+
+    private void record(int batchSize) {
+        batches.incrementAndGet();
+        commits.addAndGet(batchSize);
+        lastBatch.set(batchSize);
+        largestBatch.accumulateAndGet(batchSize, Math::max);
+    }
+
+    /**
+     * The batch sizes achieved so far
+     *
+     * @return
+     */
+    Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        long batchCount = batches.get();
+        statistics.put("groupCommit.batches", batchCount);
+        statistics.put("groupCommit.commits", commits.get());
+        statistics.put("groupCommit.averageBatchSize", batchCount == 0 ? 0.0 : commits.get() / (double) batchCount);
+        statistics.put("groupCommit.largestBatchSize", largestBatch.get());
+        statistics.put("groupCommit.lastBatchSize", lastBatch.get());
+        return statistics;
+    }
+
+    /**
+     * A commit waiting for its batch, together with its outcome once there is one
+     */
+    private static final class PendingCommit<T> {
+
+        private final T commit;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile BreezeActionException failure;
+        private volatile RuntimeException error;
+
+        private PendingCommit(T commit) {
+            this.commit = commit;
+        }
+
+        private boolean isDone() {
+            if (done.getCount() > 0) {
+                return false;
+            }
+            if (error != null && failure == null) {
+                throw error;
+            }
+            return true;
+        }
+
+        private void await(long nanos) {
+            try {
+                done.await(nanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void complete(BreezeActionException failure, RuntimeException error) {
+            this.failure = failure;
+            this.error = error;
+            done.countDown();
+        }
+    }
+}
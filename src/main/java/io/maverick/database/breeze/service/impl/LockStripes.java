@@ -0,0 +1,155 @@
+package io.maverick.database.breeze.service.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * A fixed set of stamped locks the keyspace is spread across by the hash of the keys.
+ *
+ * Operations on keys that land on different stripes never contend with each other, while multi key operations
+ * (like a commit) can still grab every stripe they touch. Those stripes are always acquired in ascending order,
+ * so two multi key operations can never deadlock on each other.
+ *
+ * Being stamped locks, readers can go optimistic: read without locking and validate the stamp afterwards,
+ * only falling back to the read lock when a writer held the stripe in the meantime.
+ */
+final class LockStripes {
+
+    private final StampedLock[] stripes;
+
+    // The stripe count is a power of two, so picking a stripe is a simple masking of the spread hash
+    private final int mask;
+
+    /**
+     * Creates the stripes, rounding the requested count up to the next power of two
+     *
+     * @param requestedStripes
+     */
+    LockStripes(int requestedStripes) {
+        int count = 1;
+        while (count < Math.max(1, requestedStripes)) {
+            count <<= 1;
+        }
+        this.stripes = new StampedLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new StampedLock();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * The number of stripes actually in use
+     * @return
+     */
+    int size() {
+        return stripes.length;
+    }
+
+    /**
+     * The index of the stripe protecting a given key
+     *
+     * @param key
+     * @return
+     */
+    int indexFor(Object key) {
+        int h = key.hashCode();
+        //spreading the higher bits downwards the same way the hash map does, so similar keys do not pile up
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * The lock guarding a single key
+     *
+     * @param key
+     * @return
+     */
+    StampedLock forKey(Object key) {
+        return stripes[indexFor(key)];
+    }
+
+    /**
+     * The distinct stripes the given keys map to, in ascending stripe order
+     *
+     * @param keys
+     * @return
+     */
+    List<StampedLock> stripesFor(Collection<?> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (Object key : keys) {
+            indexes.add(indexFor(key));
+        }
+
+        List<StampedLock> selected = new ArrayList<>(indexes.size());
+        for (Integer index : indexes) {
+            selected.add(stripes[index]);
+        }
+        return selected;
+    }
+
+    /**
+     * Locks the write side of every stripe the given keys map to, in ascending stripe order
+     *
+     * @param keys
+     * @return the acquired locks in acquisition order, to be handed back to {@link #unlockAll(List)}
+     */
+    List<Lock> lockAllForWrite(Collection<?> keys) {
+        return lockAll(stripesFor(keys), StampedLock::asWriteLock);
+    }
+
+    /**
+     * Locks the read side of every stripe the given keys map to, in ascending stripe order.
+     * No writer of those keys gets in while they are held, so they are all seen as of the same moment.
+     *
+     * @param keys
+     * @return the acquired locks in acquisition order, to be handed back to {@link #unlockAll(List)}
+     */
+    List<Lock> lockAllForRead(Collection<?> keys) {
+        return lockAll(stripesFor(keys), StampedLock::asReadLock);
+    }
+
+    /**
+     * Locks the write side of every single stripe, stopping all writers of the store until {@link #unlockAll(List)}
+     *
+     * @return the acquired locks in acquisition order
+     */
+    List<Lock> lockAllStripesForWrite() {
+        List<Lock> acquired = new ArrayList<>(stripes.length);
+        for (StampedLock stripe : stripes) {
+            Lock writeLock = stripe.asWriteLock();
+            writeLock.lock();
+            acquired.add(writeLock);
+        }
+        return acquired;
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockAllForWrite(Collection)} or {@link #lockAllForRead(Collection)} in reverse order
+     *
+     * @param acquired
+     */
+    void unlockAll(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
+        }
+    }
+
+    private List<Lock> lockAll(List<StampedLock> selected, Function<StampedLock,Lock> side) {
+        List<Lock> acquired = new ArrayList<>(selected.size());
+        try {
+            for (StampedLock stripe : selected) {
+                Lock lock = side.apply(stripe);
+                lock.lock();
+                acquired.add(lock);
+            }
+        } catch (RuntimeException e) {
+            unlockAll(acquired);
+            throw e;
+        }
+        return acquired;
+    }
+}
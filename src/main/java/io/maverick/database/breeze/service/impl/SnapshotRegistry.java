@@ -0,0 +1,79 @@
+package io.maverick.database.breeze.service.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps track of the points in time open readers (transactions for now) are looking at the store from.
+ *
+ * Writers ask for the oldest of them to know which old versions of a key are safe to drop. The bookkeeping is lock free:
+ * registering a snapshot flags itself as pending while it reads the clock, and a writer that sees a pending registration
+ * simply keeps every version for that round instead of waiting for it.
+ */
+final class SnapshotRegistry {
+
+    // Tells us the current time in the same unit the versions of the store are stamped with
+    private final LongSupplier clock;
+
+    // The snapshot times in use, with the number of readers on each of them
+    private final ConcurrentSkipListMap<Long,Integer> snapshots = new ConcurrentSkipListMap<>();
+
+    // The number of registrations that have read the clock but might not be in the map yet
+    private final AtomicInteger pending = new AtomicInteger();
+
+    SnapshotRegistry(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Registers a new reader at the current time
+     *
+     * @return the time the reader should see the store as of
+     */
+    long open() {
+        pending.incrementAndGet();
+        try {
+            long snapshot = clock.getAsLong();
+            snapshots.merge(snapshot, 1, Integer::sum);
+            return snapshot;
+        } finally {
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lets go of a reader registered by {@link #open()}
+     *
+     * @param snapshot
+     */
+    void close(long snapshot) {
+        snapshots.computeIfPresent(snapshot, (time, readers) -> readers > 1 ? readers - 1 : null);
+    }
+
+    /**
+     * The time of the oldest reader that might still walk the version chains.
+     * Versions replaced at or before this time by a newer, still visible one can be dropped.
+     *
+     * @return the oldest snapshot time, the current time when nobody reads, or {@link Long#MIN_VALUE} when it cannot be told
+     */
+    long oldest() {
+        //the order of these reads matters: a registration not seen as pending either is in the map already,
+        //or it will read the clock after us and therefore never needs anything older than "now"
+        long now = clock.getAsLong();
+        if (pending.get() > 0) {
+            return Long.MIN_VALUE;
+        }
+        Map.Entry<Long,Integer> oldest = snapshots.firstEntry();
+        return oldest == null ? now : Math.min(oldest.getKey(), now);
+    }
+
+    /**
+     * The number of distinct snapshot times in use
+     * @return
+     */
+    int size() {
+        return snapshots.size();
+    }
+}
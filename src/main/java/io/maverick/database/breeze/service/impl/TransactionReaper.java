@@ -0,0 +1,176 @@
+package io.maverick.database.breeze.service.impl;
+
+import io.maverick.database.breeze.domain.TransactionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Rolls back the transactions their clients abandoned, using a hashed timing wheel instead of scanning every open transaction.
+ *
+ * Each transaction sits in the bucket of the tick its deadline falls on. A background thread advances the wheel one bucket
+ * per tick and only looks at the transactions in that bucket. Operations on a transaction merely update its activity time,
+ * the wheel is not touched: a transaction found alive at its old deadline is simply put into the bucket of its new one.
+ */
+final class TransactionReaper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionReaper.class);
+
+    // The number of buckets, a power of two; deadlines further away than one turn wait for their turn in their bucket
+    private static final int WHEEL_SIZE = 512;
+
+    private final long idleNanos;
+    private final long absoluteNanos;
+    private final long tickNanos;
+    private final long startedAt = System.nanoTime();
+
+    // Called for every transaction past its deadline, telling if it actually rolled it back
+    private final Predicate<TransactionContext<String,String>> expirer;
+
+    private final List<Queue<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    // The tick processed last (or being processed), only ever advanced by the reaper thread
+    private volatile long currentTick;
+
+    private final AtomicLong expired = new AtomicLong();
+
+    private final ScheduledExecutorService ticker;
+
+    /**
+     * @param idleTimeoutMillis how long a transaction may go without any operation, 0 for forever
+     * @param absoluteTimeoutMillis how long a transaction may stay open at all, 0 for forever
+     * @param tickMillis the precision the timeouts are enforced with
+     * @param expirer rolls back a transaction past its deadline, answering false if somebody concluded it in the meantime
+     */
+    TransactionReaper(long idleTimeoutMillis, long absoluteTimeoutMillis, long tickMillis, Predicate<TransactionContext<String,String>> expirer) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTimeoutMillis));
+        this.absoluteNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, absoluteTimeoutMillis));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.expirer = expirer;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breeze-transaction-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts watching a freshly created transaction
+     *
+     * @param transaction
+     */
+    void track(TransactionContext<String,String> transaction) {
+        schedule(transaction, deadlineOf(transaction));
+    }
+
+    /**
+     * The number of transactions expired so far
+     * @return
+     */
+    long expired() {
+        return expired.get();
+    }
+
+    /**
+     * Stops the background thread, the transactions still tracked are left alone
+     */
+    void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private long deadlineOf(TransactionContext<String,String> transaction) {
+        long deadline = Long.MAX_VALUE;
+        if (idleNanos > 0) {
+            deadline = transaction.getLastActiveAt() + idleNanos;
+        }
+        if (absoluteNanos > 0) {
+            deadline = Math.min(deadline, transaction.getCreatedAt() + absoluteNanos);
+        }
+        return deadline;
+    }
+
+    private void schedule(TransactionContext<String,String> transaction, long deadline) {
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        //rounding up, so a transaction is never looked at before its deadline
+        long tick = Math.max(currentTick + 1, (deadline - startedAt + tickNanos - 1) / tickNanos);
+        wheel.get((int) (tick & (WHEEL_SIZE - 1))).add(new Timeout(transaction, tick));
+    }
+
+    /**
+     * Processes every bucket up to the current time, run by the background thread
+     */
+    private void advance() {
+        try {
+            long now = System.nanoTime();
+            long target = (now - startedAt) / tickNanos;
+            while (currentTick < target) {
+                //moving on first, so whatever gets scheduled while we process goes into a later bucket
+                long tick = currentTick + 1;
+                currentTick = tick;
+                processBucket(tick, now);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Could not reap the expired transactions", e);
+        }
+    }
+
+    private void processBucket(long tick, long now) {
+        Queue<Timeout> bucket = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+        List<Timeout> due = new ArrayList<>();
+        Timeout timeout;
+        while ((timeout = bucket.poll()) != null) {
+            due.add(timeout);
+        }
+
+        for (Timeout candidate : due) {
+            if (candidate.tick > tick) {
+                //one of the later turns of the wheel
+                bucket.add(candidate);
+                continue;
+            }
+            TransactionContext<String,String> transaction = candidate.transaction;
+            if (!transaction.isOpen()) {
+                continue;
+            }
+            long deadline = deadlineOf(transaction);
+            if (deadline <= now) {
+                if (expirer.test(transaction)) {
+                    expired.incrementAndGet();
+                }
+            } else {
+                //it was worked with since it got scheduled, so it moves on to its new deadline
+                schedule(transaction, deadline);
+            }
+        }
+    }
+
+    /**
+     * A transaction waiting in the wheel, together with the tick it is due at
+     */
+    private static final class Timeout {
+
+        private final TransactionContext<String,String> transaction;
+        private final long tick;
+
+        private Timeout(TransactionContext<String,String> transaction, long tick) {
+            this.transaction = transaction;
+            this.tick = tick;
+        }
+    }
+}
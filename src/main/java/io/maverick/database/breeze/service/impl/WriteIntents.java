@@ -0,0 +1,92 @@
+package io.maverick.database.breeze.service.impl;
+
+import io.maverick.database.breeze.domain.TransactionContext;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which open transactions intend to write which keys, so a commit can tell them right away that they lost.
+ *
+ * A transaction announces its intent before it registers the change itself, and checks the key for commits it already
+ * missed right after. A committer installs its versions first and notifies the intents after, still holding the stripes.
+ * Between the two orders every commit either finds the intent or is found by the check, so a doomed transaction is always
+ * marked before it gets to its own commit, and that commit only has to look at the mark instead of every key it writes.
+ */
+final class WriteIntents {
+
+    // The open transactions writing each key
+    private final Map<String,Set<TransactionContext<String,String>>> intents = new ConcurrentHashMap<>();
+
+    // The number of transactions a commit doomed while they were still open
+    private final AtomicLong conflictsDetected = new AtomicLong();
+
+    /**
+     * Announces that a transaction is about to write a key
+     *
+     * @param key
+     * @param transaction
+     */
+    void announce(String key, TransactionContext<String,String> transaction) {
+        intents.compute(key, (intended, writers) -> {
+            Set<TransactionContext<String,String>> updated = writers != null ? writers : ConcurrentHashMap.newKeySet();
+            updated.add(transaction);
+            return updated;
+        });
+    }
+
+    /**
+     * Withdraws the intents of a transaction that concluded (or never got to write the keys)
+     *
+     * @param keys
+     * @param transaction
+     */
+    void withdraw(Collection<String> keys, TransactionContext<String,String> transaction) {
+        for (String key : keys) {
+            intents.computeIfPresent(key, (intended, writers) -> {
+                writers.remove(transaction);
+                return writers.isEmpty() ? null : writers;
+            });
+        }
+    }
+
+    /**
+     * Dooms every open transaction writing a key that just got a new version.
+     * To be called after the version got installed, holding the write lock of the key's stripe.
+     *
+     * @param key
+     * @param version the version the commit got
+     * @param committer the transaction the version belongs to, null for a plain write
+     */
+    void committed(String key, long version, TransactionContext<String,String> committer) {
+        Set<TransactionContext<String,String>> writers = intents.get(key);
+        if (writers == null) {
+            return;
+        }
+        for (TransactionContext<String,String> writer : writers) {
+            //a transaction that started after the version got drawn sees it in its snapshot, that is no conflict
+            if (writer != committer && version > writer.getTimestamp() && writer.markConflicting(key)) {
+                conflictsDetected.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The number of keys some open transaction intends to write
+     * @return
+     */
+    int size() {
+        return intents.size();
+    }
+
+    /**
+     * The number of transactions doomed by a commit while they were still open
+     * @return
+     */
+    long conflictsDetected() {
+        return conflictsDetected.get();
+    }
+}
@@ -0,0 +1,72 @@
+package io.maverick.database.breeze.storage;
+
+/**
+ * Tells for sure that a key is not in a set, so a lookup can skip a table without reading any of it.
+ * A key it says might be there is there with a false positive rate that falls with the bits given to every key,
+ * about 1% at 10 bits.
+ */
+final class BloomFilter {
+
+    private final long[] bits;
+
+    private final int hashes;
+
+    /**
+     * @param keys the number of keys the filter is built for
+     * @param bitsPerKey
+     */
+    BloomFilter(long keys, int bitsPerKey) {
+        long size = Math.max(64, keys * Math.max(1, bitsPerKey));
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (size + 63) / 64)];
+        //ln 2 times the bits per key gives the fewest false positives
+        this.hashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((first + i * second) & 0x7fffffffL) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((first + i * second) & 0x7fffffffL) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The heap the filter takes
+     *
+     * @return
+     */
+    long sizeInBytes() {
+        return bits.length * 8L;
+    }
+
+    // 64 bit FNV-1a over the characters, its two halves are the two hashes every probe is derived from
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        //FNV leaves the high bits of short keys poorly mixed
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
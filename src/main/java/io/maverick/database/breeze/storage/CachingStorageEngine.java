@@ -0,0 +1,390 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the versions looked up most in memory in front of an engine holding its data in files, within a budget of bytes.
+ *
+ * The policy is W-TinyLFU: a key looked up for the first time gets into a small window of the most recent keys. When it falls
+ * out of the window it only stays if it was looked up more often lately than the key the main part would drop for it,
+ * going by a {@link FrequencySketch} of every lookup, hit or miss. A walk over all the keys, like a scan or an export,
+ * only ever churns the window: keys read once lose against the hot ones every time.
+ * The main part is a segmented LRU, the keys hit again while in it move from its probation segment into its protected one.
+ *
+ * A hit does not wait for the lock of the policy, it only records the access if nobody else holds it.
+ * Writes go through to the engine first, then replace the cached version of the key if there is one, and never admit
+ * a key on their own. A lookup missing the cache only admits what it read if no write of the key got in meanwhile.
+ */
+public final class CachingStorageEngine implements StorageEngine {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // The heap a cached version takes besides its characters: the node, the version, the strings and the map entry
+    private static final int OVERHEAD = 160;
+
+    // The writes are told apart by the stripe of their key, the lookups of other keys in the stripe only lose their admission
+    private static final int GENERATIONS = 4096;
+
+    private final StorageEngine delegate;
+
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+
+    private final Map<String,Node> nodes = new ConcurrentHashMap<>();
+
+    //Bumped by every write under the lock, so a lookup knows whether what it read might be stale already
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    //Guards the queues, the sketch and the byte counts
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final FrequencySketch sketch;
+
+    //Every queue runs from its least recently used node at the head to its most recently used one at the tail
+    private final Node[] heads = new Node[3];
+    private final Node[] tails = new Node[3];
+    private final long[] queueBytes = new long[3];
+
+    private volatile long residentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param delegate the engine holding the data
+     * @param maxBytes the heap the cached versions may take
+     */
+    public CachingStorageEngine(StorageEngine delegate, long maxBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.protectedMaxBytes = (maxBytes - windowMaxBytes) * 4 / 5;
+        this.sketch = new FrequencySketch(maxBytes / 256);
+    }
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            hits.increment();
+            if (lock.tryLock()) {
+                try {
+                    sketch.increment(key);
+                    if (node.queue >= 0) {
+                        touch(node);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return node.value;
+        }
+
+        misses.increment();
+        int generation = generationOf(key);
+        long seen = generations.get(generation);
+        VersionedValue<String,String> value = delegate.get(key);
+        lock.lock();
+        try {
+            sketch.increment(key);
+            if (value != null && generations.get(generation) == seen && !nodes.containsKey(key)) {
+                admit(new Node(key, value));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return value;
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        delegate.put(version);
+        lock.lock();
+        try {
+            invalidate(version.getKey(), version);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        delegate.delete(key);
+        lock.lock();
+        try {
+            invalidate(key, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        delegate.apply(changes);
+        lock.lock();
+        try {
+            for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+                invalidate(change.getKey(), change.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        return delegate.keys(from, inclusive);
+    }
+
+    @Override
+    public long size() {
+        return delegate.size();
+    }
+
+    @Override
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>(delegate.statistics());
+        long hit = hits.sum();
+        long lookups = hit + misses.sum();
+        statistics.put("storage.cache.maxBytes", maxBytes);
+        statistics.put("storage.cache.residentBytes", residentBytes);
+        statistics.put("storage.cache.entries", (long) nodes.size());
+        statistics.put("storage.cache.hits", hit);
+        statistics.put("storage.cache.misses", lookups - hit);
+        statistics.put("storage.cache.hitRate", lookups == 0 ? 0.0 : Math.round(hit * 1000.0 / lookups) / 1000.0);
+        statistics.put("storage.cache.evictions", evictions.sum());
+        statistics.put("storage.cache.rejections", rejections.sum());
+        statistics.put("storage.cache.invalidations", invalidations.sum());
+        return statistics;
+    }
+
+    @Override
+    public long recoveredVersion() {
+        return delegate.recoveredVersion();
+    }
+
+    @Override
+    public void sync(long version) {
+        delegate.sync(version);
+    }
+
+    @Override
+    public void clear() {
+        delegate.clear();
+        lock.lock();
+        try {
+            for (int generation = 0; generation < GENERATIONS; generation++) {
+                generations.incrementAndGet(generation);
+            }
+            for (Node node : nodes.values()) {
+                node.queue = -1;
+            }
+            nodes.clear();
+            for (int queue = WINDOW; queue <= PROTECTED; queue++) {
+                heads[queue] = tails[queue] = null;
+                queueBytes[queue] = 0;
+            }
+            residentBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    /**
+     * Brings the cached version of a key in line with a write. Must only be called holding the lock.
+     *
+     * @param key
+     * @param version the new version, null if the key is gone
+     */
+    private void invalidate(String key, VersionedValue<String,String> version) {
+        generations.incrementAndGet(generationOf(key));
+        Node node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        invalidations.increment();
+        if (version == null) {
+            remove(node);
+            return;
+        }
+        //the node keeps its place, only its weight changes with the value
+        int weight = weightOf(key, version);
+        queueBytes[node.queue] += weight - node.weight;
+        residentBytes += weight - node.weight;
+        node.weight = weight;
+        node.value = version;
+        evict();
+    }
+
+    /**
+     * Puts a node into the window, making room for it. Must only be called holding the lock.
+     *
+     * @param node
+     */
+    private void admit(Node node) {
+        if (node.weight > maxBytes / 2) {
+            //a single version taking half of the cache would push out everything for itself
+            rejections.increment();
+            return;
+        }
+        nodes.put(node.key, node);
+        append(node, WINDOW);
+        residentBytes += node.weight;
+        evict();
+    }
+
+    /**
+     * Moves the nodes falling out of the window into the probation segment, then drops from the main part until the cache
+     * fits into its budget again: out of the oldest key coming from the window and the least recently used key of the
+     * probation segment, the one looked up less often lately goes.
+     */
+    private void evict() {
+        Node candidate = null;
+        while (queueBytes[WINDOW] > windowMaxBytes && heads[WINDOW] != null) {
+            Node moved = heads[WINDOW];
+            unlink(moved);
+            append(moved, PROBATION);
+            if (candidate == null) {
+                candidate = moved;
+            }
+        }
+        while (residentBytes > maxBytes) {
+            Node victim = heads[PROBATION];
+            if (victim == null) {
+                victim = heads[PROTECTED] != null ? heads[PROTECTED] : heads[WINDOW];
+                evict(victim);
+                continue;
+            }
+            if (candidate == victim) {
+                //nothing older left in probation to weigh the newcomers against
+                candidate = candidate.next;
+                evict(victim);
+                continue;
+            }
+            if (candidate == null || candidate.queue != PROBATION) {
+                evict(victim);
+                continue;
+            }
+            //the frequency decides, a tie goes against the newcomer as most keys are never looked up again
+            Node next = candidate.next;
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                rejections.increment();
+                candidate = next;
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        remove(node);
+        evictions.increment();
+    }
+
+    private void remove(Node node) {
+        nodes.remove(node.key);
+        unlink(node);
+        residentBytes -= node.weight;
+        node.queue = -1;
+    }
+
+    // A node hit again moves to the tail of its queue, or out of probation into the protected segment
+    private void touch(Node node) {
+        int queue = node.queue;
+        unlink(node);
+        if (queue == PROBATION) {
+            append(node, PROTECTED);
+            //the protected segment hands its least recently used nodes back to probation when it gets too big
+            while (queueBytes[PROTECTED] > protectedMaxBytes && heads[PROTECTED] != node) {
+                Node demoted = heads[PROTECTED];
+                unlink(demoted);
+                append(demoted, PROBATION);
+            }
+        } else {
+            append(node, queue);
+        }
+    }
+
+    private void append(Node node, int queue) {
+        node.queue = queue;
+        node.previous = tails[queue];
+        node.next = null;
+        if (tails[queue] != null) {
+            tails[queue].next = node;
+        } else {
+            heads[queue] = node;
+        }
+        tails[queue] = node;
+        queueBytes[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        int queue = node.queue;
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else {
+            heads[queue] = node.next;
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        } else {
+            tails[queue] = node.previous;
+        }
+        node.previous = node.next = null;
+        queueBytes[queue] -= node.weight;
+    }
+
+    private static int generationOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (GENERATIONS - 1);
+    }
+
+    private static int weightOf(String key, VersionedValue<String,String> version) {
+        return OVERHEAD + 2 * key.length() + (version.getValue() == null ? 0 : 2 * version.getValue().length());
+    }
+
+    /**
+     * A cached version, in one of the three queues
+     */
+    private static final class Node {
+
+        private final String key;
+
+        private volatile VersionedValue<String,String> value;
+
+        private int weight;
+
+        //WINDOW, PROBATION or PROTECTED, -1 once dropped
+        private int queue;
+
+        private Node previous;
+        private Node next;
+
+        private Node(String key, VersionedValue<String,String> value) {
+            this.key = key;
+            this.value = value;
+            this.weight = weightOf(key, value);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.maverick.database.breeze.storage;
+
+/**
+ * Estimates how often every key was looked up lately, in a count-min sketch of 4 bit counters. Once the sample seen reaches
+ * ten times the keys it is sized for every counter is halved, so keys popular a while ago fade out for the ones popular now.
+ *
+ * Not thread safe, the cache only touches it holding its lock.
+ */
+final class FrequencySketch {
+
+    private static final long ODD_NIBBLES = 0x7777777777777777L;
+
+    private static final int[] SEEDS = {0x97cb3127, 0xb2e1f6f1, 0x6f1b4d93, 0x3c6ef372};
+
+    // 16 counters of 4 bits in every long
+    private final long[] table;
+
+    private final int sampleSize;
+
+    private int samples;
+
+    /**
+     * @param keys the number of keys the estimates have to tell apart
+     */
+    FrequencySketch(long keys) {
+        int size = (int) Math.min(1 << 24, Long.highestOneBit(Math.max(64, keys) * 2 - 1));
+        this.table = new long[size];
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Counts a lookup of a key
+     *
+     * @param key
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i), counterOf(hash, i));
+        }
+        if (added && ++samples >= sampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * The lookups of a key counted lately, at most 15
+     *
+     * @param key
+     * @return
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int shift = counterOf(hash, i) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> shift) & 0xfL));
+        }
+        return frequency;
+    }
+
+    long sizeInBytes() {
+        return table.length * 8L;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counter << 2;
+        long mask = 0xfL << shift;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    private void halve() {
+        samples /= 2;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & ODD_NIBBLES;
+        }
+    }
+
+    private int indexOf(int hash, int seed) {
+        long mixed = (hash + (long) SEEDS[seed]) * SEEDS[seed];
+        mixed += mixed >>> 32;
+        return (int) mixed & (table.length - 1);
+    }
+
+    // Every hash picks one of the 16 counters of its long from a different pair of bits
+    private static int counterOf(int hash, int seed) {
+        return ((hash >>> (seed << 3)) & 3) << 2 | seed;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
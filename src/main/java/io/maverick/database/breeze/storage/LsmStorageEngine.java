@@ -0,0 +1,700 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A log structured merge tree, for stores with more keys than the heap can hold.
+ *
+ * The writes go into a sorted memtable on the heap. Once it reaches its size it is frozen and a background thread writes it
+ * into an immutable {@link SSTable} file, with one sequential pass. A lookup reads the memtables first, then the tables from the
+ * newest to the oldest, the Bloom filter of a table telling which ones can be skipped. Another background thread merges the tables
+ * of a tier into one table of the next tier once there are enough of them, keeping the number of tables a lookup might
+ * have to read small. A deletion is a tombstone hiding the older versions, it only goes away once merged into the oldest table.
+ *
+ * The tables are a working space, not a record: the store is made durable by its write ahead log and snapshots, which are replayed
+ * into an empty engine on startup. The files left over by a previous run are deleted when the engine starts.
+ */
+public final class LsmStorageEngine implements StorageEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LsmStorageEngine.class);
+
+    private static final String PREFIX = "table-";
+    private static final String SUFFIX = ".sst";
+
+    // Writers wait once this many frozen memtables are waiting to be written
+    private static final int MAX_FROZEN_MEMTABLES = 2;
+
+    // The number of keys a walk takes from the tables at once, in between it holds nothing
+    private static final int WALK_PAGE_SIZE = 256;
+
+    // How long a failed flush waits before it is tried again
+    private static final long FLUSH_RETRY_MILLIS = 1000;
+
+    private final Path directory;
+
+    private final long memtableSize;
+    private final int blockSize;
+    private final int bitsPerKey;
+    private final int compactionThreshold;
+
+    //The memtables and the tables, replaced as a whole under the structure lock whenever any of them changes
+    private volatile Tree tree;
+
+    private final Object structure = new Object();
+
+    //Writers share it while they put into the memtable, freezing the memtable takes it exclusively,
+    // so the writes of one apply all land in the same memtable
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    //Set while the flushes fail, writers do not wait for them meanwhile
+    private volatile IOException flushFailure;
+
+    private volatile boolean closed;
+
+    //The bytes of the versions handed to the engine, and the bytes the flushes and compactions wrote for them
+    private final LongAdder userBytes = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+    private final LongAdder compactedBytes = new LongAdder();
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder blocksRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bloomSkips = new LongAdder();
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder writeStalls = new LongAdder();
+
+    //The keys holding a value, kept exact by every write looking up what it replaces
+    private final AtomicLong liveKeys = new AtomicLong();
+
+    /**
+     * @param directory where the tables are written
+     * @param memtableSize the bytes of versions a memtable holds before it is written into a table
+     * @param blockSize the bytes of a block of the tables, the unit a lookup reads
+     * @param bitsPerKey the size of the Bloom filters
+     * @param compactionThreshold the number of tables of a tier merged into one
+     * @throws IOException when the directory cannot be prepared
+     */
+    public LsmStorageEngine(Path directory, long memtableSize, int blockSize, int bitsPerKey, int compactionThreshold) throws IOException {
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        this.blockSize = blockSize;
+        this.bitsPerKey = bitsPerKey;
+        this.compactionThreshold = Math.max(2, compactionThreshold);
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path leftover : leftovers) {
+                Files.delete(leftover);
+            }
+        }
+        this.tree = new Tree(new Memtable(), Collections.emptyList(), Collections.emptyList());
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breeze-lsm-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "breeze-lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        VersionedValue<String,String> found = lookup(key);
+        return found == null || found.isDeleted() ? null : found;
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        apply(Collections.singletonMap(version.getKey(), version));
+    }
+
+    @Override
+    public void delete(String key) {
+        apply(Collections.singletonMap(key, null));
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        awaitFlushes();
+        Memtable memtable;
+        rotation.readLock().lock();
+        try {
+            memtable = tree.memtable;
+            for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+                //a key the memtable holds already needs no lookup, the tables are only read for the first write of a key into it
+                VersionedValue<String,String> replaced = memtable.get(change.getKey());
+                if (replaced == null) {
+                    replaced = lookup(change.getKey());
+                }
+                VersionedValue<String,String> version = change.getValue();
+                //the memtable keeps a copy of its own, not the older versions the service linked to it
+                VersionedValue<String,String> record = version == null
+                        ? VersionedValue.builderFor(change.getKey()).asDeletion().build()
+                        : VersionedValue.builderFor(version.getKey()).withValue(version.getValue())
+                                .atTime(version.getTimestamp()).expiringAt(version.getExpiresAt()).build();
+                memtable.put(record);
+                liveKeys.addAndGet((record.isDeleted() ? 0 : 1) - (replaced == null || replaced.isDeleted() ? 0 : 1));
+                userBytes.add(SSTable.sizeOf(record));
+            }
+        } finally {
+            rotation.readLock().unlock();
+        }
+        if (memtable.bytes.get() >= memtableSize) {
+            freeze(memtable);
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        return new KeyWalk(from, inclusive);
+    }
+
+    @Override
+    public long size() {
+        return liveKeys.get();
+    }
+
+    @Override
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        Tree current = acquire();
+        try {
+            long heapBytes = current.memtable.bytes.get();
+            for (Memtable memtable : current.frozen) {
+                heapBytes += memtable.bytes.get();
+            }
+            long diskBytes = 0;
+            int tiers = 0;
+            for (SSTable table : current.tables) {
+                diskBytes += table.size();
+                heapBytes += table.heapSize();
+                tiers = Math.max(tiers, table.getTier() + 1);
+            }
+            statistics.put("storage.lsm.memtableBytes", current.memtable.bytes.get());
+            statistics.put("storage.lsm.frozenMemtables", (long) current.frozen.size());
+            statistics.put("storage.lsm.tables", (long) current.tables.size());
+            statistics.put("storage.lsm.tiers", (long) tiers);
+            statistics.put("storage.lsm.diskBytes", diskBytes);
+            statistics.put("storage.lsm.heapBytes", heapBytes);
+        } finally {
+            current.release();
+        }
+        long user = userBytes.sum();
+        long written = flushedBytes.sum() + compactedBytes.sum();
+        statistics.put("storage.lsm.userBytes", user);
+        statistics.put("storage.lsm.flushedBytes", flushedBytes.sum());
+        statistics.put("storage.lsm.compactedBytes", compactedBytes.sum());
+        statistics.put("storage.lsm.writeAmplification", ratio(written, user));
+        long gets = lookups.sum();
+        statistics.put("storage.lsm.lookups", gets);
+        statistics.put("storage.lsm.blocksRead", blocksRead.sum());
+        statistics.put("storage.lsm.bytesRead", bytesRead.sum());
+        statistics.put("storage.lsm.readAmplification", ratio(blocksRead.sum(), gets));
+        statistics.put("storage.lsm.bloomSkips", bloomSkips.sum());
+        statistics.put("storage.lsm.flushes", flushes.sum());
+        statistics.put("storage.lsm.compactions", compactions.sum());
+        statistics.put("storage.lsm.writeStalls", writeStalls.sum());
+        return statistics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        flusher.shutdownNow();
+        compactor.shutdownNow();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (structure) {
+            //the tables of the last tree go with it
+            tree.release();
+            structure.notifyAll();
+        }
+    }
+
+    /**
+     * Finds the newest version of a key, reading the memtables first and then the tables from the newest to the oldest
+     *
+     * @param key
+     * @return the version, a tombstone if the key was deleted, null if no memtable or table holds it
+     */
+    private VersionedValue<String,String> lookup(String key) {
+        lookups.increment();
+        Tree current = acquire();
+        try {
+            VersionedValue<String,String> found = current.memtable.get(key);
+            for (int i = 0; found == null && i < current.frozen.size(); i++) {
+                found = current.frozen.get(i).get(key);
+            }
+            for (int i = 0; found == null && i < current.tables.size(); i++) {
+                SSTable table = current.tables.get(i);
+                if (table.mightContain(key)) {
+                    found = table.get(key);
+                } else {
+                    bloomSkips.increment();
+                }
+            }
+            return found;
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Takes the current tree for a read, its tables stay open until it is released
+     *
+     * @return
+     */
+    private Tree acquire() {
+        while (true) {
+            Tree current = tree;
+            if (current.retain()) {
+                return current;
+            }
+            if (closed && current == tree) {
+                throw new IllegalStateException("The storage engine in [" + directory + "] is closed");
+            }
+        }
+    }
+
+    /**
+     * Makes a tree the current one. Must only be called holding the structure lock.
+     *
+     * @param next
+     */
+    private void install(Tree next) {
+        Tree previous = tree;
+        tree = next;
+        previous.release();
+        structure.notifyAll();
+    }
+
+    /**
+     * Lets the writers wait while the flushes fall behind, so the heap does not fill up with frozen memtables
+     */
+    private void awaitFlushes() {
+        if (tree.frozen.size() < MAX_FROZEN_MEMTABLES) {
+            return;
+        }
+        synchronized (structure) {
+            if (tree.frozen.size() >= MAX_FROZEN_MEMTABLES) {
+                writeStalls.increment();
+            }
+            while (tree.frozen.size() >= MAX_FROZEN_MEMTABLES && flushFailure == null && !closed) {
+                try {
+                    structure.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces a full memtable with an empty one and schedules writing it into a table
+     *
+     * @param full
+     */
+    private void freeze(Memtable full) {
+        rotation.writeLock().lock();
+        try {
+            synchronized (structure) {
+                Tree current = tree;
+                if (current.memtable != full || closed) {
+                    //another writer froze it already
+                    return;
+                }
+                List<Memtable> frozen = new ArrayList<>(current.frozen.size() + 1);
+                frozen.add(full);
+                frozen.addAll(current.frozen);
+                install(new Tree(new Memtable(), frozen, current.tables));
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+        flusher.execute(this::flush);
+    }
+
+    /**
+     * Writes the oldest frozen memtable into a table. The flushes run one at a time and always take the oldest,
+     * so the tables are in the order of their memtables even when a flush had to be tried again.
+     */
+    private void flush() {
+        Tree current = tree;
+        if (current.frozen.isEmpty() || closed) {
+            return;
+        }
+        Memtable oldest = current.frozen.get(current.frozen.size() - 1);
+        try {
+            //with no table before it, there is nothing a tombstone would have to hide
+            SSTable table = SSTable.write(nextFile(), oldest.records.values().iterator(), oldest.count.get(), 0, blockSize, bitsPerKey,
+                    current.tables.isEmpty(), blocksRead, bytesRead);
+            synchronized (structure) {
+                if (closed) {
+                    table.release();
+                    return;
+                }
+                Tree latest = tree;
+                List<Memtable> frozen = new ArrayList<>(latest.frozen);
+                frozen.remove(oldest);
+                List<SSTable> tables = new ArrayList<>(latest.tables.size() + 1);
+                if (table.getRecords() > 0) {
+                    tables.add(table);
+                }
+                tables.addAll(latest.tables);
+                install(new Tree(latest.memtable, frozen, tables));
+            }
+            table.release();
+            flushes.increment();
+            flushedBytes.add(table.size());
+            flushFailure = null;
+            scheduleCompaction();
+        } catch (IOException | UncheckedIOException e) {
+            if (closed) {
+                return;
+            }
+            //the memtable stays readable meanwhile, only the heap it takes is not given back
+            LOG.error("Could not write a memtable into a table in [" + directory + "], trying again", e);
+            synchronized (structure) {
+                flushFailure = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+                structure.notifyAll();
+            }
+            flusher.schedule(this::flush, FLUSH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true) && !closed) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Merges the tables of the lowest tier having enough of them into one table of the next tier, as long as there is such a tier.
+     * Only this thread removes tables, so the ones being merged stay open without a tree held for them.
+     */
+    private void compact() {
+        compactionScheduled.set(false);
+        while (!closed) {
+            List<SSTable> tables = tree.tables;
+            int start = -1;
+            int end = -1;
+            //the tables are ordered from the newest to the oldest, so the tiers only grow along the list
+            for (int i = 0; i < tables.size() && start < 0; i++) {
+                int tier = tables.get(i).getTier();
+                int last = i;
+                while (last + 1 < tables.size() && tables.get(last + 1).getTier() == tier) {
+                    last++;
+                }
+                if (last - i + 1 >= compactionThreshold) {
+                    start = i;
+                    end = last;
+                }
+                i = last;
+            }
+            if (start < 0) {
+                return;
+            }
+
+            List<SSTable> merged = new ArrayList<>(tables.subList(start, end + 1));
+            boolean oldest = end == tables.size() - 1;
+            List<Iterator<VersionedValue<String,String>>> sources = new ArrayList<>(merged.size());
+            long expected = 0;
+            for (SSTable table : merged) {
+                sources.add(table.versions(null, true));
+                expected += table.getRecords();
+            }
+            SSTable table;
+            try {
+                table = SSTable.write(nextFile(), new MergedVersions(sources), expected, merged.get(0).getTier() + 1, blockSize, bitsPerKey,
+                        oldest, blocksRead, bytesRead);
+            } catch (IOException | UncheckedIOException e) {
+                if (!closed) {
+                    LOG.error("Could not merge the tables " + merged + " in [" + directory + "]", e);
+                }
+                return;
+            }
+
+            synchronized (structure) {
+                if (closed) {
+                    table.release();
+                    return;
+                }
+                Tree latest = tree;
+                //flushes only ever add tables in front, the merged ones are still next to each other
+                int at = latest.tables.indexOf(merged.get(0));
+                List<SSTable> next = new ArrayList<>(latest.tables.size() - merged.size() + 1);
+                next.addAll(latest.tables.subList(0, at));
+                if (table.getRecords() > 0) {
+                    next.add(table);
+                }
+                next.addAll(latest.tables.subList(at + merged.size(), latest.tables.size()));
+                install(new Tree(latest.memtable, latest.frozen, next));
+            }
+            table.release();
+            compactions.increment();
+            compactedBytes.add(table.size());
+            LOG.debug("Merged the tables " + merged + " into " + table);
+        }
+    }
+
+    private Path nextFile() {
+        return directory.resolve(String.format("%s%012d%s", PREFIX, fileSequence.incrementAndGet(), SUFFIX));
+    }
+
+    private static double ratio(long dividend, long divisor) {
+        return divisor == 0 ? 0 : Math.round(dividend * 100.0 / divisor) / 100.0;
+    }
+
+    /**
+     * The memtables and the tables at one point in time, from the newest to the oldest. A tree keeps its tables open
+     * while it is held, the last one letting go of a table closes it.
+     */
+    private static final class Tree {
+
+        private final Memtable memtable;
+
+        private final List<Memtable> frozen;
+
+        private final List<SSTable> tables;
+
+        //The engine while it is the current tree, and every read going on in it
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Tree(Memtable memtable, List<Memtable> frozen, List<SSTable> tables) {
+            this.memtable = memtable;
+            this.frozen = Collections.unmodifiableList(frozen);
+            this.tables = Collections.unmodifiableList(tables);
+            for (SSTable table : tables) {
+                //the tables come from the current tree, which still holds them
+                table.retain();
+            }
+        }
+
+        private boolean retain() {
+            while (true) {
+                int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                for (SSTable table : tables) {
+                    table.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The sorted versions written since the last flush, tombstones included
+     */
+    private static final class Memtable {
+
+        private final ConcurrentSkipListMap<String,VersionedValue<String,String>> records = new ConcurrentSkipListMap<>();
+
+        //About the heap the versions take
+        private final AtomicLong bytes = new AtomicLong();
+
+        //The versions held
+        private final AtomicLong count = new AtomicLong();
+
+        private VersionedValue<String,String> get(String key) {
+            return records.get(key);
+        }
+
+        private void put(VersionedValue<String,String> record) {
+            VersionedValue<String,String> previous = records.put(record.getKey(), record);
+            if (previous == null) {
+                count.incrementAndGet();
+            }
+            bytes.addAndGet(heapSize(record) - (previous == null ? 0 : heapSize(previous)));
+        }
+
+        private Iterator<VersionedValue<String,String>> versions(String from, boolean inclusive) {
+            return (from == null ? records : records.tailMap(from, inclusive)).values().iterator();
+        }
+
+        // The entry of the skip list, the version and the two strings with their arrays
+        private static long heapSize(VersionedValue<String,String> record) {
+            String value = record.getValue();
+            return 160 + 2L * record.getKey().length() + (value == null ? 0 : 2L * value.length());
+        }
+    }
+
+    /**
+     * Merges walks of versions in the order of their keys, handing out only the newest version of every key
+     */
+    private static final class MergedVersions implements Iterator<VersionedValue<String,String>> {
+
+        private final List<Iterator<VersionedValue<String,String>>> sources;
+
+        //The next version of every walk not over yet, with its index in the sources (the lower the newer)
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+                Comparator.comparing((Head head) -> head.version.getKey()).thenComparingInt(head -> head.source));
+
+        /**
+         * @param sources from the newest to the oldest
+         */
+        private MergedVersions(List<Iterator<VersionedValue<String,String>>> sources) {
+            this.sources = sources;
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).hasNext()) {
+                    heads.add(new Head(sources.get(i).next(), i));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public VersionedValue<String,String> next() {
+            Head newest = heads.poll();
+            if (newest == null) {
+                throw new NoSuchElementException();
+            }
+            advance(newest);
+            //the older versions of the same key are skipped
+            while (!heads.isEmpty() && heads.peek().version.getKey().equals(newest.version.getKey())) {
+                advance(heads.poll());
+            }
+            return newest.version;
+        }
+
+        private void advance(Head head) {
+            Iterator<VersionedValue<String,String>> source = sources.get(head.source);
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), head.source));
+            }
+        }
+
+        private static final class Head {
+
+            private final VersionedValue<String,String> version;
+
+            private final int source;
+
+            private Head(VersionedValue<String,String> version, int source) {
+                this.version = version;
+                this.source = source;
+            }
+        }
+    }
+
+    /**
+     * Walks the keys a page at a time, every page is taken from the tree current at that point,
+     * so an abandoned walk does not keep any table open
+     */
+    private final class KeyWalk implements Iterator<String> {
+
+        private String from;
+
+        private boolean inclusive;
+
+        private Iterator<String> page = Collections.emptyIterator();
+
+        private boolean over;
+
+        private KeyWalk(String from, boolean inclusive) {
+            this.from = from;
+            this.inclusive = inclusive;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !over) {
+                fetch();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        private void fetch() {
+            List<String> keys = new ArrayList<>(WALK_PAGE_SIZE);
+            Tree current = acquire();
+            try {
+                List<Iterator<VersionedValue<String,String>>> sources = new ArrayList<>();
+                sources.add(current.memtable.versions(from, inclusive));
+                for (Memtable memtable : current.frozen) {
+                    sources.add(memtable.versions(from, inclusive));
+                }
+                for (SSTable table : current.tables) {
+                    sources.add(table.versions(from, inclusive));
+                }
+                MergedVersions versions = new MergedVersions(sources);
+                while (versions.hasNext() && keys.size() < WALK_PAGE_SIZE) {
+                    VersionedValue<String,String> version = versions.next();
+                    from = version.getKey();
+                    if (!version.isDeleted()) {
+                        keys.add(version.getKey());
+                    }
+                }
+                inclusive = false;
+                over = !versions.hasNext();
+            } finally {
+                current.release();
+            }
+            page = keys.iterator();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One memory mapped file of an open addressing hash table with fixed size slots and linear probing.
+ *
+ * A record starts in the slot its hash leads to (or the first free one after it), with the hash, the lengths, the version and
+ * the expiry time in front of the UTF-8 bytes of the key and the value. A record bigger than a slot goes on in the next free slots
+ * after it, every slot pointing to the one it continues in. A removed record leaves its slots marked as deleted, so the probes
+ * go on past them, and the next record probing there takes them over.
+ *
+ * Only one writer works on a segment at a time, readers might see a record half way through being written and have to
+ * check what they read against the writer.
+ */
+final class MappedSegment {
+
+    static final byte EMPTY = 0;
+    static final byte HEAD = 1;
+    static final byte CONTINUATION = 2;
+    static final byte DELETED = 3;
+
+    // state, hash, next slot, key length, value length (-1 for null), version, expiry
+    private static final int HEAD_SIZE = 1 + 4 + 4 + 4 + 4 + 8 + 8;
+
+    // state, next slot
+    private static final int CONTINUATION_SIZE = 1 + 4;
+
+    // The share of the slots that may be taken before the table grows, the probes get long beyond it
+    private static final double MAX_LOAD = 0.75;
+
+    private final int number;
+
+    private final Path file;
+
+    private final int capacity;
+
+    private final int slotSize;
+
+    private final MappedByteBuffer buffer;
+
+    // The slots that are not empty, the records and the slots they take
+    private int used;
+    private int live;
+    private int liveSlots;
+
+    // Whether the records are being moved out into the newest segment, and the slot the move got to
+    private boolean draining;
+    private int cursor;
+
+    private MappedSegment(int number, Path file, int capacity, int slotSize, MappedByteBuffer buffer) {
+        this.number = number;
+        this.file = file;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a segment file of empty slots and maps it
+     *
+     * @param number
+     * @param file
+     * @param capacity the number of slots, a power of two
+     * @param slotSize
+     * @return
+     * @throws IOException
+     */
+    static MappedSegment create(int number, Path file, int capacity, int slotSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //a fresh file reads as zeros, which is every slot empty
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * slotSize);
+            return new MappedSegment(number, file, capacity, slotSize, buffer);
+        }
+    }
+
+    /**
+     * Maps a segment file written by a previous run
+     *
+     * @param number
+     * @param file
+     * @param capacity
+     * @param slotSize
+     * @return the segment, its counters still to be restored, see {@link #restore(int, int, int, boolean, int)}
+     * @throws IOException when the file is not there or not of the size expected
+     */
+    static MappedSegment open(int number, Path file, int capacity, int slotSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != (long) capacity * slotSize) {
+                throw new IOException("The segment [" + file + "] is of [" + channel.size() + "] bytes instead of [" + (long) capacity * slotSize + "]");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * slotSize);
+            return new MappedSegment(number, file, capacity, slotSize, buffer);
+        }
+    }
+
+    /**
+     * The hash the slots of a key are probed by
+     *
+     * @param key
+     * @return
+     */
+    static int hash(String key) {
+        int hash = key.hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Finds the record of a key
+     *
+     * @param hash
+     * @param key the UTF-8 bytes of the key
+     * @return its first slot, -1 if the segment does not have it
+     */
+    int find(int hash, byte[] key) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+            int at = slot * slotSize;
+            byte state = buffer.get(at);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == HEAD && buffer.getInt(at + 1) == hash && buffer.getInt(at + 9) == key.length && Arrays.equals(readKey(slot), key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the record starting in a slot back
+     *
+     * @param slot
+     * @return
+     */
+    VersionedValue<String,String> read(int slot) {
+        int at = slot * slotSize;
+        int keyLength = buffer.getInt(at + 9);
+        int valueLength = buffer.getInt(at + 13);
+        long timestamp = buffer.getLong(at + 17);
+        long expiresAt = buffer.getLong(at + 25);
+        byte[] payload = readPayload(slot, keyLength + Math.max(0, valueLength));
+        return VersionedValue.builderFor(new String(payload, 0, keyLength, StandardCharsets.UTF_8))
+                .withValue(valueLength < 0 ? null : new String(payload, keyLength, valueLength, StandardCharsets.UTF_8))
+                .atTime(timestamp)
+                .expiringAt(expiresAt)
+                .build();
+    }
+
+    /**
+     * The key of the record starting in a slot
+     *
+     * @param slot
+     * @return
+     */
+    String keyAt(int slot) {
+        return new String(readKey(slot), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether a record of the given size still fits without the segment going over its load
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    boolean fits(byte[] key, byte[] value) {
+        return used + slotsFor(key.length + (value == null ? 0 : value.length)) <= capacity * MAX_LOAD;
+    }
+
+    /**
+     * Writes a record into the free slots from the one its hash leads to. The segment must not have the key,
+     * and the record has to fit, see {@link #fits(byte[], byte[])}.
+     *
+     * @param hash
+     * @param key
+     * @param value null for a null value
+     * @param timestamp
+     * @param expiresAt
+     */
+    void insert(int hash, byte[] key, byte[] value, long timestamp, long expiresAt) {
+        int mask = capacity - 1;
+        int valueLength = value == null ? -1 : value.length;
+        int[] slots = new int[slotsFor(key.length + Math.max(0, valueLength))];
+        int slot = hash & mask;
+        for (int i = 0; i < slots.length; slot = (slot + 1) & mask) {
+            byte state = buffer.get(slot * slotSize);
+            if (state == EMPTY || state == DELETED) {
+                if (state == EMPTY) {
+                    used++;
+                }
+                slots[i++] = slot;
+            }
+        }
+        liveSlots += slots.length;
+
+        byte[] payload = Arrays.copyOf(key, key.length + Math.max(0, valueLength));
+        if (value != null) {
+            System.arraycopy(value, 0, payload, key.length, value.length);
+        }
+
+        //the continuations first and the head last, a reader only follows a chain from a head
+        ByteBuffer target = buffer.duplicate();
+        for (int i = slots.length - 1; i >= 0; i--) {
+            int at = slots[i] * slotSize;
+            int next = i + 1 < slots.length ? slots[i + 1] : -1;
+            target.position(at + 1);
+            if (i == 0) {
+                target.putInt(hash).putInt(next).putInt(key.length).putInt(valueLength).putLong(timestamp).putLong(expiresAt);
+            } else {
+                target.putInt(next);
+            }
+            int offset = i == 0 ? 0 : (slotSize - HEAD_SIZE) + (i - 1) * (slotSize - CONTINUATION_SIZE);
+            int room = i == 0 ? slotSize - HEAD_SIZE : slotSize - CONTINUATION_SIZE;
+            target.put(payload, offset, Math.max(0, Math.min(room, payload.length - offset)));
+            buffer.put(at, i == 0 ? HEAD : CONTINUATION);
+        }
+        live++;
+    }
+
+    /**
+     * Marks the slots of a record deleted
+     *
+     * @param slot the first slot of the record
+     */
+    void remove(int slot) {
+        //the head first, so no reader starts following a chain being taken apart
+        int next = buffer.getInt(slot * slotSize + 5);
+        buffer.put(slot * slotSize, DELETED);
+        liveSlots--;
+        while (next >= 0) {
+            int at = next * slotSize;
+            next = buffer.getInt(at + 1);
+            buffer.put(at, DELETED);
+            liveSlots--;
+        }
+        live--;
+    }
+
+    /**
+     * The first slot of a record at or after the given one
+     *
+     * @param from
+     * @return the slot, -1 if there are no more records
+     */
+    int nextRecord(int from) {
+        for (int slot = from; slot < capacity; slot++) {
+            if (buffer.get(slot * slotSize) == HEAD) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the changes of the mapping out to the file
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Puts back the counters recorded when the segment was closed
+     *
+     * @param used
+     * @param live
+     * @param liveSlots
+     * @param draining
+     * @param cursor
+     */
+    void restore(int used, int live, int liveSlots, boolean draining, int cursor) {
+        this.used = used;
+        this.live = live;
+        this.liveSlots = liveSlots;
+        this.draining = draining;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Starts moving the records out, from the first slot on
+     */
+    void drain() {
+        draining = true;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    int getCursor() {
+        return cursor;
+    }
+
+    void setCursor(int cursor) {
+        this.cursor = cursor;
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getUsed() {
+        return used;
+    }
+
+    int getLive() {
+        return live;
+    }
+
+    int getLiveSlots() {
+        return liveSlots;
+    }
+
+    /**
+     * The slots a record of the given key and value takes
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    int slotsFor(byte[] key, byte[] value) {
+        return slotsFor(key.length + (value == null ? 0 : value.length));
+    }
+
+    private int slotsFor(int payload) {
+        int rest = payload - (slotSize - HEAD_SIZE);
+        return rest <= 0 ? 1 : 1 + (rest + slotSize - CONTINUATION_SIZE - 1) / (slotSize - CONTINUATION_SIZE);
+    }
+
+    private byte[] readKey(int slot) {
+        return readPayload(slot, buffer.getInt(slot * slotSize + 9));
+    }
+
+    // Follows the chain of a record, a chain that does not add up (as it is being written) stops short
+    private byte[] readPayload(int slot, int length) {
+        if (length < 0 || length > (long) capacity * slotSize) {
+            throw new IllegalStateException("A record of [" + length + "] bytes in the segment [" + file + "]");
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        int at = slot * slotSize;
+        source.position(at + HEAD_SIZE);
+        int read = Math.min(length, slotSize - HEAD_SIZE);
+        source.get(payload, 0, read);
+        int next = buffer.getInt(at + 5);
+        while (read < length && next >= 0 && next < capacity) {
+            at = next * slotSize;
+            source.position(at + CONTINUATION_SIZE);
+            int chunk = Math.min(length - read, slotSize - CONTINUATION_SIZE);
+            source.get(payload, read, chunk);
+            read += chunk;
+            next = buffer.getInt(at + 1);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,586 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the keys and values in a hash table living in memory mapped files, which survive a restart: a service starting on
+ * the files of a cleanly closed engine maps them again and only replays what the write ahead log has after them.
+ *
+ * The table is made of {@link MappedSegment}s, the newest one taking the writes. When it fills up a new segment (twice as big,
+ * unless the old one is mostly deleted slots) is mapped next to it, and every write moves a couple of records from the older
+ * segments into the newest one, so the table grows without ever stopping for a rehash. A lookup probes the segments from
+ * the newest to the oldest, a key is only ever in one of them.
+ *
+ * Writes go one at a time. Reads do not lock: they read the mapping straight away and check the writers against a stamp,
+ * reading again under the lock in the rare case one got in between.
+ *
+ * A header file records the segments and the version of the store they hold, with a CRC32 of its own. It is only marked closed
+ * once everything has been forced to the disk on shutdown: the files of an engine that was not closed cleanly might hold
+ * part of the writes in flight, so they are dropped, and the store is recovered from its write ahead log and snapshots instead.
+ */
+public final class MappedStorageEngine implements StorageEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedStorageEngine.class);
+
+    private static final String HEADER = "mapped.header";
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".map";
+
+    private static final int MAGIC = 0x42525a4d;
+    private static final int FORMAT = 1;
+
+    private static final int OPEN = 1;
+    private static final int CLOSED = 2;
+
+    // The records every write moves out of the draining segments
+    private static final int MOVES_PER_WRITE = 2;
+
+    // A single segment is mapped in one go, so it stays below what a buffer can address
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final Path directory;
+
+    private final int slotSize;
+
+    private final int initialSlots;
+
+    private final int maxSlots;
+
+    //The only writer at a time, and the stamp the readers validate against
+    private final StampedLock lock = new StampedLock();
+
+    //From the newest to the oldest, replaced as a whole when a segment is added or dropped
+    private volatile MappedSegment[] segments;
+
+    private int lastSegmentNumber;
+
+    //The keys in their order, only built once something walks them, as the table itself has no order
+    private volatile NavigableSet<String> keyIndex;
+
+    private volatile long records;
+
+    //The version of the store the files came back with, and the one they were synced to on shutdown (-1 when not synced)
+    private final long recoveredVersion;
+    private long syncedVersion = -1;
+
+    private boolean closed;
+
+    private final long openMillis;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lockedLookups = new LongAdder();
+    private final LongAdder movedRecords = new LongAdder();
+    private final LongAdder segmentsAdded = new LongAdder();
+    private final LongAdder segmentsDropped = new LongAdder();
+
+    /**
+     * Maps the table left by a previous run in the directory, or starts an empty one
+     *
+     * @param directory
+     * @param slotSize the bytes of a slot, a record bigger than that takes more slots. Ignored for a table already there.
+     * @param initialSlots the slots of the first segment
+     * @throws IOException when the directory cannot be prepared
+     */
+    public MappedStorageEngine(Path directory, int slotSize, int initialSlots) throws IOException {
+        long started = System.nanoTime();
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        Header header = readHeader();
+        if (header != null && header.state != CLOSED) {
+            LOG.warn("The mapped table in [" + directory + "] was not closed cleanly, starting it empty for the recovery to fill");
+            header = null;
+        }
+        MappedSegment[] mapped = header == null ? null : mapSegments(header);
+        if (mapped == null) {
+            deleteSegments();
+        }
+
+        this.slotSize = mapped != null ? header.slotSize : slotSize;
+        this.initialSlots = Integer.highestOneBit(Math.max(64, initialSlots) * 2 - 1);
+        this.maxSlots = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, MAX_SEGMENT_BYTES / this.slotSize));
+        if (mapped != null) {
+            this.segments = mapped;
+            this.lastSegmentNumber = header.lastSegmentNumber;
+            this.records = header.records;
+            this.recoveredVersion = header.version;
+        } else {
+            this.lastSegmentNumber = 0;
+            this.segments = new MappedSegment[]{createSegment(Math.min(this.initialSlots, maxSlots))};
+            this.recoveredVersion = 0;
+        }
+        //from now on the files are changing, until they are closed cleanly again
+        writeHeader(OPEN, recoveredVersion);
+        this.openMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        LOG.info("Mapped [" + segments.length + "] segments with [" + records + "] records of version [" + recoveredVersion + "] in ["
+                + openMillis + "] ms from [" + directory + "]");
+    }
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        lookups.increment();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = MappedSegment.hash(key);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                VersionedValue<String,String> found = lookup(hash, bytes);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                //a record changing under the read, read it again under the lock
+            }
+        }
+        lockedLookups.increment();
+        stamp = lock.readLock();
+        try {
+            return lookup(hash, bytes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        long stamp = lock.writeLock();
+        try {
+            write(version.getKey(), version);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        long stamp = lock.writeLock();
+        try {
+            write(key, null);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        long stamp = lock.writeLock();
+        try {
+            for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+                write(change.getKey(), change.getValue());
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        NavigableSet<String> index = keyIndex;
+        if (index == null) {
+            index = buildKeyIndex();
+        }
+        return (from == null ? index : index.tailSet(from, inclusive)).iterator();
+    }
+
+    @Override
+    public long size() {
+        return records;
+    }
+
+    @Override
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        long slots = 0;
+        long used = 0;
+        long draining = 0;
+        MappedSegment[] current = segments;
+        for (MappedSegment segment : current) {
+            slots += segment.getCapacity();
+            used += segment.getUsed();
+            draining += segment.isDraining() ? 1 : 0;
+        }
+        statistics.put("storage.mapped.segments", (long) current.length);
+        statistics.put("storage.mapped.drainingSegments", draining);
+        statistics.put("storage.mapped.slots", slots);
+        statistics.put("storage.mapped.usedSlots", used);
+        statistics.put("storage.mapped.mappedBytes", slots * slotSize);
+        statistics.put("storage.mapped.records", records);
+        statistics.put("storage.mapped.recoveredVersion", recoveredVersion);
+        statistics.put("storage.mapped.openMillis", openMillis);
+        statistics.put("storage.mapped.lookups", lookups.sum());
+        statistics.put("storage.mapped.lockedLookups", lockedLookups.sum());
+        statistics.put("storage.mapped.movedRecords", movedRecords.sum());
+        statistics.put("storage.mapped.segmentsAdded", segmentsAdded.sum());
+        statistics.put("storage.mapped.segmentsDropped", segmentsDropped.sum());
+        return statistics;
+    }
+
+    @Override
+    public long recoveredVersion() {
+        return recoveredVersion;
+    }
+
+    @Override
+    public void sync(long version) {
+        long stamp = lock.writeLock();
+        try {
+            for (MappedSegment segment : segments) {
+                segment.force();
+            }
+            syncedVersion = version;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            MappedSegment[] dropped = segments;
+            segments = new MappedSegment[]{createSegment(Math.min(initialSlots, maxSlots))};
+            for (MappedSegment segment : dropped) {
+                Files.deleteIfExists(segment.getFile());
+            }
+            records = 0;
+            keyIndex = null;
+            syncedVersion = -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not clear the mapped table in [" + directory + "]", e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void close() {
+        long stamp = lock.writeLock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (syncedVersion < 0) {
+                //nothing tells what version the files are at, the next start recovers the store from the log instead
+                LOG.warn("The mapped table in [" + directory + "] is closed without being synced");
+                return;
+            }
+            writeHeader(CLOSED, syncedVersion);
+        } catch (UncheckedIOException e) {
+            LOG.error("Could not close the mapped table in [" + directory + "] cleanly", e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private VersionedValue<String,String> lookup(int hash, byte[] key) {
+        for (MappedSegment segment : segments) {
+            int slot = segment.find(hash, key);
+            if (slot >= 0) {
+                return segment.read(slot);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the record of a key, or drops it. Must only be called holding the write lock.
+     *
+     * @param key
+     * @param version the new version, null to drop the key
+     */
+    private void write(String key, VersionedValue<String,String> version) {
+        if (closed) {
+            throw new IllegalStateException("The mapped table in [" + directory + "] is closed");
+        }
+        //anything written after the sync is not in the version it recorded
+        syncedVersion = -1;
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = MappedSegment.hash(key);
+        NavigableSet<String> index = keyIndex;
+        if (version != null && index != null) {
+            //a key gets into the index before its record does, and leaves after it, so a walk finds every key a lookup could
+            index.add(key);
+        }
+        boolean existed = false;
+        for (MappedSegment segment : segments) {
+            int slot = segment.find(hash, bytes);
+            if (slot >= 0) {
+                segment.remove(slot);
+                existed = true;
+                break;
+            }
+        }
+        if (version != null) {
+            byte[] value = version.getValue() == null ? null : version.getValue().getBytes(StandardCharsets.UTF_8);
+            insert(hash, bytes, value, version.getTimestamp(), version.getExpiresAt());
+        } else if (index != null) {
+            index.remove(key);
+        }
+        records += (version != null ? 1 : 0) - (existed ? 1 : 0);
+        move(MOVES_PER_WRITE);
+    }
+
+    /**
+     * Writes a record into the newest segment, adding a new one first when it is full
+     */
+    private void insert(int hash, byte[] key, byte[] value, long timestamp, long expiresAt) {
+        MappedSegment newest = segments[0];
+        if (!newest.fits(key, value)) {
+            newest = grow(newest.slotsFor(key, value));
+        }
+        newest.insert(hash, key, value, timestamp, expiresAt);
+    }
+
+    /**
+     * Adds a new newest segment. The one it replaces starts draining into it, unless it is as big as a segment gets
+     * and mostly live, in which case the two stay side by side.
+     *
+     * @param slotsNeeded the slots of the record that did not fit
+     * @return the new segment
+     */
+    private MappedSegment grow(int slotsNeeded) {
+        MappedSegment previous = segments[0];
+        boolean mostlyDeleted = previous.getLiveSlots() < previous.getCapacity() / 2;
+        int capacity = mostlyDeleted ? previous.getCapacity() : (int) Math.min(maxSlots, previous.getCapacity() * 2L);
+        while (capacity * 3L / 4 < slotsNeeded && capacity < maxSlots) {
+            capacity *= 2;
+        }
+        if (capacity * 3L / 4 < slotsNeeded) {
+            throw new IllegalArgumentException("A record of [" + slotsNeeded + "] slots does not fit into a mapped segment");
+        }
+        if (mostlyDeleted || capacity > previous.getCapacity()) {
+            previous.drain();
+        }
+        MappedSegment segment = createSegment(capacity);
+        MappedSegment[] grown = new MappedSegment[segments.length + 1];
+        grown[0] = segment;
+        System.arraycopy(segments, 0, grown, 1, segments.length);
+        segments = grown;
+        segmentsAdded.increment();
+        LOG.debug("Added the mapped segment [" + segment.getFile() + "] of [" + capacity + "] slots next to [" + segments.length + "] others");
+        return segment;
+    }
+
+    /**
+     * Moves a few records from the oldest draining segment into the newest one, dropping the segments left empty
+     *
+     * @param count
+     */
+    private void move(int count) {
+        for (int moved = 0; moved < count; ) {
+            MappedSegment oldest = null;
+            for (int i = segments.length - 1; i > 0 && oldest == null; i--) {
+                oldest = segments[i].isDraining() ? segments[i] : null;
+            }
+            if (oldest == null) {
+                return;
+            }
+            int slot = oldest.nextRecord(oldest.getCursor());
+            if (slot < 0) {
+                drop(oldest);
+                continue;
+            }
+            VersionedValue<String,String> record = oldest.read(slot);
+            oldest.remove(slot);
+            oldest.setCursor(slot + 1);
+            byte[] value = record.getValue() == null ? null : record.getValue().getBytes(StandardCharsets.UTF_8);
+            insert(MappedSegment.hash(record.getKey()), record.getKey().getBytes(StandardCharsets.UTF_8), value,
+                    record.getTimestamp(), record.getExpiresAt());
+            movedRecords.increment();
+            moved++;
+        }
+    }
+
+    private void drop(MappedSegment segment) {
+        List<MappedSegment> remaining = new ArrayList<>(Arrays.asList(segments));
+        remaining.remove(segment);
+        segments = remaining.toArray(new MappedSegment[0]);
+        segmentsDropped.increment();
+        try {
+            //the mapping itself goes once no reader holds on to it anymore
+            Files.deleteIfExists(segment.getFile());
+        } catch (IOException e) {
+            LOG.warn("Could not delete the drained segment [" + segment.getFile() + "]", e);
+        }
+    }
+
+    private MappedSegment createSegment(int capacity) {
+        int number = ++lastSegmentNumber;
+        try {
+            return MappedSegment.create(number, segmentFile(number), capacity, slotSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create a mapped segment in [" + directory + "]", e);
+        }
+    }
+
+    /**
+     * Builds the ordered index of the keys from the records, once. Writers wait meanwhile, they keep it up to date afterwards.
+     *
+     * @return
+     */
+    private NavigableSet<String> buildKeyIndex() {
+        long stamp = lock.writeLock();
+        try {
+            if (keyIndex == null) {
+                NavigableSet<String> index = new ConcurrentSkipListSet<>();
+                for (MappedSegment segment : segments) {
+                    for (int slot = segment.nextRecord(0); slot >= 0; slot = segment.nextRecord(slot + 1)) {
+                        index.add(segment.keyAt(slot));
+                    }
+                }
+                keyIndex = index;
+            }
+            return keyIndex;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(String.format("%s%08d%s", PREFIX, number, SUFFIX));
+    }
+
+    // Maps the segments a header lists, null when any of them is not what it should be
+    private MappedSegment[] mapSegments(Header header) {
+        MappedSegment[] mapped = new MappedSegment[header.segments.length];
+        try {
+            for (int i = 0; i < mapped.length; i++) {
+                int[] recorded = header.segments[i];
+                mapped[i] = MappedSegment.open(recorded[0], segmentFile(recorded[0]), recorded[1], header.slotSize);
+                mapped[i].restore(recorded[2], recorded[3], recorded[4], recorded[5] != 0, recorded[6]);
+            }
+            return mapped;
+        } catch (IOException e) {
+            LOG.warn("Could not map the segments of the table in [" + directory + "], starting it empty for the recovery to fill", e);
+            return null;
+        }
+    }
+
+    private void deleteSegments() throws IOException {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path leftover : leftovers) {
+                Files.delete(leftover);
+            }
+        }
+    }
+
+    /**
+     * Reads the header, checking its checksum
+     *
+     * @return the header, null if there is none or it cannot be trusted
+     */
+    private Header readHeader() throws IOException {
+        Path file = directory.resolve(HEADER);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, buffer.limit() - 8);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT || buffer.getLong(buffer.limit() - 8) != crc.getValue()) {
+                LOG.warn("The header [" + file + "] is corrupt or of an unknown format");
+                return null;
+            }
+            Header header = new Header();
+            header.state = buffer.getInt();
+            header.slotSize = buffer.getInt();
+            header.version = buffer.getLong();
+            header.records = buffer.getLong();
+            header.lastSegmentNumber = buffer.getInt();
+            header.segments = new int[buffer.getInt()][];
+            for (int i = 0; i < header.segments.length; i++) {
+                header.segments[i] = new int[7];
+                for (int field = 0; field < 7; field++) {
+                    header.segments[i][field] = buffer.getInt();
+                }
+            }
+            return header;
+        } catch (RuntimeException e) {
+            LOG.warn("The header [" + file + "] is truncated", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the header under a temporary name, forces it and moves it into place
+     *
+     * @param state
+     * @param version
+     */
+    private void writeHeader(int state, long version) {
+        MappedSegment[] current = segments;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + 4 + 8 + 8 + 4 + 4 + current.length * 7 * 4 + 8);
+        buffer.putInt(MAGIC).putInt(FORMAT).putInt(state).putInt(slotSize).putLong(version).putLong(records)
+                .putInt(lastSegmentNumber).putInt(current.length);
+        for (MappedSegment segment : current) {
+            buffer.putInt(segment.getNumber()).putInt(segment.getCapacity()).putInt(segment.getUsed()).putInt(segment.getLive())
+                    .putInt(segment.getLiveSlots()).putInt(segment.isDraining() ? 1 : 0).putInt(segment.getCursor());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        Path file = directory.resolve(HEADER);
+        Path temporary = directory.resolve(HEADER + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the header of the mapped table in [" + directory + "]", e);
+        }
+    }
+
+    /**
+     * What the header file records
+     */
+    private static final class Header {
+
+        private int state;
+
+        private int slotSize;
+
+        private long version;
+
+        private long records;
+
+        private int lastSegmentNumber;
+
+        // number, capacity, used slots, records, record slots, draining, cursor of every segment from the newest to the oldest
+        private int[][] segments;
+    }
+}
@@ -0,0 +1,72 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The default engine: every version lives on the heap in a hash map, next to an ordered index of the keys for the walks.
+ */
+public final class MemoryStorageEngine implements StorageEngine {
+
+    private final Map<String,VersionedValue<String,String>> store = new ConcurrentHashMap<>();
+
+    //The keys of the store in their order. A key gets in before its version does and leaves after it,
+    // so a walk finds every key a lookup could
+    private final NavigableSet<String> keyIndex = new ConcurrentSkipListSet<>();
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        keyIndex.add(version.getKey());
+        store.put(version.getKey(), version);
+    }
+
+    @Override
+    public void delete(String key) {
+        if (store.remove(key) != null) {
+            keyIndex.remove(key);
+        }
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                delete(change.getKey());
+            } else {
+                put(change.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        return (from == null ? keyIndex : keyIndex.tailSet(from, inclusive)).iterator();
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public Map<String,Object> statistics() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+        //nothing to let go of, the garbage collector takes care of the maps
+    }
+}
@@ -0,0 +1,54 @@
+package io.maverick.database.breeze.storage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the keys of several ordered walks as one, in their order and every key only once.
+ */
+public final class MergedKeys implements Iterator<String> {
+
+    private final List<Iterator<String>> sources;
+
+    // The next key of each walk, null once it is over
+    private final String[] heads;
+
+    public MergedKeys(List<Iterator<String>> sources) {
+        this.sources = sources;
+        this.heads = new String[sources.size()];
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        for (String head : heads) {
+            if (head != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String next() {
+        String smallest = null;
+        for (String head : heads) {
+            if (head != null && (smallest == null || head.compareTo(smallest) < 0)) {
+                smallest = head;
+            }
+        }
+        if (smallest == null) {
+            throw new NoSuchElementException();
+        }
+        //every walk at the key moves on, so it is not handed out twice
+        for (int i = 0; i < heads.length; i++) {
+            if (smallest.equals(heads[i])) {
+                heads[i] = sources.get(i).hasNext() ? sources.get(i).next() : null;
+            }
+        }
+        return smallest;
+    }
+}
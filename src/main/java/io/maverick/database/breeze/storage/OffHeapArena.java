@@ -0,0 +1,264 @@
+package io.maverick.database.breeze.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps byte payloads outside of the java heap, in big direct buffers (slabs) carved up into chunks.
+ *
+ * Chunks come in size classes a quarter of a doubling apart, so a payload wastes at most a fifth of its chunk.
+ * A freed chunk goes onto the free list of its class and is handed out again before any new space is carved,
+ * slabs are only ever added (up to the limit) and live as long as the arena does. A chunk is addressed by the index
+ * of its slab in the upper and its offset in the lower half of a long.
+ *
+ * Handing out and taking back chunks is serialized, copying the bytes in and out is not: a chunk belongs to
+ * whoever allocated it until it gets freed, and the slabs are looked up without any lock.
+ */
+final class OffHeapArena {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapArena.class);
+
+    // The smallest chunk, every size class is a multiple of it
+    private static final int MIN_CHUNK = 16;
+
+    private final int slabSize;
+    private final int maxSlabs;
+
+    // The chunk size of each class, the smallest first
+    private final int[] classSizes;
+
+    // The addresses of the freed chunks of each class
+    private final LongStack[] freeChunks;
+
+    // Replaced by a copy one longer whenever a slab is added, so a reader never takes the lock to find its slab
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    // Where the next chunk is carved from the newest slab
+    private int carveOffset;
+
+    private long allocatedBytes;
+    private long payloadBytes;
+    private long freeBytes;
+    private long chunks;
+
+    // Payloads that did not fit, because they were too big or the arena was full
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param slabSize the size of a single direct buffer, the biggest payload kept is a sixteenth of it
+     * @param maxBytes the off heap memory the arena may reserve, at least one slab is always allowed
+     */
+    OffHeapArena(int slabSize, long maxBytes) {
+        this.slabSize = Math.max(MIN_CHUNK * 16, slabSize);
+        this.maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / this.slabSize));
+        this.classSizes = sizeClasses(this.slabSize / 16);
+        this.freeChunks = new LongStack[classSizes.length];
+        for (int i = 0; i < freeChunks.length; i++) {
+            freeChunks[i] = new LongStack();
+        }
+        this.carveOffset = this.slabSize;
+    }
+
+    /**
+     * The chunk sizes from the smallest one up to the limit: every multiple of the smallest chunk up to 128 bytes,
+     * then four steps per doubling
+     */
+    private static int[] sizeClasses(int maxChunk) {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_CHUNK; size <= 128 && size <= maxChunk; size += MIN_CHUNK) {
+            sizes.add(size);
+        }
+        for (int base = 128; base < maxChunk; base *= 2) {
+            for (int step = 1; step <= 4 && base + step * (base / 4) <= maxChunk; step++) {
+                sizes.add(base + step * (base / 4));
+            }
+        }
+        int[] classes = new int[sizes.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = sizes.get(i);
+        }
+        return classes;
+    }
+
+    /**
+     * Copies a payload into a chunk of its own
+     *
+     * @param bytes
+     * @return the address of the chunk, -1 if the payload does not fit (too big, or the arena is full)
+     */
+    long store(byte[] bytes) {
+        long address = allocate(bytes.length);
+        if (address < 0) {
+            refused.incrementAndGet();
+            return -1;
+        }
+        ByteBuffer target = slab(slabOf(address)).duplicate();
+        target.position(offsetOf(address));
+        target.put(bytes);
+        return address;
+    }
+
+    /**
+     * Copies a payload out of its chunk. Reading a chunk freed in the meantime gives garbage but never fails,
+     * the caller has to make sure it did not happen.
+     *
+     * @param address
+     * @param length the length of the payload stored
+     * @return
+     */
+    String read(long address, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = slab(slabOf(address)).duplicate();
+        source.position(offsetOf(address));
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hands a chunk back for reuse, nobody may read it from now on
+     *
+     * @param address
+     * @param length the length of the payload stored
+     */
+    synchronized void free(long address, int length) {
+        int sizeClass = classOf(length);
+        freeChunks[sizeClass].push(address);
+        freeBytes += classSizes[sizeClass];
+        allocatedBytes -= classSizes[sizeClass];
+        payloadBytes -= length;
+        chunks--;
+    }
+
+    /**
+     * The figures of the arena, for the statistics of the store
+     * @return
+     */
+    synchronized Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("storage.offHeap.slabs", slabs.length);
+        statistics.put("storage.offHeap.reservedBytes", (long) slabs.length * slabSize);
+        statistics.put("storage.offHeap.allocatedBytes", allocatedBytes);
+        statistics.put("storage.offHeap.payloadBytes", payloadBytes);
+        statistics.put("storage.offHeap.freeBytes", freeBytes);
+        statistics.put("storage.offHeap.values", chunks);
+        statistics.put("storage.offHeap.refused", refused.get());
+        return statistics;
+    }
+
+    private synchronized long allocate(int length) {
+        if (length > classSizes[classSizes.length - 1]) {
+            return -1;
+        }
+        int sizeClass = classOf(length);
+        int size = classSizes[sizeClass];
+        long address;
+        if (!freeChunks[sizeClass].isEmpty()) {
+            address = freeChunks[sizeClass].pop();
+            freeBytes -= size;
+        } else {
+            if (carveOffset + size > slabSize && !addSlab()) {
+                return -1;
+            }
+            address = addressOf(slabs.length - 1, carveOffset);
+            carveOffset += size;
+        }
+        allocatedBytes += size;
+        payloadBytes += length;
+        chunks++;
+        return address;
+    }
+
+    /**
+     * Starts carving a new slab, the end of the current one is handed to the free lists of the classes it still fits
+     *
+     * @return false if the arena may not grow anymore
+     */
+    private boolean addSlab() {
+        ByteBuffer[] current = slabs;
+        if (current.length >= maxSlabs) {
+            return false;
+        }
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(slabSize);
+        } catch (OutOfMemoryError e) {
+            LOG.warn("Could not reserve another [" + slabSize + "] bytes of direct memory, the values go on the heap", e);
+            return false;
+        }
+        if (current.length > 0) {
+            for (int sizeClass = classSizes.length - 1; sizeClass >= 0; sizeClass--) {
+                while (slabSize - carveOffset >= classSizes[sizeClass]) {
+                    freeChunks[sizeClass].push(addressOf(current.length - 1, carveOffset));
+                    freeBytes += classSizes[sizeClass];
+                    carveOffset += classSizes[sizeClass];
+                }
+            }
+        }
+        ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = slab;
+        slabs = grown;
+        carveOffset = 0;
+        LOG.info("Reserved off heap slab [" + grown.length + "] of at most [" + maxSlabs + "] with [" + slabSize + "] bytes");
+        return true;
+    }
+
+    /**
+     * The slab at an index. Whoever got an address got it after its slab was published, so the array read has it.
+     */
+    private ByteBuffer slab(int index) {
+        return slabs[index];
+    }
+
+    /**
+     * The smallest class a payload of the given length fits into
+     */
+    private int classOf(int length) {
+        int sizeClass = Arrays.binarySearch(classSizes, Math.max(1, length));
+        return sizeClass >= 0 ? sizeClass : -sizeClass - 1;
+    }
+
+    private static long addressOf(int slab, int offset) {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    /**
+     * A growing stack of primitive longs, so the free lists do not box every address
+     */
+    private static final class LongStack {
+
+        private long[] values = new long[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps the values as UTF-8 bytes in an {@link OffHeapArena}, so a big store does not give the garbage collector
+ * more to walk than its keys and a small slot per key telling where the value is.
+ *
+ * The chunk of a value is freed as soon as the key is written again or dropped, a reader racing with that might
+ * decode whatever the chunk holds by then, which is fine as the service validates its reads against the writers.
+ * Values that are empty, null or do not fit into the arena are kept in the slot on the heap.
+ */
+public final class OffHeapStorageEngine implements StorageEngine {
+
+    private final OffHeapArena arena;
+
+    private final Map<String,Slot> slots = new ConcurrentHashMap<>();
+
+    //The keys of the store in their order. A key gets in before its slot does and leaves after it,
+    // so a walk finds every key a lookup could
+    private final NavigableSet<String> keyIndex = new ConcurrentSkipListSet<>();
+
+    /**
+     * @param slabSize the size of a single direct buffer the values are carved from
+     * @param maxBytes the direct memory the values may take at most
+     */
+    public OffHeapStorageEngine(int slabSize, long maxBytes) {
+        this.arena = new OffHeapArena(slabSize, maxBytes);
+    }
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            return null;
+        }
+        return VersionedValue.builderFor(key)
+                .withValue(slot.address < 0 ? slot.value : arena.read(slot.address, slot.length))
+                .atTime(slot.timestamp)
+                .expiringAt(slot.expiresAt)
+                .build();
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        keyIndex.add(version.getKey());
+        free(slots.put(version.getKey(), slotOf(version)));
+    }
+
+    @Override
+    public void delete(String key) {
+        Slot slot = slots.remove(key);
+        if (slot != null) {
+            keyIndex.remove(key);
+            free(slot);
+        }
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                delete(change.getKey());
+            } else {
+                put(change.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        return (from == null ? keyIndex : keyIndex.tailSet(from, inclusive)).iterator();
+    }
+
+    @Override
+    public long size() {
+        return slots.size();
+    }
+
+    @Override
+    public Map<String,Object> statistics() {
+        return arena.statistics();
+    }
+
+    @Override
+    public void close() {
+        //the slabs go with the engine, as a reader might still be decoding from them
+    }
+
+    /**
+     * Moves the value of a version into the arena
+     *
+     * @param version
+     * @return the slot telling where the value went
+     */
+    private Slot slotOf(VersionedValue<String,String> version) {
+        String value = version.getValue();
+        if (value != null && !value.isEmpty()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            long address = arena.store(bytes);
+            if (address >= 0) {
+                return new Slot(null, address, bytes.length, version.getTimestamp(), version.getExpiresAt());
+            }
+        }
+        return new Slot(value, -1, 0, version.getTimestamp(), version.getExpiresAt());
+    }
+
+    private void free(Slot slot) {
+        if (slot != null && slot.address >= 0) {
+            arena.free(slot.address, slot.length);
+        }
+    }
+
+    /**
+     * Where the value of a key is, along with the rest of its version
+     */
+    private static final class Slot {
+
+        // The value itself when it is not in the arena
+        private final String value;
+
+        // The chunk of the value in the arena, -1 if it is not there
+        private final long address;
+        private final int length;
+
+        private final long timestamp;
+        private final long expiresAt;
+
+        private Slot(String value, long address, int length, long timestamp, long expiresAt) {
+            this.value = value;
+            this.address = address;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
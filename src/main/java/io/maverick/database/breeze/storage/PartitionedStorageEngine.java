@@ -0,0 +1,194 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits the keys by their hash over several engines of the same type, each with its own locks, memory and background
+ * threads, so the writes to different partitions do not queue up behind the same arena, memtable or writer.
+ *
+ * The partitions do not coordinate with each other: the service holds the stripes of every key a write touches while it
+ * hands the write over, and the versions of all of them come from the one commit clock, so a commit spanning several
+ * partitions is applied to all of them before anyone can read any of it.
+ */
+public final class PartitionedStorageEngine implements StorageEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedStorageEngine.class);
+
+    private final StorageEngine[] partitions;
+
+    private final LongAdder[] reads;
+    private final LongAdder[] writes;
+
+    private final long recoveredVersion;
+
+    /**
+     * @param partitions the engines, a key always has to go to the same one so their order must stay the same across restarts
+     */
+    public PartitionedStorageEngine(List<StorageEngine> partitions) {
+        this.partitions = partitions.toArray(new StorageEngine[0]);
+        this.reads = new LongAdder[this.partitions.length];
+        this.writes = new LongAdder[this.partitions.length];
+        for (int i = 0; i < this.partitions.length; i++) {
+            reads[i] = new LongAdder();
+            writes[i] = new LongAdder();
+        }
+        this.recoveredVersion = recover();
+    }
+
+    @Override
+    public VersionedValue<String,String> get(String key) {
+        int partition = partitionOf(key);
+        reads[partition].increment();
+        return partitions[partition].get(key);
+    }
+
+    @Override
+    public void put(VersionedValue<String,String> version) {
+        int partition = partitionOf(version.getKey());
+        writes[partition].increment();
+        partitions[partition].put(version);
+    }
+
+    @Override
+    public void delete(String key) {
+        int partition = partitionOf(key);
+        writes[partition].increment();
+        partitions[partition].delete(key);
+    }
+
+    @Override
+    public void apply(Map<String,VersionedValue<String,String>> changes) {
+        List<Map<String,VersionedValue<String,String>>> split = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            split.add(null);
+        }
+        for (Entry<String,VersionedValue<String,String>> change : changes.entrySet()) {
+            int partition = partitionOf(change.getKey());
+            if (split.get(partition) == null) {
+                split.set(partition, new LinkedHashMap<>());
+            }
+            split.get(partition).put(change.getKey(), change.getValue());
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            Map<String,VersionedValue<String,String>> part = split.get(i);
+            if (part != null) {
+                writes[i].add(part.size());
+                partitions[i].apply(part);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<String> keys(String from, boolean inclusive) {
+        List<Iterator<String>> walks = new ArrayList<>(partitions.length);
+        for (StorageEngine partition : partitions) {
+            walks.add(partition.keys(from, inclusive));
+        }
+        return new MergedKeys(walks);
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (StorageEngine partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    /**
+     * The figures of the partitions added up (averaged for the ratios), and the keys, reads and writes of every partition
+     *
+     * @return
+     */
+    @Override
+    public Map<String,Object> statistics() {
+        Map<String,Object> statistics = new LinkedHashMap<>();
+        Map<String,Double> ratios = new LinkedHashMap<>();
+        for (StorageEngine partition : partitions) {
+            for (Entry<String,Object> figure : partition.statistics().entrySet()) {
+                Object value = figure.getValue();
+                if (value instanceof Long) {
+                    statistics.merge(figure.getKey(), value, (sum, next) -> (Long) sum + (Long) next);
+                } else if (value instanceof Double) {
+                    ratios.merge(figure.getKey(), (Double) value, Double::sum);
+                    statistics.put(figure.getKey(), value);
+                } else {
+                    statistics.putIfAbsent(figure.getKey(), value);
+                }
+            }
+        }
+        for (Entry<String,Double> ratio : ratios.entrySet()) {
+            statistics.put(ratio.getKey(), Math.round(ratio.getValue() * 100.0 / partitions.length) / 100.0);
+        }
+        statistics.put("storage.partitions", (long) partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            statistics.put("storage.partition." + i + ".keys", partitions[i].size());
+            statistics.put("storage.partition." + i + ".reads", reads[i].sum());
+            statistics.put("storage.partition." + i + ".writes", writes[i].sum());
+        }
+        return statistics;
+    }
+
+    @Override
+    public long recoveredVersion() {
+        return recoveredVersion;
+    }
+
+    @Override
+    public void sync(long version) {
+        for (StorageEngine partition : partitions) {
+            partition.sync(version);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (StorageEngine partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (StorageEngine partition : partitions) {
+            partition.close();
+        }
+    }
+
+    /**
+     * The partition of a key, by its hash mixed so that similar keys spread evenly
+     *
+     * @param key
+     * @return
+     */
+    private int partitionOf(String key) {
+        int hash = key.hashCode() * 0x9e3779b9;
+        return Math.floorMod(hash ^ (hash >>> 15), partitions.length);
+    }
+
+    // The partitions only hold a version of the store if all of them came back with the same one
+    private long recover() {
+        long version = partitions[0].recoveredVersion();
+        boolean consistent = true;
+        for (StorageEngine partition : partitions) {
+            consistent &= partition.recoveredVersion() == version;
+        }
+        if (consistent) {
+            return version;
+        }
+        LOG.warn("The partitions came back with different versions, starting them empty for the recovery to fill");
+        clear();
+        return 0;
+    }
+}
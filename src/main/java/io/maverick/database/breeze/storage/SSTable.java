@@ -0,0 +1,438 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable file of versions sorted by their keys, written once from start to end and only read afterwards.
+ *
+ * The file is a run of blocks of about the block size, each one a run of records (the length and UTF-8 bytes of the key,
+ * whether it is a tombstone, the version and expiry time, the length and UTF-8 bytes of the value, -1 for a null one).
+ * The sparse index (the first key, the position and the CRC32 of every block) and the Bloom filter of the keys stay on the heap,
+ * so a lookup reads at most a single block, and none at all for most of the keys the table does not have.
+ *
+ * A table is shared by the readers of the trees holding it, it is closed and its file deleted once the last of them let go of it.
+ */
+final class SSTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SSTable.class);
+
+    // What the finished blocks are gathered in before they go to the file in one write
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    // The number of compactions the versions went through, a freshly flushed table is of tier 0
+    private final int tier;
+
+    // The first key of every block, where it starts and the checksum of its bytes. The last offset is the end of the file
+    private final String[] firstKeys;
+    private final long[] offsets;
+    private final int[] checksums;
+
+    private final BloomFilter bloom;
+
+    private final long records;
+
+    //The blocks and bytes read by the lookups, the walks and the compactions are not counted
+    private final LongAdder blocksRead;
+    private final LongAdder bytesRead;
+
+    //The trees holding the table, and the one creating it until it is handed over
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SSTable(Path file, FileChannel channel, int tier, List<String> firstKeys, List<Long> offsets, List<Integer> checksums,
+                    BloomFilter bloom, long records, LongAdder blocksRead, LongAdder bytesRead) {
+        this.file = file;
+        this.channel = channel;
+        this.tier = tier;
+        this.firstKeys = firstKeys.toArray(new String[0]);
+        this.offsets = new long[offsets.size()];
+        for (int i = 0; i < this.offsets.length; i++) {
+            this.offsets[i] = offsets.get(i);
+        }
+        this.checksums = new int[checksums.size()];
+        for (int i = 0; i < this.checksums.length; i++) {
+            this.checksums[i] = checksums.get(i);
+        }
+        this.bloom = bloom;
+        this.records = records;
+        this.blocksRead = blocksRead;
+        this.bytesRead = bytesRead;
+    }
+
+    /**
+     * Writes the versions handed over into a new table, with sequential writes of big buffers
+     *
+     * @param file not existing yet
+     * @param versions in the order of their keys, one per key
+     * @param expected about the number of versions, to size the Bloom filter
+     * @param tier
+     * @param blockSize
+     * @param bitsPerKey
+     * @param dropTombstones whether the tombstones can be left out, as there is nothing older they would have to hide
+     * @param blocksRead counts the blocks read by the lookups
+     * @param bytesRead counts the bytes read by the lookups
+     * @return the table, its caller holds the first reference to it
+     * @throws IOException
+     */
+    static SSTable write(Path file, Iterator<VersionedValue<String,String>> versions, long expected, int tier, int blockSize, int bitsPerKey,
+                         boolean dropTombstones, LongAdder blocksRead, LongAdder bytesRead) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            List<String> firstKeys = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            List<Integer> checksums = new ArrayList<>();
+            BloomFilter bloom = new BloomFilter(expected, bitsPerKey);
+            ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            CRC32 crc = new CRC32();
+            long position = 0;
+            long records = 0;
+
+            while (versions.hasNext()) {
+                VersionedValue<String,String> version = versions.next();
+                if (version.isDeleted() && dropTombstones) {
+                    continue;
+                }
+                byte[] key = version.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = version.getValue() == null ? null : version.getValue().getBytes(StandardCharsets.UTF_8);
+                int size = sizeOf(key, value);
+                if (block.position() > 0 && block.remaining() < size) {
+                    position = finishBlock(channel, block, output, crc, position, offsets, checksums);
+                    block = block.capacity() > blockSize ? ByteBuffer.allocate(blockSize) : block;
+                }
+                if (block.position() == 0) {
+                    //a record bigger than a block gets a block of its own
+                    block = size > block.capacity() ? ByteBuffer.allocate(size) : block;
+                    firstKeys.add(version.getKey());
+                }
+                block.putInt(key.length).put(key)
+                        .put(version.isDeleted() ? (byte) 1 : (byte) 0)
+                        .putLong(version.getTimestamp())
+                        .putLong(version.getExpiresAt())
+                        .putInt(value == null ? -1 : value.length);
+                if (value != null) {
+                    block.put(value);
+                }
+                bloom.add(version.getKey());
+                records++;
+            }
+            if (block.position() > 0) {
+                position = finishBlock(channel, block, output, crc, position, offsets, checksums);
+            }
+            drain(channel, output);
+            offsets.add(position);
+            return new SSTable(file, channel, tier, firstKeys, offsets, checksums, bloom, records, blocksRead, bytesRead);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * The bytes a version takes in a table
+     *
+     * @param version
+     * @return
+     */
+    static int sizeOf(VersionedValue<String,String> version) {
+        int size = 4 + utf8Length(version.getKey()) + 1 + 8 + 8 + 4;
+        return version.getValue() == null ? size : size + utf8Length(version.getValue());
+    }
+
+    /**
+     * Whether the table might hold a version of the key, false means it surely does not
+     *
+     * @param key
+     * @return
+     */
+    boolean mightContain(String key) {
+        return bloom.mightContain(key);
+    }
+
+    /**
+     * Looks a key up, reading the single block it would be in
+     *
+     * @param key
+     * @return the version of the key, might be a tombstone. Null if the table has none.
+     * @throws UncheckedIOException when the block cannot be read or is corrupt
+     */
+    VersionedValue<String,String> get(String key) {
+        int block = blockOf(key);
+        if (block < 0) {
+            return null;
+        }
+        ByteBuffer data = readBlock(block);
+        blocksRead.increment();
+        bytesRead.add(data.limit());
+        while (data.hasRemaining()) {
+            String candidate = readString(data);
+            int order = candidate.compareTo(key);
+            if (order == 0) {
+                return readVersion(candidate, data);
+            }
+            if (order > 0) {
+                return null;
+            }
+            skipVersion(data);
+        }
+        return null;
+    }
+
+    /**
+     * Walks the versions of the table in the order of their keys, reading block after block
+     *
+     * @param from the key to start at, null to start at the first one
+     * @param inclusive whether the walk starts with <code>from</code> itself or right after it
+     * @return the versions, tombstones included
+     */
+    Iterator<VersionedValue<String,String>> versions(String from, boolean inclusive) {
+        return new Cursor(from, inclusive);
+    }
+
+    int getTier() {
+        return tier;
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * The bytes of the file
+     *
+     * @return
+     */
+    long size() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * The heap the sparse index and the Bloom filter take
+     *
+     * @return
+     */
+    long heapSize() {
+        long size = bloom.sizeInBytes() + firstKeys.length * (8L + 4L + 16L);
+        for (String key : firstKeys) {
+            size += 40 + 2L * key.length();
+        }
+        return size;
+    }
+
+    /**
+     * Takes a reference to the table, as long as it still has any
+     *
+     * @return false if it is closed already
+     */
+    boolean retain() {
+        while (true) {
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Lets go of a reference, the last one closes the table and deletes its file
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Could not delete the table [" + file + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getFileName() + " (tier " + tier + ", " + records + " records)";
+    }
+
+    // The last block whose first key is not after the key, -1 if the key comes before every block
+    private int blockOf(String key) {
+        int index = Arrays.binarySearch(firstKeys, key);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private ByteBuffer readBlock(int block) {
+        int length = (int) (offsets[block + 1] - offsets[block]);
+        ByteBuffer data = ByteBuffer.allocate(length);
+        try {
+            long position = offsets[block];
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + data.position()) < 0) {
+                    throw new IOException("The table [" + file + "] is truncated");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the table [" + file + "]", e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), 0, length);
+        if ((int) crc.getValue() != checksums[block]) {
+            throw new UncheckedIOException(new IOException("The block [" + block + "] of the table [" + file + "] is corrupt"));
+        }
+        data.flip();
+        return data;
+    }
+
+    private static long finishBlock(FileChannel channel, ByteBuffer block, ByteBuffer output, CRC32 crc, long position,
+                                    List<Long> offsets, List<Integer> checksums) throws IOException {
+        block.flip();
+        crc.reset();
+        crc.update(block.array(), 0, block.limit());
+        offsets.add(position);
+        checksums.add((int) crc.getValue());
+        int length = block.limit();
+        if (output.remaining() < length) {
+            drain(channel, output);
+        }
+        if (output.remaining() < length) {
+            //only a block of a single huge record does not fit the buffer
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+        } else {
+            output.put(block);
+        }
+        block.clear();
+        return position + length;
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer output) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+
+    private static VersionedValue<String,String> readVersion(String key, ByteBuffer data) {
+        boolean deleted = data.get() != 0;
+        long timestamp = data.getLong();
+        long expiresAt = data.getLong();
+        String value = readString(data);
+        VersionedValue.VersionedValueBuilder<String,String> builder = VersionedValue.builderFor(key)
+                .withValue(value)
+                .atTime(timestamp)
+                .expiringAt(expiresAt);
+        return deleted ? builder.asDeletion().build() : builder.build();
+    }
+
+    private static void skipVersion(ByteBuffer data) {
+        data.position(data.position() + 1 + 8 + 8);
+        int length = data.getInt();
+        if (length > 0) {
+            data.position(data.position() + length);
+        }
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String text = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return text;
+    }
+
+    private static int sizeOf(byte[] key, byte[] value) {
+        return 4 + key.length + 1 + 8 + 8 + 4 + (value == null ? 0 : value.length);
+    }
+
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                //the pair is four bytes together
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads the blocks one after the other from the one a walk starts in
+     */
+    private final class Cursor implements Iterator<VersionedValue<String,String>> {
+
+        private int block;
+
+        private ByteBuffer data;
+
+        private VersionedValue<String,String> next;
+
+        private Cursor(String from, boolean inclusive) {
+            this.block = from == null ? 0 : Math.max(0, blockOf(from));
+            advance();
+            while (from != null && next != null && (next.getKey().compareTo(from) < 0 || (!inclusive && next.getKey().equals(from)))) {
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public VersionedValue<String,String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            VersionedValue<String,String> current = next;
+            advance();
+            return current;
+        }
+
+        private void advance() {
+            while (data == null || !data.hasRemaining()) {
+                if (block >= firstKeys.length) {
+                    next = null;
+                    return;
+                }
+                data = readBlock(block++);
+            }
+            next = readVersion(readString(data), data);
+        }
+    }
+}
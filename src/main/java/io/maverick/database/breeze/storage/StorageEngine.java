@@ -0,0 +1,109 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.domain.VersionedValue;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the newest committed version of every key, underneath the transactions of the service.
+ *
+ * The engine is a plain ordered key value store, the service does the coordination on top of it: every write reaches
+ * the engine while the service holds the lock stripes of its keys, and the older versions open transactions still read
+ * are kept by the service itself. Reads do not lock. A get might race with a write of the same key, in which case
+ * it may return anything but must not fail: the caller notices the writer and reads again.
+ *
+ * Values can be null (a key set to null still exists) and might have an expiry, tombstones never reach the engine.
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * The newest version of a key
+     *
+     * @param key
+     * @return the version, null if the key is not held. Older versions it might link to are not to be relied on.
+     */
+    VersionedValue<String,String> get(String key);
+
+    /**
+     * Makes a version the newest one of its key
+     *
+     * @param version a value, never a tombstone
+     */
+    void put(VersionedValue<String,String> version);
+
+    /**
+     * Drops a key for good, nothing happens if it is not held
+     *
+     * @param key
+     */
+    void delete(String key);
+
+    /**
+     * Applies the writes of one commit as a single unit, an engine persisting them writes them together
+     *
+     * @param changes the new versions by their keys, null for a key to drop
+     */
+    void apply(Map<String,VersionedValue<String,String>> changes);
+
+    /**
+     * Walks the keys held in their order. The walk sees every key written before it started that is still held when
+     * it gets to it, keys written or dropped while it goes might or might not show up.
+     *
+     * @param from the key to start at, null to start at the first one
+     * @param inclusive whether the walk starts with <code>from</code> itself or right after it
+     * @return
+     */
+    Iterator<String> keys(String from, boolean inclusive);
+
+    /**
+     * The number of keys held, an estimate for the engines that cannot count them cheaply
+     * @return
+     */
+    long size();
+
+    /**
+     * The figures of the engine, reported next to the ones of the store under <code>storage.*</code>
+     * @return
+     */
+    Map<String,Object> statistics();
+
+    /**
+     * The version of the store the engine came back with from its previous run, everything up to it is held already.
+     * The service only replays the writes after it.
+     *
+     * @return the version, 0 for an engine starting out empty
+     */
+    default long recoveredVersion() {
+        return 0;
+    }
+
+    /**
+     * Makes whatever the engine keeps in its own files hold every write applied so far, which brings the store up to
+     * the given version. The service calls it while no write is going on, right before closing the engine.
+     *
+     * @param version
+     */
+    default void sync(long version) {
+    }
+
+    /**
+     * Drops every key held, for when what the engine recovered is older than what the service restarts from
+     */
+    default void clear() {
+        List<String> keys = new ArrayList<>();
+        keys(null, true).forEachRemaining(keys::add);
+        for (String key : keys) {
+            delete(key);
+        }
+    }
+
+    /**
+     * Lets go of whatever the engine holds, it is not used afterwards
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,82 @@
+package io.maverick.database.breeze.storage;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The storage engines a store can be started with, picked by the <code>breeze.storage.engine</code> property.
+ */
+public enum StorageEngineType {
+
+    /**
+     * Every version on the heap, in a hash map with an ordered index of the keys next to it
+     */
+    MEMORY {
+        @Override
+        public StorageEngine create(BreezeProperties.Storage settings, Path directory) {
+            return new MemoryStorageEngine();
+        }
+    },
+
+    /**
+     * The keys on the heap, the values as UTF-8 bytes in slabs of direct memory
+     */
+    OFF_HEAP {
+        @Override
+        public StorageEngine create(BreezeProperties.Storage settings, Path directory) {
+            return new OffHeapStorageEngine(settings.getSlabSizeMb() * 1024 * 1024, settings.getMaxOffHeapMb() * 1024L * 1024L);
+        }
+    },
+
+    /**
+     * A log structured merge tree: the newest writes on the heap, the rest in sorted tables under the storage directory
+     */
+    LSM {
+        @Override
+        public StorageEngine create(BreezeProperties.Storage settings, Path directory) {
+            try {
+                return new LsmStorageEngine(directory, settings.getMemtableSizeKb() * 1024L,
+                        settings.getBlockSizeKb() * 1024, settings.getBloomBitsPerKey(), settings.getCompactionThreshold());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the storage directory [" + directory + "]", e);
+            }
+        }
+    },
+
+    /**
+     * A hash table in memory mapped files under the storage directory, mapped again on a restart after a clean shutdown
+     */
+    MAPPED {
+        @Override
+        public StorageEngine create(BreezeProperties.Storage settings, Path directory) {
+            try {
+                return new MappedStorageEngine(directory, settings.getSlotSizeBytes(), settings.getInitialSlots());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the storage directory [" + directory + "]", e);
+            }
+        }
+    };
+
+    /**
+     * Starts an engine of this type in the storage directory
+     *
+     * @param settings
+     * @return
+     */
+    public StorageEngine create(BreezeProperties.Storage settings) {
+        return create(settings, Paths.get(settings.getDirectory()));
+    }
+
+    /**
+     * Starts an engine of this type
+     *
+     * @param settings
+     * @param directory where the engines keeping their data in files keep them
+     * @return
+     */
+    public abstract StorageEngine create(BreezeProperties.Storage settings, Path directory);
+}
@@ -1,5 +1,9 @@
 package io.maverick.database.breeze;
 
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ScanPageDTO;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
 import io.maverick.database.breeze.exception.BreezeActionException;
 import io.maverick.database.breeze.exception.ErrorCode;
 import io.maverick.database.breeze.service.BreezeService;
@@ -9,6 +13,12 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -146,6 +156,132 @@ class BreezeApplicationTests {
 		assertEquals("2",breezeService.get("apple"));
 	}
 
+	@Test
+	public void whenAValueChangesAfterATransactionStarted_TheTransactionStillReadsItsSnapshot() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+
+		breezeService.put("apple","2");
+		breezeService.put("apple","3");
+
+		assertEquals("1",breezeService.get("apple","dummy"));
+		assertEquals("3",breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenAValueIsDeletedAfterATransactionStarted_TheTransactionStillReadsIt() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+
+		breezeService.delete("apple");
+
+		assertEquals("1",breezeService.get("apple","dummy"));
+		assertNull(breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenAValueIsCreatedAfterATransactionStarted_TheTransactionDoesNotSeeIt() {
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","1");
+
+		assertNull(breezeService.get("apple","dummy"));
+	}
+
+	@Test
+	public void whenATransactionChangesAValue_ItReadsItsOwnChange() {
+		breezeService.put("apple","1");
+		breezeService.put("orange","2");
+		breezeService.createTransaction("dummy");
+
+		breezeService.put("apple","2","dummy");
+		breezeService.delete("orange","dummy");
+
+		assertEquals("2",breezeService.get("apple","dummy"));
+		assertNull(breezeService.get("orange","dummy"));
+	}
+
+	@Test
+	public void whenAValueIsDeletedAfterATransactionStarted_CommittingAChangeToItFails() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","2","dummy");
+
+		breezeService.delete("apple");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.commitTransaction("dummy");
+		});
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		assertNull(breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenTheOldTransactionsConclude_TheLatestValuesAreStillServed() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("reader");
+		breezeService.put("apple","2");
+		breezeService.delete("apple");
+		breezeService.put("apple","3");
+		assertEquals("1",breezeService.get("apple","reader"));
+
+		breezeService.rollbackTransaction("reader");
+
+		assertEquals("3",breezeService.get("apple"));
+		breezeService.createTransaction("late");
+		assertEquals("3",breezeService.get("apple","late"));
+	}
+
+	@Test
+	public void whenATransactionStartsAfterACommit_ItCanChangeTheSameKeysWithoutConflict() {
+		breezeService.put("apple","1");
+
+		breezeService.createTransaction("first");
+		breezeService.put("apple","2","first");
+		breezeService.commitTransaction("first");
+
+		breezeService.createTransaction("second");
+		breezeService.put("apple","3","second");
+		breezeService.commitTransaction("second");
+
+		assertEquals("3",breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenACommitLandsAfterATransactionStarted_CommittingTheSameKeyFails() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("slow");
+		breezeService.createTransaction("fast");
+
+		breezeService.put("apple","2","fast");
+		breezeService.commitTransaction("fast");
+
+		//the slow one is doomed the moment it tries to write the key, and stays so
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.put("apple","3","slow");
+		});
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.commitTransaction("slow");
+		});
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		assertEquals("2",breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenATransactionIsCommitted_FurtherOperationsOnItAreRejected() {
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","1","dummy");
+		breezeService.commitTransaction("dummy");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.put("apple","2","dummy");
+		});
+		assertEquals(ErrorCode.UNKNOWN_TRANSACTION, exception.getErrorCode());
+		assertThrows(BreezeActionException.class, () -> breezeService.get("apple","dummy"));
+		assertThrows(BreezeActionException.class, () -> breezeService.delete("apple","dummy"));
+		assertEquals("1",breezeService.get("apple"));
+	}
+
 	@Test
 	public void whenANonExistentTransactionIsCommitted_AnErrorIsRaised() {
 		breezeService.createTransaction("dummy");
@@ -158,6 +294,355 @@ class BreezeApplicationTests {
 		assertEquals(ErrorCode.UNKNOWN_TRANSACTION, exception.getErrorCode());
 	}
 
+	@Test
+	public void whenWorkingInBatches_AllValuesAreWrittenReadAndRemovedInOneGo() {
+		Map<String,String> values = new LinkedHashMap<>();
+		values.put("apple","1");
+		values.put("pear","2");
+		breezeService.putAll(values);
+
+		Map<String,String> read = breezeService.getAll(Arrays.asList("pear","apple","plum"));
+		assertEquals(Arrays.asList("pear","apple","plum"), new ArrayList<>(read.keySet()));
+		assertEquals("2",read.get("pear"));
+		assertEquals("1",read.get("apple"));
+		assertNull(read.get("plum"));
+
+		breezeService.deleteAll(Arrays.asList("apple","plum","apple"));
+		assertNull(breezeService.get("apple"));
+		assertEquals("2",breezeService.get("pear"));
+	}
+
+	@Test
+	public void whenWorkingInBatchesInATransaction_TheChangesAreOnlyVisibleAfterCommit() {
+		breezeService.put("apple","1");
+		breezeService.put("pear","1");
+		breezeService.createTransaction("dummy");
+
+		Map<String,String> values = new LinkedHashMap<>();
+		values.put("apple","2");
+		values.put("plum","2");
+		breezeService.putAll(values,"dummy");
+		breezeService.deleteAll(Collections.singletonList("pear"),"dummy");
+		breezeService.put("cherry","1");
+
+		Map<String,String> inTransaction = breezeService.getAll(Arrays.asList("apple","pear","plum","cherry"),"dummy");
+		assertEquals("2",inTransaction.get("apple"));
+		assertNull(inTransaction.get("pear"));
+		assertEquals("2",inTransaction.get("plum"));
+		assertNull(inTransaction.get("cherry"));
+		assertEquals("1",breezeService.get("pear"));
+
+		breezeService.commitTransaction("dummy");
+		Map<String,String> committed = breezeService.getAll(Arrays.asList("apple","pear","plum","cherry"));
+		assertEquals("2",committed.get("apple"));
+		assertNull(committed.get("pear"));
+		assertEquals("2",committed.get("plum"));
+		assertEquals("1",committed.get("cherry"));
+	}
+
+	@Test
+	public void whenABatchTargetsANonExistentTransaction_AnErrorIsRaised() {
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.putAll(Collections.singletonMap("apple","1"),"dummy");
+		});
+		assertEquals(ErrorCode.UNKNOWN_TRANSACTION, exception.getErrorCode());
+		assertThrows(BreezeActionException.class, () -> breezeService.getAll(Collections.singletonList("apple"),"dummy"));
+		assertThrows(BreezeActionException.class, () -> breezeService.deleteAll(Collections.singletonList("apple"),"dummy"));
+		assertNull(breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenTheConditionsOfAnAtomicTransactionHold_AllOperationsAreApplied() {
+		breezeService.put("apple","1");
+		breezeService.put("pear","1");
+
+		Map<String,String> conditions = new LinkedHashMap<>();
+		conditions.put("apple","1");
+		conditions.put("plum",null);
+		breezeService.executeAtomically(conditions, Arrays.asList(
+				OperationDTO.put("apple","2"),
+				OperationDTO.put("plum","2"),
+				OperationDTO.delete("pear")));
+
+		assertEquals("2",breezeService.get("apple"));
+		assertEquals("2",breezeService.get("plum"));
+		assertNull(breezeService.get("pear"));
+		assertEquals(0, breezeService.getStatistics().get("transactions.active"));
+	}
+
+	@Test
+	public void whenAConditionOfAnAtomicTransactionFails_NothingIsApplied() {
+		breezeService.put("apple","1");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.executeAtomically(Collections.singletonMap("apple","0"), Arrays.asList(
+					OperationDTO.put("apple","2"),
+					OperationDTO.put("pear","2")));
+		});
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+
+		exception = assertThrows(BreezeActionException.class, () -> {
+			breezeService.executeAtomically(Collections.singletonMap("apple",null), Collections.singletonList(OperationDTO.delete("apple")));
+		});
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+
+		assertEquals("1",breezeService.get("apple"));
+		assertNull(breezeService.get("pear"));
+	}
+
+	@Test
+	public void whenAnAtomicTransactionChangesAKeyAnOpenTransactionWrites_TheOpenOneFailsToCommit() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","3","dummy");
+
+		breezeService.executeAtomically(Collections.<String,String>emptyMap(), Collections.singletonList(OperationDTO.put("apple","2")));
+
+		assertThrows(BreezeActionException.class, () -> breezeService.get("apple","dummy"));
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.commitTransaction("dummy"));
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		assertEquals("2",breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenAKeyATransactionWritesIsCommittedBySomeoneElse_TheNextOperationFailsFast() {
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","1","dummy");
+		breezeService.put("apple","2");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.put("pear","1","dummy"));
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		assertThrows(BreezeActionException.class, () -> breezeService.get("apple","dummy"));
+		assertThrows(BreezeActionException.class, () -> breezeService.commitTransaction("dummy"));
+		assertEquals("2",breezeService.get("apple"));
+		assertNull(breezeService.get("pear"));
+	}
+
+	@Test
+	public void whenAKeyWasCommittedBeforeATransactionWritesIt_TheWriteFailsFast() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple","2");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.delete("apple","dummy"));
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		breezeService.rollbackTransaction("dummy");
+		assertEquals(0, breezeService.getStatistics().get("transactions.writeIntents"));
+	}
+
+	@Test
+	public void whenAKeyATransactionOnlyReadsIsCommitted_TheTransactionStillCommits() {
+		breezeService.put("apple","1");
+		breezeService.createTransaction("dummy");
+		assertEquals("1",breezeService.get("apple","dummy"));
+		breezeService.put("pear","1","dummy");
+		breezeService.put("apple","2");
+
+		assertEquals("1",breezeService.get("apple","dummy"));
+		breezeService.commitTransaction("dummy");
+		assertEquals("1",breezeService.get("pear"));
+	}
+
+	@Test
+	public void whenScanningARange_TheKeysComeInOrderPageByPage() {
+		for (String key : Arrays.asList("user:3", "user:1", "order:1", "user:2", "user:10", "zebra")) {
+			breezeService.put(key, key.toUpperCase());
+		}
+		breezeService.delete("user:2");
+
+		ScanPageDTO<String,String> first = breezeService.scan(null, null, "user:", null, 2);
+		assertEquals(Arrays.asList("user:1", "user:10"), keysOf(first));
+		assertEquals("USER:1", first.getEntries().get(0).getValue());
+		assertEquals("user:10", first.getCursor());
+
+		ScanPageDTO<String,String> second = breezeService.scan(null, null, "user:", first.getCursor(), 2);
+		assertEquals(Collections.singletonList("user:3"), keysOf(second));
+		assertNull(second.getCursor());
+
+		assertEquals(Arrays.asList("order:1", "user:1"), keysOf(breezeService.scan("a", "user:10", null, null, 100)));
+		assertEquals(Arrays.asList("user:3", "zebra"), keysOf(breezeService.scan("user:2", null, null, null, 100)));
+		assertTrue(breezeService.scan("user:4", "user:5", null, null, 100).getEntries().isEmpty());
+	}
+
+	@Test
+	public void whenScanningInATransaction_ItsSnapshotAndItsOwnChangesAreListed() {
+		breezeService.put("a", "1");
+		breezeService.put("b", "2");
+		breezeService.put("c", "3");
+		breezeService.createTransaction("dummy");
+		breezeService.put("b", "changed", "dummy");
+		breezeService.delete("c", "dummy");
+		breezeService.put("bb", "new", "dummy");
+
+		//committed by others after the transaction started, so it does not see them
+		breezeService.put("ab", "later");
+		breezeService.delete("a");
+
+		ScanPageDTO<String,String> page = breezeService.scan(null, null, null, null, 100, "dummy");
+		assertEquals(Arrays.asList("a", "b", "bb"), keysOf(page));
+		assertEquals(Arrays.asList("1", "changed", "new"), valuesOf(page));
+		assertEquals(Arrays.asList("b", "bb"), keysOf(breezeService.scan(null, null, null, "a", 100, "dummy")));
+
+		assertEquals(Arrays.asList("ab", "b", "c"), keysOf(breezeService.scan(null, null, null, null, 100)));
+		breezeService.commitTransaction("dummy");
+		assertEquals(Arrays.asList("ab", "b", "bb"), keysOf(breezeService.scan(null, null, null, null, 100)));
+	}
+
+	@Test
+	public void whenAScanAsksForTooFewOrTooManyEntries_ItIsRefused() {
+		for (int limit : Arrays.asList(0, -1, 10_001)) {
+			BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.scan(null, null, null, null, limit));
+			assertEquals(ErrorCode.INVALID_REQUEST, exception.getErrorCode());
+		}
+	}
+
+	@Test
+	public void whenExporting_TheKeysComeInOrderAsOfTheMomentTheExportStarted() {
+		breezeService.put("b", "2");
+		breezeService.put("a", "1");
+		breezeService.put("c", "3");
+		breezeService.put("d", "gone");
+		breezeService.delete("d");
+
+		List<String> exported = new ArrayList<>();
+		long count = breezeService.export(value -> {
+			if (exported.isEmpty()) {
+				//whatever gets written while the export runs is not part of it
+				breezeService.put("b", "changed");
+				breezeService.put("bb", "new");
+				breezeService.delete("c");
+			}
+			exported.add(value.getKey() + "=" + value.getValue());
+		});
+
+		assertEquals(3, count);
+		assertEquals(Arrays.asList("a=1", "b=2", "c=3"), exported);
+		assertEquals("changed", breezeService.get("b"));
+	}
+
+	@Test
+	public void whenImporting_TheEntriesOverwriteTheStoreAndKeepTheirExpiry() {
+		breezeService.put("apple", "old");
+		breezeService.createTransaction("dummy");
+		breezeService.put("apple", "mine", "dummy");
+
+		long inAMinute = System.currentTimeMillis() + 60_000;
+		List<VersionedValue<String,String>> entries = new ArrayList<>();
+		entries.add(VersionedValue.builderFor("apple").withValue("imported").build());
+		entries.add(VersionedValue.builderFor("pear").withValue("1").expiringAt(inAMinute).build());
+		entries.add(VersionedValue.builderFor("plum").withValue("1").expiringAt(System.currentTimeMillis() - 1).build());
+		entries.add(VersionedValue.builderFor("pear").withValue("2").expiringAt(inAMinute).build());
+
+		assertEquals(2, breezeService.importAll(entries.iterator()));
+		assertEquals("imported", breezeService.get("apple"));
+		assertEquals("2", breezeService.get("pear"));
+		assertNull(breezeService.get("plum"));
+
+		List<VersionedValue<String,String>> exported = new ArrayList<>();
+		breezeService.export(exported::add);
+		assertEquals(inAMinute, exported.get(1).getExpiresAt());
+
+		//an import is a write like any other for the transactions writing the same keys
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.commitTransaction("dummy"));
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+	}
+
+	@Test
+	public void whenPuttingIfAbsent_OnlyTheFirstWriteWins() {
+		long version = breezeService.putIfAbsent("apple", "1");
+		assertEquals(version, (long) breezeService.getVersioned("apple").getVersion());
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.putIfAbsent("apple", "2"));
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+		assertEquals("1", breezeService.get("apple"));
+
+		//a deleted key is as good as one never written
+		breezeService.delete("apple");
+		breezeService.putIfAbsent("apple", "3");
+		assertEquals("3", breezeService.get("apple"));
+	}
+
+	@Test
+	public void whenWritingAtAVersion_OnlyTheVersionLastReadIsAccepted() {
+		breezeService.put("apple", "1");
+		ValueDTO<String,String> read = breezeService.getVersioned("apple");
+		assertEquals("1", read.getValue());
+
+		long written = breezeService.putIfVersion("apple", "2", read.getVersion());
+		assertTrue(written > read.getVersion());
+		for (long stale : Arrays.asList(read.getVersion(), written + 1)) {
+			BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.putIfVersion("apple", "3", stale));
+			assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+			exception = assertThrows(BreezeActionException.class, () -> breezeService.deleteIfVersion("apple", stale));
+			assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+		}
+		assertEquals("2", breezeService.get("apple"));
+
+		breezeService.deleteIfVersion("apple", written);
+		assertNull(breezeService.get("apple"));
+		assertNull(breezeService.getVersioned("apple").getVersion());
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.putIfVersion("apple", "4", written));
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+	}
+
+	@Test
+	public void whenWritingIfPresent_OnlyAnExistingKeyIsWritten() {
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.putIfPresent("apple", "1"));
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+		exception = assertThrows(BreezeActionException.class, () -> breezeService.deleteIfPresent("apple"));
+		assertEquals(ErrorCode.PRECONDITION_FAILED, exception.getErrorCode());
+		assertNull(breezeService.get("apple"));
+
+		breezeService.put("apple", "1");
+		long written = breezeService.putIfPresent("apple", "2");
+		assertEquals(written, (long) breezeService.getVersioned("apple").getVersion());
+		assertEquals("2", breezeService.get("apple"));
+
+		breezeService.deleteIfPresent("apple");
+		assertNull(breezeService.get("apple"));
+		assertThrows(BreezeActionException.class, () -> breezeService.putIfPresent("apple", "3"));
+	}
+
+	@Test
+	public void whenIncrementing_AMissingCounterStartsAtZeroAndOnlyWholeNumbersCount() {
+		assertEquals(1, breezeService.increment("hits", 1));
+		assertEquals(11, breezeService.increment("hits", 10));
+		assertEquals(8, breezeService.increment("hits", -3));
+		assertEquals("8", breezeService.get("hits"));
+
+		breezeService.put("name", "apple");
+		breezeService.put("max", Long.toString(Long.MAX_VALUE));
+		for (String key : Arrays.asList("name", "max")) {
+			BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.increment(key, 1));
+			assertEquals(ErrorCode.INVALID_REQUEST, exception.getErrorCode());
+		}
+		assertEquals("apple", breezeService.get("name"));
+
+		//a conditional write is a write like any other for the transactions writing the same key
+		breezeService.createTransaction("dummy");
+		breezeService.put("hits", "0", "dummy");
+		breezeService.increment("hits", 1);
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> breezeService.commitTransaction("dummy"));
+		assertEquals(ErrorCode.UNCOMMITABLE_TRANSACTION, exception.getErrorCode());
+		assertEquals("9", breezeService.get("hits"));
+	}
+
+	private static List<String> keysOf(ScanPageDTO<String,String> page) {
+		List<String> keys = new ArrayList<>();
+		for (ValueDTO<String,String> entry : page.getEntries()) {
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+
+	private static List<String> valuesOf(ScanPageDTO<String,String> page) {
+		List<String> values = new ArrayList<>();
+		for (ValueDTO<String,String> entry : page.getEntries()) {
+			values.add(entry.getValue());
+		}
+		return values;
+	}
+
 	@Test
 	public void whenTwoThreadsUpdateTheSameValue_TheLatterOnePrevails() throws InterruptedException {
 		ExecutorService executor = Executors.newFixedThreadPool(2);
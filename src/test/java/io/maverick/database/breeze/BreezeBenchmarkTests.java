@@ -0,0 +1,241 @@
+package io.maverick.database.breeze;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.AtomicTransactionDTO;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.persistence.TransferFormat;
+import io.maverick.database.breeze.service.BreezeService;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Benchmarks comparing different ways of getting the same work done through the rest api.
+ *
+ * Every request goes through the whole spring mvc stack (json mapping included) on top of a real service instance,
+ * only the network is left out, so the figures are the server side cost of each approach.
+ */
+class BreezeBenchmarkTests {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeBenchmarkTests.class);
+
+	private static final int KEYS = 200;
+
+	private static final int ROUNDS = 20;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private BreezeService<String,String> service;
+
+	private MockMvc mockMvc;
+
+	@BeforeEach
+	public void startService() {
+		service = new BreezeServiceImpl(new BreezeProperties());
+		mockMvc = MockMvcBuilders.standaloneSetup(new BreezeController(service)).build();
+	}
+
+	@Test
+	public void whenComparingSingleCallsToBatches_TheBatchesDoTheSameWorkInOneCall() throws Exception {
+		List<String> keys = new ArrayList<>(KEYS);
+		List<ValueDTO<String,String>> values = new ArrayList<>(KEYS);
+		for (int i = 0; i < KEYS; i++) {
+			keys.add("key-" + i);
+			values.add(new ValueDTO<>("key-" + i, "value-" + i));
+		}
+		String keysJson = mapper.writeValueAsString(keys);
+		String valuesJson = mapper.writeValueAsString(values);
+
+		//a round of each to warm up the mvc stack and the jit
+		runSingleCalls(values);
+		runBatchCalls(keysJson, valuesJson);
+
+		long singles = 0;
+		long batches = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			singles += runSingleCalls(values);
+			batches += runBatchCalls(keysJson, valuesJson);
+		}
+
+		LOG.info("Writing, reading and deleting [" + KEYS + "] keys: single calls=["
+				+ TimeUnit.NANOSECONDS.toMicros(singles / ROUNDS) + " us], batch calls=["
+				+ TimeUnit.NANOSECONDS.toMicros(batches / ROUNDS) + " us], speedup=["
+				+ String.format("%.1f", singles / (double) Math.max(1, batches)) + "x]");
+
+		for (String key : keys) {
+			assertNull(service.get(key));
+		}
+	}
+
+	@Test
+	public void whenComparingTransactionStyles_TheAtomicEndpointNeedsOneCallAndNoServerSideState() throws Exception {
+		//a typical short transaction: move one unit between two keys
+		for (int i = 0; i < KEYS; i++) {
+			service.put("from-" + i, "1");
+			service.put("to-" + i, "0");
+		}
+
+		//a round of each to warm up the mvc stack and the jit
+		runInteractiveTransaction(0, "warmup");
+		runAtomicTransaction(1);
+
+		long interactive = 0;
+		long atomic = 0;
+		for (int i = 2; i < KEYS; i += 2) {
+			interactive += runInteractiveTransaction(i, "transfer-" + i);
+			atomic += runAtomicTransaction(i + 1);
+		}
+
+		int transactions = KEYS / 2 - 1;
+		LOG.info("Running [" + transactions + "] short transactions: interactive (4 calls)=["
+				+ TimeUnit.NANOSECONDS.toMicros(interactive / transactions) + " us], atomic (1 call)=["
+				+ TimeUnit.NANOSECONDS.toMicros(atomic / transactions) + " us], speedup=["
+				+ String.format("%.1f", interactive / (double) Math.max(1, atomic)) + "x]");
+
+		for (int i = 0; i < KEYS; i++) {
+			assertEquals("0", service.get("from-" + i));
+			assertEquals("1", service.get("to-" + i));
+		}
+		assertEquals(0, service.getStatistics().get("transactions.active"));
+	}
+
+	@Test
+	public void whenMovingAStoreOverInBulk_AMillionKeysTakeSeconds() throws Exception {
+		int keys = 1_000_000;
+		List<VersionedValue<String,String>> entries = new ArrayList<>(keys);
+		for (int i = 0; i < keys; i++) {
+			entries.add(VersionedValue.builderFor(String.format("key-%07d", i)).withValue("value-" + i).build());
+		}
+		service.importAll(entries.iterator());
+		entries.clear();
+
+		for (TransferFormat format : TransferFormat.values()) {
+			long started = System.nanoTime();
+			MvcResult export = mockMvc.perform(get("/export").param("format", format.name().toLowerCase()))
+					.andExpect(request().asyncStarted())
+					.andReturn();
+			mockMvc.perform(asyncDispatch(export))
+					.andExpect(status().isOk())
+					.andExpect(content().contentType(format.getContentType()));
+			byte[] dump = export.getResponse().getContentAsByteArray();
+			long exported = System.nanoTime() - started;
+
+			BreezeService<String,String> target = new BreezeServiceImpl(new BreezeProperties());
+			MockMvc targetMvc = MockMvcBuilders.standaloneSetup(new BreezeController(target)).build();
+			started = System.nanoTime();
+			targetMvc.perform(post("/import").param("format", format.name()).content(dump))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$").value(is(keys)));
+			long imported = System.nanoTime() - started;
+
+			LOG.info("Moving [" + keys + "] keys as " + format + " (" + dump.length / 1024 / 1024 + " MB): export=["
+					+ TimeUnit.NANOSECONDS.toMillis(exported) + " ms], import=[" + TimeUnit.NANOSECONDS.toMillis(imported)
+					+ " ms], that is [" + keys * 1_000_000_000L / Math.max(1, imported) + "] keys per second imported");
+
+			assertEquals((long) keys, target.getStatistics().get("store.keys"));
+			assertEquals("value-999999", target.get("key-0999999"));
+			assertEquals("key-0000000", target.scan(null, null, null, null, 1).getEntries().get(0).getKey());
+		}
+	}
+
+	/**
+	 * Moves the unit of one pair of keys through an explicitly opened transaction
+	 *
+	 * @return the time it took in nanos
+	 */
+	private long runInteractiveTransaction(int pair, String transactionId) throws Exception {
+		long started = System.nanoTime();
+		mockMvc.perform(post("/transaction/" + transactionId))
+				.andExpect(status().isOk());
+		mockMvc.perform(post("/entry/from-" + pair + "/transaction/" + transactionId).contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(new ValueDTO<>("from-" + pair, "0"))))
+				.andExpect(status().isOk());
+		mockMvc.perform(post("/entry/to-" + pair + "/transaction/" + transactionId).contentType(MediaType.APPLICATION_JSON)
+				.content(mapper.writeValueAsString(new ValueDTO<>("to-" + pair, "1"))))
+				.andExpect(status().isOk());
+		mockMvc.perform(post("/transaction/" + transactionId + "/commit"))
+				.andExpect(status().isOk());
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Moves the unit of one pair of keys with a single atomic call, guarded by the values expected
+	 *
+	 * @return the time it took in nanos
+	 */
+	private long runAtomicTransaction(int pair) throws Exception {
+		Map<String,String> conditions = new LinkedHashMap<>();
+		conditions.put("from-" + pair, "1");
+		conditions.put("to-" + pair, "0");
+		String request = mapper.writeValueAsString(new AtomicTransactionDTO<>(conditions, Arrays.asList(
+				OperationDTO.put("from-" + pair, "0"),
+				OperationDTO.put("to-" + pair, "1"))));
+
+		long started = System.nanoTime();
+		mockMvc.perform(post("/atomic").contentType(MediaType.APPLICATION_JSON).content(request))
+				.andExpect(status().isOk());
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Writes, reads and deletes every key with one call per key and operation
+	 *
+	 * @return the time it took in nanos
+	 */
+	private long runSingleCalls(List<ValueDTO<String,String>> values) throws Exception {
+		long started = System.nanoTime();
+		for (ValueDTO<String,String> value : values) {
+			mockMvc.perform(post("/entry/" + value.getKey()).contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(value)))
+					.andExpect(status().isOk());
+		}
+		for (ValueDTO<String,String> value : values) {
+			mockMvc.perform(get("/entry/" + value.getKey()))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$.value").value(is(value.getValue())));
+		}
+		for (ValueDTO<String,String> value : values) {
+			mockMvc.perform(delete("/entry/" + value.getKey()))
+					.andExpect(status().isOk());
+		}
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Writes, reads and deletes every key with one batch call per operation
+	 *
+	 * @return the time it took in nanos
+	 */
+	private long runBatchCalls(String keysJson, String valuesJson) throws Exception {
+		long started = System.nanoTime();
+		mockMvc.perform(post("/entries").contentType(MediaType.APPLICATION_JSON).content(valuesJson))
+				.andExpect(status().isOk());
+		mockMvc.perform(post("/entries/get").contentType(MediaType.APPLICATION_JSON).content(keysJson))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$", hasSize(KEYS)))
+				.andExpect(jsonPath("$[0].value").value(is("value-0")));
+		mockMvc.perform(post("/entries/delete").contentType(MediaType.APPLICATION_JSON).content(keysJson))
+				.andExpect(status().isOk());
+		return System.nanoTime() - started;
+	}
+}
@@ -0,0 +1,193 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the cache in front of an engine holding its data in files: the hot keys have to be served from memory within
+ * the budget, whatever else gets walked meanwhile, and no read may ever give back a version a write replaced.
+ *
+ * They build the service with storage settings of their own, the lsm engine with tiny memtables behind a small cache.
+ */
+class BreezeCacheTests extends StoreFixture {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeCacheTests.class);
+
+	private static final int KEYS = 20_000;
+
+	private static final int HOT_KEYS = 200;
+
+	private static final String PADDING = "0123456789012345678901234567890123456789012345678901234567890123456789012345678901234567890123456789";
+
+	@Test
+	public void whenTheHotKeysAreReadAgain_TheyAreServedFromTheCacheWithinItsBudget() {
+		service = new BreezeServiceImpl(createProperties(256));
+		fill();
+		readHotKeys(20);
+		Map<String,Object> before = service.getStatistics();
+		readHotKeys(10);
+		Map<String,Object> after = service.getStatistics();
+
+		LOG.info("After reading the hot keys: " + after);
+		assertTrue(hitRate(before, after) > 0.95, "the hot keys should be served from the cache");
+		assertTrue((Long) after.get("storage.cache.residentBytes") <= 256 * 1024);
+		assertTrue((Long) after.get("storage.cache.entries") >= HOT_KEYS);
+		assertNotNull(after.get("storage.cache.hitRate"));
+	}
+
+	@Test
+	public void whenEveryKeyIsWalkedOnce_TheHotKeysStayCached() {
+		service = new BreezeServiceImpl(createProperties(256));
+		fill();
+		readHotKeys(20);
+
+		//the export and a scan read every key once, each of them missing the cache
+		assertEquals((long) KEYS, service.export(value -> { }));
+		String cursor = null;
+		do {
+			cursor = service.scan(null, null, null, cursor, 1000).getCursor();
+		} while (cursor != null);
+		Map<String,Object> walked = service.getStatistics();
+		readHotKeys(10);
+		Map<String,Object> after = service.getStatistics();
+
+		LOG.info("After walking every key: " + after);
+		assertTrue((Long) walked.get("storage.cache.evictions") > 0);
+		assertTrue((Long) walked.get("storage.cache.rejections") > KEYS / 2, "the keys read once should mostly not be kept");
+		assertTrue(hitRate(walked, after) > 0.95, "the walk should not have pushed out the hot keys");
+		assertTrue((Long) after.get("storage.cache.residentBytes") <= 256 * 1024);
+	}
+
+	@Test
+	public void whenATransactionCommits_TheCachedVersionsOfItsKeysAreReplaced() {
+		service = new BreezeServiceImpl(createProperties(256));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		service.put("cherry", "3");
+		for (int i = 0; i < 3; i++) {
+			assertEquals("1", service.get("apple"));
+			assertEquals("2", service.get("banana"));
+			assertEquals("3", service.get("cherry"));
+		}
+		assertTrue((Long) service.getStatistics().get("storage.cache.hits") > 0);
+
+		service.createTransaction("writer");
+		service.put("apple", "10", "writer");
+		service.delete("banana", "writer");
+		assertEquals("1", service.get("apple"));
+		service.commitTransaction("writer");
+		assertEquals("10", service.get("apple"));
+		assertNull(service.get("banana"));
+
+		Map<String,String> batch = new HashMap<>();
+		batch.put("cherry", "30");
+		batch.put("date", "40");
+		service.putAll(batch);
+		assertEquals("30", service.get("cherry"));
+		assertEquals("40", service.get("date"));
+		assertTrue((Long) service.getStatistics().get("storage.cache.invalidations") >= 3);
+	}
+
+	@Test
+	public void whenReadersRaceWithWriters_NoStaleVersionStaysCached() throws Exception {
+		service = new BreezeServiceImpl(createProperties(64));
+		int keys = 100;
+		for (int i = 0; i < keys; i++) {
+			service.put("counter-" + i, "0");
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		int[] written = new int[keys];
+		try {
+			Future<Integer> writer = executor.submit(() -> {
+				Random random = new Random(11);
+				for (int i = 0; i < 20_000; i++) {
+					int key = random.nextInt(keys);
+					service.put("counter-" + key, String.valueOf(++written[key]));
+					//filler pushing the counters out of the cache every now and then
+					service.put("filler-" + i, "filler");
+					service.get("filler-" + random.nextInt(i + 1));
+				}
+				running.set(false);
+				return 20_000;
+			});
+			List<Future<Integer>> readers = new ArrayList<>();
+			for (int reader = 0; reader < 3; reader++) {
+				readers.add(executor.submit(() -> {
+					Random random = new Random();
+					int reads = 0;
+					do {
+						assertNotNull(service.get("counter-" + random.nextInt(keys)));
+						reads++;
+					} while (running.get());
+					return reads;
+				}));
+			}
+			assertEquals(20_000, writer.get(60, TimeUnit.SECONDS));
+			for (Future<Integer> reader : readers) {
+				assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		//read twice, so the second read comes from the cache whatever the first one did
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < keys; i++) {
+				assertEquals(String.valueOf(written[i]), service.get("counter-" + i), "counter-" + i);
+			}
+		}
+	}
+
+	// Writes the keys, a value of about a hundred characters each
+	private void fill() {
+		for (int i = 0; i < KEYS; i++) {
+			service.put(keyOf(i), "value-" + i + "-" + PADDING);
+		}
+	}
+
+	// Reads every hot key once a round, the rest of the keys are left alone
+	private void readHotKeys(int rounds) {
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < HOT_KEYS; i++) {
+				int key = i * (KEYS / HOT_KEYS);
+				assertEquals("value-" + key + "-" + PADDING, service.get(keyOf(key)));
+			}
+		}
+	}
+
+	private static double hitRate(Map<String,Object> before, Map<String,Object> after) {
+		long hits = (Long) after.get("storage.cache.hits") - (Long) before.get("storage.cache.hits");
+		long misses = (Long) after.get("storage.cache.misses") - (Long) before.get("storage.cache.misses");
+		return hits / (double) Math.max(1, hits + misses);
+	}
+
+	private static String keyOf(int key) {
+		return String.format("key-%06d", key);
+	}
+
+	private BreezeProperties createProperties(int cacheSizeKb) {
+		BreezeProperties properties = createProperties(StorageEngineType.LSM, false);
+		properties.getStorage().setMemtableSizeKb(64);
+		properties.getStorage().setCacheSizeKb(cacheSizeKb);
+		return properties;
+	}
+}
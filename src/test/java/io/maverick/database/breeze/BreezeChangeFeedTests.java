@@ -0,0 +1,245 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.service.ChangeSubscription;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the change feed: what the subscribers get, in what order, and what happens to the ones falling behind.
+ *
+ * They build the service with feed settings of their own instead of using the spring context.
+ */
+class BreezeChangeFeedTests extends StoreFixture {
+
+	@Test
+	public void whenWritesAreCommitted_EveryOneArrivesAsOneEventInOrder() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(100, 1000, 10));
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			service.put("apple", "1");
+			service.delete("apple");
+			//removing a key that is not there is not a write at all
+			service.delete("missing");
+			Map<String,String> batch = new LinkedHashMap<>();
+			batch.put("banana", "2");
+			batch.put("cherry", "3");
+			service.putAll(batch);
+			service.createTransaction("basket");
+			service.put("date", "4", "basket");
+			service.delete("banana", "basket");
+			service.commitTransaction("basket");
+			service.executeAtomically(Collections.singletonMap("cherry", "3"),
+					Collections.singletonList(OperationDTO.put("cherry", "30")));
+
+			List<ChangeEventDTO<String,String>> events = take(subscription, 5);
+			assertEquals(Collections.singletonList("apple=1"), describe(events.get(0)));
+			assertEquals(Collections.singletonList("apple deleted"), describe(events.get(1)));
+			assertEquals(Arrays.asList("banana=2", "cherry=3"), describe(events.get(2)));
+			assertEquals(new HashSet<>(Arrays.asList("banana deleted", "date=4")), new HashSet<>(describe(events.get(3))));
+			assertEquals(Collections.singletonList("cherry=30"), describe(events.get(4)));
+			for (int i = 1; i < events.size(); i++) {
+				assertTrue(events.get(i).getSequence() > events.get(i - 1).getSequence());
+			}
+			assertEquals(events.get(4).getSequence(), service.getStatistics().get("version.current"));
+			assertNull(subscription.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	public void whenSubscribingWithAPrefix_OnlyTheMatchingChangesArrive() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(100, 1000, 10));
+		try (ChangeSubscription<String,String> subscription = service.subscribe("user:", null)) {
+			service.put("order:1", "pending");
+			Map<String,String> batch = new LinkedHashMap<>();
+			batch.put("order:2", "pending");
+			batch.put("user:1", "alice");
+			service.putAll(batch);
+			service.put("user:2", "bob", 60_000);
+
+			List<ChangeEventDTO<String,String>> events = take(subscription, 2);
+			assertEquals(Collections.singletonList("user:1=alice"), describe(events.get(0)));
+			assertEquals(Collections.singletonList("user:2=bob"), describe(events.get(1)));
+			assertTrue(events.get(1).getChanges().get(0).getExpiresAt() > System.currentTimeMillis());
+			assertNull(subscription.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	public void whenResumingAfterASequence_TheEventsMissedArriveFirst() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(100, 5, 10));
+		long seen;
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			service.put("apple", "1");
+			seen = take(subscription, 1).get(0).getSequence();
+		}
+		service.put("banana", "2");
+		service.put("cherry", "3");
+
+		try (ChangeSubscription<String,String> resumed = service.subscribe(null, seen)) {
+			service.put("date", "4");
+			List<ChangeEventDTO<String,String>> events = take(resumed, 3);
+			assertEquals(Collections.singletonList("banana=2"), describe(events.get(0)));
+			assertEquals(Collections.singletonList("cherry=3"), describe(events.get(1)));
+			assertEquals(Collections.singletonList("date=4"), describe(events.get(2)));
+		}
+
+		//only the last five changes are kept, the ones after the first write are gone by now
+		for (int i = 0; i < 5; i++) {
+			service.put("key-" + i, "value");
+		}
+		BreezeActionException e = assertThrows(BreezeActionException.class, () -> service.subscribe(null, seen));
+		assertEquals(ErrorCode.CHANGES_UNAVAILABLE, e.getErrorCode());
+	}
+
+	@Test
+	public void whenNothingIsKeptAndNobodyListens_TheWritesStillTakeTheirPlaceInTheSequence() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(100, 0, 10));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		long current = (Long) service.getStatistics().get("version.current");
+		assertEquals(current, service.getStatistics().get("changes.published"));
+
+		//without a history only the writes from now on can be streamed
+		BreezeActionException e = assertThrows(BreezeActionException.class, () -> service.subscribe(null, current - 1));
+		assertEquals(ErrorCode.CHANGES_UNAVAILABLE, e.getErrorCode());
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			service.put("cherry", "3");
+			ChangeEventDTO<String,String> event = take(subscription, 1).get(0);
+			assertEquals(current + 1, event.getSequence());
+			assertEquals(Collections.singletonList("cherry=3"), describe(event));
+		}
+
+		//once the last subscriber is gone the next writes are not shipped anywhere again
+		service.put("date", "4");
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			service.put("elderberry", "5");
+			assertEquals(Collections.singletonList("elderberry=5"), describe(take(subscription, 1).get(0)));
+		}
+	}
+
+	@Test
+	public void whenASubscriberFallsBehind_ItIsCutOffWithoutHoldingUpTheWriters() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(10, 1000, 10));
+		ChangeSubscription<String,String> slow = service.subscribe(null, null);
+		for (int i = 0; i < 100; i++) {
+			service.put("key-" + i, "value");
+		}
+
+		//it gets what fit into its buffer, then learns it has to resume
+		List<ChangeEventDTO<String,String>> events = take(slow, 10);
+		BreezeActionException e = assertThrows(BreezeActionException.class, () -> slow.poll(1, TimeUnit.SECONDS));
+		assertEquals(ErrorCode.SUBSCRIPTION_OVERFLOW, e.getErrorCode());
+		assertEquals(1L, service.getStatistics().get("changes.overflows"));
+		slow.close();
+
+		try (ChangeSubscription<String,String> resumed = service.subscribe(null, events.get(9).getSequence())) {
+			List<ChangeEventDTO<String,String>> rest = take(resumed, 10);
+			assertEquals(Collections.singletonList("key-10=value"), describe(rest.get(0)));
+		}
+	}
+
+	@Test
+	public void whenWritersRaceOnDifferentStripes_TheSequenceNeverGoesBackwards() throws Exception {
+		int writers = 4;
+		int writes = 5000;
+		service = new BreezeServiceImpl(createProperties(writers * writes, 1000, 10));
+		ExecutorService executor = Executors.newFixedThreadPool(writers);
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int writer = 0; writer < writers; writer++) {
+				final int id = writer;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < writes; i++) {
+						service.put("writer-" + id + "-" + i, "value");
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+			//no write failed, so the sequences are not only growing but follow each other
+			List<ChangeEventDTO<String,String>> events = take(subscription, writers * writes);
+			for (int i = 1; i < events.size(); i++) {
+				assertEquals(events.get(i - 1).getSequence() + 1, events.get(i).getSequence());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void whenImporting_EveryBatchArrivesAsOneEvent() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(100, 100_000, 10));
+		try (ChangeSubscription<String,String> subscription = service.subscribe(null, null)) {
+			List<VersionedValue<String,String>> entries = new ArrayList<>();
+			for (int i = 0; i < 15_000; i++) {
+				entries.add(VersionedValue.builderFor("key-" + i).withValue("value").build());
+			}
+			service.importAll(entries.iterator());
+
+			List<ChangeEventDTO<String,String>> events = take(subscription, 2);
+			assertEquals(10_000, events.get(0).getChanges().size());
+			assertEquals(5_000, events.get(1).getChanges().size());
+		}
+	}
+
+	@Test
+	public void whenThereAreTooManySubscriptions_TheNextOneIsRefusedUntilOneCloses() {
+		service = new BreezeServiceImpl(createProperties(100, 1000, 2));
+		ChangeSubscription<String,String> first = service.subscribe(null, null);
+		service.subscribe("user:", null);
+		BreezeActionException e = assertThrows(BreezeActionException.class, () -> service.subscribe(null, null));
+		assertEquals(ErrorCode.TOO_MANY_SUBSCRIPTIONS, e.getErrorCode());
+
+		first.close();
+		service.subscribe(null, null);
+		assertEquals(2, service.getStatistics().get("changes.subscriptions"));
+	}
+
+	private static List<ChangeEventDTO<String,String>> take(ChangeSubscription<String,String> subscription, int count) throws InterruptedException {
+		List<ChangeEventDTO<String,String>> events = new ArrayList<>();
+		while (events.size() < count) {
+			ChangeEventDTO<String,String> event = subscription.poll(5, TimeUnit.SECONDS);
+			assertNotNull(event, "only [" + events.size() + "] events arrived out of [" + count + "]");
+			events.add(event);
+		}
+		return events;
+	}
+
+	private static List<String> describe(ChangeEventDTO<String,String> event) {
+		List<String> changes = new ArrayList<>();
+		for (ChangeDTO<String,String> change : event.getChanges()) {
+			changes.add(change.isDeleted() ? change.getKey() + " deleted" : change.getKey() + "=" + change.getValue());
+		}
+		return changes;
+	}
+
+	private static BreezeProperties createProperties(int bufferSize, int historySize, int maxSubscriptions) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getChanges().setBufferSize(bufferSize);
+		properties.getChanges().setHistorySize(historySize);
+		properties.getChanges().setMaxSubscriptions(maxSubscriptions);
+		return properties;
+	}
+}
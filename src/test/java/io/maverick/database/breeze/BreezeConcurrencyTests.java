@@ -0,0 +1,583 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.service.BreezeService;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Stress tests hammering a service instance from many threads at once.
+ *
+ * They do not need the spring context, every test builds the service it needs with the properties it wants to compare.
+ */
+class BreezeConcurrencyTests {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeConcurrencyTests.class);
+
+	private static final int OPERATIONS_PER_THREAD = 20_000;
+
+	private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+	// The number of operations each transaction of the abort heavy load wants to run before committing
+	private static final int ABORT_HEAVY_OPERATIONS = 20;
+
+	// Every service a test built, stopped after it
+	private final List<BreezeServiceImpl> services = new ArrayList<>();
+
+	@AfterEach
+	public void stopServices() {
+		for (BreezeServiceImpl service : services) {
+			service.shutdown();
+		}
+	}
+
+	@Test
+	public void whenThreadsWorkOnDistinctKeys_ThroughputScalesWithTheStripes() throws Exception {
+		//warming up first, so the first configuration measured does not pay for the compilation of the others
+		runWriteHeavyLoad(createService(64), 8);
+
+		Map<Integer,Double> busiest = new HashMap<>();
+		for (int stripes : new int[]{1, 64}) {
+			for (int threads : THREAD_COUNTS) {
+				BreezeService<String,String> service = createService(stripes);
+				double throughput = runWriteHeavyLoad(service, threads);
+				LOG.info("stripes=[" + stripes + "] threads=[" + threads + "] throughput=[" + (long) throughput + " ops/s]");
+				busiest.put(stripes, throughput);
+			}
+		}
+
+		//with fewer cores than threads the single lock is hardly contended, there is nothing the stripes could win
+		assumeTrue(Runtime.getRuntime().availableProcessors() >= 4, "Not enough cores to compare the throughput of the stripes");
+		assertTrue(busiest.get(64) > busiest.get(1), "64 stripes did [" + busiest.get(64).longValue() + " ops/s] at "
+				+ THREAD_COUNTS[THREAD_COUNTS.length - 1] + " threads, one stripe [" + busiest.get(1).longValue() + " ops/s]");
+	}
+
+	@Test
+	public void whenThreadsWorkOnDistinctKeys_NoUpdateIsLost() throws Exception {
+		BreezeService<String,String> service = createService(64);
+		runWriteHeavyLoad(service, 8);
+
+		for (int thread = 0; thread < 8; thread++) {
+			for (int key = 0; key < 100; key++) {
+				assertEquals("last", service.get(keyFor(thread, key)));
+			}
+		}
+	}
+
+	@Test
+	public void whenTransfersAreCommittedConcurrently_TheWriteSetsAreAppliedAtomically() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		final int accounts = 16;
+		for (int i = 0; i < accounts; i++) {
+			service.put("account-" + i, "100");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<>();
+		for (int thread = 0; thread < 8; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 500; i++) {
+					String from = "account-" + random.nextInt(accounts);
+					String to = "account-" + random.nextInt(accounts);
+					if (from.equals(to)) {
+						continue;
+					}
+					String transactionId = "transfer-" + threadId + "-" + i;
+					service.createTransaction(transactionId);
+					int fromBalance = Integer.parseInt(service.get(from));
+					int toBalance = Integer.parseInt(service.get(to));
+					try {
+						service.put(from, String.valueOf(fromBalance - 1), transactionId);
+						service.put(to, String.valueOf(toBalance + 1), transactionId);
+						service.commitTransaction(transactionId);
+					} catch (BreezeActionException e) {
+						//a conflicting transfer won, this one is simply lost which keeps the sum intact
+						rollbackIfOpen(service, transactionId);
+					}
+				}
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+
+		int sum = 0;
+		for (int i = 0; i < accounts; i++) {
+			sum += Integer.parseInt(service.get("account-" + i));
+		}
+		assertEquals(accounts * 100, sum);
+	}
+
+	@Test
+	public void whenBatchesAreWrittenConcurrently_ABatchReadNeverSeesHalfOfOne() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		final List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 32; i++) {
+			keys.add("batch-key-" + i);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<?>> results = new ArrayList<>();
+		for (int thread = 0; thread < 2; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				for (int round = 0; round < 2_000; round++) {
+					Map<String,String> values = new HashMap<>();
+					for (String key : keys) {
+						values.put(key, threadId + "-" + round);
+					}
+					service.putAll(values);
+				}
+				return null;
+			}));
+		}
+		for (int thread = 0; thread < 2; thread++) {
+			results.add(executor.submit(() -> {
+				for (int round = 0; round < 2_000; round++) {
+					assertEquals(1, new HashSet<>(service.getAll(keys).values()).size());
+				}
+				return null;
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void whenKeysAreCreatedAndChangedConcurrently_AScanAlwaysSeesAConsistentSnapshot() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		final int accounts = 50;
+		for (int i = 0; i < accounts; i++) {
+			service.put("account-" + i, "100");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<?>> results = new ArrayList<>();
+		for (int thread = 0; thread < 2; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				//every round moves a unit from an account into a key that did not exist before
+				for (int round = 0; round < 2_000; round++) {
+					String source = "account-" + ThreadLocalRandom.current().nextInt(accounts);
+					String balance = service.get(source);
+					if (Integer.parseInt(balance) == 0) {
+						continue;
+					}
+					try {
+						service.executeAtomically(Collections.singletonMap(source, balance), Arrays.asList(
+								OperationDTO.put(source, String.valueOf(Integer.parseInt(balance) - 1)),
+								OperationDTO.put("spill-" + threadId + "-" + round, "1")));
+					} catch (BreezeActionException e) {
+						//the other thread changed the account in the meantime
+					}
+				}
+				return null;
+			}));
+		}
+		for (int thread = 0; thread < 2; thread++) {
+			results.add(executor.submit(() -> {
+				for (int round = 0; round < 300; round++) {
+					int sum = 0;
+					for (ValueDTO<String,String> entry : service.scan(null, null, null, null, 10_000).getEntries()) {
+						sum += Integer.parseInt(entry.getValue());
+					}
+					assertEquals(accounts * 100, sum);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void whenThreadsUpdateTheSameKeysConditionally_NoUpdateIsLost() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		final int threads = 8;
+		final int rounds = 2_000;
+		service.put("appended", "");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			results.add(executor.submit(() -> {
+				for (int round = 0; round < rounds; round++) {
+					service.increment("counter", 1);
+					//a read - modify - write loop retried until nobody got in between
+					while (true) {
+						ValueDTO<String,String> read = service.getVersioned("appended");
+						try {
+							service.putIfVersion("appended", read.getValue() + "x", read.getVersion());
+							break;
+						} catch (BreezeActionException e) {
+							//somebody else appended since we read it
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+
+		assertEquals(Integer.toString(threads * rounds), service.get("counter"));
+		assertEquals(threads * rounds, service.get("appended").length());
+	}
+
+	@Test
+	public void whenManyTransactionsRunSideBySide_EachOneCommitsItsOwnWrites() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<>();
+
+		for (int thread = 0; thread < 8; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				for (int i = 0; i < 200; i++) {
+					String transactionId = "transaction-" + threadId + "-" + i;
+					service.createTransaction(transactionId);
+					for (int key = 0; key < 5; key++) {
+						service.put(keyFor(threadId, key), transactionId, transactionId);
+					}
+					assertEquals(transactionId, service.get(keyFor(threadId, 0), transactionId));
+					if (i % 2 == 0) {
+						service.commitTransaction(transactionId);
+					} else {
+						service.rollbackTransaction(transactionId);
+					}
+				}
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+
+		for (int thread = 0; thread < 8; thread++) {
+			for (int key = 0; key < 5; key++) {
+				assertEquals("transaction-" + thread + "-198", service.get(keyFor(thread, key)));
+			}
+		}
+	}
+
+	@Test
+	public void whenGroupCommitIsOn_ConcurrentCommitsAreBatchedWithTheirOwnOutcomes() throws Exception {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getCommit().setGroupCommit(true);
+		properties.getCommit().setWindowMicros(200);
+		properties.getCommit().setMaxBatchSize(32);
+		final BreezeService<String,String> service = createService(properties);
+		service.put("shared", "0");
+
+		final int threads = 8;
+		final int commitsPerThread = 250;
+		final AtomicInteger abortedEarly = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<>();
+		long started = System.nanoTime();
+		for (int thread = 0; thread < threads; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				int conflicts = 0;
+				for (int i = 0; i < commitsPerThread; i++) {
+					String transactionId = "group-" + threadId + "-" + i;
+					service.createTransaction(transactionId);
+					service.put(keyFor(threadId, i % 10), String.valueOf(i), transactionId);
+					if (i % 10 == 0) {
+						//every tenth commit fights over the same key, only some of those can win
+						try {
+							service.put("shared", transactionId, transactionId);
+						} catch (BreezeActionException e) {
+							//doomed before it even got to commit
+							conflicts++;
+							abortedEarly.incrementAndGet();
+							service.rollbackTransaction(transactionId);
+							continue;
+						}
+					}
+					try {
+						service.commitTransaction(transactionId);
+					} catch (BreezeActionException e) {
+						conflicts++;
+					}
+				}
+				return conflicts;
+			}));
+		}
+		int conflicts = 0;
+		for (Future<Integer> result : results) {
+			conflicts += result.get(1, TimeUnit.MINUTES);
+		}
+		long elapsed = System.nanoTime() - started;
+		executor.shutdown();
+
+		Map<String,Object> statistics = service.getStatistics();
+		LOG.info("Group commit: " + (threads * commitsPerThread) + " commits in [" + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms] with ["
+				+ conflicts + "] conflicts, batches: " + statistics);
+
+		assertEquals((long) threads * commitsPerThread - abortedEarly.get(), statistics.get("groupCommit.commits"));
+		assertTrue(conflicts < threads * commitsPerThread / 10);
+		//the keys written next to the shared one might have lost every time, the others never conflict
+		for (int thread = 0; thread < threads; thread++) {
+			assertNotNull(service.get(keyFor(thread, 1)));
+		}
+	}
+
+	@Test
+	public void whenWritersAndCommitsAreRunning_ReadLatencyStaysFlat() throws Exception {
+		final BreezeService<String,String> service = createService(64);
+		for (int i = 0; i < 1000; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+
+		long[] idle = measureReadLatencies(service, 200_000);
+		LOG.info("Read latency without writers: " + describe(idle));
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService background = Executors.newFixedThreadPool(2);
+		background.submit(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (running.get()) {
+				service.put("key-" + random.nextInt(1000), "written");
+			}
+		});
+		background.submit(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long round = 0;
+			while (running.get()) {
+				String transactionId = "background-" + round++;
+				service.createTransaction(transactionId);
+				try {
+					for (int i = 0; i < 10; i++) {
+						service.put("key-" + random.nextInt(1000), "committed", transactionId);
+					}
+					service.commitTransaction(transactionId);
+				} catch (BreezeActionException e) {
+					//conflicts with the plain writer are expected here
+					rollbackIfOpen(service, transactionId);
+				}
+			}
+		});
+
+		long[] busy;
+		try {
+			busy = measureReadLatencies(service, 200_000);
+		} finally {
+			running.set(false);
+			background.shutdown();
+			background.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		LOG.info("Read latency with writers and commits: " + describe(busy));
+
+		for (int i = 0; i < 1000; i++) {
+			assertNotNull(service.get("key-" + i));
+		}
+	}
+
+	@Test
+	public void whenMostTransactionsAbort_EarlyConflictDetectionWastesLessWork() throws Exception {
+		double[] wasted = new double[2];
+		boolean[] modes = {false, true};
+		for (int mode = 0; mode < modes.length; mode++) {
+			BreezeProperties properties = new BreezeProperties();
+			properties.getCommit().setEarlyConflictDetection(modes[mode]);
+			BreezeServiceImpl service = createService(properties);
+			long[] outcome = runAbortHeavyLoad(service);
+			wasted[mode] = outcome[1] / (double) Math.max(1, outcome[0]);
+			LOG.info("early conflict detection=[" + modes[mode] + "] aborted=[" + outcome[0] + "] operations wasted=[" + outcome[1]
+					+ "] per abort=[" + String.format("%.1f", wasted[mode]) + "] commits=[" + outcome[2] + "] " + service.getStatistics());
+			assertEquals(0, service.getStatistics().get("transactions.active"));
+		}
+
+		//without notifications a doomed transaction always runs to its end, with them it stops at its next operation
+		assertEquals(ABORT_HEAVY_OPERATIONS, wasted[0], 0.001);
+		assertTrue(wasted[1] < wasted[0]);
+	}
+
+	/**
+	 * Runs long transactions over a small set of hot keys next to a plain writer hitting the same keys,
+	 * each transaction pausing between its operations like a client doing some work would
+	 *
+	 * @return the number of aborted transactions, the operations they ran before finding out, and the number of commits
+	 */
+	private static long[] runAbortHeavyLoad(final BreezeService<String,String> service) throws Exception {
+		final int threads = 4;
+		final AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		executor.submit(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (running.get()) {
+				service.put("hot-" + random.nextInt(64), "plain");
+				LockSupport.parkNanos(200_000);
+			}
+		});
+
+		List<Future<long[]>> results = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				long[] outcome = new long[3];
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 50; i++) {
+					String transactionId = "long-" + threadId + "-" + i;
+					service.createTransaction(transactionId);
+					int operations = 0;
+					try {
+						while (operations < ABORT_HEAVY_OPERATIONS) {
+							operations++;
+							service.put("hot-" + random.nextInt(64), transactionId, transactionId);
+							LockSupport.parkNanos(20_000);
+						}
+						service.commitTransaction(transactionId);
+						outcome[2]++;
+					} catch (BreezeActionException e) {
+						outcome[0]++;
+						outcome[1] += operations;
+						rollbackIfOpen(service, transactionId);
+					}
+				}
+				return outcome;
+			}));
+		}
+
+		long[] total = new long[3];
+		try {
+			for (Future<long[]> result : results) {
+				long[] outcome = result.get(1, TimeUnit.MINUTES);
+				for (int i = 0; i < total.length; i++) {
+					total[i] += outcome[i];
+				}
+			}
+		} finally {
+			running.set(false);
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		return total;
+	}
+
+	/**
+	 * Rolls a transaction back unless a failed commit concluded it already
+	 */
+	private static void rollbackIfOpen(BreezeService<String,String> service, String transactionId) {
+		try {
+			service.rollbackTransaction(transactionId);
+		} catch (BreezeActionException e) {
+			//the commit took it out of the active ones already
+		}
+	}
+
+	private static long[] measureReadLatencies(BreezeService<String,String> service, int reads) {
+		long[] latencies = new long[reads];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < reads; i++) {
+			String key = "key-" + random.nextInt(1000);
+			long started = System.nanoTime();
+			service.get(key);
+			latencies[i] = System.nanoTime() - started;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static String describe(long[] sortedLatencies) {
+		return "p50=[" + sortedLatencies[sortedLatencies.length / 2] + " ns]"
+				+ " p99=[" + sortedLatencies[(int) (sortedLatencies.length * 0.99)] + " ns]"
+				+ " p999=[" + sortedLatencies[(int) (sortedLatencies.length * 0.999)] + " ns]";
+	}
+
+	private BreezeServiceImpl createService(int stripes) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getLocking().setStripes(stripes);
+		return createService(properties);
+	}
+
+	private BreezeServiceImpl createService(BreezeProperties properties) {
+		BreezeServiceImpl service = new BreezeServiceImpl(properties);
+		services.add(service);
+		return service;
+	}
+
+	private static String keyFor(int thread, int key) {
+		return "thread-" + thread + "-key-" + key;
+	}
+
+	/**
+	 * Runs a mix of 70% writes, 20% reads and 10% deletes over keys owned by each thread, finishing with a final write on each key
+	 *
+	 * @return the achieved throughput in operations per second
+	 */
+	private static double runWriteHeavyLoad(final BreezeService<String,String> service, final int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<>();
+
+		for (int thread = 0; thread < threads; thread++) {
+			final int threadId = thread;
+			results.add(executor.submit(() -> {
+				start.await();
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+					String key = keyFor(threadId, random.nextInt(100));
+					int dice = random.nextInt(10);
+					if (dice < 7) {
+						service.put(key, String.valueOf(i));
+					} else if (dice < 9) {
+						service.get(key);
+					} else {
+						service.delete(key);
+					}
+				}
+				for (int key = 0; key < 100; key++) {
+					service.put(keyFor(threadId, key), "last");
+				}
+				return null;
+			}));
+		}
+
+		long started = System.nanoTime();
+		start.countDown();
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		long elapsed = System.nanoTime() - started;
+		executor.shutdown();
+
+		return (threads * (double) (OPERATIONS_PER_THREAD + 100)) / TimeUnit.NANOSECONDS.toMillis(Math.max(elapsed, 1_000_000)) * 1000;
+	}
+}
@@ -0,0 +1,174 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the keys written with a time to live: how they disappear for the readers and how they get reclaimed.
+ *
+ * They build the service with sweep settings of their own instead of using the spring context.
+ */
+class BreezeExpiryTests extends StoreFixture {
+
+	@Test
+	public void whenAValueExpires_ItReadsAsMissingAndIsReclaimedOnTheNextRead() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(0, 5));
+		service.put("session", "alive", 100);
+		service.put("apple", "1");
+		assertEquals("alive", service.get("session"));
+
+		Thread.sleep(150);
+
+		//without a sweep the key is still held, but nobody sees it anymore
+		assertEquals(2L, service.getStatistics().get("store.keys"));
+		assertNull(service.get("session"));
+		assertEquals(1L, service.getStatistics().get("store.keys"));
+		assertEquals(1L, service.getStatistics().get("expiry.reclaimed"));
+		assertEquals("1", service.get("apple"));
+	}
+
+	@Test
+	public void whenExpiredKeysAreNeverRead_TheSweepReclaimsThem() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(20, 5));
+		for (int i = 0; i < 1000; i++) {
+			service.put("session-" + i, "alive", 100);
+		}
+		service.put("apple", "1");
+
+		awaitTrue(() -> service.getStatistics().get("expiry.reclaimed").equals(1000L));
+		assertEquals(1L, service.getStatistics().get("store.keys"));
+		assertEquals(0, service.getStatistics().get("expiry.pending"));
+		assertEquals("1", service.get("apple"));
+	}
+
+	@Test
+	public void whenManyKeysExpireTogether_TheSweepSpreadsThemOverSeveralRounds() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(10, 1));
+		int keys = 50_000;
+		for (int i = 0; i < keys; i++) {
+			service.put("session-" + i, "alive", 200);
+		}
+
+		//a round only takes its budget, the keys left due wait for the next one instead of the whole lot going in one pause
+		awaitTrue(() -> sweepsCutShort() >= 1);
+		long reclaimedBefore = reclaimed();
+		long cutBefore = sweepsCutShort();
+
+		//the round after the next one started after the counters were read, it went on where the previous one stopped
+		awaitTrue(() -> sweepsCutShort() >= cutBefore + 2);
+		assertTrue(reclaimed() > reclaimedBefore);
+		assertTrue(reclaimedBefore > 0);
+	}
+
+	@Test
+	public void whenAnExpiringKeyIsOverwritten_TheNewValueDecidesWhenItExpires() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(20, 5));
+		service.put("session", "short", 100);
+		service.put("session", "forever");
+		service.put("other", "short", 100);
+		service.put("other", "longer", 5000);
+
+		awaitTrue(() -> service.getStatistics().get("expiry.pending").equals(1));
+		assertEquals("forever", service.get("session"));
+		assertEquals("longer", service.get("other"));
+		assertEquals(0L, service.getStatistics().get("expiry.reclaimed"));
+	}
+
+	@Test
+	public void whenAnExpiringCounterIsIncremented_ItKeepsItsExpiry() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(0, 5));
+		service.put("hits", "1", 100);
+		assertEquals(2, service.increment("hits", 1));
+
+		Thread.sleep(150);
+
+		assertNull(service.get("hits"));
+		//an expired counter starts over, without an expiry this time
+		assertEquals(1, service.increment("hits", 1));
+		Thread.sleep(150);
+		assertEquals("1", service.get("hits"));
+	}
+
+	@Test
+	public void whenATransactionWritesAnExpiringValue_ItExpiresAfterTheCommit() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(20, 5));
+		service.createTransaction("login");
+		service.put("session", "alive", 150, "login");
+		assertEquals("alive", service.get("session", "login"));
+		service.commitTransaction("login");
+		assertEquals("alive", service.get("session"));
+
+		Thread.sleep(200);
+
+		assertNull(service.get("session"));
+		//an expired key is as good as a missing one for the conditions as well
+		service.executeAtomically(Collections.singletonMap("session", null),
+				Collections.singletonList(OperationDTO.put("session", "renewed")));
+		assertEquals("renewed", service.get("session"));
+	}
+
+	@Test
+	public void whenAnOpenTransactionSeesAnOlderValue_TheExpiredKeyIsKeptUntilItConcludes() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(20, 5));
+		service.put("apple", "1");
+		service.createTransaction("reader");
+		service.put("apple", "2", 50);
+
+		Thread.sleep(150);
+
+		assertNull(service.get("apple"));
+		assertEquals("1", service.get("apple", "reader"));
+		assertEquals(1L, service.getStatistics().get("store.keys"));
+
+		service.rollbackTransaction("reader");
+		assertEquals(0L, service.getStatistics().get("store.keys"));
+		assertNull(service.get("apple"));
+	}
+
+	@Test
+	public void whenTheTimeToLiveIsNotPositive_ThePutIsRefused() {
+		service = new BreezeServiceImpl(createProperties(0, 5));
+		service.createTransaction("dummy");
+		for (long ttl : Arrays.asList(0L, -1L)) {
+			BreezeActionException plain = assertThrows(BreezeActionException.class, () -> service.put("apple", "1", ttl));
+			assertEquals(ErrorCode.INVALID_REQUEST, plain.getErrorCode());
+			BreezeActionException transactional = assertThrows(BreezeActionException.class, () -> service.put("apple", "1", ttl, "dummy"));
+			assertEquals(ErrorCode.INVALID_REQUEST, transactional.getErrorCode());
+		}
+		assertNull(service.get("apple"));
+	}
+
+	private long sweepsCutShort() {
+		return (Long) service.getStatistics().get("expiry.sweepsCutShort");
+	}
+
+	private long reclaimed() {
+		return (Long) service.getStatistics().get("expiry.reclaimed");
+	}
+
+	private void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	private static BreezeProperties createProperties(long sweepIntervalMillis, long sweepBudgetMillis) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getExpiry().setSweepIntervalMillis(sweepIntervalMillis);
+		properties.getExpiry().setSweepBudgetMillis(sweepBudgetMillis);
+		return properties;
+	}
+}
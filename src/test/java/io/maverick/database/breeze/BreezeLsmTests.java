@@ -0,0 +1,259 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the store keeping its keys in a log structured merge tree: whatever got written into tables and merged since,
+ * every read has to give the newest value back, and a deletion has to hide the older values in the older tables.
+ *
+ * They build the service with storage settings of their own and tiny memtables, so the tables and the compactions
+ * come after a few thousand writes.
+ */
+class BreezeLsmTests extends StoreFixture {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeLsmTests.class);
+
+	@Test
+	public void whenTheWritesGoIntoTablesAndGetMerged_EveryKeyReadsBackItsNewestValue() {
+		service = new BreezeServiceImpl(createProperties(32));
+		Map<String,String> expected = new TreeMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 30_000; i++) {
+			String key = String.format("key-%05d", random.nextInt(10_000));
+			if (i % 10 == 9) {
+				service.delete(key);
+				expected.remove(key);
+			} else {
+				service.put(key, "value-" + i);
+				expected.put(key, "value-" + i);
+			}
+		}
+		awaitCompactions();
+
+		Map<String,Object> statistics = service.getStatistics();
+		LOG.info("After [30000] writes: " + statistics);
+		assertTrue((Long) statistics.get("storage.lsm.flushes") > 10);
+		assertTrue((Long) statistics.get("storage.lsm.compactions") > 0);
+		//every key once, however many tables still hold older versions or tombstones of it
+		assertEquals((long) expected.size(), statistics.get("store.keys"));
+		for (int i = 0; i < 10_000; i++) {
+			String key = String.format("key-%05d", i);
+			assertEquals(expected.get(key), service.get(key), key);
+		}
+
+		//the scan pages through the memtable and the tables as one
+		List<String> scanned = new ArrayList<>();
+		String cursor = null;
+		do {
+			List<ValueDTO<String,String>> entries = service.scan(null, null, null, cursor, 1000).getEntries();
+			for (ValueDTO<String,String> entry : entries) {
+				scanned.add(entry.getKey());
+				assertEquals(expected.get(entry.getKey()), entry.getValue());
+			}
+			cursor = service.scan(null, null, null, cursor, 1000).getCursor();
+		} while (cursor != null);
+		assertEquals(new ArrayList<>(expected.keySet()), scanned);
+		assertEquals((long) expected.size(), service.export(value -> { }));
+	}
+
+	@Test
+	public void whenAKeyIsDeleted_ItsTombstoneHidesTheValuesInTheOlderTables() {
+		service = new BreezeServiceImpl(createProperties(16));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		fillTables("a-", 5_000);
+		service.delete("apple");
+		fillTables("b-", 5_000);
+
+		assertNull(service.get("apple"));
+		assertEquals("2", service.get("banana"));
+		assertTrue(service.scan(null, null, "apple", null, 10).getEntries().isEmpty());
+
+		//once merged all the way down, the tombstone goes away along with the value it hid
+		fillTables("c-", 20_000);
+		awaitCompactions();
+		assertNull(service.get("apple"));
+		assertTrue(service.scan(null, null, "apple", null, 10).getEntries().isEmpty());
+		assertEquals("2", service.get("banana"));
+	}
+
+	@Test
+	public void whenATransactionReadsAnOldValue_ItStillDoesAfterTheNewOneWentIntoATable() {
+		service = new BreezeServiceImpl(createProperties(16));
+		service.put("apple", "old");
+		service.createTransaction("reader");
+		service.put("apple", "new");
+		fillTables("filler-", 5_000);
+
+		assertEquals("old", service.get("apple", "reader"));
+		assertEquals("new", service.get("apple"));
+		assertEquals("old", service.scan(null, null, "apple", null, 10, "reader").getEntries().get(0).getValue());
+		service.rollbackTransaction("reader");
+		assertEquals("new", service.get("apple"));
+	}
+
+	@Test
+	public void whenReadersRaceWithFlushesAndCompactions_TheyAlwaysFindTheKeys() throws Exception {
+		service = new BreezeServiceImpl(createProperties(16));
+		int keys = 1000;
+		for (int i = 0; i < keys; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			futures.add(executor.submit(() -> {
+				int writes = 0;
+				while (running.get()) {
+					service.put("other-" + writes, "filler-" + writes);
+					writes++;
+				}
+				return writes;
+			}));
+			for (int reader = 0; reader < 2; reader++) {
+				futures.add(executor.submit(() -> {
+					int reads = 0;
+					while (running.get()) {
+						int key = reads++ % keys;
+						//the tables a read is in the middle of must not be closed under it
+						assertEquals("value-" + key, service.get("key-" + key));
+					}
+					return reads;
+				}));
+			}
+			Thread.sleep(2000);
+			running.set(false);
+			for (Future<Integer> future : futures) {
+				assertTrue(future.get(10, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue((Long) service.getStatistics().get("storage.lsm.compactions") > 0);
+	}
+
+	@Test
+	public void whenHoldingMoreDataThanTheEngineKeepsOnTheHeap_TheAmplificationStaysLow() {
+		int keys = 200_000;
+		String padding = repeat("p", 100);
+		service = new BreezeServiceImpl(createProperties(1024));
+		Random random = new Random(7);
+
+		long started = System.nanoTime();
+		for (int i = 0; i < keys; i++) {
+			service.put(keyOf(i), i + padding);
+		}
+		for (int i = 0; i < keys / 2; i++) {
+			int key = random.nextInt(keys);
+			service.put(keyOf(key), key + "-updated" + padding);
+		}
+		awaitCompactions();
+		long writeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		Map<String,Object> written = service.getStatistics();
+
+		started = System.nanoTime();
+		for (int i = 0; i < keys / 4; i++) {
+			int key = random.nextInt(keys);
+			assertTrue(service.get(keyOf(key)).startsWith(String.valueOf(key)));
+		}
+		long hitMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started) / (keys / 4);
+		Map<String,Object> hits = service.getStatistics();
+		for (int i = 0; i < keys / 4; i++) {
+			assertNull(service.get("missing-" + random.nextInt(keys)));
+		}
+		Map<String,Object> misses = service.getStatistics();
+
+		double hitAmplification = perLookup(written, hits);
+		double missAmplification = perLookup(hits, misses);
+		long dataBytes = (Long) written.get("storage.lsm.diskBytes");
+		long engineHeap = (Long) written.get("storage.lsm.heapBytes");
+		LOG.info("Holding [" + keys + "] keys in [" + dataBytes + "] bytes of tables: [" + writeMillis + "] ms for the writes,"
+				+ " [" + engineHeap + "] bytes of memtables, indexes and filters on the heap,"
+				+ " write amplification [" + written.get("storage.lsm.writeAmplification") + "] over [" + written.get("storage.lsm.compactions")
+				+ "] compactions, read amplification [" + hitAmplification + "] blocks per hit (" + hitMicros + " micros)"
+				+ " and [" + missAmplification + "] blocks per miss, " + misses.get("storage.lsm.tables") + " tables left");
+
+		assertTrue(dataBytes > 5 * engineHeap, "the data should be well beyond what the engine keeps on the heap");
+		//the sparse index finds the single block of a key, the Bloom filters skip the tables not having it
+		assertTrue(hitAmplification < 1.5, "a hit should read about one block");
+		//about 1% of the filters let a missing key through, once for every table
+		assertTrue(missAmplification < 0.25, "a miss should hardly read anything");
+		assertTrue((Double) written.get("storage.lsm.writeAmplification") < 5, "a version should not be rewritten too often");
+	}
+
+	// The blocks read per lookup between two readings of the statistics
+	private static double perLookup(Map<String,Object> before, Map<String,Object> after) {
+		long blocks = (Long) after.get("storage.lsm.blocksRead") - (Long) before.get("storage.lsm.blocksRead");
+		long lookups = (Long) after.get("storage.lsm.lookups") - (Long) before.get("storage.lsm.lookups");
+		return Math.round(blocks * 100.0 / lookups) / 100.0;
+	}
+
+	private void fillTables(String prefix, int keys) {
+		for (int i = 0; i < keys; i++) {
+			service.put(prefix + i, repeat("f", 20));
+		}
+	}
+
+	// Waits for the memtables frozen so far to be written and the compactions they started to finish
+	private void awaitCompactions() {
+		long deadline = System.currentTimeMillis() + 30_000;
+		long compactions = -1;
+		while (System.currentTimeMillis() < deadline) {
+			Map<String,Object> statistics = service.getStatistics();
+			long current = (Long) statistics.get("storage.lsm.compactions");
+			if ((Long) statistics.get("storage.lsm.frozenMemtables") == 0 && current == compactions) {
+				return;
+			}
+			compactions = current;
+			sleep(200);
+		}
+		fail("The compactions did not finish in time");
+	}
+
+	private static String keyOf(int key) {
+		return String.format("key-%07d", key);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String repeat(String text, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+
+	private BreezeProperties createProperties(int memtableSizeKb) {
+		BreezeProperties properties = createProperties(StorageEngineType.LSM, false);
+		properties.getStorage().setMemtableSizeKb(memtableSizeKb);
+		return properties;
+	}
+}
@@ -0,0 +1,242 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the store keeping its keys in a hash table of memory mapped files: a restart after a clean shutdown has to map
+ * the files again instead of loading the store, and a restart after a crash has to recover it from the log as before.
+ *
+ * They build the service with storage settings of their own and small tables, so the table grows after a few hundred writes.
+ */
+class BreezeMappedTests extends StoreFixture {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeMappedTests.class);
+
+	@Test
+	public void whenRestartedWithoutALog_TheMappedFilesBringTheKeysBack() {
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, false));
+		for (int i = 0; i < 1000; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+		service.delete("key-7");
+		service.put("nothing", null);
+		long version = service.getVersioned("key-1").getVersion();
+		service.shutdown();
+
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, false));
+		Map<String,Object> statistics = service.getStatistics();
+		assertTrue((Long) statistics.get("storage.mapped.recoveredVersion") > version);
+		assertEquals(1000L, statistics.get("store.keys"));
+		assertEquals("value-1", service.get("key-1"));
+		assertEquals("value-999", service.get("key-999"));
+		assertNull(service.get("key-7"));
+		assertNull(service.get("nothing"));
+
+		//the versions go on from where they were
+		service.put("key-1", "again");
+		assertTrue(service.getVersioned("key-1").getVersion() > (Long) statistics.get("storage.mapped.recoveredVersion"));
+	}
+
+	@Test
+	public void whenRestartedWithALog_OnlyTheWritesAfterTheEngineAreReplayed() throws IOException {
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		service.checkpoint();
+		service.put("apple", "3");
+		service.delete("banana");
+		service.shutdown();
+
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		Map<String,Object> statistics = service.getStatistics();
+		//the snapshot is older than what the engine holds, so it is not loaded at all
+		assertEquals(0L, statistics.get("recovery.snapshotKeys"));
+		assertTrue((Long) statistics.get("recovery.engineVersion") > 0);
+		assertEquals("3", service.get("apple"));
+		assertNull(service.get("banana"));
+
+		service.put("cherry", "4");
+		service.shutdown();
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		assertEquals("3", service.get("apple"));
+		assertEquals("4", service.get("cherry"));
+		assertEquals(2L, service.getStatistics().get("store.keys"));
+	}
+
+	@Test
+	public void whenTheServiceCrashed_TheMappedFilesAreNotTrustedAndTheLogIsReplayed() throws IOException {
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		service.shutdown();
+
+		//what the header looks like while the service is running, left behind as it is by a crash
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		Path header = directory.resolve("storage").resolve("mapped.header");
+		Path running = directory.resolve("running.header");
+		Files.copy(header, running);
+		service.put("apple", "3");
+		service.delete("banana");
+		service.shutdown();
+		Files.copy(running, header, StandardCopyOption.REPLACE_EXISTING);
+
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, true));
+		Map<String,Object> statistics = service.getStatistics();
+		assertEquals(0L, statistics.get("storage.mapped.recoveredVersion"));
+		assertEquals(0L, statistics.get("recovery.engineVersion"));
+		assertEquals("3", service.get("apple"));
+		assertNull(service.get("banana"));
+		assertEquals(1L, statistics.get("store.keys"));
+	}
+
+	@Test
+	public void whenAKeyIsDeletedUnderAnOpenTransaction_ItDoesNotComeBackAfterARestart() {
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, false));
+		service.put("apple", "1");
+		service.put("banana", "2");
+		service.createTransaction("reader");
+		service.delete("apple");
+		assertEquals("1", service.get("apple", "reader"));
+		service.shutdown();
+
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, false));
+		assertNull(service.get("apple"));
+		assertEquals("2", service.get("banana"));
+		assertEquals(1L, service.getStatistics().get("store.keys"));
+	}
+
+	@Test
+	public void whenTheTableGrows_ReadsKeepFindingEveryKey() throws Exception {
+		BreezeProperties properties = createProperties(StorageEngineType.MAPPED, false);
+		properties.getStorage().setSlotSizeBytes(64);
+		service = new BreezeServiceImpl(properties);
+		int keys = 500;
+		for (int i = 0; i < keys; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		Map<String,String> written = new HashMap<>();
+		try {
+			Future<Integer> writer = executor.submit(() -> {
+				Random random = new Random(3);
+				for (int i = 0; i < 20_000; i++) {
+					//some values too big for a slot, and some keys going away again
+					String key = "other-" + random.nextInt(10_000);
+					if (i % 5 == 4) {
+						service.delete(key);
+						written.remove(key);
+					} else {
+						String value = i % 7 == 0 ? repeat("v", 200 + i % 50) : "filler-" + i;
+						service.put(key, value);
+						written.put(key, value);
+					}
+				}
+				running.set(false);
+				return 20_000;
+			});
+			List<Future<Integer>> readers = new ArrayList<>();
+			for (int reader = 0; reader < 2; reader++) {
+				readers.add(executor.submit(() -> {
+					int reads = 0;
+					do {
+						int key = reads++ % keys;
+						//the records moving into the newer segments must be found in one of them all along
+						assertEquals("value-" + key, service.get("key-" + key));
+					} while (running.get());
+					return reads;
+				}));
+			}
+			assertEquals(20_000, writer.get(60, TimeUnit.SECONDS));
+			for (Future<Integer> reader : readers) {
+				assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Map<String,Object> statistics = service.getStatistics();
+		LOG.info("After growing the table: " + statistics);
+		assertTrue((Long) statistics.get("storage.mapped.segmentsAdded") > 3);
+		assertTrue((Long) statistics.get("storage.mapped.segmentsDropped") > 0);
+		assertTrue((Long) statistics.get("storage.mapped.movedRecords") > keys);
+		assertEquals((long) keys + written.size(), statistics.get("store.keys"));
+		for (Map.Entry<String,String> entry : written.entrySet()) {
+			assertEquals(entry.getValue(), service.get(entry.getKey()), entry.getKey());
+		}
+		assertEquals((long) keys + written.size(), service.export(value -> { }));
+
+		//the segments still draining come back as they were
+		service.shutdown();
+		service = new BreezeServiceImpl(properties);
+		for (int i = 0; i < keys; i++) {
+			assertEquals("value-" + i, service.get("key-" + i));
+		}
+		for (Map.Entry<String,String> entry : written.entrySet()) {
+			assertEquals(entry.getValue(), service.get(entry.getKey()), entry.getKey());
+		}
+	}
+
+	@Test
+	public void whenRestarting_MappingTheFilesAgainBeatsLoadingTheSnapshot() throws IOException {
+		int keys = 100_000;
+		long loading = restart(StorageEngineType.MEMORY, keys);
+		long mapping = restart(StorageEngineType.MAPPED, keys);
+		LOG.info("Restarting with [" + keys + "] keys took [" + loading + "] ms loading the snapshot and [" + mapping + "] ms mapping the files");
+		assertTrue(mapping < loading, "mapping the files again should be faster than loading the snapshot");
+	}
+
+	// Fills a store, snapshots it and restarts it, returning the time the recovery took
+	private long restart(StorageEngineType engine, int keys) throws IOException {
+		BreezeProperties properties = createProperties(engine, true);
+		properties.getWal().setDirectory(directory.resolve(engine.name()).toString());
+		properties.getStorage().setDirectory(directory.resolve(engine.name()).resolve("storage").toString());
+		service = new BreezeServiceImpl(properties);
+		for (int i = 0; i < keys; i++) {
+			service.put(String.format("key-%07d", i), "value-" + i);
+		}
+		service.checkpoint();
+		service.put("tail", "after the snapshot");
+		service.shutdown();
+
+		service = new BreezeServiceImpl(properties);
+		assertEquals("value-42", service.get(String.format("key-%07d", 42)));
+		assertEquals("after the snapshot", service.get("tail"));
+		assertEquals(keys + 1L, service.getStatistics().get("store.keys"));
+		long millis = (Long) service.getStatistics().get("recovery.millis");
+		service.shutdown();
+		service = null;
+		return millis;
+	}
+
+	private static String repeat(String text, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+}
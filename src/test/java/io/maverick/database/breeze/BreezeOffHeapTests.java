@@ -0,0 +1,285 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the store keeping its values off the heap: they have to read back exactly as written,
+ * and the memory of the versions dropped has to be reused instead of growing the arena.
+ *
+ * They build the service with storage settings of their own instead of using the spring context.
+ */
+class BreezeOffHeapTests extends StoreFixture {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezeOffHeapTests.class);
+
+	@Test
+	public void whenValuesAreKeptOffTheHeap_EveryWayOfReadingThemGivesThemBackAsWritten() {
+		service = new BreezeServiceImpl(createProperties(16, 64));
+		service.put("apple", "árvíztűrő tükörfúrógép");
+		service.put("empty", "");
+		service.put("nothing", null);
+		Map<String,String> batch = new LinkedHashMap<>();
+		batch.put("banana", "2");
+		batch.put("cherry", repeat("c", 10_000));
+		service.putAll(batch);
+		service.increment("counter", 41);
+		service.increment("counter", 1);
+
+		assertEquals("árvíztűrő tükörfúrógép", service.get("apple"));
+		assertEquals("", service.get("empty"));
+		assertNull(service.get("nothing"));
+		assertEquals(repeat("c", 10_000), service.getAll(Collections.singletonList("cherry")).get("cherry"));
+		assertEquals("42", service.getVersioned("counter").getValue());
+		assertEquals("2", service.scan(null, null, "banana", null, 10).getEntries().get(0).getValue());
+		List<String> exported = new ArrayList<>();
+		service.export(value -> exported.add(value.getKey() + "=" + value.getValue()));
+		assertTrue(exported.contains("apple=árvíztűrő tükörfúrógép"));
+
+		//the empty and the missing values have nothing to move off the heap
+		Map<String,Object> statistics = service.getStatistics();
+		assertEquals(4L, statistics.get("storage.offHeap.values"));
+		long payload = "árvíztűrő tükörfúrógép".getBytes(StandardCharsets.UTF_8).length + 1 + 10_000 + 2;
+		assertEquals(payload, statistics.get("storage.offHeap.payloadBytes"));
+		assertTrue((Long) statistics.get("storage.offHeap.allocatedBytes") >= payload);
+	}
+
+	@Test
+	public void whenVersionsAreDropped_TheirMemoryIsReusedInsteadOfGrowingTheArena() {
+		service = new BreezeServiceImpl(createProperties(1, 64));
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 1000; i++) {
+				service.put("key-" + i, round + repeat("x", 999));
+			}
+		}
+		Map<String,Object> statistics = service.getStatistics();
+		assertEquals(1000L, statistics.get("storage.offHeap.values"));
+		long reserved = (Long) statistics.get("storage.offHeap.reservedBytes");
+
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			keys.add("key-" + i);
+		}
+		service.deleteAll(keys);
+		statistics = service.getStatistics();
+		assertEquals(0L, statistics.get("storage.offHeap.values"));
+		assertEquals(0L, statistics.get("storage.offHeap.allocatedBytes"));
+		assertEquals(0L, statistics.get("storage.offHeap.payloadBytes"));
+
+		for (int i = 0; i < 1000; i++) {
+			service.put("other-" + i, repeat("y", 1000));
+		}
+		statistics = service.getStatistics();
+		assertEquals(reserved, statistics.get("storage.offHeap.reservedBytes"));
+		assertEquals(repeat("y", 1000), service.get("other-999"));
+	}
+
+	@Test
+	public void whenATransactionStillSeesAnOldValue_OnlyTheNewestOneIsKeptOffTheHeap() {
+		service = new BreezeServiceImpl(createProperties(16, 64));
+		service.put("apple", "old");
+		service.createTransaction("reader");
+		service.put("apple", "new");
+		service.delete("apple");
+
+		//the older versions the transaction reads are kept by the service, the engine only ever holds the newest one
+		assertEquals("old", service.get("apple", "reader"));
+		assertNull(service.get("apple"));
+		assertEquals(1L, service.getStatistics().get("storage.offHeap.values"));
+
+		service.rollbackTransaction("reader");
+		assertEquals(0L, service.getStatistics().get("storage.offHeap.values"));
+		assertNull(service.get("apple"));
+	}
+
+	@Test
+	public void whenTheArenaIsFull_TheValuesThatDoNotFitStayOnTheHeap() {
+		service = new BreezeServiceImpl(createProperties(1, 1));
+		for (int i = 0; i < 200; i++) {
+			service.put("key-" + i, i + repeat("v", 10_000));
+		}
+		//a single value bigger than a sixteenth of a slab never goes off the heap
+		service.put("huge", repeat("h", 100_000));
+
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i + repeat("v", 10_000), service.get("key-" + i));
+		}
+		assertEquals(repeat("h", 100_000), service.get("huge"));
+		Map<String,Object> statistics = service.getStatistics();
+		assertEquals(1, statistics.get("storage.offHeap.slabs"));
+		assertTrue((Long) statistics.get("storage.offHeap.refused") > 50);
+	}
+
+	@Test
+	public void whenReadersRaceWithWriters_TheyNeverSeeTheChunkOfAnotherValue() throws Exception {
+		service = new BreezeServiceImpl(createProperties(1, 64));
+		int keys = 64;
+		for (int i = 0; i < keys; i++) {
+			service.put("key-" + i, valueOf(i, 0));
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			for (int writer = 0; writer < 2; writer++) {
+				futures.add(executor.submit(() -> {
+					int writes = 0;
+					while (running.get()) {
+						int key = writes % keys;
+						service.put("key-" + key, valueOf(key, writes++));
+					}
+					return writes;
+				}));
+			}
+			for (int reader = 0; reader < 2; reader++) {
+				futures.add(executor.submit(() -> {
+					int reads = 0;
+					while (running.get()) {
+						int key = reads++ % keys;
+						String value = service.get("key-" + key);
+						//every chunk freed by the writers gets reused for another value right away, one of them must never show up here
+						assertTrue(value.startsWith("key-" + key + "#") && value.endsWith("#key-" + key), "read a torn value " + value);
+					}
+					return reads;
+				}));
+			}
+			Thread.sleep(1000);
+			running.set(false);
+			for (Future<Integer> future : futures) {
+				assertTrue(future.get(10, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals((long) keys, service.getStatistics().get("storage.offHeap.values"));
+	}
+
+	@Test
+	public void whenTheServiceRestarts_TheRecoveredValuesGoOffTheHeapToo() throws IOException {
+		BreezeProperties properties = createProperties(16, 64);
+		enableLog(properties, directory);
+		service = new BreezeServiceImpl(properties);
+		service.put("apple", "1");
+		service.put("banana", "2");
+		service.checkpoint();
+		service.put("apple", "3");
+		service.delete("banana");
+		service.put("cherry", "4");
+		service.shutdown();
+
+		service = new BreezeServiceImpl(properties);
+		assertEquals("3", service.get("apple"));
+		assertNull(service.get("banana"));
+		assertEquals("4", service.get("cherry"));
+		assertEquals(2L, service.getStatistics().get("storage.offHeap.values"));
+	}
+
+	@Test
+	public void whenHoldingManyValues_OffTheHeapTheCollectorHasLessToWalk() {
+		int keys = 200_000;
+		String padding = repeat("p", 200);
+		long[] onHeap = measure(createProperties(16, 64), keys, padding, false);
+		long[] offHeap = measure(createProperties(16, 1024), keys, padding, true);
+
+		LOG.info("Holding [" + keys + "] values of [" + padding.length() + "] bytes: on the heap [" + onHeap[0] + "] heap bytes per entry"
+				+ " and [" + onHeap[1] + "] ms of full collections, off the heap [" + offHeap[0] + "] heap bytes + [" + offHeap[2]
+				+ "] off heap bytes per entry and [" + offHeap[1] + "] ms of full collections");
+		assertTrue(offHeap[0] < onHeap[0], "off the heap the values should not take heap space");
+		assertTrue(offHeap[2] >= padding.length());
+	}
+
+	/**
+	 * Fills a store and measures what it takes to hold it
+	 *
+	 * @return the heap bytes per entry, the millis five full collections took and the off heap bytes per entry
+	 */
+	private static long[] measure(BreezeProperties properties, int keys, String padding, boolean offHeap) {
+		properties.getStorage().setEngine(offHeap ? StorageEngineType.OFF_HEAP : StorageEngineType.MEMORY);
+		long before = usedHeapAfterCollecting();
+		BreezeServiceImpl store = new BreezeServiceImpl(properties);
+		try {
+			List<VersionedValue<String,String>> entries = new ArrayList<>(keys);
+			for (int i = 0; i < keys; i++) {
+				entries.add(VersionedValue.builderFor(String.format("key-%07d", i)).withValue(i + padding).build());
+			}
+			store.importAll(entries.iterator());
+			entries = null;
+
+			long heapPerEntry = (usedHeapAfterCollecting() - before) / keys;
+			long collecting = collectionMillis();
+			for (int i = 0; i < 5; i++) {
+				System.gc();
+			}
+			collecting = collectionMillis() - collecting;
+			Object allocated = store.getStatistics().get("storage.offHeap.allocatedBytes");
+			long offHeapPerEntry = allocated == null ? 0 : (Long) allocated / keys;
+			assertEquals(keys - 1 + padding, store.get(String.format("key-%07d", keys - 1)));
+			return new long[]{heapPerEntry, collecting, offHeapPerEntry};
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	private static long usedHeapAfterCollecting() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long collectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * A value that tells which key it belongs to at both of its ends, always the same length so the chunks get reused between the keys
+	 */
+	private static String valueOf(int key, int write) {
+		String id = "key-" + key;
+		String counter = String.format("%010d", write);
+		return id + "#" + counter + repeat("-", 200) + "#" + id;
+	}
+
+	private static String repeat(String text, int times) {
+		StringBuilder builder = new StringBuilder(text.length() * times);
+		for (int i = 0; i < times; i++) {
+			builder.append(text);
+		}
+		return builder.toString();
+	}
+
+	private BreezeProperties createProperties(int slabSizeMb, int maxOffHeapMb) {
+		BreezeProperties properties = createProperties(StorageEngineType.OFF_HEAP, false);
+		properties.getStorage().setSlabSizeMb(slabSizeMb);
+		properties.getStorage().setMaxOffHeapMb(maxOffHeapMb);
+		return properties;
+	}
+}
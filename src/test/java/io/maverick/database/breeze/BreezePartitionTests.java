@@ -0,0 +1,233 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the keys split over several engines: whichever partition a key lands in, the store has to behave as one,
+ * from the order of the scans to transactions spanning partitions.
+ *
+ * They build the service with storage settings of their own instead of using the spring context.
+ */
+class BreezePartitionTests extends StoreFixture {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezePartitionTests.class);
+
+	private static final int PARTITIONS = 4;
+
+	@ParameterizedTest
+	@EnumSource(StorageEngineType.class)
+	public void whenTheKeysAreSplitOverPartitions_TheStoreBehavesAsOne(StorageEngineType engine) {
+		service = new BreezeServiceImpl(createProperties(engine, PARTITIONS, false));
+		Map<String,String> expected = new TreeMap<>();
+		for (int i = 0; i < 2000; i++) {
+			service.put("key-" + i, "value-" + i);
+			expected.put("key-" + i, "value-" + i);
+		}
+		for (int i = 0; i < 2000; i += 7) {
+			service.delete("key-" + i);
+			expected.remove("key-" + i);
+		}
+
+		//the pages come in the order of the keys across the partitions
+		List<String> scanned = new ArrayList<>();
+		String cursor = null;
+		do {
+			List<ValueDTO<String,String>> entries = service.scan(null, null, "key-", cursor, 300).getEntries();
+			for (ValueDTO<String,String> entry : entries) {
+				scanned.add(entry.getKey());
+				assertEquals(expected.get(entry.getKey()), entry.getValue());
+			}
+			cursor = service.scan(null, null, "key-", cursor, 300).getCursor();
+		} while (cursor != null);
+		assertEquals(new ArrayList<>(expected.keySet()), scanned);
+
+		Map<String,Object> statistics = service.getStatistics();
+		assertEquals((long) PARTITIONS, statistics.get("storage.partitions"));
+		long keys = 0;
+		for (int i = 0; i < PARTITIONS; i++) {
+			long held = (Long) statistics.get("storage.partition." + i + ".keys");
+			//a uniform hash leaves every partition about a quarter of the keys
+			assertTrue(held > expected.size() / PARTITIONS / 2, "partition " + i + " holds " + held);
+			keys += held;
+		}
+		assertEquals((long) expected.size(), keys);
+		assertEquals((long) expected.size(), statistics.get("store.keys"));
+	}
+
+	@Test
+	public void whenTransfersSpanPartitions_EveryTransactionSeesTheSameTotal() throws Exception {
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MEMORY, PARTITIONS, false));
+		int accounts = 20;
+		for (int i = 0; i < accounts; i++) {
+			service.put("account-" + i, "100");
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicInteger transactions = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			for (int writer = 0; writer < 3; writer++) {
+				futures.add(executor.submit(() -> {
+					Random random = new Random();
+					int committed = 0;
+					do {
+						String from = "account-" + random.nextInt(accounts);
+						String to = "account-" + random.nextInt(accounts);
+						if (from.equals(to)) {
+							continue;
+						}
+						String transaction = "transfer-" + transactions.incrementAndGet();
+						service.createTransaction(transaction);
+						try {
+							int amount = random.nextInt(10);
+							service.put(from, String.valueOf(Integer.parseInt(service.get(from, transaction)) - amount), transaction);
+							service.put(to, String.valueOf(Integer.parseInt(service.get(to, transaction)) + amount), transaction);
+							service.commitTransaction(transaction);
+							committed++;
+						} catch (BreezeActionException e) {
+							//a conflicting transfer got in first, this one goes away if the failed commit did not take it along
+							try {
+								service.rollbackTransaction(transaction);
+							} catch (BreezeActionException gone) {
+								//rolled back already
+							}
+						}
+					} while (running.get());
+					return committed;
+				}));
+			}
+			futures.add(executor.submit(() -> {
+				int checks = 0;
+				do {
+					String transaction = "audit-" + transactions.incrementAndGet();
+					service.createTransaction(transaction);
+					int total = 0;
+					for (int i = 0; i < accounts; i++) {
+						total += Integer.parseInt(service.get("account-" + i, transaction));
+					}
+					service.rollbackTransaction(transaction);
+					//a transfer spans two partitions, its halves are never seen apart
+					assertEquals(100 * accounts, total);
+					checks++;
+				} while (running.get());
+				return checks;
+			}));
+			Thread.sleep(2000);
+			running.set(false);
+			for (Future<Integer> future : futures) {
+				assertTrue(future.get(10, TimeUnit.SECONDS) > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int total = 0;
+		for (int i = 0; i < accounts; i++) {
+			total += Integer.parseInt(service.get("account-" + i));
+		}
+		assertEquals(100 * accounts, total);
+	}
+
+	@Test
+	public void whenRestartedWithMappedPartitions_TheyAreMappedAgainUnlessTheirCountChanged() {
+		BreezeProperties properties = createProperties(StorageEngineType.MAPPED, PARTITIONS, true);
+		service = new BreezeServiceImpl(properties);
+		for (int i = 0; i < 1000; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+		service.delete("key-3");
+		service.shutdown();
+
+		service = new BreezeServiceImpl(properties);
+		Map<String,Object> statistics = service.getStatistics();
+		assertTrue((Long) statistics.get("recovery.engineVersion") > 0);
+		assertEquals(0L, statistics.get("recovery.snapshotKeys"));
+		assertEquals(999L, statistics.get("store.keys"));
+		assertEquals("value-42", service.get("key-42"));
+		assertNull(service.get("key-3"));
+		service.shutdown();
+
+		//the partitions of another count start empty, the log brings the keys back
+		service = new BreezeServiceImpl(createProperties(StorageEngineType.MAPPED, PARTITIONS * 2, true));
+		statistics = service.getStatistics();
+		assertEquals(0L, statistics.get("recovery.engineVersion"));
+		assertEquals(999L, statistics.get("store.keys"));
+		assertEquals("value-42", service.get("key-42"));
+		assertNull(service.get("key-3"));
+	}
+
+	@Test
+	public void whenWritersSpreadOverPartitions_TheyDoNotQueueUpBehindOneEngine() throws Exception {
+		long single = measureWrites(1);
+		long partitioned = measureWrites(PARTITIONS);
+		LOG.info("[4] writers made [" + single + "] writes per second into one off heap engine and [" + partitioned + "] into ["
+				+ PARTITIONS + "] partitions on [" + Runtime.getRuntime().availableProcessors() + "] processors");
+		//the gain depends on the cores at hand, the partitions must at least not cost much on their own
+		assertTrue(partitioned > single / 2);
+	}
+
+	// The writes per second of four threads writing distinct keys for a second
+	private long measureWrites(int partitions) throws Exception {
+		BreezeProperties properties = createProperties(StorageEngineType.OFF_HEAP, partitions, false);
+		service = new BreezeServiceImpl(properties);
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> futures = new ArrayList<>();
+			for (int writer = 0; writer < 4; writer++) {
+				int id = writer;
+				futures.add(executor.submit(() -> {
+					int writes = 0;
+					do {
+						service.put("writer-" + id + "-" + (writes % 50_000), "value-" + writes);
+						writes++;
+					} while (running.get());
+					return writes;
+				}));
+			}
+			long started = System.nanoTime();
+			Thread.sleep(1000);
+			running.set(false);
+			long writes = 0;
+			for (Future<Integer> future : futures) {
+				writes += future.get(10, TimeUnit.SECONDS);
+			}
+			return writes * 1_000_000_000L / (System.nanoTime() - started);
+		} finally {
+			executor.shutdownNow();
+			service.shutdown();
+			service = null;
+		}
+	}
+
+	private BreezeProperties createProperties(StorageEngineType engine, int partitions, boolean logged) {
+		BreezeProperties properties = createProperties(engine, logged);
+		properties.getStorage().setPartitions(partitions);
+		properties.getStorage().setInitialSlots(1024);
+		return properties;
+	}
+}
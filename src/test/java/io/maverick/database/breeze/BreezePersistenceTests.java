@@ -0,0 +1,493 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.VersionedValue;
+import io.maverick.database.breeze.persistence.FsyncPolicy;
+import io.maverick.database.breeze.persistence.LogRecord;
+import io.maverick.database.breeze.persistence.TransferFormat;
+import io.maverick.database.breeze.persistence.WriteAheadLog;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the persisted store: everything written before a restart has to be there after it.
+ *
+ * Every test works in its own temporary directory and restarts the service by simply building a new one on top of it.
+ */
+class BreezePersistenceTests {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BreezePersistenceTests.class);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void whenTheServiceRestarts_PlainWritesAndDeletesAreRecovered() {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		service.put("apple", "1");
+		service.put("orange", "2");
+		service.put("apple", "3");
+		service.delete("orange");
+		service.put("pear", null);
+		service.shutdown();
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals("3", restarted.get("apple"));
+		assertNull(restarted.get("orange"));
+		assertNull(restarted.get("pear"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenTheServiceRestarts_CommittedTransactionsAreRecoveredAndTheOthersAreNot() {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		service.put("apple", "1");
+		service.put("orange", "2");
+
+		service.createTransaction("committed");
+		service.put("apple", "2", "committed");
+		service.delete("orange", "committed");
+		service.put("banana", "ü", "committed");
+		service.commitTransaction("committed");
+
+		service.createTransaction("open");
+		service.put("apple", "never", "open");
+		service.shutdown();
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals("2", restarted.get("apple"));
+		assertNull(restarted.get("orange"));
+		assertEquals("ü", restarted.get("banana"));
+
+		//versions keep counting where they stopped, so old transactions cannot be mistaken for new ones
+		restarted.createTransaction("after");
+		restarted.put("apple", "3", "after");
+		restarted.commitTransaction("after");
+		assertEquals("3", restarted.get("apple"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenTheLogEndsInATornRecord_EverythingBeforeItIsRecovered() throws IOException {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		service.put("apple", "1");
+		service.put("orange", "2");
+		service.shutdown();
+
+		//simulating a crash in the middle of a write: a header promising more than what made it to the disk
+		Path segment = segments().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.putInt(4096).putInt(12345).flip();
+			long end = 0;
+			ByteBuffer length = ByteBuffer.allocate(4);
+			while (true) {
+				length.clear();
+				channel.read(length, end);
+				int bodySize = length.getInt(0);
+				if (bodySize == 0) {
+					break;
+				}
+				end += 8 + bodySize;
+			}
+			channel.write(header, end);
+		}
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals("1", restarted.get("apple"));
+		assertEquals("2", restarted.get("orange"));
+		restarted.put("apple", "2");
+		restarted.shutdown();
+
+		BreezeServiceImpl again = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals("2", again.get("apple"));
+		again.shutdown();
+	}
+
+	@Test
+	public void whenWritingTheLogFailsHalfway_NothingIsLostOrWrittenTwice() throws IOException {
+		//a disk taking a part of the buffer, then refusing the rest until it has room again
+		AtomicBoolean full = new AtomicBoolean();
+		WriteAheadLog log = new WriteAheadLog(directory, 1 << 20, FsyncPolicy.OS, 60_000) {
+			@Override
+			protected FileChannel openSegment(Path file) throws IOException {
+				return new FillingChannel(super.openSegment(file), full);
+			}
+		};
+		log.awaitDurable(log.append(record("apple", "1", 1)));
+		full.set(true);
+		log.append(record("orange", "2", 2));
+		long refused = log.append(record("pear", "3", 3));
+		assertThrows(UncheckedIOException.class, () -> log.awaitDurable(refused));
+		full.set(false);
+		log.awaitDurable(log.append(record("apple", "4", 4)));
+		log.close();
+
+		List<LogRecord> replayed = new ArrayList<>();
+		WriteAheadLog reopened = new WriteAheadLog(directory, 1 << 20, FsyncPolicy.OS, 60_000);
+		reopened.replay(replayed::add);
+		reopened.close();
+		assertEquals(4, replayed.size());
+		for (int i = 0; i < replayed.size(); i++) {
+			assertEquals(i + 1, replayed.get(i).getVersion());
+		}
+		assertEquals("3", replayed.get(2).getChanges().get(0).getValue());
+		assertEquals("4", replayed.get(3).getChanges().get(0).getValue());
+	}
+
+	@Test
+	public void whenComparingTheFsyncPolicies_EveryPolicyRecoversTheWrites() throws IOException {
+		for (FsyncPolicy policy : FsyncPolicy.values()) {
+			Path policyDirectory = directory.resolve(policy.name());
+			BreezeServiceImpl service = createService(policy, policyDirectory);
+			long started = System.nanoTime();
+			for (int i = 0; i < 2000; i++) {
+				service.put("key-" + (i % 100), String.valueOf(i));
+			}
+			long elapsed = System.nanoTime() - started;
+			service.shutdown();
+			LOG.info("fsync policy [" + policy + "]: 2000 writes in [" + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms]");
+
+			BreezeServiceImpl restarted = createService(policy, policyDirectory);
+			assertEquals("1999", restarted.get("key-99"));
+			restarted.shutdown();
+		}
+	}
+
+	@Test
+	public void whenASnapshotIsTaken_TheLogIsTruncatedAndARestartLoadsTheSnapshotPlusTheTail() throws IOException {
+		BreezeServiceImpl service = createService(FsyncPolicy.PERIODIC);
+		String padding = new String(new char[1000]).replace('\0', 'x');
+		for (int i = 0; i < 3000; i++) {
+			service.put("key-" + (i % 500), i + padding);
+		}
+		service.delete("key-0");
+		int segmentsBefore = (Integer) service.getStatistics().get("wal.segments");
+
+		//a transaction reading an older version while the snapshot is taken must not end up in it
+		service.createTransaction("reader");
+		service.get("key-1", "reader");
+		service.put("key-1", "newest");
+		Path snapshot = service.checkpoint();
+		service.rollbackTransaction("reader");
+
+		service.put("key-2", "after the snapshot");
+		service.delete("key-3");
+		service.shutdown();
+
+		assertTrue(Files.exists(snapshot));
+		assertTrue(segments().size() < segmentsBefore, "the segments covered by the snapshot should be gone");
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.PERIODIC);
+		Map<String,Object> statistics = restarted.getStatistics();
+		assertEquals(499L, statistics.get("recovery.snapshotKeys"));
+		assertNull(restarted.get("key-0"));
+		assertEquals("newest", restarted.get("key-1"));
+		assertEquals("after the snapshot", restarted.get("key-2"));
+		assertNull(restarted.get("key-3"));
+		assertEquals(2504 + padding, restarted.get("key-4"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenTheServiceRestarts_TheExpiryTimesAreRecoveredFromTheLogAndTheSnapshot() throws IOException, InterruptedException {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		service.put("snapshot-short", "1", 200);
+		service.put("snapshot-long", "2", 60_000);
+		service.checkpoint();
+		service.put("log-short", "3", 200);
+		service.createTransaction("login");
+		service.put("log-long", "4", 60_000, "login");
+		service.commitTransaction("login");
+		service.shutdown();
+
+		Thread.sleep(300);
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals(2L, restarted.getStatistics().get("store.keys"));
+		assertNull(restarted.get("snapshot-short"));
+		assertEquals("2", restarted.get("snapshot-long"));
+		assertNull(restarted.get("log-short"));
+		assertEquals("4", restarted.get("log-long"));
+		assertEquals(2, restarted.getStatistics().get("expiry.pending"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenAnImportFinishes_ItSurvivesARestartWithoutHavingBeenLogged() {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		service.put("apple", "1");
+		List<VersionedValue<String,String>> entries = new ArrayList<>();
+		for (int i = 0; i < 25_000; i++) {
+			entries.add(VersionedValue.builderFor("imported-" + i).withValue(String.valueOf(i)).build());
+		}
+		assertEquals(25_000, service.importAll(entries.iterator()));
+		service.put("pear", "after the import");
+		service.shutdown();
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals(25_002L, restarted.getStatistics().get("store.keys"));
+		assertEquals("1", restarted.get("apple"));
+		assertEquals("24999", restarted.get("imported-24999"));
+		assertEquals("after the import", restarted.get("pear"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenAnImportBreaksHalfway_TheBatchesBeforeItSurviveARestart() {
+		BreezeServiceImpl service = createService(FsyncPolicy.EVERY_WRITE);
+		Iterator<VersionedValue<String,String>> entries = new Iterator<VersionedValue<String,String>>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public VersionedValue<String,String> next() {
+				if (next == 15_000) {
+					throw new UncheckedIOException(new IOException("connection reset"));
+				}
+				int i = next++;
+				return VersionedValue.builderFor("imported-" + i).withValue(String.valueOf(i)).build();
+			}
+		};
+		assertThrows(UncheckedIOException.class, () -> service.importAll(entries));
+		//the first batch of 10000 went in, what was seen has to be there after a restart
+		assertEquals("9999", service.get("imported-9999"));
+		assertNull(service.get("imported-10000"));
+		service.shutdown();
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.EVERY_WRITE);
+		assertEquals(10_000L, restarted.getStatistics().get("store.keys"));
+		assertEquals("9999", restarted.get("imported-9999"));
+		restarted.shutdown();
+	}
+
+	@Test
+	public void whenWritingAnExportStream_ItReadsBackTheSameInEveryFormat() throws IOException {
+		List<VersionedValue<String,String>> entries = new ArrayList<>();
+		entries.add(VersionedValue.builderFor("apple").withValue("1").build());
+		entries.add(VersionedValue.builderFor("körte").withValue("\"quoted\"\nline").expiringAt(1234567890123L).build());
+		entries.add(VersionedValue.builderFor("empty").withValue("").build());
+		entries.add(VersionedValue.builderFor("null").withValue(null).build());
+
+		for (TransferFormat format : TransferFormat.values()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (TransferFormat.Writer writer = format.writer(out)) {
+				for (VersionedValue<String,String> entry : entries) {
+					writer.write(entry);
+				}
+			}
+
+			List<VersionedValue<String,String>> read = new ArrayList<>();
+			format.reader(new ByteArrayInputStream(out.toByteArray())).forEachRemaining(read::add);
+			assertEquals(entries.size(), read.size(), format.name());
+			for (int i = 0; i < entries.size(); i++) {
+				assertEquals(entries.get(i).getKey(), read.get(i).getKey(), format.name());
+				assertEquals(entries.get(i).getValue(), read.get(i).getValue(), format.name());
+				assertEquals(entries.get(i).getExpiresAt(), read.get(i).getExpiresAt(), format.name());
+			}
+
+			//a stream cut in the middle of an entry is an error rather than a silently shorter import
+			byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 8);
+			TransferFormat.Reader reader = format.reader(new ByteArrayInputStream(truncated));
+			assertThrows(UncheckedIOException.class, () -> reader.forEachRemaining(entry -> { }), format.name());
+		}
+	}
+
+	@Test
+	public void whenRecoveringMillionsOfKeys_TheSnapshotIsLoadedQuickly() throws IOException {
+		final int keys = 2_000_000;
+		BreezeServiceImpl service = createService(FsyncPolicy.PERIODIC);
+		for (int i = 0; i < keys; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+		long started = System.nanoTime();
+		service.checkpoint();
+		LOG.info("Snapshot of [" + keys + "] keys written in [" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms]");
+		for (int i = 0; i < 1000; i++) {
+			service.put("tail-" + i, "value-" + i);
+		}
+		service.shutdown();
+		service = null;
+
+		BreezeServiceImpl restarted = createService(FsyncPolicy.PERIODIC);
+		Map<String,Object> statistics = restarted.getStatistics();
+		LOG.info("Recovery of [" + keys + "] keys: " + statistics);
+
+		assertEquals(keys + 1000L, statistics.get("store.keys"));
+		assertEquals((long) keys, statistics.get("recovery.snapshotKeys"));
+		assertEquals("value-1234567", restarted.get("key-1234567"));
+		assertEquals("value-999", restarted.get("tail-999"));
+		restarted.shutdown();
+	}
+
+	private BreezeServiceImpl createService(FsyncPolicy policy) {
+		return createService(policy, directory);
+	}
+
+	private static BreezeServiceImpl createService(FsyncPolicy policy, Path directory) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getWal().setEnabled(true);
+		properties.getWal().setDirectory(directory.toString());
+		properties.getWal().setFsyncPolicy(policy);
+		properties.getWal().setSegmentSizeMb(1);
+		return new BreezeServiceImpl(properties);
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+			files.forEach(segments::add);
+		}
+		segments.sort(null);
+		return segments;
+	}
+
+	private static LogRecord record(String key, String value, long version) {
+		return LogRecord.put(VersionedValue.builderFor(key).withValue(value).atTime(version).build());
+	}
+
+	/**
+	 * A segment on a disk that fills up: while full, a write takes half of what it is given and the next one fails
+	 */
+	private static class FillingChannel extends FileChannel {
+
+		private final FileChannel channel;
+		private final AtomicBoolean full;
+		private boolean tookPart;
+
+		FillingChannel(FileChannel channel, AtomicBoolean full) {
+			this.channel = channel;
+			this.full = full;
+		}
+
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			if (!full.get()) {
+				tookPart = false;
+				return channel.write(source);
+			}
+			if (tookPart) {
+				throw new IOException("No space left on device");
+			}
+			tookPart = true;
+			ByteBuffer half = source.duplicate();
+			half.limit(source.position() + source.remaining() / 2);
+			int written = channel.write(half);
+			source.position(source.position() + written);
+			return written;
+		}
+
+		@Override
+		public int read(ByteBuffer destination) throws IOException {
+			return channel.read(destination);
+		}
+
+		@Override
+		public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+			return channel.read(destinations, offset, length);
+		}
+
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+			return channel.write(sources, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+			return channel.transferFrom(source, position, count);
+		}
+
+		@Override
+		public int read(ByteBuffer destination, long position) throws IOException {
+			return channel.read(destination, position);
+		}
+
+		@Override
+		public int write(ByteBuffer source, long position) throws IOException {
+			return channel.write(source, position);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+}
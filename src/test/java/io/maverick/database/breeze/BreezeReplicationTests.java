@@ -0,0 +1,213 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.replication.ReplicationRole;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Tests of a leader shipping its writes to a follower over a local connection: the follower has to end up with the same
+ * keys at the same versions, catch up from a snapshot when the changes are not kept anymore, refuse writes and stop serving
+ * reads once it is too far behind.
+ *
+ * They build the services with replication settings of their own, the leader listening on a free port.
+ */
+class BreezeReplicationTests {
+
+	private static final long TIMEOUT_MILLIS = 10_000;
+
+	@TempDir
+	Path directory;
+
+	private BreezeServiceImpl leader;
+
+	private BreezeServiceImpl follower;
+
+	@AfterEach
+	public void stopServices() {
+		if (follower != null) {
+			follower.shutdown();
+		}
+		if (leader != null) {
+			leader.shutdown();
+		}
+	}
+
+	@Test
+	public void whenTheLeaderIsWritten_TheFollowerGetsEveryWriteWithItsVersion() throws Exception {
+		leader = new BreezeServiceImpl(createLeaderProperties(0, false, 100_000));
+		follower = new BreezeServiceImpl(createFollowerProperties(portOf(leader), false));
+
+		leader.put("apple", "1");
+		leader.put("banana", "2");
+		leader.put("short-lived", "3", 60_000);
+		leader.delete("banana");
+		Map<String,String> batch = new LinkedHashMap<>();
+		batch.put("cherry", "4");
+		batch.put("date", "5");
+		leader.putAll(batch);
+		leader.deleteAll(Arrays.asList("date", "nothing"));
+		leader.increment("counter", 5);
+		leader.createTransaction("writer");
+		leader.put("apple", "10", "writer");
+		leader.put("elderberry", "6", "writer");
+		leader.commitTransaction("writer");
+		leader.executeAtomically(Collections.singletonMap("apple", "10"),
+				Collections.singletonList(new OperationDTO<>(OperationDTO.OperationType.PUT, "fig", "7")));
+		awaitCaughtUp();
+
+		for (String key : Arrays.asList("apple", "banana", "short-lived", "cherry", "date", "counter", "elderberry", "fig")) {
+			ValueDTO<String,String> expected = leader.getVersioned(key);
+			ValueDTO<String,String> replicated = follower.getVersioned(key);
+			assertEquals(expected.getValue(), replicated.getValue(), key);
+			assertEquals(expected.getVersion(), replicated.getVersion(), key);
+		}
+		assertEquals("10", follower.get("apple"));
+		assertNull(follower.get("banana"));
+		assertEquals(leader.getStatistics().get("version.current"), follower.getStatistics().get("version.current"));
+		assertEquals(1, leader.getStatistics().get("replication.followers"));
+		assertEquals(true, follower.getStatistics().get("replication.connected"));
+
+		//the follower is only written by its leader, its transactions can still read
+		BreezeActionException refused = assertThrows(BreezeActionException.class, () -> follower.put("apple", "11"));
+		assertEquals(ErrorCode.READ_ONLY_REPLICA, refused.getErrorCode());
+		assertThrows(BreezeActionException.class, () -> follower.delete("apple"));
+		assertThrows(BreezeActionException.class, () -> follower.putAll(batch));
+		follower.createTransaction("reader");
+		assertEquals("10", follower.get("apple", "reader"));
+		assertThrows(BreezeActionException.class, () -> follower.put("apple", "11", "reader"));
+		follower.rollbackTransaction("reader");
+	}
+
+	@Test
+	public void whenTheFollowerIsBehindTheHistory_ItCatchesUpFromASnapshot() throws Exception {
+		BreezeProperties leaderProperties = createLeaderProperties(0, false, 10);
+		leader = new BreezeServiceImpl(leaderProperties);
+		for (int i = 0; i < 100; i++) {
+			leader.put("key-" + i, "value-" + i);
+		}
+
+		BreezeProperties followerProperties = createFollowerProperties(portOf(leader), true);
+		follower = new BreezeServiceImpl(followerProperties);
+		awaitCaughtUp();
+		assertEquals(100L, follower.getStatistics().get("store.keys"));
+		assertEquals(1L, follower.getStatistics().get("replication.snapshotsLoaded"));
+		assertEquals(1L, leader.getStatistics().get("replication.snapshotsSent"));
+
+		//the changes after the snapshot come one by one
+		leader.put("key-0", "changed");
+		awaitCaughtUp();
+		assertEquals("changed", follower.get("key-0"));
+		assertEquals(leader.getVersioned("key-0").getVersion(), follower.getVersioned("key-0").getVersion());
+
+		//meanwhile the follower is away, the leader removes keys and writes more than its history keeps
+		follower.shutdown();
+		follower = null;
+		for (int i = 0; i < 50; i++) {
+			leader.delete("key-" + i);
+		}
+		leader.put("key-new", "new");
+
+		follower = new BreezeServiceImpl(followerProperties);
+		awaitCaughtUp();
+		assertEquals(51L, follower.getStatistics().get("store.keys"));
+		assertNull(follower.get("key-0"));
+		assertNull(follower.get("key-49"));
+		assertEquals("value-50", follower.get("key-50"));
+		assertEquals("new", follower.get("key-new"));
+		assertEquals(leader.getStatistics().get("version.current"), follower.getStatistics().get("version.current"));
+	}
+
+	@Test
+	public void whenTheLeaderGoesAway_TheFollowerStopsServingReadsUntilItIsBack() throws Exception {
+		leader = new BreezeServiceImpl(createLeaderProperties(0, true, 100_000));
+		int port = portOf(leader);
+		follower = new BreezeServiceImpl(createFollowerProperties(port, false));
+		MockMvc followerMvc = MockMvcBuilders.standaloneSetup(new BreezeController(follower)).build();
+
+		leader.put("apple", "1");
+		awaitCaughtUp();
+		followerMvc.perform(get("/entry/apple"))
+				.andExpect(status().isOk());
+
+		leader.shutdown();
+		Thread.sleep(1500);
+		followerMvc.perform(get("/entry/apple"))
+				.andExpect(status().isServiceUnavailable())
+				.andExpect(jsonPath("$.errorCode").value("BREEZE-013"));
+		assertEquals(false, follower.getStatistics().get("replication.connected"));
+
+		//back on the same port with the same log, the follower goes on where it stopped
+		leader = new BreezeServiceImpl(createLeaderProperties(port, true, 100_000));
+		leader.put("apple", "2");
+		awaitCaughtUp();
+		followerMvc.perform(get("/entry/apple"))
+				.andExpect(status().isOk());
+		assertEquals("2", follower.get("apple"));
+		assertTrue((Long) follower.getStatistics().get("replication.reconnects") > 0);
+		assertEquals(0L, follower.getStatistics().get("replication.snapshotsLoaded"));
+	}
+
+	// Waits until the follower applied every version of the leader and knows it is fresh
+	private void awaitCaughtUp() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			Map<String,Object> statistics = follower.getStatistics();
+			long applied = (Long) statistics.get("replication.appliedVersion");
+			long staleness = (Long) statistics.get("replication.stalenessMillis");
+			if (applied >= (Long) leader.getStatistics().get("version.current") && staleness >= 0 && staleness < 1000) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+		fail("The follower did not catch up: " + follower.getStatistics());
+	}
+
+	private static int portOf(BreezeServiceImpl leader) {
+		return (Integer) leader.getStatistics().get("replication.port");
+	}
+
+	private BreezeProperties createLeaderProperties(int port, boolean logged, int historySize) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getReplication().setRole(ReplicationRole.LEADER);
+		properties.getReplication().setPort(port);
+		properties.getReplication().setHeartbeatMillis(50);
+		properties.getReplication().setHistorySize(historySize);
+		if (logged) {
+			StoreFixture.enableLog(properties, directory.resolve("leader"));
+		}
+		return properties;
+	}
+
+	private BreezeProperties createFollowerProperties(int leaderPort, boolean logged) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getReplication().setRole(ReplicationRole.FOLLOWER);
+		properties.getReplication().setLeaderHost("localhost");
+		properties.getReplication().setLeaderPort(leaderPort);
+		properties.getReplication().setHeartbeatMillis(50);
+		properties.getReplication().setMaxStalenessMillis(500);
+		properties.getReplication().setRetryMillis(100);
+		if (logged) {
+			StoreFixture.enableLog(properties, directory.resolve("follower"));
+		}
+		return properties;
+	}
+}
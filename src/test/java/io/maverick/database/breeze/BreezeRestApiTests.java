@@ -3,14 +3,21 @@ package io.maverick.database.breeze;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import io.maverick.database.breeze.domain.ChangeDTO;
+import io.maverick.database.breeze.domain.ChangeEventDTO;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.domain.ScanPageDTO;
 import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.domain.VersionedValue;
 import io.maverick.database.breeze.exception.BreezeActionException;
 import io.maverick.database.breeze.exception.ErrorCode;
 import io.maverick.database.breeze.service.BreezeService;
+import io.maverick.database.breeze.service.ChangeSubscription;
 import org.hamcrest.core.IsNull;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
+import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -19,10 +26,22 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.result.MockMvcResultHandlers;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -39,6 +58,9 @@ class BreezeRestApiTests {
 	@Spy
 	private BreezeService<String,String> breezeService;
 
+	@Mock
+	private ChangeSubscription<String,String> subscription;
+
 	@InjectMocks
 	private BreezeController breezeControllerMock;
 
@@ -51,7 +73,7 @@ class BreezeRestApiTests {
 	@Test
 	public void ifAValueDoesNotExist_ServiceReturnsNull() throws Exception {
 
-		when(breezeService.get("apple")).thenReturn(null);
+		when(breezeService.getVersioned("apple")).thenReturn(new ValueDTO<>("apple", null));
 
 		mockMvc.perform(get("/entry/apple"))
 		.andExpect(status().isOk())
@@ -64,16 +86,102 @@ class BreezeRestApiTests {
 	@Test
 	public void ifAValueDoesNotExist_ServiceReturnsAValue() throws Exception {
 
-		when(breezeService.get("apple")).thenReturn("3");
+		when(breezeService.getVersioned("apple")).thenReturn(new ValueDTO<>("apple", "3", 7L));
 
 		mockMvc.perform(get("/entry/apple"))
 				.andExpect(status().isOk())
 				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
 				.andDo(MockMvcResultHandlers.print())
 				.andExpect(jsonPath("$.key").value(is("apple")))
+				.andExpect(jsonPath("$.value").value("3"))
+				.andExpect(header().string("ETag", "\"7\""));
+	}
+
+	@Test
+	public void whenTheClientHoldsTheCurrentVersion_ItIsNotSentAgain() throws Exception {
+
+		when(breezeService.getVersioned("apple")).thenReturn(new ValueDTO<>("apple", "3", 7L));
+
+		mockMvc.perform(get("/entry/apple").header("If-None-Match", "\"7\""))
+				.andExpect(status().isNotModified())
+				.andExpect(header().string("ETag", "\"7\""))
+				.andExpect(content().string(""));
+
+		mockMvc.perform(get("/entry/apple").header("If-None-Match", "\"5\", \"6\""))
+				.andExpect(status().isOk())
 				.andExpect(jsonPath("$.value").value("3"));
 	}
 
+	@Test
+	public void whenWritingWithAnEntityTag_TheVersionIsChecked() throws Exception {
+
+		String requestJson = "{\"value\":\"4\"}";
+		doReturn(8L).when(breezeService).putIfVersion("apple", "4", Collections.singleton(7L));
+		doReturn(9L).when(breezeService).putIfVersion("apple", "4", new HashSet<>(Arrays.asList(5L, 7L)));
+		doReturn(1L).when(breezeService).putIfAbsent("pear", "4");
+		doThrow(new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "Error description")).when(breezeService).deleteIfVersion("apple", Collections.singleton(6L));
+
+		mockMvc.perform(post("/entry/apple").header("If-Match", "\"7\"").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk())
+				.andExpect(header().string("ETag", "\"8\""));
+
+		mockMvc.perform(post("/entry/pear").header("If-None-Match", "*").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk())
+				.andExpect(header().string("ETag", "\"1\""));
+
+		mockMvc.perform(delete("/entry/apple").header("If-Match", "\"6\""))
+				.andExpect(status().isPreconditionFailed())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.PRECONDITION_FAILED.getCode())));
+
+		//any of a list matches, a weak tag or one that is not a version never does
+		mockMvc.perform(post("/entry/apple").header("If-Match", "\"5\", W/\"6\", \"7\",\"x,y\"").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk())
+				.andExpect(header().string("ETag", "\"9\""));
+
+		mockMvc.perform(post("/entry/apple").header("If-Match", "W/\"7\"").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isPreconditionFailed())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.PRECONDITION_FAILED.getCode())));
+
+		for (String malformed : Arrays.asList("7", "\"7", "\"7\" \"8\"", ",", "\"7\", *")) {
+			mockMvc.perform(post("/entry/apple").header("If-Match", malformed).contentType(MediaType.APPLICATION_JSON).content(requestJson))
+					.andExpect(status().isBadRequest())
+					.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+		}
+		verify(breezeService, never()).put(any(), any());
+	}
+
+	@Test
+	public void whenWritingWithAnyEntityTag_OnlyAnExistingKeyIsWritten() throws Exception {
+
+		String requestJson = "{\"value\":\"4\"}";
+		doReturn(9L).when(breezeService).putIfPresent("apple", "4");
+		doThrow(new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "Error description")).when(breezeService).deleteIfPresent("pear");
+
+		mockMvc.perform(post("/entry/apple").header("If-Match", "*").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk())
+				.andExpect(header().string("ETag", "\"9\""));
+
+		mockMvc.perform(delete("/entry/pear").header("If-Match", "*"))
+				.andExpect(status().isPreconditionFailed())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.PRECONDITION_FAILED.getCode())));
+
+		//both conditions together are refused, and a delete takes no If-None-Match at all
+		mockMvc.perform(post("/entry/apple").header("If-Match", "\"7\"").header("If-None-Match", "*")
+						.contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+		mockMvc.perform(delete("/entry/apple").header("If-Match", "*").header("If-None-Match", "*"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+		mockMvc.perform(delete("/entry/apple").header("If-None-Match", "*"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+		verify(breezeService, never()).putIfVersion(any(), any(), anyCollection());
+		verify(breezeService, never()).putIfAbsent(any(), any());
+		verify(breezeService, never()).deleteIfPresent("apple");
+		verify(breezeService, never()).delete("apple");
+	}
+
 	@Test
 	public void whenDeletingAnEntry_AProperResponseComesBack() throws Exception {
 
@@ -105,6 +213,151 @@ class BreezeRestApiTests {
 				.andExpect(jsonPath("$").value(is("UPSERTED")));
 	}
 
+	@Test
+	public void whenUpsertingAnEntryWithATimeToLive_TheTimeToLiveReachesTheService() throws Exception {
+
+		doNothing().when(breezeService).put("apple","3",5000L);
+		doNothing().when(breezeService).put("apple","4",5000L,"dummy");
+
+		String requestJson = new ObjectMapper().writeValueAsString(new ValueDTO<>("apple","3"));
+		mockMvc.perform(post("/entry/apple").param("ttlMillis", "5000").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$").value(is("UPSERTED")));
+
+		requestJson = new ObjectMapper().writeValueAsString(new ValueDTO<>("apple","4"));
+		mockMvc.perform(post("/entry/apple/transaction/dummy").param("ttlMillis", "5000").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andExpect(status().isOk());
+
+		verify(breezeService).put("apple","3",5000L);
+		verify(breezeService).put("apple","4",5000L,"dummy");
+		verify(breezeService, never()).put("apple","3");
+	}
+
+	@Test
+	public void whenScanningARange_ThePageAndItsCursorComeBack() throws Exception {
+
+		when(breezeService.scan(null, null, "user:", "user:1", 2)).thenReturn(new ScanPageDTO<>(
+				Arrays.asList(new ValueDTO<>("user:2", "b"), new ValueDTO<>("user:3", "c")), "user:3"));
+		when(breezeService.scan("a", "b", null, null, 100, "dummy")).thenReturn(new ScanPageDTO<>(
+				Collections.<ValueDTO<String,String>>emptyList(), null));
+
+		mockMvc.perform(get("/entries").param("prefix", "user:").param("cursor", "user:1").param("limit", "2"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.entries", hasSize(2)))
+				.andExpect(jsonPath("$.entries[0].key").value(is("user:2")))
+				.andExpect(jsonPath("$.entries[1].value").value(is("c")))
+				.andExpect(jsonPath("$.cursor").value(is("user:3")));
+
+		mockMvc.perform(get("/entries/transaction/dummy").param("from", "a").param("to", "b"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.entries", hasSize(0)))
+				.andExpect(jsonPath("$.cursor").value(IsNull.nullValue()));
+	}
+
+	@Test
+	public void whenImportingAStream_TheEntriesReachTheServiceOneByOne() throws Exception {
+
+		final List<String> received = new ArrayList<>();
+		doAnswer(invocation -> {
+			Iterator<VersionedValue<String,String>> entries = invocation.getArgument(0);
+			entries.forEachRemaining(entry -> received.add(entry.getKey() + "=" + entry.getValue() + "@" + entry.getExpiresAt()));
+			return (long) received.size();
+		}).when(breezeService).importAll(any());
+
+		mockMvc.perform(post("/import").content("{\"key\":\"apple\",\"value\":\"1\"}\n{\"key\":\"pear\",\"value\":\"2\",\"expiresAt\":42}\n"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$").value(is(2)));
+		assertEquals(Arrays.asList("apple=1@0", "pear=2@42"), received);
+
+		mockMvc.perform(post("/import").content("{\"key\":\"apple\",\"val"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+	}
+
+	@Test
+	public void whenExportingInAnUnknownFormat_AnErrorIsRenderedCorrectly() throws Exception {
+
+		mockMvc.perform(get("/export").param("format", "xml"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.INVALID_REQUEST.getCode())));
+		verify(breezeService, never()).export(any());
+	}
+
+	@Test
+	public void whenWatchingTheChanges_TheEventsAreStreamedUntilTheSubscriberFallsBehind() throws Exception {
+		ChangeEventDTO<String,String> event = new ChangeEventDTO<>(7, Collections.singletonList(new ChangeDTO<>("user:1", "alice", false, 0)));
+		when(subscription.poll(anyLong(), any())).thenReturn(event)
+				.thenThrow(new BreezeActionException(ErrorCode.SUBSCRIPTION_OVERFLOW, "Error description"));
+		doReturn(subscription).when(breezeService).subscribe("user:", 5L);
+
+		MvcResult result = mockMvc.perform(get("/changes").param("prefix", "user:").header("Last-Event-ID", "5")
+				.accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		//the stream only times out after a long while, so the test waits for its end on its own
+		result.getAsyncResult(5_000);
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk());
+
+		String stream = result.getResponse().getContentAsString();
+		assertTrue(stream.contains("id:7\nevent:change\ndata:{\"sequence\":7,\"changes\":[{\"key\":\"user:1\",\"value\":\"alice\""), stream);
+		assertTrue(stream.contains("event:overflow\ndata:{\"cause\":\"SUBSCRIPTION_OVERFLOW\""), stream);
+		verify(subscription, atLeastOnce()).close();
+	}
+
+	@Test
+	public void whenTheApplicationStops_TheOpenStreamsAreEnded() throws Exception {
+		//a quiet subscription, waiting for the next event until its thread is stopped
+		when(subscription.poll(anyLong(), any())).thenAnswer(invocation -> {
+			Thread.sleep(60_000);
+			return null;
+		});
+		doReturn(subscription).when(breezeService).subscribe(null, null);
+
+		MvcResult result = mockMvc.perform(get("/changes").accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		breezeControllerMock.shutdown();
+		result.getAsyncResult(5_000);
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk());
+		verify(subscription, timeout(5_000).atLeastOnce()).close();
+	}
+
+	@Test
+	public void whenTheChangesToResumeAfterAreGone_AnErrorIsRenderedCorrectly() throws Exception {
+
+		doThrow(new BreezeActionException(ErrorCode.CHANGES_UNAVAILABLE, "Error description")).when(breezeService).subscribe(null, 3L);
+
+		mockMvc.perform(get("/changes").param("after", "3").accept(MediaType.TEXT_EVENT_STREAM))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.CHANGES_UNAVAILABLE.getCode())));
+	}
+
+	@Test
+	public void whenWritingConditionally_TheNewVersionComesBack() throws Exception {
+
+		doReturn(8L).when(breezeService).putIfVersion("apple", "2", 7L);
+		doReturn(-2L).when(breezeService).increment("hits", -3L);
+		doThrow(new BreezeActionException(ErrorCode.PRECONDITION_FAILED, "Error description")).when(breezeService).deleteIfVersion("apple", 7L);
+
+		mockMvc.perform(post("/entry/apple/if-version/7")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"value\":\"2\"}"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.key").value(is("apple")))
+				.andExpect(jsonPath("$.value").value(is("2")))
+				.andExpect(jsonPath("$.version").value(is(8)));
+
+		mockMvc.perform(post("/entry/hits/decrement").param("delta", "3"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$").value(is(-2)));
+
+		mockMvc.perform(delete("/entry/apple/if-version/7"))
+				.andExpect(status().isBadRequest())
+				.andExpect(jsonPath("$.errorCode").value(is(ErrorCode.PRECONDITION_FAILED.getCode())));
+	}
+
 	@Test
 	public void whenCreatingANonExistentTransaction_AProperResponseComesBack() throws Exception {
 
@@ -205,4 +458,104 @@ class BreezeRestApiTests {
 				.andExpect(jsonPath("$.errorCode").value(uncommitableTransaction.getCode()));
 	}
 
+	@Test
+	public void whenGettingABatchOfEntries_TheValuesComeBackInTheOrderAskedFor() throws Exception {
+
+		Map<String,String> values = new LinkedHashMap<>();
+		values.put("pear", "2");
+		values.put("apple", null);
+		when(breezeService.getAll(Arrays.asList("pear", "apple"))).thenReturn(values);
+
+		mockMvc.perform(post("/entries/get").contentType(MediaType.APPLICATION_JSON).content("[\"pear\",\"apple\"]"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(jsonPath("$[0].key").value(is("pear")))
+				.andExpect(jsonPath("$[0].value").value("2"))
+				.andExpect(jsonPath("$[1].key").value(is("apple")))
+				.andExpect(jsonPath("$[1].value").value(IsNull.nullValue()));
+	}
+
+	@Test
+	public void whenUpsertingABatchOfEntries_AProperResponseComesBack() throws Exception {
+
+		Map<String,String> values = new LinkedHashMap<>();
+		values.put("apple", "1");
+		values.put("pear", "2");
+		doNothing().when(breezeService).putAll(values, "dummy");
+
+		final String requestJson = new ObjectMapper().writeValueAsString(
+				Arrays.asList(new ValueDTO<>("apple", "1"), new ValueDTO<>("pear", "2")));
+
+		mockMvc.perform(post("/entries/transaction/dummy").contentType(MediaType.APPLICATION_JSON).content(requestJson))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andExpect(jsonPath("$").value(is("UPSERTED")));
+		verify(breezeService).putAll(values, "dummy");
+	}
+
+	@Test
+	public void whenDeletingABatchOfEntries_AProperResponseComesBack() throws Exception {
+
+		doNothing().when(breezeService).deleteAll(Arrays.asList("apple", "pear"));
+
+		mockMvc.perform(post("/entries/delete").contentType(MediaType.APPLICATION_JSON).content("[\"apple\",\"pear\"]"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(jsonPath("$").value(is("DELETED")));
+		verify(breezeService).deleteAll(Arrays.asList("apple", "pear"));
+	}
+
+	@Test
+	public void whenExecutingAnAtomicTransaction_TheConditionsAndOperationsReachTheService() throws Exception {
+
+		doNothing().when(breezeService).executeAtomically(anyMap(), anyList());
+
+		mockMvc.perform(post("/atomic").contentType(MediaType.APPLICATION_JSON).content(
+						"{\"conditions\":{\"apple\":\"1\",\"pear\":null}," +
+						"\"operations\":[{\"type\":\"PUT\",\"key\":\"apple\",\"value\":\"2\"},{\"type\":\"DELETE\",\"key\":\"plum\"}]}"))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andExpect(jsonPath("$").value(is("COMMITTED")));
+
+		Map<String,String> conditions = new LinkedHashMap<>();
+		conditions.put("apple", "1");
+		conditions.put("pear", null);
+		verify(breezeService).executeAtomically(eq(conditions), argThat(operations -> operations.size() == 2
+				&& operations.get(0).getType() == OperationDTO.OperationType.PUT && "2".equals(operations.get(0).getValue())
+				&& operations.get(1).getType() == OperationDTO.OperationType.DELETE && "plum".equals(operations.get(1).getKey())));
+	}
+
+	@Test
+	public void whenAConditionOfAnAtomicTransactionFails_AnErrorIsRenderedCorrectly() throws Exception {
+		final String description = "Error description";
+		final ErrorCode preconditionFailed = ErrorCode.PRECONDITION_FAILED;
+
+		doThrow(new BreezeActionException(preconditionFailed,description)).when(breezeService).executeAtomically(anyMap(), anyList());
+
+		mockMvc.perform(post("/atomic").contentType(MediaType.APPLICATION_JSON).content("{\"conditions\":{\"apple\":\"1\"}}"))
+				.andExpect(status().isBadRequest())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(jsonPath("$.cause").value(preconditionFailed.toString()))
+				.andExpect(jsonPath("$.errorCode").value(preconditionFailed.getCode()));
+	}
+
+	@Test
+	public void whenAskingForStatistics_TheFiguresOfTheServiceAreRendered() throws Exception {
+
+		Map<String,Object> statistics = new LinkedHashMap<>();
+		statistics.put("store.keys", 3);
+		when(breezeService.getStatistics()).thenReturn(statistics);
+
+		mockMvc.perform(get("/statistics"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+				.andDo(MockMvcResultHandlers.print())
+				.andExpect(jsonPath("$['store.keys']").value(3));
+	}
+
 }
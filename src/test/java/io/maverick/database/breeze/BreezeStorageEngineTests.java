@@ -0,0 +1,105 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.domain.ValueDTO;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests every storage engine against the same behaviour of the service: whichever holds the keys, the reads,
+ * the scans and the transactions on top of it have to give the same answers.
+ *
+ * They build the service with storage settings of their own instead of using the spring context.
+ */
+class BreezeStorageEngineTests extends StoreFixture {
+
+	@ParameterizedTest
+	@EnumSource(StorageEngineType.class)
+	public void whenKeysAreWrittenAndDeleted_EveryEngineGivesTheSameAnswers(StorageEngineType engine) {
+		service = new BreezeServiceImpl(createProperties(engine, false));
+		service.put("apple", "1");
+		service.put("nothing", null);
+		Map<String,String> batch = new LinkedHashMap<>();
+		batch.put("banana", "2");
+		batch.put("cherry", "3");
+		service.putAll(batch);
+		service.increment("counter", 42);
+		service.delete("banana");
+		long version = service.getVersioned("cherry").getVersion();
+		service.putIfVersion("cherry", "4", version);
+
+		assertEquals("1", service.get("apple"));
+		assertNull(service.get("banana"));
+		assertNull(service.get("nothing"));
+		assertEquals("4", service.get("cherry"));
+		assertEquals("42", service.get("counter"));
+		assertEquals(Arrays.asList("apple", "cherry", "counter", "nothing"), keysOf(service.scan(null, null, null, null, 10).getEntries()));
+		assertEquals(4L, service.getStatistics().get("store.keys"));
+		assertEquals(engine.name().toLowerCase().replace('_', '-'), service.getStatistics().get("storage.engine"));
+	}
+
+	@ParameterizedTest
+	@EnumSource(StorageEngineType.class)
+	public void whenATransactionStillReadsDeletedKeys_ItsScanFindsThemUntilItEnds(StorageEngineType engine) {
+		service = new BreezeServiceImpl(createProperties(engine, false));
+		service.put("a", "1");
+		service.put("b", "2");
+		service.put("c", "3");
+		service.createTransaction("reader");
+		service.delete("b");
+		service.put("d", "4");
+		service.put("a", "5");
+
+		assertEquals(Arrays.asList("a", "b", "c"), keysOf(service.scan(null, null, null, null, 10, "reader").getEntries()));
+		assertEquals("1", service.get("a", "reader"));
+		assertEquals("2", service.get("b", "reader"));
+		assertEquals(Arrays.asList("a", "c", "d"), keysOf(service.scan(null, null, null, null, 10).getEntries()));
+
+		service.rollbackTransaction("reader");
+		//with nobody reading it anymore the delete reaches the engine
+		service.put("e", "6");
+		assertEquals(4L, service.getStatistics().get("store.keys"));
+		assertEquals(Arrays.asList("a", "c", "d", "e"), keysOf(service.scan(null, null, null, null, 10).getEntries()));
+	}
+
+	@ParameterizedTest
+	@EnumSource(StorageEngineType.class)
+	public void whenTheServiceRestarts_EveryEngineIsFilledFromTheLog(StorageEngineType engine) {
+		service = new BreezeServiceImpl(createProperties(engine, true));
+		for (int i = 0; i < 1000; i++) {
+			service.put("key-" + i, "value-" + i);
+		}
+		service.delete("key-500");
+		service.createTransaction("writer");
+		service.put("key-1000", "value-1000", "writer");
+		service.commitTransaction("writer");
+		service.shutdown();
+		service = null;
+
+		service = new BreezeServiceImpl(createProperties(engine, true));
+		assertEquals(1000L, service.getStatistics().get("store.keys"));
+		assertEquals("value-0", service.get("key-0"));
+		assertNull(service.get("key-500"));
+		assertEquals("value-1000", service.get("key-1000"));
+		List<String> exported = new ArrayList<>();
+		service.export(value -> exported.add(value.getKey()));
+		assertEquals(1000, exported.size());
+	}
+
+	private static List<String> keysOf(List<ValueDTO<String,String>> entries) {
+		List<String> keys = new ArrayList<>();
+		for (ValueDTO<String,String> entry : entries) {
+			keys.add(entry.getKey());
+		}
+		return keys;
+	}
+}
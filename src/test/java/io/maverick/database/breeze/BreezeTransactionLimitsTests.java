@@ -0,0 +1,140 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.domain.OperationDTO;
+import io.maverick.database.breeze.exception.BreezeActionException;
+import io.maverick.database.breeze.exception.ErrorCode;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the limits protecting the store from abandoned and oversized transactions.
+ *
+ * They build the service with tight limits of their own instead of using the spring context.
+ */
+class BreezeTransactionLimitsTests extends StoreFixture {
+
+	@Test
+	public void whenATransactionIsLeftIdle_ItGetsRolledBack() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(200, 0));
+		service.put("apple", "1");
+		service.createTransaction("abandoned");
+		service.put("apple", "2", "abandoned");
+
+		awaitExpiry(1);
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> service.put("pear", "1", "abandoned"));
+		assertEquals(ErrorCode.UNKNOWN_TRANSACTION, exception.getErrorCode());
+		assertThrows(BreezeActionException.class, () -> service.commitTransaction("abandoned"));
+		assertEquals("1", service.get("apple"));
+		assertEquals(0, service.getStatistics().get("transactions.active"));
+
+		//the id is free to be used again
+		service.createTransaction("abandoned");
+	}
+
+	@Test
+	public void whenATransactionIsWorkedWith_TheIdleTimeoutKeepsMovingAway() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(300, 0));
+		service.createTransaction("busy");
+		for (int i = 0; i < 10; i++) {
+			service.put("apple", String.valueOf(i), "busy");
+			Thread.sleep(100);
+		}
+
+		service.commitTransaction("busy");
+		assertEquals("9", service.get("apple"));
+		assertEquals(0L, service.getStatistics().get("transactions.expired"));
+	}
+
+	@Test
+	public void whenATransactionStaysOpenTooLong_ItGetsRolledBackEvenIfItIsBusy() throws InterruptedException {
+		service = new BreezeServiceImpl(createProperties(0, 400));
+		service.createTransaction("endless");
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		boolean expired = false;
+		while (!expired && System.nanoTime() < deadline) {
+			try {
+				service.put("apple", "1", "endless");
+				Thread.sleep(20);
+			} catch (BreezeActionException e) {
+				assertEquals(ErrorCode.UNKNOWN_TRANSACTION, e.getErrorCode());
+				expired = true;
+			}
+		}
+
+		assertTrue(expired);
+		assertNull(service.get("apple"));
+		assertEquals(1L, service.getStatistics().get("transactions.expired"));
+	}
+
+	@Test
+	public void whenTooManyTransactionsAreOpen_NoMoreCanBeCreated() {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getTransactions().setMaxOpen(2);
+		service = new BreezeServiceImpl(properties);
+
+		service.createTransaction("first");
+		service.createTransaction("second");
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> service.createTransaction("third"));
+		assertEquals(ErrorCode.TOO_MANY_TRANSACTIONS, exception.getErrorCode());
+
+		service.rollbackTransaction("first");
+		service.createTransaction("third");
+	}
+
+	@Test
+	public void whenAWriteSetGrowsTooLarge_FurtherKeysAreRefused() {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getTransactions().setMaxWriteSetSize(3);
+		service = new BreezeServiceImpl(properties);
+
+		service.createTransaction("big");
+		service.putAll(Collections.singletonMap("a", "1"), "big");
+		service.put("b", "1", "big");
+		service.delete("c", "big");
+
+		//writing the same keys again does not grow the write set
+		service.put("a", "2", "big");
+		service.deleteAll(Arrays.asList("b", "c"), "big");
+
+		BreezeActionException exception = assertThrows(BreezeActionException.class, () -> service.put("d", "1", "big"));
+		assertEquals(ErrorCode.WRITE_SET_TOO_LARGE, exception.getErrorCode());
+
+		List<OperationDTO<String,String>> operations = new ArrayList<>();
+		for (String key : Arrays.asList("a", "b", "c", "d")) {
+			operations.add(OperationDTO.put(key, "1"));
+		}
+		exception = assertThrows(BreezeActionException.class, () -> service.executeAtomically(Collections.<String,String>emptyMap(), operations));
+		assertEquals(ErrorCode.WRITE_SET_TOO_LARGE, exception.getErrorCode());
+
+		service.commitTransaction("big");
+		assertEquals("2", service.get("a"));
+		assertNull(service.get("d"));
+	}
+
+	private static BreezeProperties createProperties(long idleTimeoutMillis, long absoluteTimeoutMillis) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getTransactions().setIdleTimeoutMillis(idleTimeoutMillis);
+		properties.getTransactions().setAbsoluteTimeoutMillis(absoluteTimeoutMillis);
+		properties.getTransactions().setReaperTickMillis(20);
+		return properties;
+	}
+
+	private void awaitExpiry(long expected) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!Long.valueOf(expected).equals(service.getStatistics().get("transactions.expired")) && System.nanoTime() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(expected, service.getStatistics().get("transactions.expired"));
+	}
+}
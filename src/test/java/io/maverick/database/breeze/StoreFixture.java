@@ -0,0 +1,64 @@
+package io.maverick.database.breeze;
+
+import io.maverick.database.breeze.config.BreezeProperties;
+import io.maverick.database.breeze.persistence.FsyncPolicy;
+import io.maverick.database.breeze.service.impl.BreezeServiceImpl;
+import io.maverick.database.breeze.storage.StorageEngineType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+/**
+ * The setup shared by the tests building the service with settings of their own instead of using the spring context:
+ * the service stopped after every test, and a temporary directory holding the files of the engine under storage
+ * and the write ahead log (when there is one) next to them.
+ */
+abstract class StoreFixture {
+
+	@TempDir
+	Path directory;
+
+	BreezeServiceImpl service;
+
+	@AfterEach
+	public void stopService() {
+		if (service != null) {
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * The settings of a store on the given engine, with small slabs and tables so they grow after a few hundred writes
+	 *
+	 * @param engine
+	 * @param logged whether the writes go to a write ahead log, without background snapshots
+	 * @return
+	 */
+	BreezeProperties createProperties(StorageEngineType engine, boolean logged) {
+		BreezeProperties properties = new BreezeProperties();
+		properties.getStorage().setEngine(engine);
+		properties.getStorage().setSlabSizeMb(1);
+		properties.getStorage().setMaxOffHeapMb(64);
+		properties.getStorage().setInitialSlots(64);
+		properties.getStorage().setDirectory(directory.resolve("storage").toString());
+		if (logged) {
+			enableLog(properties, directory);
+		}
+		return properties;
+	}
+
+	/**
+	 * Turns the write ahead log on in the given directory, written without forcing it to the disk and never snapshotted in the background
+	 *
+	 * @param properties
+	 * @param path
+	 */
+	static void enableLog(BreezeProperties properties, Path path) {
+		properties.getWal().setEnabled(true);
+		properties.getWal().setDirectory(path.toString());
+		properties.getWal().setFsyncPolicy(FsyncPolicy.OS);
+		properties.getWal().setSegmentSizeMb(1);
+		properties.getWal().setSnapshotIntervalSeconds(0);
+	}
+}